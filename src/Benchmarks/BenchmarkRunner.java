@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * A small benchmark harness for the device model.
+ * Each benchmark is warmed up, then measured over several timed iterations on one or more threads.
+ * The runner reports throughput in operations per second together with the bytes allocated per
+ * operation, read from the JVM's per-thread allocation counters, which is the same figure the
+ * GC profiler of a JMH run reports as {@code gc.alloc.rate.norm}.
+ * Results can be written as JSON so runs of different releases can be compared.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class BenchmarkRunner
+{
+    // Constants
+    private static final int OPERATIONS_PER_CHECK;
+
+    static
+    {
+        OPERATIONS_PER_CHECK = 1_024;
+    }
+
+    // Instance Variables
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationMillis;
+    private final String filter;
+    private final List<Result> results;
+
+    /**
+     * Constructs a {@link BenchmarkRunner}.
+     *
+     * @param warmupIterations      The number of unmeasured iterations run first.
+     * @param measurementIterations The number of measured iterations.
+     * @param iterationMillis       The length of each iteration in milliseconds.
+     * @param filter                Only benchmarks whose name contains this text are run;
+     *                              {@code null} runs all of them.
+     * @throws IllegalArgumentException If an iteration count or length is not positive.
+     */
+    public BenchmarkRunner(final int warmupIterations,
+                           final int measurementIterations,
+                           final long iterationMillis,
+                           final String filter)
+    {
+        if (warmupIterations < 0 || measurementIterations <= 0 || iterationMillis <= 0)
+        {
+            throw new IllegalArgumentException("Iterations and their length must be positive.");
+        }
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+        this.filter = filter;
+        this.results = new ArrayList<>();
+    }
+
+    /**
+     * Runs a benchmark on a single thread.
+     *
+     * @param name      The name of the benchmark.
+     * @param operation The operation to measure.
+     */
+    public void run(final String name,
+                    final Operation operation)
+    {
+        run(name, 1, operation);
+    }
+
+    /**
+     * Runs a benchmark on the given number of threads at once, all calling the same operation.
+     *
+     * @param name      The name of the benchmark.
+     * @param threads   The number of threads.
+     * @param operation The operation to measure.
+     */
+    public void run(final String name,
+                    final int threads,
+                    final Operation operation)
+    {
+        if (filter != null && !name.contains(filter))
+        {
+            return;
+        }
+
+        for (int i = 0; i < warmupIterations; i++)
+        {
+            iterate(threads, operation);
+        }
+
+        final double[] scores = new double[measurementIterations];
+        long allocatedBytes = 0;
+        long operations = 0;
+        for (int i = 0; i < measurementIterations; i++)
+        {
+            final long[] iteration = iterate(threads, operation);
+            scores[i] = iteration[0] * 1_000_000_000.0 / iteration[2];
+            operations += iteration[0];
+            allocatedBytes += iteration[1];
+        }
+
+        final Result result = new Result(name, threads, scores, (double) allocatedBytes / operations);
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * @return the results of every benchmark run so far.
+     */
+    public List<Result> results()
+    {
+        return List.copyOf(results);
+    }
+
+    /**
+     * Writes the results of every benchmark run so far as a JSON array.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeJson(final Path file) throws IOException
+    {
+        final StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++)
+        {
+            results.get(i).appendJson(json);
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("]\n");
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Runs one timed iteration on every thread and returns the number of operations,
+     * the bytes the threads allocated and the elapsed nanoseconds.
+     */
+    private long[] iterate(final int threads,
+                           final Operation operation)
+    {
+        final long[] operations = new long[threads];
+        final long[] allocated = new long[threads];
+        final Throwable[] failures = new Throwable[threads];
+        final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        final Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            workers[t] = new Thread(() ->
+            {
+                try
+                {
+                    measure(barrier, operation, thread, operations, allocated);
+                } catch (RuntimeException | Error e)
+                {
+                    failures[thread] = e;
+                }
+            });
+            workers[t].start();
+        }
+
+        awaitQuietly(barrier);
+        final long start = System.nanoTime();
+        for (final Thread worker : workers)
+        {
+            try
+            {
+                worker.join();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Benchmark interrupted.", e);
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        long totalOperations = 0;
+        long totalAllocated = 0;
+        for (int t = 0; t < threads; t++)
+        {
+            if (failures[t] != null)
+            {
+                throw new IllegalStateException("Benchmark operation failed.", failures[t]);
+            }
+            totalOperations += operations[t];
+            totalAllocated += allocated[t];
+        }
+        return new long[]{totalOperations, totalAllocated, elapsed};
+    }
+
+    /*
+     * Runs the operation on the calling thread for one iteration and records what it did.
+     * The clock is checked after batches that double up to OPERATIONS_PER_CHECK, so slow
+     * operations do not overrun the iteration.
+     */
+    private void measure(final CyclicBarrier barrier,
+                         final Operation operation,
+                         final int thread,
+                         final long[] operations,
+                         final long[] allocated)
+    {
+        final Blackhole blackhole = new Blackhole();
+        awaitQuietly(barrier);
+        final long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+        final long allocatedBefore = allocatedBytes();
+        long count = 0;
+        int batch = 1;
+        do
+        {
+            for (int i = 0; i < batch; i++)
+            {
+                operation.run(blackhole);
+            }
+            count += batch;
+            if (batch < OPERATIONS_PER_CHECK)
+            {
+                batch <<= 1;
+            }
+        } while (System.nanoTime() < deadline);
+        allocated[thread] = allocatedBytes() - allocatedBefore;
+        operations[thread] = count;
+        blackhole.publish();
+    }
+
+    // Waits for every thread of an iteration to be ready.
+    private static void awaitQuietly(final CyclicBarrier barrier)
+    {
+        try
+        {
+            barrier.await();
+        } catch (Exception e)
+        {
+            throw new IllegalStateException("Benchmark threads could not start together.", e);
+        }
+    }
+
+    // Bytes allocated by the current thread so far.
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * One benchmarked operation. Results the operation computes should be handed to the
+     * {@link Blackhole} so the JIT cannot remove the work.
+     */
+    public interface Operation
+    {
+        /**
+         * Runs the operation once.
+         *
+         * @param blackhole Consumes the results of the operation.
+         */
+        void run(Blackhole blackhole);
+    }
+
+    /**
+     * Consumes benchmark results so the JIT cannot treat them as unused.
+     */
+    public static final class Blackhole
+    {
+        private static volatile long sink;
+        private long accumulator;
+        private Object last;
+
+        /**
+         * @param value a result to consume.
+         */
+        public void consume(final Object value)
+        {
+            last = value;
+        }
+
+        /**
+         * @param value a result to consume.
+         */
+        public void consume(final long value)
+        {
+            accumulator += value;
+        }
+
+        /**
+         * @param value a result to consume.
+         */
+        public void consume(final double value)
+        {
+            accumulator += Double.doubleToRawLongBits(value);
+        }
+
+        /**
+         * @param value a result to consume.
+         */
+        public void consume(final boolean value)
+        {
+            accumulator += value ? 1 : 0;
+        }
+
+        // Makes the accumulated value visible so it cannot be discarded.
+        private void publish()
+        {
+            sink = accumulator + (last == null ? 0 : 1);
+        }
+    }
+
+    /**
+     * The measured throughput and allocation of one benchmark.
+     */
+    public static final class Result
+    {
+        private final String name;
+        private final int threads;
+        private final double[] scores;
+        private final double allocatedBytesPerOperation;
+
+        private Result(final String name,
+                       final int threads,
+                       final double[] scores,
+                       final double allocatedBytesPerOperation)
+        {
+            this.name = name;
+            this.threads = threads;
+            this.scores = scores;
+            this.allocatedBytesPerOperation = allocatedBytesPerOperation;
+        }
+
+        /**
+         * @return the mean throughput over the measured iterations in operations per second.
+         */
+        public double score()
+        {
+            double sum = 0;
+            for (final double score : scores)
+            {
+                sum += score;
+            }
+            return sum / scores.length;
+        }
+
+        /**
+         * @return the standard deviation of the throughput over the measured iterations.
+         */
+        public double scoreDeviation()
+        {
+            final double mean = score();
+            double squares = 0;
+            for (final double score : scores)
+            {
+                squares += (score - mean) * (score - mean);
+            }
+            return scores.length > 1 ? Math.sqrt(squares / (scores.length - 1)) : 0.0;
+        }
+
+        // Appends this result as a JSON object.
+        private void appendJson(final StringBuilder json)
+        {
+            json.append("  {\"benchmark\": \"").append(name.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\", \"mode\": \"thrpt\", \"threads\": ").append(threads)
+                    .append(", \"score\": ").append(String.format(Locale.ROOT, "%.3f", score()))
+                    .append(", \"scoreError\": ").append(String.format(Locale.ROOT, "%.3f", scoreDeviation()))
+                    .append(", \"scoreUnit\": \"ops/s\", \"allocBytesPerOp\": ")
+                    .append(String.format(Locale.ROOT, "%.3f", allocatedBytesPerOperation))
+                    .append(", \"iterations\": ").append(scores.length).append('}');
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.ROOT, "%-45s %3d thr %,18.0f +- %,14.0f ops/s %10.1f B/op",
+                    name, threads, score(), scoreDeviation(), allocatedBytesPerOperation);
+        }
+    }
+}
@@ -0,0 +1,784 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks for the device hierarchy, run through {@link BenchmarkRunner}.
+ * Covers construction with validation (including rejected input), batches with 0%, 10% and 50%
+ * invalid rows validated by {@link DeviceBatchValidator} against the throwing constructors, {@code equals} and
+ * {@code hashCode} of all four device types, lookups of equal devices, fleet queries,
+ * flag counts over packed bits, {@code toString} and {@code printDetails}, the mutators,
+ * both on a single thread and with several threads sharing one device, striped song counters
+ * against an {@link AtomicInteger} from 1 to 64 threads, batched minute removals,
+ * vectorized minute arithmetic against a scalar loop, mutators logged to a
+ * {@link DeviceWriteAheadLog} with and without durability, mutators recorded by a
+ * {@link DeviceChangeFeed}, balance changes recorded in a compressed {@link MinutesHistory} and its
+ * point and range lookups, per-carrier aggregates read in constant time against a full scan and their
+ * cost to contended mutators, "older than" version queries and bulk upgrades on an ordered index against
+ * scans of the version strings and of their parsed numbers, deduplication in memory and spilled to disk
+ * against a {@code HashMap}, and an iPod fleet kept on and off the heap.
+ * <p>
+ * Usage: {@code java --add-modules jdk.incubator.vector DeviceBenchmarks [results.json] [name filter]}.
+ * Results are written as JSON to {@code benchmark-results.json} unless another file is given.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class DeviceBenchmarks
+{
+    private static final int WARMUP_ITERATIONS;
+    private static final int MEASUREMENT_ITERATIONS;
+    private static final long ITERATION_MILLIS;
+    private static final int CONTENDED_THREADS;
+    private static final String DEFAULT_RESULTS_FILE;
+
+    static
+    {
+        WARMUP_ITERATIONS = 3;
+        MEASUREMENT_ITERATIONS = 5;
+        ITERATION_MILLIS = 500L;
+        CONTENDED_THREADS = 4;
+        DEFAULT_RESULTS_FILE = "benchmark-results.json";
+    }
+
+    /**
+     * Runs every benchmark and writes the results.
+     *
+     * @param args the optional results file and name filter.
+     * @throws IOException If the results cannot be written.
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        final Path resultsFile;
+        final BenchmarkRunner runner;
+
+        resultsFile = Path.of(args.length > 0 ? args[0] : DEFAULT_RESULTS_FILE);
+        runner = new BenchmarkRunner(WARMUP_ITERATIONS, MEASUREMENT_ITERATIONS, ITERATION_MILLIS,
+                args.length > 1 ? args[1] : null);
+
+        construction(runner);
+        batchValidation(runner);
+        equality(runner);
+        equalityIndex(runner);
+        queries(runner);
+        flagQueries(runner);
+        rendering(runner);
+        mutators(runner);
+        contendedMutators(runner);
+        songCounters(runner);
+        batchRemovals(runner);
+        minuteArithmetic(runner);
+        writeAheadLog(runner);
+        changeFeed(runner);
+        minutesHistory(runner);
+        carrierAggregates(runner);
+        versionIndex(runner);
+        deduplication(runner);
+        offHeapCatalogue(runner);
+
+        runner.writeJson(resultsFile);
+        System.out.println("Results written to " + resultsFile.toAbsolutePath());
+    }
+
+    // Constructors, each of which runs its validation rules.
+    private static void construction(final BenchmarkRunner runner)
+    {
+        runner.run("construct.IPhone", bh -> bh.consume(new IPhone(120.0, "Verizon")));
+        runner.run("construct.IPhone16", bh -> bh.consume(new IPhone16(100.0, "Verizon", true, 512)));
+        runner.run("construct.IPad", bh -> bh.consume(new IPad(true, "iPadOS 15")));
+        runner.run("construct.IPod", bh -> bh.consume(new IPod(300, 80.0)));
+
+        runner.run("construct.rejected.phonePlanMinutes",
+                bh -> bh.consume(rejected(() -> new IPhone(-1.0, "Verizon"))));
+        runner.run("construct.rejected.memoryGB",
+                bh -> bh.consume(rejected(() -> new IPhone16(100.0, "Verizon", true, 0))));
+        runner.run("construct.rejected.maxDecibelLevel",
+                bh -> bh.consume(rejected(() -> new IPod(300, 90.0))));
+    }
+
+    /*
+     * A batch of iPhone 16 rows with none, a tenth and half of them invalid, validated and built
+     * by DeviceBatchValidator against constructing each row and catching the exception.
+     */
+    private static void batchValidation(final BenchmarkRunner runner)
+    {
+        final int rows = 100_000;
+        for (final int invalidPercent : new int[]{0, 10, 50})
+        {
+            final double[] minutes = new double[rows];
+            final String[] carriers = new String[rows];
+            final boolean[] highResCameras = new boolean[rows];
+            final int[] memoryGB = new int[rows];
+            for (int i = 0; i < rows; i++)
+            {
+                final boolean invalid = (int) ((i * 0x9E3779B9L) & 0x7FFF_FFFFL) % 100 < invalidPercent;
+                minutes[i] = invalid && i % 2 == 0 ? -1.0 : i % 500;
+                carriers[i] = i % 3 == 0 ? "Verizon" : "Rogers";
+                highResCameras[i] = i % 2 == 0;
+                memoryGB[i] = invalid && i % 2 == 1 ? 0 : 128;
+            }
+
+            runner.run("validation.batch.invalid" + invalidPercent + "." + rows, bh ->
+            {
+                final byte[] errors = DeviceBatchValidator.validateIPhone16s(minutes, carriers, memoryGB, rows);
+                bh.consume(DeviceBatchValidator.buildIPhone16s(minutes, carriers, highResCameras, memoryGB, errors));
+            });
+            runner.run("validation.constructors.invalid" + invalidPercent + "." + rows, bh ->
+            {
+                final IPhone16[] phones = new IPhone16[rows];
+                for (int i = 0; i < rows; i++)
+                {
+                    try
+                    {
+                        phones[i] = new IPhone16(minutes[i], carriers[i], highResCameras[i], memoryGB[i]);
+                    } catch (IllegalArgumentException e)
+                    {
+                        bh.consume(e.getMessage());
+                    }
+                }
+                bh.consume(phones);
+            });
+        }
+    }
+
+    // equals and hashCode, which go through Objects.hash for the phones and iPods.
+    private static void equality(final BenchmarkRunner runner)
+    {
+        final IPhone iPhone1 = new IPhone(120.0, "Verizon");
+        final IPhone iPhone2 = new IPhone(120.0, "AT&T");
+        final IPhone16 iPhone16First = new IPhone16(100.0, "Verizon", true, 512);
+        final IPhone16 iPhone16Second = new IPhone16(100.0, "Verizon", true, 256);
+        final IPad iPad1 = new IPad(true, "iPadOS 15");
+        final IPad iPad2 = new IPad(false, "iPadOS 15");
+        final IPod iPod1 = new IPod(300, 80.0);
+        final IPod iPod2 = new IPod(300, 70.0);
+
+        runner.run("equals.IPhone", bh -> bh.consume(iPhone1.equals(iPhone2)));
+        runner.run("equals.IPhone16", bh -> bh.consume(iPhone16First.equals(iPhone16Second)));
+        runner.run("equals.IPad", bh -> bh.consume(iPad1.equals(iPad2)));
+        runner.run("equals.IPod", bh -> bh.consume(iPod1.equals(iPod2)));
+
+        runner.run("hashCode.IPhone", bh -> bh.consume(iPhone1.hashCode()));
+        runner.run("hashCode.IPhone16", bh -> bh.consume(iPhone16First.hashCode()));
+        runner.run("hashCode.IPad", bh -> bh.consume(iPad1.hashCode()));
+        runner.run("hashCode.IPod", bh -> bh.consume(iPod1.hashCode()));
+    }
+
+    // Looking up equal devices in a DeviceEqualityIndex compared with a HashMap of lists.
+    private static void equalityIndex(final BenchmarkRunner runner)
+    {
+        final DeviceEqualityIndex<IPod> index = DeviceEqualityIndex.forIPods();
+        final Map<IPod, List<IPod>> map = new HashMap<>();
+        final IPod[] probes = new IPod[1_024];
+
+        for (int i = 0; i < 100_000; i++)
+        {
+            final IPod iPod = new IPod(i % 10_000, 80.0);
+            index.add(iPod);
+            map.computeIfAbsent(iPod, key -> new ArrayList<>()).add(iPod);
+        }
+        for (int i = 0; i < probes.length; i++)
+        {
+            probes[i] = new IPod(i * 7, 60.0);
+        }
+
+        final int[] counter = new int[1];
+        runner.run("lookup.equalityIndex.IPod",
+                bh -> bh.consume(index.first(probes[counter[0]++ & (probes.length - 1)])));
+        runner.run("lookup.hashMap.IPod",
+                bh -> bh.consume(map.get(probes[counter[0]++ & (probes.length - 1)])));
+    }
+
+    // Fleet analytics through DeviceQuery, on the common pool and on a single thread.
+    private static void queries(final BenchmarkRunner runner)
+    {
+        final DeviceFleet fleet = new DeviceFleet();
+        final String[] carriers = {"Verizon", "T-Mobile", "AT&T"};
+        final ForkJoinPool singleThread = new ForkJoinPool(1);
+
+        for (int i = 0; i < 1_000_000; i++)
+        {
+            fleet.addIPhone(i % 1_000, carriers[i % carriers.length]);
+            fleet.addIPod(i % 5_000, 80.0);
+        }
+
+        final DeviceQuery<IPhone> iPhones = DeviceQuery.iPhones(fleet);
+        final DeviceQuery<IPod> iPods = DeviceQuery.iPods(fleet);
+        runner.run("query.minutesByCarrier",
+                bh -> bh.consume(iPhones.groupBy(DeviceQuery.BY_CARRIER, IPhone::getPhonePlanMinutesRemaining)));
+        runner.run("query.minutesByCarrier.singleThread", bh -> bh.consume(iPhones.on(singleThread)
+                .groupBy(DeviceQuery.BY_CARRIER, IPhone::getPhonePlanMinutesRemaining)));
+        runner.run("query.songHistogram", bh -> bh.consume(iPods.countBy(iPod -> iPod.getNumOfStoredSongs() / 100)));
+        runner.run("query.songHistogram.singleThread",
+                bh -> bh.consume(iPods.on(singleThread).countBy(iPod -> iPod.getNumOfStoredSongs() / 100)));
+        singleThread.shutdown();
+    }
+
+    // Counting and selecting by a flag through the packed bits and through a per-device query.
+    private static void flagQueries(final BenchmarkRunner runner)
+    {
+        final DeviceFleet fleet = new DeviceFleet();
+        final String[] versions = {"iPadOS 15", "iPadOS 16", "iPadOS 17"};
+
+        for (int i = 0; i < 10_000_000; i++)
+        {
+            fleet.addIPad(i % 3 == 0, versions[i % versions.length]);
+        }
+
+        final DeviceFleet.Selection latest =
+                fleet.selectIPads(iPad -> iPad.getOperatingSystemVersion().equals("iPadOS 17"));
+        final DeviceQuery<IPad> iPads = DeviceQuery.iPads(fleet);
+        runner.run("flags.countIPadsWithCase", bh -> bh.consume(fleet.countIPadsWithCase()));
+        runner.run("flags.countIPadsWithCase.query", bh -> bh.consume(iPads.filter(IPad::hasIPadCase).count()));
+        runner.run("flags.iPadsWithCaseAndLatestOs", bh -> bh.consume(fleet.iPadsWithCase().and(latest).count()));
+    }
+
+    // toString and printDetails, with standard output sent nowhere.
+    private static void rendering(final BenchmarkRunner runner)
+    {
+        final IDevice[] devices = {
+                new IPhone(120.5, "Verizon"),
+                new IPhone16(100.0, "Verizon", true, 512),
+                new IPad(true, "iPadOS 15"),
+                new IPod(300, 80.0)
+        };
+
+        for (final IDevice device : devices)
+        {
+            final String type = device.getClass().getSimpleName();
+            runner.run("toString." + type, bh -> bh.consume(device.toString()));
+        }
+
+        final PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try
+        {
+            for (final IDevice device : devices)
+            {
+                final String type = device.getClass().getSimpleName();
+                runner.run("printDetails." + type, bh -> device.printDetails());
+            }
+        } finally
+        {
+            System.setOut(console);
+        }
+    }
+
+    // Every mutator on a device owned by a single thread.
+    private static void mutators(final BenchmarkRunner runner)
+    {
+        final IPhone iPhone = new IPhone(1_000.0, "Verizon");
+        final IPhone16 iPhone16 = new IPhone16(1_000.0, "Verizon", true, 512);
+        final IPad iPad = new IPad(true, "iPadOS 15");
+        final IPod iPod = new IPod(300, 80.0);
+        final String[] carriers = {"Verizon", "T-Mobile", "AT&T"};
+        final String[] versions = {"iPadOS 15", "iPadOS 16", "iPadOS 17"};
+        final int[] counter = new int[1];
+
+        runner.run("mutate.addRemovePhonePlanMinutes", bh ->
+        {
+            iPhone.addPhonePlanMinutes(2.5);
+            iPhone.removePhonePlanMinutes(2.5);
+            bh.consume(iPhone.getPhonePlanMinutesRemaining());
+        });
+        runner.run("mutate.changeCarrier",
+                bh -> iPhone.changeCarrier(carriers[(counter[0]++ & Integer.MAX_VALUE) % carriers.length]));
+        runner.run("mutate.setMemoryGB", bh -> iPhone16.setMemoryGB(128 << (counter[0]++ & 3)));
+        runner.run("mutate.setHighResCamera", bh -> iPhone16.setHighResCamera((counter[0]++ & 1) == 0));
+        runner.run("mutate.toggleHasCase", bh -> iPad.toggleHasCase());
+        runner.run("mutate.setOperatingSystemVersion",
+                bh -> iPad.setOperatingSystemVersion(versions[(counter[0]++ & Integer.MAX_VALUE) % versions.length]));
+        runner.run("mutate.addDelSong", bh ->
+        {
+            iPod.addSong();
+            iPod.delSong();
+        });
+        runner.run("mutate.setNumOfStoredSongs", bh -> iPod.setNumOfStoredSongs(counter[0]++));
+    }
+
+    // Mutators called by several threads on the same device.
+    private static void contendedMutators(final BenchmarkRunner runner)
+    {
+        final IPhone iPhone = new IPhone(1.0e12, "Verizon");
+        final IPad iPad = new IPad(true, "iPadOS 15");
+        final IPod iPod = new IPod(300, 80.0);
+        final MinuteLedger ledger = new MinuteLedger(1);
+        final int slot = ledger.open(1.0e6);
+
+        runner.run("contended.addRemovePhonePlanMinutes", CONTENDED_THREADS, bh ->
+        {
+            iPhone.addPhonePlanMinutes(2.5);
+            iPhone.removePhonePlanMinutes(2.5);
+        });
+        runner.run("contended.toggleHasCase", CONTENDED_THREADS, bh -> iPad.toggleHasCase());
+        runner.run("contended.addDelSong", CONTENDED_THREADS, bh ->
+        {
+            iPod.addSong();
+            iPod.delSong();
+        });
+        runner.run("contended.minuteLedger.addTryRemove", CONTENDED_THREADS, bh ->
+        {
+            ledger.add(slot, 2.5);
+            bh.consume(ledger.tryRemove(slot, 2.5));
+        });
+    }
+
+    // Song counts updated by 1 to 64 threads: striped cells against a single AtomicInteger.
+    private static void songCounters(final BenchmarkRunner runner)
+    {
+        for (int threads = 1; threads <= 64; threads <<= 1)
+        {
+            final ConcurrentIPod iPod = new ConcurrentIPod(300, 80.0, threads);
+            final AtomicInteger songs = new AtomicInteger(300);
+            runner.run("songCounter.striped.addSong", threads, bh -> iPod.addSong());
+            runner.run("songCounter.atomicInteger.addSong", threads, bh -> songs.incrementAndGet());
+        }
+        final ConcurrentIPod iPod = new ConcurrentIPod(300, 80.0, 64);
+        runner.run("songCounter.striped.exactRead", bh -> bh.consume(iPod.getNumOfStoredSongs()));
+        runner.run("songCounter.striped.approximateRead", bh -> bh.consume(iPod.approximateNumOfStoredSongs()));
+    }
+
+    // One billing batch of removals, applied through MinuteLedger.removeBatch and one at a time.
+    private static void batchRemovals(final BenchmarkRunner runner)
+    {
+        final int batchSize = 65_536;
+        final int balances = 1_000_000;
+        final MinuteLedger ledger = new MinuteLedger(balances);
+        final int[] slots = new int[batchSize];
+        final double[] minutes = new double[batchSize];
+
+        for (int i = 0; i < balances; i++)
+        {
+            ledger.open(1.0e9);
+        }
+        for (int i = 0; i < batchSize; i++)
+        {
+            slots[i] = (int) ((i * 0x9E3779B9L) & 0x7FFF_FFFFL) % balances;
+            minutes[i] = 0.000001;
+        }
+
+        runner.run("batch.removeBatch." + batchSize, bh -> bh.consume(ledger.removeBatch(slots, minutes)));
+        runner.run("batch.tryRemoveLoop." + batchSize, bh ->
+        {
+            boolean applied = true;
+            for (int i = 0; i < batchSize; i++)
+            {
+                applied &= ledger.tryRemove(slots[i], minutes[i]);
+            }
+            bh.consume(applied);
+        });
+    }
+
+    /*
+     * Mutator throughput with no log, with a log that is written but never forced, and with a
+     * durable log, both on one thread and with several threads sharing its group commits, and the
+     * cost an open log adds to devices it does not hold.
+     */
+    private static void writeAheadLog(final BenchmarkRunner runner) throws IOException
+    {
+        final Path directory = Files.createTempDirectory("device-wal");
+        final IPod unloggedIPod = new IPod(300, 80.0);
+        final IPad unloggedIPad = new IPad(true, "iPadOS 15");
+
+        runner.run("wal.off.addDelSong", bh ->
+        {
+            unloggedIPod.addSong();
+            unloggedIPod.delSong();
+        });
+        runner.run("wal.off.contended.toggleHasCase", CONTENDED_THREADS, bh -> unloggedIPad.toggleHasCase());
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory.resolve("buffered"), false))
+        {
+            final IPod iPod = new IPod(300, 80.0);
+            final IPad iPad = new IPad(true, "iPadOS 15");
+            log.register(iPod);
+            log.register(iPad);
+            runner.run("wal.buffered.addDelSong", bh ->
+            {
+                iPod.addSong();
+                iPod.delSong();
+            });
+            runner.run("wal.buffered.contended.toggleHasCase", CONTENDED_THREADS, bh -> iPad.toggleHasCase());
+            runner.run("wal.buffered.contended.unregistered.toggleHasCase", CONTENDED_THREADS,
+                    bh -> unloggedIPad.toggleHasCase());
+        }
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory.resolve("durable"), true))
+        {
+            final IPod iPod = new IPod(300, 80.0);
+            final IPad iPad = new IPad(true, "iPadOS 15");
+            log.register(iPod);
+            log.register(iPad);
+            runner.run("wal.durable.addDelSong", bh ->
+            {
+                iPod.addSong();
+                iPod.delSong();
+            });
+            runner.run("wal.durable.contended.toggleHasCase", CONTENDED_THREADS, bh -> iPad.toggleHasCase());
+        }
+        deleteRecursively(directory);
+    }
+
+    // Mutator cost with no one subscribed to a change feed and with each kind of subscriber.
+    private static void changeFeed(final BenchmarkRunner runner)
+    {
+        final IPhone16 iPhone16 = new IPhone16(1_000.0, "Verizon", true, 512);
+        final int[] counter = new int[1];
+        final long[] received = new long[1];
+
+        try (DeviceChangeFeed feed = new DeviceChangeFeed())
+        {
+            runner.run("feed.unsubscribed.setMemoryGB", bh -> iPhone16.setMemoryGB(128 << (counter[0]++ & 3)));
+            for (final DeviceChangeFeed.Policy policy : DeviceChangeFeed.Policy.values())
+            {
+                final DeviceChangeFeed.Subscription subscription =
+                        feed.subscribe(events -> received[0] += events.size(), policy);
+                try
+                {
+                    runner.run("feed." + policy.name().toLowerCase() + ".setMemoryGB",
+                            bh -> iPhone16.setMemoryGB(128 << (counter[0]++ & 3)));
+                } finally
+                {
+                    subscription.close();
+                }
+            }
+        }
+    }
+
+    // Song updates and full collections with a large iPod fleet on the heap and then off the heap.
+    private static void offHeapCatalogue(final BenchmarkRunner runner)
+    {
+        final int fleetSize = 1_000_000;
+
+        heapFleet(runner, fleetSize);
+
+        final int[] counter = new int[1];
+        try (OffHeapIPodCatalogue catalogue = new OffHeapIPodCatalogue(fleetSize))
+        {
+            for (int i = 0; i < fleetSize; i++)
+            {
+                catalogue.add(i & 1023, 80.0);
+            }
+            runner.run("catalogue.offHeap.addDelSong", bh ->
+            {
+                final int slot = Math.floorMod(counter[0]++ * 7919, fleetSize);
+                catalogue.addSong(slot);
+                catalogue.delSong(slot);
+            });
+            runner.run("catalogue.offHeap.fullGc", bh -> System.gc());
+        }
+    }
+
+    // The on-heap half of offHeapCatalogue, kept separate so its fleet is garbage once it returns.
+    private static void heapFleet(final BenchmarkRunner runner,
+                                  final int fleetSize)
+    {
+        final IPod[] fleet = new IPod[fleetSize];
+        final int[] counter = new int[1];
+        for (int i = 0; i < fleetSize; i++)
+        {
+            fleet[i] = new IPod(i & 1023, 80.0);
+        }
+        runner.run("catalogue.heap.addDelSong", bh ->
+        {
+            final IPod iPod = fleet[Math.floorMod(counter[0]++ * 7919, fleetSize)];
+            iPod.addSong();
+            iPod.delSong();
+        });
+        runner.run("catalogue.heap.fullGc", bh -> System.gc());
+    }
+
+    // Topping up and expiring the minutes of one carrier's phones: vectorized, scalar, and one object at a time.
+    private static void minuteArithmetic(final BenchmarkRunner runner)
+    {
+        final int phoneCount = 1_000_000;
+        final String[] carriers = {"Verizon", "T-Mobile", "AT&T"};
+        final double[] minutes = new double[phoneCount];
+        final int[] carrierCodes = new int[phoneCount];
+        final IPhone[] phones = new IPhone[phoneCount];
+
+        for (int i = 0; i < phoneCount; i++)
+        {
+            minutes[i] = i % 1_000;
+            carrierCodes[i] = StringDictionary.CARRIERS.encode(carriers[i % carriers.length]);
+            phones[i] = new IPhone(minutes[i], carriers[i % carriers.length]);
+        }
+        final int verizon = StringDictionary.CARRIERS.encode("Verizon");
+
+        runner.run("minutes.vector.addExpire", bh ->
+        {
+            bh.consume(MinuteVectors.apply(MinuteVectors.ADD, minutes, carrierCodes, phoneCount, verizon, 30.0));
+            bh.consume(MinuteVectors.apply(MinuteVectors.EXPIRE, minutes, carrierCodes, phoneCount, verizon, 30.0));
+        });
+        runner.run("minutes.scalar.addExpire", bh ->
+        {
+            bh.consume(MinuteVectors.applyScalar(MinuteVectors.ADD, minutes, carrierCodes, phoneCount, verizon,
+                    30.0));
+            bh.consume(MinuteVectors.applyScalar(MinuteVectors.EXPIRE, minutes, carrierCodes, phoneCount, verizon,
+                    30.0));
+        });
+        runner.run("minutes.objects.addRemove", bh ->
+        {
+            for (final IPhone phone : phones)
+            {
+                if (phone.getCarrier().equals("Verizon"))
+                {
+                    phone.addPhonePlanMinutes(30.0);
+                    phone.removePhonePlanMinutes(30.0);
+                }
+            }
+        });
+    }
+
+    /*
+     * Minute changes with and without a MinutesHistory recording them, one change a second by its
+     * clock, then a point lookup and a range of 1000 points read back from sealed blocks.
+     */
+    private static void minutesHistory(final BenchmarkRunner runner) throws IOException
+    {
+        final Path directory = Files.createTempDirectory("device-history");
+        final IPhone unrecorded = new IPhone(1.0e6, "Verizon");
+        final IPhone recorded = new IPhone(1.0e6, "Verizon");
+        final long[] now = {0L};
+
+        runner.run("history.off.addRemovePhonePlanMinutes", bh ->
+        {
+            unrecorded.addPhonePlanMinutes(2.5);
+            unrecorded.removePhonePlanMinutes(2.5);
+        });
+        try (MinutesHistory history = MinutesHistory.open(directory, () -> now[0] += 1_000L))
+        {
+            final int id = history.register(recorded);
+            runner.run("history.on.addRemovePhonePlanMinutes", bh ->
+            {
+                recorded.addPhonePlanMinutes(2.5);
+                recorded.removePhonePlanMinutes(2.5);
+            });
+            history.flush();
+
+            final long last = now[0];
+            final long[] probe = {0L};
+            runner.run("history.balanceAt", bh ->
+            {
+                probe[0] = (probe[0] + 7_919_000L) % last;
+                bh.consume(history.balanceAt(id, probe[0]));
+            });
+            runner.run("history.range.1000", bh ->
+            {
+                probe[0] = (probe[0] + 7_919_000L) % Math.max(1L, last - 1_000_000L);
+                bh.consume(history.range(id, probe[0], probe[0] + 1_000_000L));
+            });
+        } finally
+        {
+            deleteRecursively(directory);
+        }
+    }
+
+    /*
+     * The average balance of one carrier read from CarrierAggregates against a scan of every phone,
+     * and contended minute updates on ledger phones with and without the aggregates following them.
+     */
+    private static void carrierAggregates(final BenchmarkRunner runner)
+    {
+        final String[] carriers = {"Verizon", "Rogers", "Bell", "Telus"};
+        final int phoneCount = 100_000;
+        final MinuteLedger ledger = new MinuteLedger(phoneCount + carriers.length);
+        final MinuteLedger.LedgerIPhone[] hotPhones = new MinuteLedger.LedgerIPhone[carriers.length];
+        final List<IPhone> phones = new ArrayList<>(phoneCount);
+
+        for (int i = 0; i < hotPhones.length; i++)
+        {
+            hotPhones[i] = ledger.openIPhone(1.0e6, carriers[i]);
+        }
+        runner.run("aggregates.off.contended.addRemovePhonePlanMinutes", CONTENDED_THREADS, bh ->
+        {
+            final IPhone phone = hotPhones[(int) (Thread.currentThread().threadId() % hotPhones.length)];
+            phone.addPhonePlanMinutes(2.5);
+            phone.removePhonePlanMinutes(2.5);
+        });
+
+        try (CarrierAggregates aggregates = new CarrierAggregates())
+        {
+            for (final IPhone phone : hotPhones)
+            {
+                aggregates.add(phone);
+                phones.add(phone);
+            }
+            for (int i = 0; i < phoneCount; i++)
+            {
+                final IPhone phone = new IPhone(i % 500, carriers[i % carriers.length]);
+                aggregates.add(phone);
+                phones.add(phone);
+            }
+            runner.run("aggregates.on.contended.addRemovePhonePlanMinutes", CONTENDED_THREADS, bh ->
+            {
+                final IPhone phone = hotPhones[(int) (Thread.currentThread().threadId() % hotPhones.length)];
+                phone.addPhonePlanMinutes(2.5);
+                phone.removePhonePlanMinutes(2.5);
+            });
+            runner.run("aggregates.averageMinutes", bh -> bh.consume(aggregates.averageMinutes("Bell")));
+            runner.run("aggregates.scan.averageMinutes." + phoneCount, bh ->
+            {
+                double total = 0.0;
+                long count = 0L;
+                for (final IPhone phone : phones)
+                {
+                    if (phone.getCarrier().equals("Bell"))
+                    {
+                        total += phone.getPhonePlanMinutesRemaining();
+                        count++;
+                    }
+                }
+                bh.consume(count == 0L ? 0.0 : total / count);
+            });
+            runner.run("aggregates.reconcile." + phoneCount, bh -> bh.consume(aggregates.reconcile(phones)));
+        }
+    }
+
+    /*
+     * "Older than 16.2" counted by OperatingSystemVersionIndex, by parsing every iPad's version string
+     * and by comparing the numbers parsed when the versions were set, and a range of versions
+     * upgraded in bulk and then moved back.
+     */
+    private static void versionIndex(final BenchmarkRunner runner)
+    {
+        final String[] versions = {"iPadOS 14.8", "iPadOS 15", "iPadOS 15.7.2", "iPadOS 16.1", "iPadOS 16.2",
+                                   "iPadOS 16.10", "iPadOS 17", "iPadOS 17.4.1"};
+        final int iPadCount = 100_000;
+        final long bound = OperatingSystemVersion.parseKnown("16.2");
+        final List<IPad> iPads = new ArrayList<>(iPadCount);
+
+        try (OperatingSystemVersionIndex index = new OperatingSystemVersionIndex())
+        {
+            for (int i = 0; i < iPadCount; i++)
+            {
+                final IPad iPad = new IPad(i % 2 == 0, versions[i % versions.length]);
+                iPads.add(iPad);
+                index.add(iPad);
+            }
+            runner.run("versions.index.countOlderThan", bh -> bh.consume(index.countOlderThan("16.2")));
+            runner.run("versions.scan.parseString.countOlderThan." + iPadCount, bh ->
+            {
+                int count = 0;
+                for (final IPad iPad : iPads)
+                {
+                    final long version = OperatingSystemVersion.parse(iPad.getOperatingSystemVersion());
+                    if (version != OperatingSystemVersion.UNKNOWN && version < bound)
+                    {
+                        count++;
+                    }
+                }
+                bh.consume(count);
+            });
+            runner.run("versions.scan.parsedNumber.countOlderThan." + iPadCount, bh ->
+            {
+                int count = 0;
+                for (final IPad iPad : iPads)
+                {
+                    final long version = iPad.getOperatingSystemVersionNumber();
+                    if (version != OperatingSystemVersion.UNKNOWN && version < bound)
+                    {
+                        count++;
+                    }
+                }
+                bh.consume(count);
+            });
+            runner.run("versions.index.upgradeAndBack." + iPadCount / versions.length, bh ->
+            {
+                bh.consume(index.upgrade("16", "16.2", "iPadOS 16.3"));
+                bh.consume(index.upgrade("16.3", "16.4", "iPadOS 16.1"));
+            });
+        }
+    }
+
+    // Grouping 1M equal devices: in memory, spilled to disk under a 4 MB budget, and through a HashMap.
+    private static void deduplication(final BenchmarkRunner runner) throws IOException
+    {
+        final Path directory = Files.createTempDirectory("device-dedup");
+        final List<IDevice> devices = new ArrayList<>();
+        final String[] versions = {"iPadOS 15", "iPadOS 16", "iPadOS 17"};
+
+        for (int i = 0; i < 1_000_000; i++)
+        {
+            if (i % 4 == 0)
+            {
+                devices.add(new IPhone(i % 50_000, "Verizon"));
+            } else if (i % 4 == 1)
+            {
+                devices.add(new IPhone16(i % 50_000, "Verizon", i % 3 == 0, 256));
+            } else if (i % 4 == 2)
+            {
+                devices.add(new IPad(true, versions[i % versions.length]));
+            } else
+            {
+                devices.add(new IPod(i % 50_000, 80.0));
+            }
+        }
+
+        runner.run("dedup.inMemory", bh -> bh.consume(deduplicate(devices, 1L << 30, directory)));
+        runner.run("dedup.spilled", bh -> bh.consume(deduplicate(devices, 4L << 20, directory)));
+        runner.run("dedup.hashMap", bh ->
+        {
+            final Map<IDevice, List<Integer>> groups = new HashMap<>();
+            for (int i = 0; i < devices.size(); i++)
+            {
+                groups.computeIfAbsent(devices.get(i), device -> new ArrayList<>(2)).add(i);
+            }
+            bh.consume(groups.values().stream().filter(group -> group.size() > 1).count());
+        });
+        deleteRecursively(directory);
+    }
+
+    // Runs one deduplication and returns the number of groups.
+    private static long deduplicate(final List<IDevice> devices,
+                                    final long memoryBudgetBytes,
+                                    final Path directory)
+    {
+        try (DeviceDeduplicator deduplicator = new DeviceDeduplicator(memoryBudgetBytes, directory))
+        {
+            for (int i = 0; i < devices.size(); i++)
+            {
+                deduplicator.add(i, devices.get(i));
+            }
+            return deduplicator.finish(group -> { });
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Deletes a directory and everything in it.
+    private static void deleteRecursively(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Runs a constructor expected to reject its input and returns the exception it threw.
+    private static Object rejected(final Runnable constructor)
+    {
+        try
+        {
+            constructor.run();
+        } catch (IllegalArgumentException e)
+        {
+            return e;
+        }
+        throw new IllegalStateException("Invalid input was accepted.");
+    }
+}
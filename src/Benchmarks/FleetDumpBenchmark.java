@@ -0,0 +1,117 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares dumping a fleet to a file through {@link DeviceRenderer} with printing each
+ * device's {@code toString()} on its own line to a buffered file stream. Each run reports
+ * the elapsed time and the bytes allocated per device, measured with the JVM's per-thread
+ * allocation counter.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class FleetDumpBenchmark
+{
+    private static final int DEVICES_PER_TYPE;
+    private static final int ROUNDS;
+
+    static
+    {
+        DEVICES_PER_TYPE = 250_000;
+        ROUNDS = 5;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args unused.
+     * @throws IOException If the dump file cannot be written.
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        final DeviceFleet fleet;
+        final Path file;
+        final int devices;
+
+        fleet = new DeviceFleet();
+        for (int i = 0; i < DEVICES_PER_TYPE; i++)
+        {
+            fleet.addIPhone(i * 0.5, "Verizon");
+            fleet.addIPhone16(i * 0.25, "T-Mobile", (i & 1) == 0, 128 << (i % 3));
+            fleet.addIPad((i & 1) == 1, "iPadOS 15");
+            fleet.addIPod(i % 5_000, 40.0 + i % 45);
+        }
+        devices = DEVICES_PER_TYPE * 4;
+        file = Files.createTempFile("fleet-dump", ".txt");
+
+        try
+        {
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                long bytes = allocatedBytes();
+                long nanos = System.nanoTime();
+                DeviceRenderer.dump(fleet, file);
+                nanos = System.nanoTime() - nanos;
+                bytes = allocatedBytes() - bytes;
+                report("renderer dump", devices, nanos, bytes);
+
+                bytes = allocatedBytes();
+                nanos = System.nanoTime();
+                try (PrintStream out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(file))))
+                {
+                    printEach(fleet, out);
+                }
+                nanos = System.nanoTime() - nanos;
+                bytes = allocatedBytes() - bytes;
+                report("println(toString())", devices, nanos, bytes);
+            }
+        } finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Prints every device of the fleet with one toString() per line.
+    private static void printEach(final DeviceFleet fleet,
+                                  final PrintStream out)
+    {
+        for (int i = 0; i < fleet.iPhoneCount(); i++)
+        {
+            out.println(fleet.iPhone(i).toString());
+        }
+        for (int i = 0; i < fleet.iPhone16Count(); i++)
+        {
+            out.println(fleet.iPhone16(i).toString());
+        }
+        for (int i = 0; i < fleet.iPadCount(); i++)
+        {
+            out.println(fleet.iPad(i).toString());
+        }
+        for (int i = 0; i < fleet.iPodCount(); i++)
+        {
+            out.println(fleet.iPod(i).toString());
+        }
+    }
+
+    // Prints the result of one run.
+    private static void report(final String name,
+                               final int devices,
+                               final long nanos,
+                               final long bytes)
+    {
+        System.out.printf("%-20s %8.1f ms %10.2f bytes/device%n",
+                name, nanos / 1_000_000.0, (double) bytes / devices);
+    }
+
+    // Bytes allocated by the current thread so far.
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+}
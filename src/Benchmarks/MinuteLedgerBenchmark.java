@@ -0,0 +1,147 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how {@link MinuteLedger} scales when many threads add and remove minutes
+ * on the same few phones, compared with an {@link IPhone} guarded by a lock.
+ * Thread counts double from 1 to 64 and each run prints its throughput.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class MinuteLedgerBenchmark
+{
+    private static final int HOT_PHONES;
+    private static final int MAX_THREADS;
+    private static final long RUN_MILLIS;
+    private static final double STARTING_MINUTES;
+
+    static
+    {
+        HOT_PHONES = 4;
+        MAX_THREADS = 64;
+        RUN_MILLIS = 1_000L;
+        STARTING_MINUTES = 1_000_000.0;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args unused.
+     * @throws InterruptedException If the benchmark is interrupted.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        System.out.println("threads, ledger ops/s, locked ops/s");
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2)
+        {
+            final long ledgerOps;
+            final long lockedOps;
+
+            ledgerOps = runLedger(threads);
+            lockedOps = runLocked(threads);
+            System.out.println(threads + ", " + ledgerOps + ", " + lockedOps);
+        }
+    }
+
+    // Runs the lock-free ledger with the given number of threads.
+    private static long runLedger(final int threads) throws InterruptedException
+    {
+        final MinuteLedger ledger;
+        ledger = new MinuteLedger(HOT_PHONES);
+        for (int i = 0; i < HOT_PHONES; i++)
+        {
+            ledger.open(STARTING_MINUTES);
+        }
+
+        return run(threads, (thread, operation) ->
+        {
+            final int slot = (thread + operation) % HOT_PHONES;
+            if ((operation & 1) == 0)
+            {
+                ledger.add(slot, 1.5);
+            } else
+            {
+                ledger.tryRemove(slot, 1.5);
+            }
+        });
+    }
+
+    // Runs plain IPhone objects guarded by their monitors with the given number of threads.
+    private static long runLocked(final int threads) throws InterruptedException
+    {
+        final IPhone[] phones;
+        phones = new IPhone[HOT_PHONES];
+        for (int i = 0; i < HOT_PHONES; i++)
+        {
+            phones[i] = new IPhone(STARTING_MINUTES, "Verizon");
+        }
+
+        return run(threads, (thread, operation) ->
+        {
+            final IPhone phone = phones[(thread + operation) % HOT_PHONES];
+            synchronized (phone)
+            {
+                if ((operation & 1) == 0)
+                {
+                    phone.addPhonePlanMinutes(1.5);
+                } else if (phone.getPhonePlanMinutesRemaining() >= 1.5)
+                {
+                    phone.removePhonePlanMinutes(1.5);
+                }
+            }
+        });
+    }
+
+    // Runs an operation on every thread for RUN_MILLIS and returns the overall operations per second.
+    private static long run(final int threads,
+                            final Operation operation) throws InterruptedException
+    {
+        final CountDownLatch start;
+        final CountDownLatch done;
+        final LongAdder total;
+
+        start = new CountDownLatch(1);
+        done = new CountDownLatch(threads);
+        total = new LongAdder();
+
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            final Thread worker = new Thread(() ->
+            {
+                long count = 0;
+                try
+                {
+                    start.await();
+                    final long deadline = System.nanoTime() + RUN_MILLIS * 1_000_000L;
+                    while (System.nanoTime() < deadline)
+                    {
+                        for (int i = 0; i < 256; i++)
+                        {
+                            operation.apply(thread, (int) count++);
+                        }
+                    }
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                total.add(count);
+                done.countDown();
+            });
+            worker.start();
+        }
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        return total.sum() * 1_000_000_000L / (System.nanoTime() - startNanos);
+    }
+
+    // One benchmarked operation.
+    private interface Operation
+    {
+        void apply(int thread, int operation);
+    }
+}
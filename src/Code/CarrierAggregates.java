@@ -0,0 +1,576 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Materialized per-carrier totals of phones and phone plan minutes, for dashboards that ask for
+ * them many times a second.
+ * <p>
+ * Phones are counted once they are added with {@link #add(IPhone)} and until they are taken out with
+ * {@link #remove(IPhone)}. The aggregates register themselves as a {@link DeviceMutationListener} and
+ * follow the phones they count as {@code addPhonePlanMinutes} and {@code removePhonePlanMinutes} change
+ * their balances and as {@code changeCarrier} moves them between carriers. Each carrier has its own
+ * {@link LongAdder} of phones and {@link DoubleAdder} of minutes, indexed by its code in
+ * {@link StringDictionary#CARRIERS}, so writers spread over striped cells instead of contending on
+ * one counter, and a read adds up a few cells no matter how many phones there are.
+ * <p>
+ * Each phone that is counted keeps, in this object's slot from {@link DeviceRegistrations}, the
+ * carrier and balance it last added to the totals, so a change to any other phone, including the
+ * copies made by snapshots, logs and version stores, is skipped after reading that one field.
+ * Every change to a counted phone takes the lock of that record, reads the phone's carrier and
+ * balance, and moves the difference from what was last added. Events that race, such as a carrier
+ * change and a balance change on different threads, can therefore reach the totals in any order:
+ * whichever comes last reads the phone after both writes, so the totals settle on the phone's real
+ * carrier and balance instead of drifting for good. Flyweight views, such as those from a
+ * {@link DeviceFleet}, cannot be added. Because the minutes are summed in whatever order the writers
+ * arrive, the totals can still drift from an exact sum by rounding.
+ * {@link #reconcile(Iterable)} checks the aggregates against a full scan of the phones, and
+ * {@link #scheduleReconciliation(ScheduledExecutorService, Supplier, Duration, Consumer)} runs that
+ * check periodically. Call {@link #close()} to stop tracking changes.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class CarrierAggregates implements DeviceMutationListener, AutoCloseable
+{
+    // Constants
+    private static final int DEFAULT_CAPACITY;
+    private static final double RELATIVE_TOLERANCE;
+    private static final double ABSOLUTE_TOLERANCE;
+
+    static
+    {
+        DEFAULT_CAPACITY = 16;
+        RELATIVE_TOLERANCE = 1e-9;
+        ABSOLUTE_TOLERANCE = 1e-6;
+    }
+
+    // Instance Variables
+    private final int registrationSlot;
+    private final Set<IPhone> phones;
+    private boolean closed;
+    private volatile Totals[] totals;
+
+    /**
+     * Constructs empty {@link CarrierAggregates} and starts tracking changes to the phones they count.
+     */
+    public CarrierAggregates()
+    {
+        registrationSlot = DeviceRegistrations.acquire();
+        phones = Collections.newSetFromMap(new IdentityHashMap<>());
+        totals = new Totals[DEFAULT_CAPACITY];
+        DeviceListeners.add(this);
+    }
+
+    /**
+     * Starts counting a phone.
+     *
+     * @param phone The phone to count.
+     * @return {@code true} if the phone was added, {@code false} if it was already counted.
+     * @throws IllegalArgumentException If the phone is {@code null} or a flyweight view.
+     * @throws IllegalStateException    If the aggregates have been closed.
+     */
+    public synchronized boolean add(final IPhone phone)
+    {
+        if (phone == null || DeviceFleet.isView(phone))
+        {
+            throw new IllegalArgumentException("Phone cannot be null or a fleet view.");
+        }
+        checkOpen();
+        final Credit credit = new Credit();
+        synchronized (credit)
+        {
+            if (!phone.register(registrationSlot, credit))
+            {
+                return false;
+            }
+            phones.add(phone);
+            credit.code = phone.carrierCode();
+            credit.minutes = phone.getPhonePlanMinutesRemaining();
+            final Totals carrier = totals(credit.code);
+            carrier.phones.increment();
+            carrier.minutes.add(credit.minutes);
+        }
+        return true;
+    }
+
+    /**
+     * Stops counting a phone, such as one that is no longer in use.
+     *
+     * @param phone The phone to take out.
+     * @return {@code true} if the phone was counted.
+     * @throws IllegalStateException If the aggregates have been closed.
+     */
+    public synchronized boolean remove(final IPhone phone)
+    {
+        checkOpen();
+        final Credit credit = phone == null ? null : (Credit) phone.unregister(registrationSlot);
+        if (credit == null)
+        {
+            return false;
+        }
+        phones.remove(phone);
+        synchronized (credit)
+        {
+            final Totals carrier = totals(credit.code);
+            carrier.phones.decrement();
+            carrier.minutes.add(-credit.minutes);
+            credit.removed = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of phones counted.
+     */
+    public synchronized int size()
+    {
+        return phones.size();
+    }
+
+    /**
+     * Retrieves the number of phones on a carrier.
+     *
+     * @param carrier The carrier.
+     * @return The number of phones counted for the carrier.
+     */
+    public long phoneCount(final String carrier)
+    {
+        final Totals found = find(carrier);
+        return found == null ? 0L : found.phones.sum();
+    }
+
+    /**
+     * Retrieves the total minutes remaining on a carrier's phone plans.
+     *
+     * @param carrier The carrier.
+     * @return The sum of the minutes remaining on the carrier's phones.
+     */
+    public double totalMinutes(final String carrier)
+    {
+        final Totals found = find(carrier);
+        return found == null ? 0.0 : found.minutes.sum();
+    }
+
+    /**
+     * Retrieves the average minutes remaining on a carrier's phone plans.
+     *
+     * @param carrier The carrier.
+     * @return The average balance of the carrier's phones, or {@code 0.0} if it has none.
+     */
+    public double averageMinutes(final String carrier)
+    {
+        final Totals found = find(carrier);
+        if (found == null)
+        {
+            return 0.0;
+        }
+        final long phones = found.phones.sum();
+        return phones == 0L ? 0.0 : found.minutes.sum() / phones;
+    }
+
+    /**
+     * Scans the given phones and compares their per-carrier totals with the aggregates.
+     * Changes made while the scan runs can show up as mismatches, so a check that runs alongside
+     * writers should only be trusted when it keeps failing for the same carrier.
+     *
+     * @param phones Every phone the aggregates are expected to count.
+     * @return The result of the check.
+     * @throws IllegalArgumentException If the phones are {@code null}.
+     */
+    public Reconciliation reconcile(final Iterable<? extends IPhone> phones)
+    {
+        if (phones == null)
+        {
+            throw new IllegalArgumentException("Phones cannot be null.");
+        }
+
+        final long start = DeviceMetrics.start();
+        long[] scannedPhones = new long[DEFAULT_CAPACITY];
+        double[] scannedMinutes = new double[DEFAULT_CAPACITY];
+        long scanned = 0L;
+        for (final IPhone phone : phones)
+        {
+            if (DeviceFleet.isView(phone))
+            {
+                continue;
+            }
+            final int code = phone.carrierCode();
+            if (code >= scannedPhones.length)
+            {
+                final int newCapacity = Math.max(code + 1, scannedPhones.length * 2);
+                scannedPhones = Arrays.copyOf(scannedPhones, newCapacity);
+                scannedMinutes = Arrays.copyOf(scannedMinutes, newCapacity);
+            }
+            scannedPhones[code]++;
+            scannedMinutes[code] += phone.getPhonePlanMinutesRemaining();
+            scanned++;
+        }
+
+        final Totals[] current = totals;
+        final List<Mismatch> mismatches = new ArrayList<>();
+        final int codes = Math.max(current.length, scannedPhones.length);
+        for (int code = 0; code < codes; code++)
+        {
+            final Totals carrier = code < current.length ? current[code] : null;
+            final long expectedPhones = code < scannedPhones.length ? scannedPhones[code] : 0L;
+            final double expectedMinutes = code < scannedMinutes.length ? scannedMinutes[code] : 0.0;
+            final long actualPhones = carrier == null ? 0L : carrier.phones.sum();
+            final double actualMinutes = carrier == null ? 0.0 : carrier.minutes.sum();
+            if (actualPhones != expectedPhones || !closeEnough(actualMinutes, expectedMinutes))
+            {
+                mismatches.add(new Mismatch(StringDictionary.CARRIERS.decode(code),
+                                            expectedPhones, actualPhones,
+                                            expectedMinutes, actualMinutes));
+            }
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.RECONCILIATION, start, scanned);
+        return new Reconciliation(scanned, mismatches);
+    }
+
+    /**
+     * Runs {@link #reconcile(Iterable)} periodically on an executor owned by the caller,
+     * handing every result to a consumer. Cancel the returned future to stop the checks.
+     *
+     * @param executor The executor to run the checks on.
+     * @param phones   Supplies every phone the aggregates are expected to count, once per check.
+     * @param period   The time between the start of one check and the next.
+     * @param results  Receives the result of every check.
+     * @return The future of the scheduled checks.
+     * @throws IllegalArgumentException If any argument is {@code null} or the period is not positive.
+     */
+    public ScheduledFuture<?> scheduleReconciliation(final ScheduledExecutorService executor,
+                                                     final Supplier<? extends Iterable<? extends IPhone>> phones,
+                                                     final Duration period,
+                                                     final Consumer<? super Reconciliation> results)
+    {
+        if (executor == null || phones == null || period == null || results == null)
+        {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        if (period.isNegative() || period.isZero())
+        {
+            throw new IllegalArgumentException("Period must be positive.");
+        }
+        final long nanos = period.toNanos();
+        return executor.scheduleAtFixedRate(() -> results.accept(reconcile(phones.get())),
+                                            nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Brings a counted phone's carrier totals up to its balance.
+     * The balance is read from the phone rather than taken from the event; see the class comment.
+     *
+     * @param phone      The phone that changed.
+     * @param oldMinutes The minutes remaining before the change.
+     * @param newMinutes The minutes remaining after the change.
+     */
+    @Override
+    public void phonePlanMinutesChanged(final IPhone phone,
+                                        final double oldMinutes,
+                                        final double newMinutes)
+    {
+        update(phone);
+    }
+
+    /**
+     * Moves a counted phone and its balance to the totals of its carrier.
+     * The carrier and balance are read from the phone rather than taken from the event; see the class
+     * comment.
+     *
+     * @param phone      The phone that changed.
+     * @param oldCarrier The carrier before the change.
+     * @param newCarrier The carrier after the change.
+     */
+    @Override
+    public void carrierChanged(final IPhone phone,
+                               final String oldCarrier,
+                               final String newCarrier)
+    {
+        update(phone);
+    }
+
+    /**
+     * Stops tracking changes to the phones. The aggregates can still be read,
+     * but no longer follow the phones, and phones can no longer be added or removed.
+     */
+    @Override
+    public void close()
+    {
+        DeviceListeners.remove(this);
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            for (final IPhone phone : phones)
+            {
+                phone.unregister(registrationSlot);
+            }
+            phones.clear();
+        }
+        DeviceRegistrations.release(registrationSlot);
+    }
+
+    /*
+     * Moves what a counted phone last added to the totals over to its current carrier and balance.
+     * A phone removed while this waited for its record's lock has already been taken out, and is skipped.
+     */
+    private void update(final IPhone phone)
+    {
+        final Object registration = phone.registration(registrationSlot);
+        if (registration == null)
+        {
+            return;
+        }
+        final Credit credit = (Credit) registration;
+        synchronized (credit)
+        {
+            if (credit.removed)
+            {
+                return;
+            }
+            final int code = phone.carrierCode();
+            final double minutes = phone.getPhonePlanMinutesRemaining();
+            if (code == credit.code)
+            {
+                totals(code).minutes.add(minutes - credit.minutes);
+            } else
+            {
+                final Totals from = totals(credit.code);
+                final Totals to = totals(code);
+                from.phones.decrement();
+                from.minutes.add(-credit.minutes);
+                to.phones.increment();
+                to.minutes.add(minutes);
+                credit.code = code;
+            }
+            credit.minutes = minutes;
+        }
+    }
+
+    // Checks that the aggregates have not been closed.
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Aggregates are closed.");
+        }
+    }
+
+    // Whether an aggregated sum of minutes matches a scanned one up to rounding.
+    private static boolean closeEnough(final double actual,
+                                       final double expected)
+    {
+        final double tolerance = Math.max(ABSOLUTE_TOLERANCE,
+                                          RELATIVE_TOLERANCE * Math.max(Math.abs(actual), Math.abs(expected)));
+        return Math.abs(actual - expected) <= tolerance;
+    }
+
+    // The totals of a carrier that has been seen, or null, without assigning it a code.
+    private Totals find(final String carrier)
+    {
+        if (carrier == null)
+        {
+            return null;
+        }
+        final Totals[] current = totals;
+        for (final Totals candidate : current)
+        {
+            if (candidate != null && candidate.carrier.equals(carrier))
+            {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // The totals of a carrier code, creating them the first time the code is seen.
+    private Totals totals(final int code)
+    {
+        final Totals[] current = totals;
+        if (code < current.length && current[code] != null)
+        {
+            return current[code];
+        }
+        return createTotals(code);
+    }
+
+    /*
+     * Creates the totals of a carrier code under the lock. The array is copied rather than
+     * written in place, so readers that took the old array never see a half-built one.
+     */
+    private synchronized Totals createTotals(final int code)
+    {
+        Totals[] current = totals;
+        if (code < current.length && current[code] != null)
+        {
+            return current[code];
+        }
+        current = Arrays.copyOf(current, Math.max(current.length, Integer.highestOneBit(code) << 1));
+        final Totals created = new Totals(StringDictionary.CARRIERS.decode(code));
+        current[code] = created;
+        totals = current;
+        return created;
+    }
+
+    /*
+     * The striped counters of one carrier.
+     */
+    private static final class Totals
+    {
+        private final String carrier;
+        private final LongAdder phones;
+        private final DoubleAdder minutes;
+
+        private Totals(final String carrier)
+        {
+            this.carrier = carrier;
+            this.phones = new LongAdder();
+            this.minutes = new DoubleAdder();
+        }
+    }
+
+    /*
+     * The carrier code and balance a counted phone last added to the totals, kept in its registration
+     * slot and guarded by its own lock.
+     */
+    private static final class Credit
+    {
+        private int code;
+        private double minutes;
+        private boolean removed;
+    }
+
+    /**
+     * The result of checking the aggregates against a full scan.
+     */
+    public static final class Reconciliation
+    {
+        private final long phonesScanned;
+        private final List<Mismatch> mismatches;
+
+        private Reconciliation(final long phonesScanned,
+                               final List<Mismatch> mismatches)
+        {
+            this.phonesScanned = phonesScanned;
+            this.mismatches = Collections.unmodifiableList(mismatches);
+        }
+
+        /**
+         * @return the number of phones the scan counted.
+         */
+        public long phonesScanned()
+        {
+            return phonesScanned;
+        }
+
+        /**
+         * @return {@code true} if every carrier's aggregates matched the scan.
+         */
+        public boolean isConsistent()
+        {
+            return mismatches.isEmpty();
+        }
+
+        /**
+         * @return the carriers whose aggregates did not match the scan.
+         */
+        public List<Mismatch> mismatches()
+        {
+            return mismatches;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Reconciliation{phonesScanned=" + phonesScanned + ", mismatches=" + mismatches + "}";
+        }
+    }
+
+    /**
+     * A carrier whose aggregates did not match the scan.
+     */
+    public static final class Mismatch
+    {
+        private final String carrier;
+        private final long expectedPhones;
+        private final long actualPhones;
+        private final double expectedMinutes;
+        private final double actualMinutes;
+
+        private Mismatch(final String carrier,
+                         final long expectedPhones,
+                         final long actualPhones,
+                         final double expectedMinutes,
+                         final double actualMinutes)
+        {
+            this.carrier = carrier;
+            this.expectedPhones = expectedPhones;
+            this.actualPhones = actualPhones;
+            this.expectedMinutes = expectedMinutes;
+            this.actualMinutes = actualMinutes;
+        }
+
+        /**
+         * @return the carrier.
+         */
+        public String carrier()
+        {
+            return carrier;
+        }
+
+        /**
+         * @return the number of phones the scan counted.
+         */
+        public long expectedPhones()
+        {
+            return expectedPhones;
+        }
+
+        /**
+         * @return the number of phones the aggregates held.
+         */
+        public long actualPhones()
+        {
+            return actualPhones;
+        }
+
+        /**
+         * @return the total minutes the scan added up.
+         */
+        public double expectedMinutes()
+        {
+            return expectedMinutes;
+        }
+
+        /**
+         * @return the total minutes the aggregates held.
+         */
+        public double actualMinutes()
+        {
+            return actualMinutes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return carrier + "{phones=" + actualPhones + "/" + expectedPhones
+                   + ", minutes=" + actualMinutes + "/" + expectedMinutes + "}";
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * An {@link IPod} whose song count can be changed by many threads at once without losing updates.
+ * <p>
+ * The count is spread over striped cells, each on its own cache line. A thread adds and deletes
+ * songs with an atomic update of the cell its thread id hashes to, so threads updating the same popular
+ * iPod rarely touch the same cache line and never wait for each other. The count is the sum of the
+ * cells: {@link #getNumOfStoredSongs()} adds them up on demand and includes every update that has
+ * completed, while {@link #approximateNumOfStoredSongs()} returns a recently folded sum in constant
+ * time, for dashboards and other readers that can tolerate a slightly stale value.
+ * <p>
+ * {@link #setNumOfStoredSongs(int)} is rare, so it is allowed to stop the others: sets run one at a
+ * time, and each locks every cell before it replaces their contents with the new count. Two sets
+ * therefore never apply their changes on top of each other, and an add is either overwritten by a set
+ * or applied after it. Adds and deletes that reach a locked cell wait for the set to finish.
+ * <p>
+ * The old and new counts given to listeners are sums read around the update, so when other threads
+ * update the same iPod at the same time they may already include those updates, and events from
+ * different threads may arrive out of order. A listener that needs the exact count should read it again.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class ConcurrentIPod extends IPod
+{
+    // Constants
+    private static final VarHandle CELLS;
+    private static final int LONGS_PER_CELL;
+    private static final int MAX_STRIPES;
+    private static final long REFRESH_MASK;
+    private static final long STRIPE_HASH;
+    private static final long LOCKED;
+
+    static
+    {
+        CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+        LONGS_PER_CELL = 16;
+        MAX_STRIPES = 64;
+        REFRESH_MASK = 4_095L;
+        STRIPE_HASH = 0x9E3779B97F4A7C15L;
+        LOCKED = Long.MIN_VALUE;
+    }
+
+    // Instance Variables
+    private final long[] cells;
+    private final int stripeMask;
+    private volatile int estimate;
+    private volatile long sets;
+
+    /**
+     * Constructs a {@link ConcurrentIPod} with one stripe per available processor, up to 64.
+     *
+     * @param numOfStoredSongs the current number of stored songs on the iPod.
+     * @param maxVolumeDecibel the absolute max volume the iPod
+     *                         can go measured in decibels.
+     */
+    public ConcurrentIPod(final int numOfStoredSongs,
+                          final double maxVolumeDecibel)
+    {
+        this(numOfStoredSongs, maxVolumeDecibel, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a {@link ConcurrentIPod} with a chosen number of stripes.
+     *
+     * @param numOfStoredSongs the current number of stored songs on the iPod.
+     * @param maxVolumeDecibel the absolute max volume the iPod
+     *                         can go measured in decibels.
+     * @param stripes          the number of cells to spread updates over, rounded up to
+     *                         a power of two and capped at 64.
+     * @throws IllegalArgumentException If the number of stripes is not positive.
+     */
+    public ConcurrentIPod(final int numOfStoredSongs,
+                          final double maxVolumeDecibel,
+                          final int stripes)
+    {
+        super(numOfStoredSongs, maxVolumeDecibel);
+        if (stripes <= 0)
+        {
+            throw new IllegalArgumentException("Stripes must be positive.");
+        }
+        final int capped = Math.min(MAX_STRIPES, stripes);
+        final int stripeCount = capped == 1 ? 1 : Integer.highestOneBit(capped - 1) << 1;
+        // One spare line in front keeps the first cell off the array header's cache line
+        cells = new long[(stripeCount + 1) * LONGS_PER_CELL];
+        stripeMask = stripeCount - 1;
+        cells[LONGS_PER_CELL] = numOfStoredSongs;
+        estimate = numOfStoredSongs;
+    }
+
+    /**
+     * Adds up the cells. The result includes every update that completed before this call
+     * and may include updates that run concurrently with it. A sum that overlaps a set is
+     * taken again once the set has finished.
+     *
+     * @return the number of songs stored in the iPod as an integer value.
+     */
+    @Override
+    public int getNumOfStoredSongs()
+    {
+        while (true)
+        {
+            final long before = sets;
+            if ((before & 1L) == 0L)
+            {
+                long total = 0L;
+                for (int i = LONGS_PER_CELL; i < cells.length; i += LONGS_PER_CELL)
+                {
+                    total += (long) CELLS.getVolatile(cells, i);
+                }
+                if (sets == before)
+                {
+                    estimate = (int) total;
+                    return (int) total;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Returns the count as of the last time the cells were folded together, which happens on
+     * every {@link #getNumOfStoredSongs()} and whenever a cell crosses a multiple of 4096.
+     *
+     * @return a recent number of songs stored in the iPod.
+     */
+    public int approximateNumOfStoredSongs()
+    {
+        return estimate;
+    }
+
+    /**
+     * @return the number of cells updates are spread over.
+     */
+    public int stripes()
+    {
+        return stripeMask + 1;
+    }
+
+    /**
+     * Atomically adds 1 to the count of stored songs.
+     */
+    @Override
+    public void addSong()
+    {
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.ADD_SONG);
+        update(1);
+    }
+
+    /**
+     * Atomically lowers the number of stored songs by 1.
+     */
+    @Override
+    public void delSong()
+    {
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.DEL_SONG);
+        update(-1);
+    }
+
+    /*
+     * Stores a new count. Sets are taken one at a time. The odd set counter turns readers away while
+     * the cells are locked, and once every cell is locked no add can slip between the sum and the store.
+     */
+    @Override
+    synchronized void writeNumOfStoredSongs(final int newNumOfStoredSongs)
+    {
+        sets++;
+        for (int i = LONGS_PER_CELL; i < cells.length; i += LONGS_PER_CELL)
+        {
+            CELLS.getAndSet(cells, i, LOCKED);
+        }
+        for (int i = cells.length - LONGS_PER_CELL; i > LONGS_PER_CELL; i -= LONGS_PER_CELL)
+        {
+            CELLS.setVolatile(cells, i, 0L);
+        }
+        CELLS.setVolatile(cells, LONGS_PER_CELL, (long) newNumOfStoredSongs);
+        estimate = newNumOfStoredSongs;
+        sets++;
+    }
+
+    // Adds a delta to this thread's cell, refreshing the estimate now and then and telling any listeners.
+    private void update(final int delta)
+    {
+        final long cellValue = add(cell(), delta);
+        if ((cellValue & REFRESH_MASK) == 0)
+        {
+            getNumOfStoredSongs();
+        }
+        if (DeviceListeners.isListening())
+        {
+            final int newNumOfStoredSongs = getNumOfStoredSongs();
+            DeviceListeners.numOfStoredSongsChanged(this, newNumOfStoredSongs - delta, newNumOfStoredSongs);
+        }
+    }
+
+    // Adds a delta to a cell once no set holds it, returning the cell's new value.
+    private long add(final int cell,
+                     final int delta)
+    {
+        while (true)
+        {
+            final long current = (long) CELLS.getVolatile(cells, cell);
+            if (current == LOCKED)
+            {
+                Thread.onSpinWait();
+            } else if (CELLS.weakCompareAndSet(cells, cell, current, current + delta))
+            {
+                return current + delta;
+            }
+        }
+    }
+
+    // Index of the cell the current thread updates.
+    private int cell()
+    {
+        final int stripe = (int) ((Thread.currentThread().threadId() * STRIPE_HASH) >>> 32) & stripeMask;
+        return (stripe + 1) * LONGS_PER_CELL;
+    }
+}
@@ -0,0 +1,572 @@
+/**
+ * Validates batches of device input held in primitive columns, without throwing.
+ * <p>
+ * Each {@code validate} method runs the rules of one device's constructor over the first {@code count}
+ * rows of its columns and returns one error code per row: {@link #VALID}, or the first rule the row
+ * breaks, checked in the same order as the constructor. A dirty batch therefore costs one comparison
+ * per rule and row, instead of an exception with a captured stack trace and a built message for every
+ * bad row. {@link #message(int)} gives the constructor's wording of a code when one is needed. Every
+ * rejected row is counted against its rule in {@link DeviceMetrics}, as a constructor's rejection is.
+ * <p>
+ * The {@code build} methods then construct devices for the rows that passed and leave the others
+ * {@code null}, and the {@code add} methods append the rows that passed to a {@link DeviceFleet}.
+ * Both skip rows whose code is not {@link #VALID}, so a caller can also reject rows for reasons of its own.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceBatchValidator
+{
+    /**
+     * The row breaks no rule.
+     */
+    public static final byte VALID;
+
+    /**
+     * The phone plan minutes remaining are below the minimum.
+     */
+    public static final byte PHONE_PLAN_MINUTES_REMAINING;
+
+    /**
+     * The carrier is missing.
+     */
+    public static final byte CARRIER;
+
+    /**
+     * The memory in gigabytes is below the minimum.
+     */
+    public static final byte MEMORY_GB;
+
+    /**
+     * The operating system version is missing or blank.
+     */
+    public static final byte OPERATING_SYSTEM_VERSION;
+
+    /**
+     * The max volume is below the minimum decibel level.
+     */
+    public static final byte MAX_DECIBEL_LEVEL_TOO_LOW;
+
+    /**
+     * The max volume is above the unsafe decibel level.
+     */
+    public static final byte MAX_DECIBEL_LEVEL_UNSAFE;
+
+    // Constants
+    private static final String[] MESSAGES;
+    private static final DeviceMetrics.Rule[] RULES;
+
+    static
+    {
+        VALID = 0;
+        PHONE_PLAN_MINUTES_REMAINING = 1;
+        CARRIER = 2;
+        MEMORY_GB = 3;
+        OPERATING_SYSTEM_VERSION = 4;
+        MAX_DECIBEL_LEVEL_TOO_LOW = 5;
+        MAX_DECIBEL_LEVEL_UNSAFE = 6;
+
+        // The messages come from the constructors' own checks, so their wording cannot drift apart
+        MESSAGES = new String[7];
+        MESSAGES[PHONE_PLAN_MINUTES_REMAINING] =
+                IPhone.phonePlanMinutesRemainingError(Math.nextDown(IPhone.MIN_PHONE_PLAN_MINUTES_REMAINING));
+        MESSAGES[CARRIER] = IPhone.carrierError(null);
+        MESSAGES[MEMORY_GB] = IPhone16.memoryGBError(IPhone16.MIN_MEMORY_GB - 1);
+        MESSAGES[OPERATING_SYSTEM_VERSION] = IPad.operatingSystemVersionError(null);
+        MESSAGES[MAX_DECIBEL_LEVEL_TOO_LOW] = IPod.maxDecibelLevelError(Math.nextDown(IPod.MIN_DECIBEL_LVL));
+        MESSAGES[MAX_DECIBEL_LEVEL_UNSAFE] = IPod.maxDecibelLevelError(Math.nextUp(IPod.UNSAFE_DECIBEL_LVL));
+
+        RULES = new DeviceMetrics.Rule[MESSAGES.length];
+        RULES[PHONE_PLAN_MINUTES_REMAINING] = DeviceMetrics.Rule.PHONE_PLAN_MINUTES_REMAINING;
+        RULES[CARRIER] = DeviceMetrics.Rule.CARRIER;
+        RULES[MEMORY_GB] = DeviceMetrics.Rule.MEMORY_GB;
+        RULES[OPERATING_SYSTEM_VERSION] = DeviceMetrics.Rule.OPERATING_SYSTEM_VERSION;
+        RULES[MAX_DECIBEL_LEVEL_TOO_LOW] = DeviceMetrics.Rule.MAX_DECIBEL_LEVEL;
+        RULES[MAX_DECIBEL_LEVEL_UNSAFE] = DeviceMetrics.Rule.MAX_DECIBEL_LEVEL;
+    }
+
+    private DeviceBatchValidator()
+    {
+    }
+
+    /**
+     * Returns the constructor's message for an error code.
+     *
+     * @param code The error code.
+     * @return The message, or {@code null} for {@link #VALID}.
+     * @throws IllegalArgumentException If the code is not one of this class's codes.
+     */
+    public static String message(final int code)
+    {
+        if (code < 0 || code >= MESSAGES.length)
+        {
+            throw new IllegalArgumentException("Unknown error code " + code);
+        }
+        return MESSAGES[code];
+    }
+
+    /**
+     * Counts the rows that passed.
+     *
+     * @param errors The error codes of a batch.
+     * @return The number of {@link #VALID} codes.
+     */
+    public static int countValid(final byte[] errors)
+    {
+        int valid = 0;
+        for (final byte error : errors)
+        {
+            if (error == VALID)
+            {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Validates rows of {@link IPhone} input.
+     *
+     * @param minutes  The phone plan minutes remaining of each row.
+     * @param carriers The carrier of each row.
+     * @param count    The number of rows.
+     * @return The error code of each row.
+     * @throws IllegalArgumentException If a column is {@code null} or shorter than {@code count}.
+     */
+    public static byte[] validateIPhones(final double[] minutes,
+                                         final String[] carriers,
+                                         final int count)
+    {
+        checkColumns(count, minutes == null ? -1 : minutes.length, carriers == null ? -1 : carriers.length);
+        final long start = DeviceMetrics.start();
+        final byte[] errors = new byte[count];
+        for (int i = 0; i < count; i++)
+        {
+            byte error = checkPhonePlanMinutesRemaining(minutes[i]);
+            if (error == VALID)
+            {
+                error = checkCarrier(carriers[i]);
+            }
+            errors[i] = counted(error);
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.BATCH_VALIDATION, start, count);
+        return errors;
+    }
+
+    /**
+     * Validates rows of {@link IPhone16} input.
+     *
+     * @param minutes  The phone plan minutes remaining of each row.
+     * @param carriers The carrier of each row.
+     * @param memoryGB The memory in gigabytes of each row.
+     * @param count    The number of rows.
+     * @return The error code of each row.
+     * @throws IllegalArgumentException If a column is {@code null} or shorter than {@code count}.
+     */
+    public static byte[] validateIPhone16s(final double[] minutes,
+                                           final String[] carriers,
+                                           final int[] memoryGB,
+                                           final int count)
+    {
+        checkColumns(count, minutes == null ? -1 : minutes.length, carriers == null ? -1 : carriers.length);
+        checkColumns(count, memoryGB == null ? -1 : memoryGB.length, count);
+        final long start = DeviceMetrics.start();
+        final byte[] errors = new byte[count];
+        for (int i = 0; i < count; i++)
+        {
+            byte error = checkPhonePlanMinutesRemaining(minutes[i]);
+            if (error == VALID)
+            {
+                error = checkCarrier(carriers[i]);
+            }
+            if (error == VALID)
+            {
+                error = checkMemoryGB(memoryGB[i]);
+            }
+            errors[i] = counted(error);
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.BATCH_VALIDATION, start, count);
+        return errors;
+    }
+
+    /**
+     * Validates rows of {@link IPad} input. Whether an iPad has a case cannot be invalid.
+     *
+     * @param operatingSystemVersions The operating system version of each row.
+     * @param count                   The number of rows.
+     * @return The error code of each row.
+     * @throws IllegalArgumentException If the column is {@code null} or shorter than {@code count}.
+     */
+    public static byte[] validateIPads(final String[] operatingSystemVersions,
+                                       final int count)
+    {
+        checkColumns(count, operatingSystemVersions == null ? -1 : operatingSystemVersions.length, count);
+        final long start = DeviceMetrics.start();
+        final byte[] errors = new byte[count];
+        for (int i = 0; i < count; i++)
+        {
+            errors[i] = counted(checkOperatingSystemVersion(operatingSystemVersions[i]));
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.BATCH_VALIDATION, start, count);
+        return errors;
+    }
+
+    /**
+     * Validates rows of {@link IPod} input. The number of stored songs cannot be invalid.
+     *
+     * @param maxVolumeDecibels The max volume in decibels of each row.
+     * @param count             The number of rows.
+     * @return The error code of each row.
+     * @throws IllegalArgumentException If the column is {@code null} or shorter than {@code count}.
+     */
+    public static byte[] validateIPods(final double[] maxVolumeDecibels,
+                                       final int count)
+    {
+        checkColumns(count, maxVolumeDecibels == null ? -1 : maxVolumeDecibels.length, count);
+        final long start = DeviceMetrics.start();
+        final byte[] errors = new byte[count];
+        for (int i = 0; i < count; i++)
+        {
+            errors[i] = counted(checkMaxDecibelLevel(maxVolumeDecibels[i]));
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.BATCH_VALIDATION, start, count);
+        return errors;
+    }
+
+    /**
+     * Constructs an {@link IPhone} for every row that passed.
+     *
+     * @param minutes  The phone plan minutes remaining of each row.
+     * @param carriers The carrier of each row.
+     * @param errors   The error code of each row, as returned by {@link #validateIPhones}.
+     * @return The phone of each row, or {@code null} where the row did not pass.
+     * @throws IllegalArgumentException If the codes or a column are {@code null}, or a column is shorter
+     *                                  than the codes.
+     */
+    public static IPhone[] buildIPhones(final double[] minutes,
+                                        final String[] carriers,
+                                        final byte[] errors)
+    {
+        checkColumns(rows(errors), minutes == null ? -1 : minutes.length, carriers == null ? -1 : carriers.length);
+        final IPhone[] phones = new IPhone[errors.length];
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                phones[i] = new IPhone(minutes[i], carriers[i]);
+            }
+        }
+        return phones;
+    }
+
+    /**
+     * Constructs an {@link IPhone16} for every row that passed.
+     *
+     * @param minutes        The phone plan minutes remaining of each row.
+     * @param carriers       The carrier of each row.
+     * @param highResCameras Whether the phone of each row has a high resolution camera.
+     * @param memoryGB       The memory in gigabytes of each row.
+     * @param errors         The error code of each row, as returned by {@link #validateIPhone16s}.
+     * @return The phone of each row, or {@code null} where the row did not pass.
+     * @throws IllegalArgumentException If the codes or a column are {@code null}, or a column is shorter
+     *                                  than the codes.
+     */
+    public static IPhone16[] buildIPhone16s(final double[] minutes,
+                                            final String[] carriers,
+                                            final boolean[] highResCameras,
+                                            final int[] memoryGB,
+                                            final byte[] errors)
+    {
+        checkColumns(rows(errors), minutes == null ? -1 : minutes.length, carriers == null ? -1 : carriers.length);
+        checkColumns(errors.length, highResCameras == null ? -1 : highResCameras.length,
+                     memoryGB == null ? -1 : memoryGB.length);
+        final IPhone16[] phones = new IPhone16[errors.length];
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                phones[i] = new IPhone16(minutes[i], carriers[i], highResCameras[i], memoryGB[i]);
+            }
+        }
+        return phones;
+    }
+
+    /**
+     * Constructs an {@link IPad} for every row that passed.
+     *
+     * @param iPadCases               Whether the iPad of each row has a case.
+     * @param operatingSystemVersions The operating system version of each row.
+     * @param errors                  The error code of each row, as returned by {@link #validateIPads}.
+     * @return The iPad of each row, or {@code null} where the row did not pass.
+     * @throws IllegalArgumentException If the codes or a column are {@code null}, or a column is shorter
+     *                                  than the codes.
+     */
+    public static IPad[] buildIPads(final boolean[] iPadCases,
+                                    final String[] operatingSystemVersions,
+                                    final byte[] errors)
+    {
+        checkColumns(rows(errors), iPadCases == null ? -1 : iPadCases.length,
+                     operatingSystemVersions == null ? -1 : operatingSystemVersions.length);
+        final IPad[] iPads = new IPad[errors.length];
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                iPads[i] = new IPad(iPadCases[i], operatingSystemVersions[i]);
+            }
+        }
+        return iPads;
+    }
+
+    /**
+     * Constructs an {@link IPod} for every row that passed.
+     *
+     * @param numOfStoredSongs  The number of stored songs of each row.
+     * @param maxVolumeDecibels The max volume in decibels of each row.
+     * @param errors            The error code of each row, as returned by {@link #validateIPods}.
+     * @return The iPod of each row, or {@code null} where the row did not pass.
+     * @throws IllegalArgumentException If the codes or a column are {@code null}, or a column is shorter
+     *                                  than the codes.
+     */
+    public static IPod[] buildIPods(final int[] numOfStoredSongs,
+                                    final double[] maxVolumeDecibels,
+                                    final byte[] errors)
+    {
+        checkColumns(rows(errors), numOfStoredSongs == null ? -1 : numOfStoredSongs.length,
+                     maxVolumeDecibels == null ? -1 : maxVolumeDecibels.length);
+        final IPod[] iPods = new IPod[errors.length];
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                iPods[i] = new IPod(numOfStoredSongs[i], maxVolumeDecibels[i]);
+            }
+        }
+        return iPods;
+    }
+
+    /**
+     * Adds the {@link IPhone} of every row that passed to a fleet, in row order.
+     *
+     * @param fleet    The fleet to add to.
+     * @param minutes  The phone plan minutes remaining of each row.
+     * @param carriers The carrier of each row.
+     * @param errors   The error code of each row, as returned by {@link #validateIPhones}.
+     * @return The number of phones added.
+     * @throws IllegalArgumentException If the fleet, the codes or a column are {@code null}, or a column
+     *                                  is shorter than the codes.
+     */
+    public static int addIPhones(final DeviceFleet fleet,
+                                 final double[] minutes,
+                                 final String[] carriers,
+                                 final byte[] errors)
+    {
+        checkFleet(fleet);
+        checkColumns(rows(errors), minutes == null ? -1 : minutes.length, carriers == null ? -1 : carriers.length);
+        int added = 0;
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                fleet.addValidatedIPhone(minutes[i], StringDictionary.CARRIERS.encode(carriers[i]));
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds the {@link IPhone16} of every row that passed to a fleet, in row order.
+     *
+     * @param fleet          The fleet to add to.
+     * @param minutes        The phone plan minutes remaining of each row.
+     * @param carriers       The carrier of each row.
+     * @param highResCameras Whether the phone of each row has a high resolution camera.
+     * @param memoryGB       The memory in gigabytes of each row.
+     * @param errors         The error code of each row, as returned by {@link #validateIPhone16s}.
+     * @return The number of phones added.
+     * @throws IllegalArgumentException If the fleet, the codes or a column are {@code null}, or a column
+     *                                  is shorter than the codes.
+     */
+    public static int addIPhone16s(final DeviceFleet fleet,
+                                   final double[] minutes,
+                                   final String[] carriers,
+                                   final boolean[] highResCameras,
+                                   final int[] memoryGB,
+                                   final byte[] errors)
+    {
+        checkFleet(fleet);
+        checkColumns(rows(errors), minutes == null ? -1 : minutes.length, carriers == null ? -1 : carriers.length);
+        checkColumns(errors.length, highResCameras == null ? -1 : highResCameras.length,
+                     memoryGB == null ? -1 : memoryGB.length);
+        int added = 0;
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                fleet.addValidatedIPhone16(minutes[i], StringDictionary.CARRIERS.encode(carriers[i]),
+                        highResCameras[i], memoryGB[i]);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds the {@link IPad} of every row that passed to a fleet, in row order.
+     *
+     * @param fleet                   The fleet to add to.
+     * @param iPadCases               Whether the iPad of each row has a case.
+     * @param operatingSystemVersions The operating system version of each row.
+     * @param errors                  The error code of each row, as returned by {@link #validateIPads}.
+     * @return The number of iPads added.
+     * @throws IllegalArgumentException If the fleet, the codes or a column are {@code null}, or a column
+     *                                  is shorter than the codes.
+     */
+    public static int addIPads(final DeviceFleet fleet,
+                               final boolean[] iPadCases,
+                               final String[] operatingSystemVersions,
+                               final byte[] errors)
+    {
+        checkFleet(fleet);
+        checkColumns(rows(errors), iPadCases == null ? -1 : iPadCases.length,
+                     operatingSystemVersions == null ? -1 : operatingSystemVersions.length);
+        int added = 0;
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                fleet.addValidatedIPad(iPadCases[i], OperatingSystemVersion.encode(operatingSystemVersions[i]));
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds the {@link IPod} of every row that passed to a fleet, in row order.
+     *
+     * @param fleet             The fleet to add to.
+     * @param numOfStoredSongs  The number of stored songs of each row.
+     * @param maxVolumeDecibels The max volume in decibels of each row.
+     * @param errors            The error code of each row, as returned by {@link #validateIPods}.
+     * @return The number of iPods added.
+     * @throws IllegalArgumentException If the fleet, the codes or a column are {@code null}, or a column
+     *                                  is shorter than the codes.
+     */
+    public static int addIPods(final DeviceFleet fleet,
+                               final int[] numOfStoredSongs,
+                               final double[] maxVolumeDecibels,
+                               final byte[] errors)
+    {
+        checkFleet(fleet);
+        checkColumns(rows(errors), numOfStoredSongs == null ? -1 : numOfStoredSongs.length,
+                     maxVolumeDecibels == null ? -1 : maxVolumeDecibels.length);
+        int added = 0;
+        for (int i = 0; i < errors.length; i++)
+        {
+            if (errors[i] == VALID)
+            {
+                fleet.addIPod(numOfStoredSongs[i], maxVolumeDecibels[i]);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    // The DeviceMetrics rule of an error code other than VALID.
+    static DeviceMetrics.Rule rule(final byte error)
+    {
+        return RULES[error];
+    }
+
+    /*
+     * Counts a rejected row against its rule in DeviceMetrics and returns its code.
+     * Returns the code of a valid row without counting it.
+     */
+    static byte counted(final byte error)
+    {
+        if (error != VALID)
+        {
+            DeviceMetrics.rejected(RULES[error], MESSAGES[error]);
+        }
+        return error;
+    }
+
+    // The error code of a number of phone plan minutes remaining.
+    static byte checkPhonePlanMinutesRemaining(final double phonePlanMinutesRemaining)
+    {
+        return phonePlanMinutesRemaining < IPhone.MIN_PHONE_PLAN_MINUTES_REMAINING
+               ? PHONE_PLAN_MINUTES_REMAINING : VALID;
+    }
+
+    // The error code of a carrier.
+    static byte checkCarrier(final String carrier)
+    {
+        return carrier == null ? CARRIER : VALID;
+    }
+
+    // The error code of a memory size in gigabytes.
+    static byte checkMemoryGB(final int memoryGB)
+    {
+        return memoryGB < IPhone16.MIN_MEMORY_GB ? MEMORY_GB : VALID;
+    }
+
+    // The error code of an operating system version.
+    static byte checkOperatingSystemVersion(final String operatingSystemVersion)
+    {
+        return operatingSystemVersion == null || operatingSystemVersion.isBlank() ? OPERATING_SYSTEM_VERSION : VALID;
+    }
+
+    // The error code of a max volume in decibels.
+    static byte checkMaxDecibelLevel(final double maxVolumeDecibel)
+    {
+        if (maxVolumeDecibel < IPod.MIN_DECIBEL_LVL)
+        {
+            return MAX_DECIBEL_LEVEL_TOO_LOW;
+        } else if (maxVolumeDecibel > IPod.UNSAFE_DECIBEL_LVL)
+        {
+            return MAX_DECIBEL_LEVEL_UNSAFE;
+        }
+        return VALID;
+    }
+
+    /*
+     * Returns the number of rows of a batch's error codes. The build and add methods check every
+     * column against it before they touch any row, so a short column fails before any device is
+     * built or added, rather than part way through.
+     */
+    private static int rows(final byte[] errors)
+    {
+        if (errors == null)
+        {
+            throw new IllegalArgumentException("Error codes cannot be null.");
+        }
+        return errors.length;
+    }
+
+    // Checks that a fleet to add to was given.
+    private static void checkFleet(final DeviceFleet fleet)
+    {
+        if (fleet == null)
+        {
+            throw new IllegalArgumentException("Fleet cannot be null.");
+        }
+    }
+
+    // Checks that the count is not negative and two columns hold at least that many rows.
+    private static void checkColumns(final int count,
+                                     final int firstLength,
+                                     final int secondLength)
+    {
+        if (count < 0)
+        {
+            throw new IllegalArgumentException("Count cannot be negative.");
+        }
+        if (firstLength < count || secondLength < count)
+        {
+            throw new IllegalArgumentException("Every column must hold at least " + count + " rows.");
+        }
+    }
+}
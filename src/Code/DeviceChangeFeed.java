@@ -0,0 +1,727 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An opt-in stream of the changes made to devices through their mutators, delivered to
+ * subscribers in batches from a background thread.
+ * <p>
+ * While at least one subscriber is subscribed, the feed listens through {@link DeviceListeners}
+ * and copies each change into a preallocated ring buffer of primitive slots: the mutator claims a
+ * slot with one atomic increment, fills it and publishes it, and allocates nothing. A dispatcher
+ * thread drains the ring in order, turns the slots into {@link ChangeEvent}s and hands each batch
+ * to the subscribers. When the last subscriber leaves, the feed stops listening, so with no one
+ * subscribed the mutators pay nothing for it. An idle dispatcher parks until the next change is
+ * published, without a timeout, so a feed no one is subscribed to does not wake at all.
+ * <p>
+ * A subscriber chooses what happens when it falls behind:
+ * <ul>
+ *     <li>{@link Policy#BLOCK} subscribers get every event, in order, on the dispatcher thread.
+ *     A slow one holds the dispatcher back, and once the ring is full the mutators wait for it.
+ *     A change that a blocking subscriber makes itself, from inside {@link Subscriber#onBatch},
+ *     cannot wait, because only the dispatcher it runs on can make room. If the ring is full, that
+ *     change is dropped and counted by {@link #dropped()};</li>
+ *     <li>{@link Policy#COALESCE} subscribers get batches on a thread of their own. Changes that
+ *     arrive while a batch is being handled are merged, so the next batch holds one event per
+ *     device and field, going from the oldest value to the latest.</li>
+ * </ul>
+ * Changes to flyweight views, such as those from a {@link DeviceFleet}, are not recorded,
+ * because a view stands for a different device whenever it is moved.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceChangeFeed implements AutoCloseable
+{
+    // Constants
+    private static final VarHandle PUBLISHED;
+    private static final int DEFAULT_CAPACITY;
+    private static final int MAX_BATCH_SIZE;
+    private static final long FULL_PARK_NANOS;
+    private static final Field[] FIELDS;
+
+    static
+    {
+        PUBLISHED = MethodHandles.arrayElementVarHandle(long[].class);
+        DEFAULT_CAPACITY = 1 << 16;
+        MAX_BATCH_SIZE = 4_096;
+        FULL_PARK_NANOS = 10_000L;
+        FIELDS = Field.values();
+    }
+
+    // Instance Variables
+    private final int mask;
+    private final IDevice[] devices;
+    private final byte[] fields;
+    private final long[] oldBits;
+    private final long[] newBits;
+    private final Object[] oldReferences;
+    private final Object[] newReferences;
+    private final long[] published;
+    private final AtomicLong claimed;
+    private final AtomicLong dropped;
+    private final List<Subscription> subscriptions;
+    private final Recorder recorder;
+    private volatile long consumed;
+    private volatile boolean idle;
+    private volatile boolean closed;
+    private Thread dispatcher;
+    private boolean listening;
+
+    /**
+     * Constructs a {@link DeviceChangeFeed} whose ring holds 65536 changes.
+     */
+    public DeviceChangeFeed()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a {@link DeviceChangeFeed}.
+     *
+     * @param capacity The number of changes the ring holds, a power of two.
+     * @throws IllegalArgumentException If the capacity is not a positive power of two.
+     */
+    public DeviceChangeFeed(final int capacity)
+    {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+        {
+            throw new IllegalArgumentException("Capacity must be a positive power of two.");
+        }
+        mask = capacity - 1;
+        devices = new IDevice[capacity];
+        fields = new byte[capacity];
+        oldBits = new long[capacity];
+        newBits = new long[capacity];
+        oldReferences = new Object[capacity];
+        newReferences = new Object[capacity];
+        published = new long[capacity];
+        for (int i = 0; i < capacity; i++)
+        {
+            published[i] = i - (long) capacity;
+        }
+        claimed = new AtomicLong();
+        dropped = new AtomicLong();
+        subscriptions = new CopyOnWriteArrayList<>();
+        recorder = new Recorder();
+    }
+
+    /**
+     * Subscribes to every change made from now on.
+     *
+     * @param subscriber The subscriber.
+     * @param policy     What happens when the subscriber falls behind.
+     * @return The subscription, which is closed to unsubscribe.
+     * @throws IllegalArgumentException If the subscriber or policy is {@code null}.
+     * @throws IllegalStateException    If the feed is closed.
+     */
+    public synchronized Subscription subscribe(final Subscriber subscriber,
+                                               final Policy policy)
+    {
+        if (subscriber == null || policy == null)
+        {
+            throw new IllegalArgumentException("Subscriber and policy cannot be null.");
+        }
+        if (closed)
+        {
+            throw new IllegalStateException("Feed is closed.");
+        }
+        if (dispatcher == null)
+        {
+            dispatcher = new Thread(this::dispatch, "device-change-feed");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+
+        final Subscription subscription = new Subscription(subscriber, policy);
+        subscriptions.add(subscription);
+        if (!listening)
+        {
+            DeviceListeners.add(recorder);
+            listening = true;
+        }
+        return subscription;
+    }
+
+    /**
+     * @return the number of open subscriptions.
+     */
+    public int subscribers()
+    {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return the number of changes made on the dispatcher thread, by {@link Policy#BLOCK}
+     * subscribers, that were dropped because the ring was full.
+     */
+    public long dropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Unsubscribes every subscriber and stops the dispatcher. Changes still in the ring are dropped.
+     */
+    @Override
+    public void close()
+    {
+        final Thread thread;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            thread = dispatcher;
+        }
+        for (final Subscription subscription : subscriptions)
+        {
+            subscription.close();
+        }
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+            try
+            {
+                thread.join();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Stops listening once the last subscriber has left.
+    private synchronized void unsubscribe(final Subscription subscription)
+    {
+        if (subscriptions.remove(subscription) && subscriptions.isEmpty() && listening)
+        {
+            DeviceListeners.remove(recorder);
+            listening = false;
+        }
+    }
+
+    /*
+     * Claims the next slot, waiting while the ring is full, fills it and publishes it.
+     * The slot is published with a volatile write before idle is read, and the dispatcher sets
+     * idle before checking for a slot, so it either sees the slot or is woken; it can therefore
+     * park without a timeout. The dispatcher itself never waits, since no one else frees slots;
+     * it drops the change instead.
+     */
+    private void record(final IDevice device,
+                        final Field field,
+                        final long oldValue,
+                        final long newValue,
+                        final Object oldReference,
+                        final Object newReference)
+    {
+        if (closed || DeviceFleet.isView(device))
+        {
+            return;
+        }
+        if (Thread.currentThread() == dispatcher)
+        {
+            recordOnDispatcher(device, field, oldValue, newValue, oldReference, newReference);
+            return;
+        }
+        final long sequence = claimed.getAndIncrement();
+        while (sequence - devices.length >= consumed)
+        {
+            if (closed)
+            {
+                return;
+            }
+            LockSupport.unpark(dispatcher);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+
+        publish(sequence, device, field, oldValue, newValue, oldReference, newReference);
+    }
+
+    // Records a change made by a blocking subscriber if the ring has room, or drops it.
+    private void recordOnDispatcher(final IDevice device,
+                                    final Field field,
+                                    final long oldValue,
+                                    final long newValue,
+                                    final Object oldReference,
+                                    final Object newReference)
+    {
+        long sequence;
+        do
+        {
+            sequence = claimed.get();
+            if (sequence - devices.length >= consumed)
+            {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        publish(sequence, device, field, oldValue, newValue, oldReference, newReference);
+    }
+
+    // Fills a claimed slot and publishes it, waking the dispatcher if it is idle.
+    private void publish(final long sequence,
+                         final IDevice device,
+                         final Field field,
+                         final long oldValue,
+                         final long newValue,
+                         final Object oldReference,
+                         final Object newReference)
+    {
+        final int slot = (int) sequence & mask;
+        devices[slot] = device;
+        fields[slot] = (byte) field.ordinal();
+        oldBits[slot] = oldValue;
+        newBits[slot] = newValue;
+        oldReferences[slot] = oldReference;
+        newReferences[slot] = newReference;
+        PUBLISHED.setVolatile(published, slot, sequence);
+
+        if (idle)
+        {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    // Drains the ring in batches until the feed is closed.
+    private void dispatch()
+    {
+        long next = consumed;
+        final List<ChangeEvent> batch = new ArrayList<>();
+        final List<ChangeEvent> events = Collections.unmodifiableList(batch);
+        while (!closed)
+        {
+            batch.clear();
+            while (batch.size() < MAX_BATCH_SIZE
+                    && (long) PUBLISHED.getVolatile(published, (int) next & mask) == next)
+            {
+                batch.add(take(next));
+                next++;
+            }
+            if (batch.isEmpty())
+            {
+                idle = true;
+                if ((long) PUBLISHED.getVolatile(published, (int) next & mask) != next && !closed)
+                {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+
+            for (final Subscription subscription : subscriptions)
+            {
+                subscription.offer(events);
+            }
+            // Slots are only reused after the blocking subscribers have had their batch.
+            consumed = next;
+        }
+    }
+
+    // Turns one published slot into an event and clears its references.
+    private ChangeEvent take(final long sequence)
+    {
+        final int slot = (int) sequence & mask;
+        final Field field = FIELDS[fields[slot]];
+        final ChangeEvent event = new ChangeEvent(sequence, devices[slot], field,
+                value(field, oldBits[slot], oldReferences[slot]),
+                value(field, newBits[slot], newReferences[slot]));
+        devices[slot] = null;
+        oldReferences[slot] = null;
+        newReferences[slot] = null;
+        return event;
+    }
+
+    // Boxes the value recorded for a field.
+    private static Object value(final Field field,
+                                final long bits,
+                                final Object reference)
+    {
+        if (field == Field.PHONE_PLAN_MINUTES)
+        {
+            return Double.longBitsToDouble(bits);
+        } else if (field == Field.HIGH_RES_CAMERA || field == Field.IPAD_CASE)
+        {
+            return bits != 0;
+        } else if (field == Field.MEMORY_GB || field == Field.NUM_OF_STORED_SONGS)
+        {
+            return (int) bits;
+        }
+        return reference;
+    }
+
+    /**
+     * The fields of a device whose changes are recorded.
+     */
+    public enum Field
+    {
+        /**
+         * {@link IPhone#getPhonePlanMinutesRemaining()}, as a {@link Double}.
+         */
+        PHONE_PLAN_MINUTES,
+
+        /**
+         * {@link IPhone#getCarrier()}, as a {@link String}.
+         */
+        CARRIER,
+
+        /**
+         * {@link IPhone16#hasHighResCamera()}, as a {@link Boolean}.
+         */
+        HIGH_RES_CAMERA,
+
+        /**
+         * {@link IPhone16#getMemoryGB()}, as an {@link Integer}.
+         */
+        MEMORY_GB,
+
+        /**
+         * {@link IPad#hasIPadCase()}, as a {@link Boolean}.
+         */
+        IPAD_CASE,
+
+        /**
+         * {@link IPad#getOperatingSystemVersion()}, as a {@link String}.
+         */
+        OPERATING_SYSTEM_VERSION,
+
+        /**
+         * {@link IPod#getNumOfStoredSongs()}, as an {@link Integer}.
+         */
+        NUM_OF_STORED_SONGS
+    }
+
+    /**
+     * What happens when a subscriber falls behind.
+     */
+    public enum Policy
+    {
+        /**
+         * Every event is delivered in order, and a slow subscriber slows the mutators down.
+         */
+        BLOCK,
+
+        /**
+         * Changes that arrive while the subscriber is busy are merged per device and field.
+         */
+        COALESCE
+    }
+
+    /**
+     * Receives batches of changes.
+     */
+    @FunctionalInterface
+    public interface Subscriber
+    {
+        /**
+         * Handles one batch. An exception thrown here ends the subscription.
+         *
+         * @param events The changes, oldest first. The list cannot be modified, and it is reused
+         *               for the next batch once this call returns, so copy it to keep it.
+         */
+        void onBatch(List<ChangeEvent> events);
+    }
+
+    /**
+     * One change to one field of a device.
+     */
+    public static final class ChangeEvent
+    {
+        private final long sequence;
+        private final IDevice device;
+        private final Field field;
+        private final Object oldValue;
+        private final Object newValue;
+
+        private ChangeEvent(final long sequence,
+                            final IDevice device,
+                            final Field field,
+                            final Object oldValue,
+                            final Object newValue)
+        {
+            this.sequence = sequence;
+            this.device = device;
+            this.field = field;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        /**
+         * @return the position of the change in the feed; later changes have larger numbers.
+         */
+        public long sequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @return the device that changed.
+         */
+        public IDevice device()
+        {
+            return device;
+        }
+
+        /**
+         * @return the field that changed.
+         */
+        public Field field()
+        {
+            return field;
+        }
+
+        /**
+         * @return the value before the change, boxed as described by {@link #field()}.
+         */
+        public Object oldValue()
+        {
+            return oldValue;
+        }
+
+        /**
+         * @return the value after the change, boxed as described by {@link #field()}.
+         */
+        public Object newValue()
+        {
+            return newValue;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "#" + sequence + " " + field + ": " + oldValue + " -> " + newValue;
+        }
+    }
+
+    /**
+     * One subscriber's registration with the feed.
+     */
+    public final class Subscription implements AutoCloseable
+    {
+        private final Subscriber subscriber;
+        private final Policy policy;
+        private final IdentityHashMap<IDevice, ChangeEvent[]> pending;
+        private final List<IDevice> pendingOrder;
+        private final Thread deliverer;
+        private volatile boolean open;
+        private volatile RuntimeException failure;
+
+        private Subscription(final Subscriber subscriber,
+                             final Policy policy)
+        {
+            this.subscriber = subscriber;
+            this.policy = policy;
+            pending = new IdentityHashMap<>();
+            pendingOrder = new ArrayList<>();
+            open = true;
+            if (policy == Policy.COALESCE)
+            {
+                deliverer = new Thread(this::deliverCoalesced, "device-change-feed-subscriber");
+                deliverer.setDaemon(true);
+                deliverer.start();
+            } else
+            {
+                deliverer = null;
+            }
+        }
+
+        /**
+         * @return the policy of this subscription.
+         */
+        public Policy policy()
+        {
+            return policy;
+        }
+
+        /**
+         * @return whether the subscription is still receiving changes.
+         */
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        /**
+         * @return the exception that ended the subscription, or {@code null} if there was none.
+         */
+        public RuntimeException failure()
+        {
+            return failure;
+        }
+
+        /**
+         * Unsubscribes. Changes not yet delivered are dropped. Closing twice has no effect.
+         */
+        @Override
+        public void close()
+        {
+            open = false;
+            unsubscribe(this);
+            if (deliverer != null)
+            {
+                synchronized (this)
+                {
+                    notifyAll();
+                }
+            }
+        }
+
+        // Hands a batch to the subscriber, or merges it into the pending changes.
+        private void offer(final List<ChangeEvent> events)
+        {
+            if (!open)
+            {
+                return;
+            }
+            if (policy == Policy.BLOCK)
+            {
+                deliver(events);
+                return;
+            }
+            synchronized (this)
+            {
+                for (final ChangeEvent event : events)
+                {
+                    ChangeEvent[] changes = pending.get(event.device);
+                    if (changes == null)
+                    {
+                        changes = new ChangeEvent[FIELDS.length];
+                        pending.put(event.device, changes);
+                        pendingOrder.add(event.device);
+                    }
+                    final ChangeEvent earlier = changes[event.field.ordinal()];
+                    changes[event.field.ordinal()] = earlier == null ? event
+                            : new ChangeEvent(event.sequence, event.device, event.field, earlier.oldValue,
+                                              event.newValue);
+                }
+                notifyAll();
+            }
+        }
+
+        // Waits for merged changes and hands them to the subscriber, until the subscription closes.
+        private void deliverCoalesced()
+        {
+            while (open)
+            {
+                final List<ChangeEvent> batch = new ArrayList<>();
+                synchronized (this)
+                {
+                    while (open && pendingOrder.isEmpty())
+                    {
+                        try
+                        {
+                            wait();
+                        } catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                    for (final IDevice device : pendingOrder)
+                    {
+                        for (final ChangeEvent event : pending.get(device))
+                        {
+                            if (event != null)
+                            {
+                                batch.add(event);
+                            }
+                        }
+                    }
+                    pending.clear();
+                    pendingOrder.clear();
+                }
+                if (!batch.isEmpty())
+                {
+                    batch.sort((first, second) -> Long.compare(first.sequence, second.sequence));
+                    deliver(Collections.unmodifiableList(batch));
+                }
+            }
+        }
+
+        // Calls the subscriber, ending the subscription if it throws.
+        private void deliver(final List<ChangeEvent> events)
+        {
+            if (!open)
+            {
+                return;
+            }
+            try
+            {
+                subscriber.onBatch(events);
+            } catch (RuntimeException e)
+            {
+                failure = e;
+                close();
+            }
+        }
+    }
+
+    // Copies every change reported by the mutators into the ring.
+    private final class Recorder implements DeviceMutationListener
+    {
+        @Override
+        public void phonePlanMinutesChanged(final IPhone phone,
+                                            final double oldMinutes,
+                                            final double newMinutes)
+        {
+            record(phone, Field.PHONE_PLAN_MINUTES, Double.doubleToRawLongBits(oldMinutes),
+                    Double.doubleToRawLongBits(newMinutes), null, null);
+        }
+
+        @Override
+        public void carrierChanged(final IPhone phone,
+                                   final String oldCarrier,
+                                   final String newCarrier)
+        {
+            record(phone, Field.CARRIER, 0L, 0L, oldCarrier, newCarrier);
+        }
+
+        @Override
+        public void highResCameraChanged(final IPhone16 phone,
+                                         final boolean oldHighResCamera,
+                                         final boolean newHighResCamera)
+        {
+            record(phone, Field.HIGH_RES_CAMERA, oldHighResCamera ? 1L : 0L, newHighResCamera ? 1L : 0L, null, null);
+        }
+
+        @Override
+        public void memoryGBChanged(final IPhone16 phone,
+                                    final int oldMemoryGB,
+                                    final int newMemoryGB)
+        {
+            record(phone, Field.MEMORY_GB, oldMemoryGB, newMemoryGB, null, null);
+        }
+
+        @Override
+        public void iPadCaseChanged(final IPad iPad,
+                                    final boolean oldIPadCase,
+                                    final boolean newIPadCase)
+        {
+            record(iPad, Field.IPAD_CASE, oldIPadCase ? 1L : 0L, newIPadCase ? 1L : 0L, null, null);
+        }
+
+        @Override
+        public void operatingSystemVersionChanged(final IPad iPad,
+                                                  final String oldVersion,
+                                                  final String newVersion)
+        {
+            record(iPad, Field.OPERATING_SYSTEM_VERSION, 0L, 0L, oldVersion, newVersion);
+        }
+
+        @Override
+        public void numOfStoredSongsChanged(final IPod iPod,
+                                            final int oldSongs,
+                                            final int newSongs)
+        {
+            record(iPod, Field.NUM_OF_STORED_SONGS, oldSongs, newSongs, null, null);
+        }
+    }
+}
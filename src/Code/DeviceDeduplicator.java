@@ -0,0 +1,618 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Finds the groups of devices that are {@code equals} to one another in inventories far larger
+ * than memory.
+ * <p>
+ * Devices are added with an id chosen by the caller. Each is reduced to a record of its class, with a
+ * {@link DeviceFleet} view counted as the device it stands for, and a {@code long} key built from
+ * exactly the fields that class's {@code equals} compares, the same keys {@link DeviceEqualityIndex}
+ * uses, so two devices are equal exactly when their class and key match. Records are buffered up to
+ * the memory budget. When the buffer is full it is hash-partitioned into 64 spill files, and
+ * partitions that are still too large are split again with a different hash until each one fits.
+ * {@link #finish(Consumer)} sorts each partition with a parallel quicksort on the {@link ForkJoinPool}
+ * and streams every group of two or more equal devices to the caller as a sorted array of ids,
+ * without holding more than one partition in memory.
+ * <p>
+ * A deduplicator is used once: add devices, call {@link #finish(Consumer)}, and close it to remove
+ * any spill files left behind by a failure. It is not safe to use from several threads at once.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceDeduplicator implements Closeable
+{
+    // Constants
+    private static final int RECORD_BYTES;
+    private static final int PARTITION_BITS;
+    private static final int SPILL_PARTITIONS;
+    private static final int MAX_SPLIT_LEVEL;
+    private static final int MIN_CAPACITY;
+    private static final int IO_BUFFER_BYTES;
+    private static final int SEQUENTIAL_SORT_SIZE;
+    private static final int INSERTION_SORT_SIZE;
+
+    static
+    {
+        RECORD_BYTES = Integer.BYTES + Long.BYTES + Long.BYTES;
+        PARTITION_BITS = 6;
+        SPILL_PARTITIONS = 1 << PARTITION_BITS;
+        MAX_SPLIT_LEVEL = 4;
+        MIN_CAPACITY = 1_024;
+        IO_BUFFER_BYTES = RECORD_BYTES * 1_024;
+        SEQUENTIAL_SORT_SIZE = 16_384;
+        INSERTION_SORT_SIZE = 24;
+    }
+
+    // Instance Variables
+    private final Path spillDirectory;
+    private final int capacity;
+    private final Map<Class<?>, Integer> typeIds;
+    private final List<Path> pending;
+    private int[] types;
+    private long[] keys;
+    private long[] ids;
+    private int size;
+    private SpillWriter spill;
+    private long spilledRecords;
+    private boolean finished;
+
+    /**
+     * Constructs a {@link DeviceDeduplicator}.
+     *
+     * @param memoryBudgetBytes The most memory the buffered records may take, at 20 bytes a record.
+     *                          The spill buffers take another 1.3 MB.
+     * @param spillDirectory    The directory spill files are written to. It is created if needed.
+     * @throws IllegalArgumentException If the budget is not positive or the directory is {@code null}.
+     */
+    public DeviceDeduplicator(final long memoryBudgetBytes,
+                              final Path spillDirectory)
+    {
+        if (memoryBudgetBytes <= 0)
+        {
+            throw new IllegalArgumentException("Memory budget must be positive.");
+        }
+        if (spillDirectory == null)
+        {
+            throw new IllegalArgumentException("Spill directory cannot be null.");
+        }
+        this.spillDirectory = spillDirectory;
+        this.capacity = (int) Math.max(MIN_CAPACITY,
+                Math.min(Integer.MAX_VALUE - 8, memoryBudgetBytes / RECORD_BYTES));
+        this.typeIds = new HashMap<>();
+        this.types = new int[MIN_CAPACITY];
+        this.keys = new long[MIN_CAPACITY];
+        this.ids = new long[MIN_CAPACITY];
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Adds a device. A fleet view is grouped with the devices of the class it stands for, and can be
+     * moved along a fleet between calls, since only its current state is recorded.
+     *
+     * @param id     The id reported for the device.
+     * @param device The device.
+     * @return {@code true} if the device was added, or {@code false} if it is not equal to anything,
+     * not even itself, like a phone whose minutes are not a number.
+     * @throws IllegalArgumentException If the device is {@code null} or not a phone, iPad or iPod.
+     * @throws IllegalStateException    If {@link #finish(Consumer)} has already been called.
+     * @throws IOException              If the buffer has to be spilled and the spill files cannot be written.
+     */
+    public boolean add(final long id,
+                       final IDevice device) throws IOException
+    {
+        if (finished)
+        {
+            throw new IllegalStateException("Deduplicator has already finished.");
+        }
+        final long key;
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            if (Double.isNaN(iPhone16.getPhonePlanMinutesRemaining()))
+            {
+                return false;
+            }
+            key = DeviceEqualityIndex.phoneKey(iPhone16.getPhonePlanMinutesRemaining(),
+                    iPhone16.hasHighResCamera());
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            if (Double.isNaN(iPhone.getPhonePlanMinutesRemaining()))
+            {
+                return false;
+            }
+            key = DeviceEqualityIndex.phoneKey(iPhone.getPhonePlanMinutesRemaining(), false);
+        } else if (device instanceof IPad)
+        {
+            key = ((IPad) device).operatingSystemVersionCode();
+        } else if (device instanceof IPod)
+        {
+            key = ((IPod) device).getNumOfStoredSongs();
+        } else
+        {
+            throw new IllegalArgumentException("Unsupported device: " + device);
+        }
+
+        if (size == types.length)
+        {
+            if (size == capacity)
+            {
+                spillBuffer();
+            } else
+            {
+                final int newLength = (int) Math.min(capacity, 2L * size);
+                types = Arrays.copyOf(types, newLength);
+                keys = Arrays.copyOf(keys, newLength);
+                ids = Arrays.copyOf(ids, newLength);
+            }
+        }
+        types[size] = typeIds.computeIfAbsent(device.deviceClass(), type -> typeIds.size());
+        keys[size] = key;
+        ids[size] = id;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return the number of records written to spill files so far, counting every time a record is
+     * rewritten while splitting a partition that was too large.
+     */
+    public long spilledRecords()
+    {
+        return spilledRecords;
+    }
+
+    /**
+     * Groups the added devices and streams every group of two or more equal devices to the consumer,
+     * one partition at a time. Each group's ids are in ascending order; the order of the groups is
+     * unspecified. A single group larger than the memory budget is still loaded whole.
+     *
+     * @param groups The consumer of the groups, called on the calling thread.
+     * @return The number of groups.
+     * @throws IllegalArgumentException If the consumer is {@code null}.
+     * @throws IllegalStateException    If this method has already been called.
+     * @throws IOException              If the spill files cannot be read or written.
+     */
+    public long finish(final Consumer<long[]> groups) throws IOException
+    {
+        if (groups == null)
+        {
+            throw new IllegalArgumentException("Consumer cannot be null.");
+        }
+        if (finished)
+        {
+            throw new IllegalStateException("Deduplicator has already finished.");
+        }
+        finished = true;
+        final long start = DeviceMetrics.start();
+        final long records = spilledRecords + size;
+
+        long groupCount;
+        if (spill == null)
+        {
+            groupCount = sortAndEmit(groups);
+        } else
+        {
+            spillBuffer();
+            final SpillWriter top = spill;
+            spill = null;
+            final List<Path> partitions = top.close();
+            pending.addAll(partitions);
+            groupCount = 0L;
+            for (final Path partition : partitions)
+            {
+                groupCount += process(partition, 1, groups);
+            }
+        }
+        types = null;
+        keys = null;
+        ids = null;
+        size = 0;
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.DEDUPLICATION, start, records);
+        return groupCount;
+    }
+
+    /**
+     * Deletes any spill files left behind, such as the partitions that {@link #finish(Consumer)}
+     * had not yet grouped when it failed.
+     *
+     * @throws IOException If a spill file cannot be closed or deleted.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (spill != null)
+        {
+            final SpillWriter open = spill;
+            spill = null;
+            pending.addAll(open.close());
+        }
+        while (!pending.isEmpty())
+        {
+            Files.deleteIfExists(pending.remove(pending.size() - 1));
+        }
+    }
+
+    // Moves the buffered records into the top-level spill files and empties the buffer.
+    private void spillBuffer() throws IOException
+    {
+        if (spill == null)
+        {
+            Files.createDirectories(spillDirectory);
+            spill = new SpillWriter(spillDirectory, "dedup-" + System.nanoTime(), 0);
+        }
+        for (int i = 0; i < size; i++)
+        {
+            spill.write(types[i], keys[i], ids[i]);
+        }
+        spilledRecords += size;
+        size = 0;
+    }
+
+    /*
+     * Groups one partition file and deletes it. A file that does not fit the budget is split first,
+     * unless it has already been split MAX_SPLIT_LEVEL times, which only happens when it is mostly
+     * one huge group of equal devices that no hash can spread.
+     */
+    private long process(final Path partition,
+                         final int level,
+                         final Consumer<long[]> groups) throws IOException
+    {
+        final long records = Files.size(partition) / RECORD_BYTES;
+        long groupCount = 0L;
+        if (records <= capacity || level > MAX_SPLIT_LEVEL)
+        {
+            load(partition, (int) records);
+            delete(partition);
+            groupCount = sortAndEmit(groups);
+        } else
+        {
+            final SpillWriter split = new SpillWriter(partition.getParent(),
+                    partition.getFileName().toString().replace(".bin", ""), level);
+            final List<Path> parts;
+            try
+            {
+                read(partition, split::write);
+            } finally
+            {
+                parts = split.close();
+                pending.addAll(parts);
+            }
+            spilledRecords += records;
+            delete(partition);
+            for (final Path part : parts)
+            {
+                groupCount += process(part, level + 1, groups);
+            }
+        }
+        return groupCount;
+    }
+
+    // Deletes a partition file that has been read and forgets it.
+    private void delete(final Path partition) throws IOException
+    {
+        Files.delete(partition);
+        pending.remove(partition);
+    }
+
+    // Reads a partition file into the buffer.
+    private void load(final Path partition,
+                      final int records) throws IOException
+    {
+        if (types.length < records)
+        {
+            types = new int[records];
+            keys = new long[records];
+            ids = new long[records];
+        }
+        size = 0;
+        read(partition, (type, key, id) ->
+        {
+            types[size] = type;
+            keys[size] = key;
+            ids[size] = id;
+            size++;
+        });
+    }
+
+    // Sorts the buffer by class and key, then emits every run of two or more equal records.
+    private long sortAndEmit(final Consumer<long[]> groups)
+    {
+        ForkJoinPool.commonPool().invoke(new SortTask(types, keys, ids, 0, size));
+        long groupCount = 0L;
+        int start = 0;
+        while (start < size)
+        {
+            int end = start + 1;
+            while (end < size && types[end] == types[start] && keys[end] == keys[start])
+            {
+                end++;
+            }
+            if (end - start > 1)
+            {
+                final long[] group = Arrays.copyOfRange(ids, start, end);
+                Arrays.sort(group);
+                groups.accept(group);
+                groupCount++;
+            }
+            start = end;
+        }
+        size = 0;
+        return groupCount;
+    }
+
+    // Reads every record of a spill file in order.
+    private static void read(final Path file,
+                             final RecordConsumer consumer) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            while (channel.read(buffer) >= 0)
+            {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_BYTES)
+                {
+                    consumer.accept(buffer.getInt(), buffer.getLong(), buffer.getLong());
+                }
+                buffer.compact();
+            }
+        }
+        if (buffer.position() > 0)
+        {
+            throw new IOException("Truncated spill file " + file);
+        }
+    }
+
+    // Compares two records by class, then key.
+    private static int compare(final int type,
+                               final long key,
+                               final int otherType,
+                               final long otherKey)
+    {
+        return type != otherType ? Integer.compare(type, otherType) : Long.compare(key, otherKey);
+    }
+
+    /*
+     * Receives the fields of one record.
+     */
+    @FunctionalInterface
+    private interface RecordConsumer
+    {
+        void accept(int type, long key, long id) throws IOException;
+    }
+
+    /*
+     * Scatters records over SPILL_PARTITIONS files by a hash of their class and key, buffering each file.
+     * The hash is seeded with the level, so records that shared a file are spread again when it is split.
+     */
+    private static final class SpillWriter
+    {
+        private final int level;
+        private final Path[] paths;
+        private final FileChannel[] channels;
+        private final ByteBuffer[] buffers;
+
+        private SpillWriter(final Path directory,
+                            final String prefix,
+                            final int level) throws IOException
+        {
+            this.level = level;
+            paths = new Path[SPILL_PARTITIONS];
+            channels = new FileChannel[SPILL_PARTITIONS];
+            buffers = new ByteBuffer[SPILL_PARTITIONS];
+            for (int i = 0; i < SPILL_PARTITIONS; i++)
+            {
+                paths[i] = directory.resolve(String.format("%s-%02d.bin", prefix, i));
+                buffers[i] = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        // Appends a record to the file of its partition.
+        private void write(final int type,
+                           final long key,
+                           final long id) throws IOException
+        {
+            long h = (key ^ ((long) type << 48) ^ level) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+            final int partition = (int) ((h * 0xBF58476D1CE4E5B9L) >>> (Long.SIZE - PARTITION_BITS));
+            final ByteBuffer buffer = buffers[partition];
+            if (buffer.remaining() < RECORD_BYTES)
+            {
+                flush(partition);
+            }
+            buffer.putInt(type).putLong(key).putLong(id);
+        }
+
+        // Writes out a partition's buffer, opening its file on first use.
+        private void flush(final int partition) throws IOException
+        {
+            final ByteBuffer buffer = buffers[partition];
+            if (channels[partition] == null)
+            {
+                channels[partition] = FileChannel.open(paths[partition], StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channels[partition].write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // Flushes and closes every file, returning the files that received records.
+        private List<Path> close() throws IOException
+        {
+            final List<Path> written = new ArrayList<>();
+            IOException failure = null;
+            for (int i = 0; i < SPILL_PARTITIONS; i++)
+            {
+                try
+                {
+                    if (buffers[i].position() > 0)
+                    {
+                        flush(i);
+                    }
+                } catch (IOException e)
+                {
+                    failure = failure == null ? e : failure;
+                }
+                if (channels[i] != null)
+                {
+                    try
+                    {
+                        channels[i].close();
+                    } catch (IOException e)
+                    {
+                        failure = failure == null ? e : failure;
+                    }
+                    written.add(paths[i]);
+                }
+            }
+            if (failure != null)
+            {
+                for (final Path path : written)
+                {
+                    Files.deleteIfExists(path);
+                }
+                throw failure;
+            }
+            return written;
+        }
+    }
+
+    /*
+     * Sorts a range of records by class and key with a three-way quicksort, which puts each run of
+     * equal records in place in one pass. Large ranges sort their two sides as parallel subtasks.
+     */
+    private static final class SortTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] types;
+        private final long[] keys;
+        private final long[] ids;
+        private final int from;
+        private final int to;
+
+        private SortTask(final int[] types,
+                         final long[] keys,
+                         final long[] ids,
+                         final int from,
+                         final int to)
+        {
+            this.types = types;
+            this.keys = keys;
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= SEQUENTIAL_SORT_SIZE)
+            {
+                sort(from, to);
+                return;
+            }
+            final long bounds = partition(from, to);
+            invokeAll(new SortTask(types, keys, ids, from, (int) (bounds >>> 32)),
+                    new SortTask(types, keys, ids, (int) bounds, to));
+        }
+
+        // Sorts a range on this thread, recursing into the smaller side to bound the stack depth.
+        private void sort(final int start,
+                          final int end)
+        {
+            int low = start;
+            int high = end;
+            while (high - low > INSERTION_SORT_SIZE)
+            {
+                final long bounds = partition(low, high);
+                final int lessEnd = (int) (bounds >>> 32);
+                final int greaterStart = (int) bounds;
+                if (lessEnd - low < high - greaterStart)
+                {
+                    sort(low, lessEnd);
+                    low = greaterStart;
+                } else
+                {
+                    sort(greaterStart, high);
+                    high = lessEnd;
+                }
+            }
+            for (int i = low + 1; i < high; i++)
+            {
+                for (int j = i; j > low && compare(types[j], keys[j], types[j - 1], keys[j - 1]) < 0; j--)
+                {
+                    swap(j, j - 1);
+                }
+            }
+        }
+
+        /*
+         * Partitions a range around a random pivot into records less than, equal to and greater than it.
+         * Returns the end of the lesser part in the high half and the start of the greater part in the low half.
+         */
+        private long partition(final int start,
+                               final int end)
+        {
+            final int pivot = ThreadLocalRandom.current().nextInt(start, end);
+            final int pivotType = types[pivot];
+            final long pivotKey = keys[pivot];
+            int less = start;
+            int i = start;
+            int greater = end - 1;
+            while (i <= greater)
+            {
+                final int order = compare(types[i], keys[i], pivotType, pivotKey);
+                if (order < 0)
+                {
+                    swap(less++, i++);
+                } else if (order > 0)
+                {
+                    swap(i, greater--);
+                } else
+                {
+                    i++;
+                }
+            }
+            return ((long) less << 32) | (greater + 1);
+        }
+
+        // Swaps two records.
+        private void swap(final int i,
+                          final int j)
+        {
+            final int type = types[i];
+            types[i] = types[j];
+            types[j] = type;
+            final long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            final long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+    }
+}
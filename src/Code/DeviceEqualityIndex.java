@@ -0,0 +1,434 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An index that finds every stored device equal to a probe device without boxing or allocating.
+ * Each index holds one device class and keys it on a {@code long} built from exactly the fields
+ * that class's {@code equals} compares: the song count of an {@link IPod}, the raw bits of the
+ * phone plan minutes of an {@link IPhone}, those bits plus the camera flag of an {@link IPhone16},
+ * and the operating system version code of an {@link IPad}. Two devices are therefore equal
+ * exactly when their keys are equal, and {@code equals} never needs to be called.
+ * <p>
+ * Keys live in an open-addressing table with linear probing. Each slot points at a chain of
+ * entries, so any number of equal devices can be stored. Lookups return entry numbers, which are
+ * walked with {@link #next(int)} and read with {@link #device(int)}. A probe may be a
+ * {@link DeviceFleet} view, which matches the stored devices equal to the one it points at.
+ * The key of a device is taken when it is added; a device that is changed afterwards should be
+ * removed before the change and added again after it.
+ *
+ * @param <T> The type of device held by this index.
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public abstract class DeviceEqualityIndex<T extends IDevice>
+{
+    /**
+     * The entry number returned when there are no more entries.
+     */
+    public static final int NO_ENTRY;
+
+    private static final int DEFAULT_CAPACITY;
+    private static final long CAMERA_BIT;
+
+    static
+    {
+        NO_ENTRY = -1;
+        DEFAULT_CAPACITY = 16;
+        CAMERA_BIT = 1L << 63;
+    }
+
+    // Instance Variables
+    private final Class<T> type;
+    private long[] slotKeys;
+    private int[] slotHeads;
+    private int usedSlots;
+    private Object[] devices;
+    private int[] nextEntries;
+    private int entryCount;
+    private int freeEntry;
+    private int size;
+
+    /**
+     * Constructs an empty index for devices of exactly the given class.
+     *
+     * @param type The class of the devices held by this index.
+     */
+    protected DeviceEqualityIndex(final Class<T> type)
+    {
+        this.type = type;
+        this.slotKeys = new long[DEFAULT_CAPACITY];
+        this.slotHeads = new int[DEFAULT_CAPACITY];
+        Arrays.fill(slotHeads, NO_ENTRY);
+        this.devices = new Object[DEFAULT_CAPACITY];
+        this.nextEntries = new int[DEFAULT_CAPACITY];
+        this.freeEntry = NO_ENTRY;
+    }
+
+    /**
+     * @return an index of {@link IPod}s keyed by their number of stored songs.
+     */
+    public static DeviceEqualityIndex<IPod> forIPods()
+    {
+        return new DeviceEqualityIndex<>(IPod.class)
+        {
+            @Override
+            protected long keyOf(final IPod iPod)
+            {
+                return iPod.getNumOfStoredSongs();
+            }
+        };
+    }
+
+    /**
+     * @return an index of {@link IPhone}s keyed by their remaining phone plan minutes.
+     */
+    public static DeviceEqualityIndex<IPhone> forIPhones()
+    {
+        return new DeviceEqualityIndex<>(IPhone.class)
+        {
+            @Override
+            protected long keyOf(final IPhone iPhone)
+            {
+                return phoneKey(iPhone.getPhonePlanMinutesRemaining(), false);
+            }
+
+            @Override
+            protected boolean hasKey(final IPhone iPhone)
+            {
+                return !Double.isNaN(iPhone.getPhonePlanMinutesRemaining());
+            }
+        };
+    }
+
+    /**
+     * @return an index of {@link IPhone16}s keyed by their remaining phone plan minutes
+     * and whether they have a high-resolution camera.
+     */
+    public static DeviceEqualityIndex<IPhone16> forIPhone16s()
+    {
+        return new DeviceEqualityIndex<>(IPhone16.class)
+        {
+            @Override
+            protected long keyOf(final IPhone16 iPhone16)
+            {
+                return phoneKey(iPhone16.getPhonePlanMinutesRemaining(), iPhone16.hasHighResCamera());
+            }
+
+            @Override
+            protected boolean hasKey(final IPhone16 iPhone16)
+            {
+                return !Double.isNaN(iPhone16.getPhonePlanMinutesRemaining());
+            }
+        };
+    }
+
+    /**
+     * @return an index of {@link IPad}s keyed by their operating system version.
+     */
+    public static DeviceEqualityIndex<IPad> forIPads()
+    {
+        return new DeviceEqualityIndex<>(IPad.class)
+        {
+            @Override
+            protected long keyOf(final IPad iPad)
+            {
+                return iPad.operatingSystemVersionCode();
+            }
+        };
+    }
+
+    /**
+     * Returns the key of a device. Two devices must have the same key exactly when
+     * {@code equals} considers them equal.
+     *
+     * @param device The device.
+     * @return The key of the device.
+     */
+    protected abstract long keyOf(T device);
+
+    /**
+     * Checks whether a device has a key at all. A device without one, such as a phone whose
+     * minutes are not a number, is not equal to anything, including itself.
+     *
+     * @param device The device.
+     * @return {@code true} if the device can be stored and found.
+     */
+    protected boolean hasKey(final T device)
+    {
+        return true;
+    }
+
+    /**
+     * Adds a device to the index.
+     *
+     * @param device The device to add.
+     * @return The entry number of the device.
+     * @throws IllegalArgumentException If the device is not exactly of this index's class
+     *                                  or is not equal to anything.
+     */
+    public int add(final T device)
+    {
+        checkType(device);
+        if (!hasKey(device))
+        {
+            throw new IllegalArgumentException("Device is not equal to any device: " + device);
+        }
+
+        if (2 * (usedSlots + 1) > slotKeys.length)
+        {
+            rehash(slotKeys.length * 2);
+        }
+
+        final int entry = allocateEntry(device);
+        final long key = keyOf(device);
+        final int slot = findSlot(key);
+        if (slotHeads[slot] == NO_ENTRY)
+        {
+            slotKeys[slot] = key;
+            usedSlots++;
+        }
+        nextEntries[entry] = slotHeads[slot];
+        slotHeads[slot] = entry;
+        size++;
+        return entry;
+    }
+
+    /**
+     * Removes a device, compared by identity, from the index.
+     * The device must have the same key it had when it was added.
+     *
+     * @param device The device to remove.
+     * @return {@code true} if the device was found and removed.
+     */
+    public boolean remove(final T device)
+    {
+        if (device == null || device.getClass() != type || !hasKey(device))
+        {
+            return false;
+        }
+
+        final int slot = findSlot(keyOf(device));
+        int previous = NO_ENTRY;
+        for (int entry = slotHeads[slot]; entry != NO_ENTRY; entry = nextEntries[entry])
+        {
+            if (devices[entry] == device)
+            {
+                if (previous == NO_ENTRY)
+                {
+                    slotHeads[slot] = nextEntries[entry];
+                } else
+                {
+                    nextEntries[previous] = nextEntries[entry];
+                }
+                releaseEntry(entry);
+                size--;
+                if (slotHeads[slot] == NO_ENTRY)
+                {
+                    deleteSlot(slot);
+                }
+                return true;
+            }
+            previous = entry;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first entry equal to a probe device.
+     *
+     * @param probe The device to look for.
+     * @return The first matching entry, or {@link #NO_ENTRY} if there is none.
+     */
+    public int first(final T probe)
+    {
+        if (probe == null || probe.deviceClass() != type || !hasKey(probe))
+        {
+            return NO_ENTRY;
+        }
+        return slotHeads[findSlot(keyOf(probe))];
+    }
+
+    /**
+     * Returns the entry after the given one among the devices equal to the same probe.
+     *
+     * @param entry An entry returned by {@link #first} or {@code next}.
+     * @return The next matching entry, or {@link #NO_ENTRY} if there is none.
+     */
+    public int next(final int entry)
+    {
+        return nextEntries[entry];
+    }
+
+    /**
+     * Returns the device stored in an entry.
+     *
+     * @param entry An entry returned by {@link #add}, {@link #first} or {@link #next}.
+     * @return The device of the entry.
+     */
+    @SuppressWarnings("unchecked")
+    public T device(final int entry)
+    {
+        return (T) devices[entry];
+    }
+
+    /**
+     * Counts the stored devices equal to a probe device.
+     *
+     * @param probe The device to look for.
+     * @return The number of equal devices.
+     */
+    public int count(final T probe)
+    {
+        int count = 0;
+        for (int entry = first(probe); entry != NO_ENTRY; entry = nextEntries[entry])
+        {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Passes every stored device equal to a probe device to an action.
+     *
+     * @param probe  The device to look for.
+     * @param action The action to run on each equal device.
+     */
+    public void forEachEqual(final T probe,
+                             final Consumer<? super T> action)
+    {
+        for (int entry = first(probe); entry != NO_ENTRY; entry = nextEntries[entry])
+        {
+            action.accept(device(entry));
+        }
+    }
+
+    /**
+     * @return the number of devices in this index.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the number of distinct keys, that is groups of equal devices, in this index.
+     */
+    public int distinctKeys()
+    {
+        return usedSlots;
+    }
+
+    /*
+     * The key of a phone. Minutes are normalized so that 0.0 and -0.0, which are ==, share a key, and
+     * the camera flag of an iPhone 16 takes the sign bit. DeviceDeduplicator builds its keys here too.
+     */
+    static long phoneKey(final double minutes,
+                         final boolean highResCamera)
+    {
+        final long key = minutes == 0.0 ? 0L : Double.doubleToRawLongBits(minutes);
+        return highResCamera ? key | CAMERA_BIT : key;
+    }
+
+    // Spreads the bits of a key over the whole table.
+    private static int mix(final long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    // Finds the slot of a key, or the empty slot where it would go.
+    private int findSlot(final long key)
+    {
+        final int mask = slotKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (slotHeads[slot] != NO_ENTRY && slotKeys[slot] != key)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /*
+     * Empties a slot and shifts later slots of the same probe run back,
+     * so linear probing never stops early at the hole.
+     */
+    private void deleteSlot(final int slot)
+    {
+        final int mask = slotKeys.length - 1;
+        int hole = slot;
+        int current = (slot + 1) & mask;
+        while (slotHeads[current] != NO_ENTRY)
+        {
+            final int home = mix(slotKeys[current]) & mask;
+            if (((current - home) & mask) >= ((current - hole) & mask))
+            {
+                slotKeys[hole] = slotKeys[current];
+                slotHeads[hole] = slotHeads[current];
+                hole = current;
+            }
+            current = (current + 1) & mask;
+        }
+        slotHeads[hole] = NO_ENTRY;
+        usedSlots--;
+    }
+
+    // Moves every key into a table of the given capacity.
+    private void rehash(final int capacity)
+    {
+        final long[] oldKeys = slotKeys;
+        final int[] oldHeads = slotHeads;
+
+        slotKeys = new long[capacity];
+        slotHeads = new int[capacity];
+        Arrays.fill(slotHeads, NO_ENTRY);
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldHeads[i] != NO_ENTRY)
+            {
+                final int slot = findSlot(oldKeys[i]);
+                slotKeys[slot] = oldKeys[i];
+                slotHeads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    // Takes an entry from the free list, or a new one, and stores the device in it.
+    private int allocateEntry(final T device)
+    {
+        final int entry;
+        if (freeEntry != NO_ENTRY)
+        {
+            entry = freeEntry;
+            freeEntry = nextEntries[entry];
+        } else
+        {
+            if (entryCount == devices.length)
+            {
+                devices = Arrays.copyOf(devices, entryCount * 2);
+                nextEntries = Arrays.copyOf(nextEntries, entryCount * 2);
+            }
+            entry = entryCount++;
+        }
+        devices[entry] = device;
+        return entry;
+    }
+
+    // Returns an entry to the free list.
+    private void releaseEntry(final int entry)
+    {
+        devices[entry] = null;
+        nextEntries[entry] = freeEntry;
+        freeEntry = entry;
+    }
+
+    // Checks that a device is exactly of this index's class.
+    private void checkType(final T device)
+    {
+        if (device == null || device.getClass() != type)
+        {
+            throw new IllegalArgumentException("Index only holds " + type.getSimpleName() + " devices.");
+        }
+    }
+}
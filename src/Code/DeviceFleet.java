@@ -0,0 +1,1185 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Stores a large number of devices as primitive columns instead of one heap object per device.
+ * Each device type keeps its own set of columns: {@code double[]} for phone plan minutes and
+ * decibel levels, {@code int[]} for memory and song counts, and bit-packed {@code long[]} words
+ * for the boolean camera and case flags. Carriers and operating system versions are stored as
+ * their {@link StringDictionary} codes.
+ * Devices are read and changed through flyweight views which extend the regular device classes,
+ * so every existing getter, mutator and validation rule keeps working on the stored values.
+ * A view can be moved to another index, letting a single object walk the whole fleet.
+ * Views are built without validation and without adding anything to the dictionaries, and they are
+ * equal to a regular device in the same state. Each view still carries the unused fields of the
+ * class it extends, which is why views are moved rather than made once per device.
+ * <p>
+ * Flag bits are set, cleared and toggled with atomic bitwise operations on their word, so threads
+ * changing the flags of different devices never lose each other's updates even when the bits share
+ * a word. Flag queries such as {@link #countIPadsWithCase()} work a whole word at a time with
+ * {@link Long#bitCount(long)}, and return {@link Selection}s that are combined with word-level
+ * AND, OR and AND-NOT.
+ * <p>
+ * End-of-cycle jobs can add, remove or expire minutes for every phone of a carrier at once, as
+ * vectorized arithmetic over the minutes columns. Phones whose result would break a minutes rule are
+ * reported as {@link MinuteViolations} instead of failing the whole job with an exception.
+ * While a {@link DeviceMutationListener} is registered, each phone whose balance a job changed is
+ * then reported through a view, as if its mutator had been called; with none registered, the job
+ * pays nothing for this.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class DeviceFleet
+{
+    // Constants
+    private static final int DEFAULT_CAPACITY;
+    private static final int BITS_PER_WORD_SHIFT;
+    private static final VarHandle WORDS;
+
+    static
+    {
+        DEFAULT_CAPACITY = 16;
+        BITS_PER_WORD_SHIFT = 6;
+        WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    }
+
+    // IPhone columns
+    private int iPhoneCount;
+    private double[] iPhoneMinutes;
+    private int[] iPhoneCarrierCodes;
+
+    // IPhone16 columns
+    private int iPhone16Count;
+    private double[] iPhone16Minutes;
+    private int[] iPhone16CarrierCodes;
+    private long[] iPhone16HighResCameras;
+    private int[] iPhone16MemoryGB;
+
+    // IPad columns
+    private int iPadCount;
+    private long[] iPadCases;
+    private int[] iPadOperatingSystemVersionCodes;
+
+    // IPod columns
+    private int iPodCount;
+    private int[] iPodNumOfStoredSongs;
+    private double[] iPodMaxVolumeDecibels;
+
+    /**
+     * Constructs an empty {@link DeviceFleet}.
+     */
+    public DeviceFleet()
+    {
+        iPhoneMinutes = new double[DEFAULT_CAPACITY];
+        iPhoneCarrierCodes = new int[DEFAULT_CAPACITY];
+
+        iPhone16Minutes = new double[DEFAULT_CAPACITY];
+        iPhone16CarrierCodes = new int[DEFAULT_CAPACITY];
+        iPhone16HighResCameras = new long[wordsFor(DEFAULT_CAPACITY)];
+        iPhone16MemoryGB = new int[DEFAULT_CAPACITY];
+
+        iPadCases = new long[wordsFor(DEFAULT_CAPACITY)];
+        iPadOperatingSystemVersionCodes = new int[DEFAULT_CAPACITY];
+
+        iPodNumOfStoredSongs = new int[DEFAULT_CAPACITY];
+        iPodMaxVolumeDecibels = new double[DEFAULT_CAPACITY];
+    }
+
+    /**
+     * Adds an {@link IPhone} to the fleet, applying the same validation as its constructor.
+     *
+     * @param phonePlanMinutesRemaining The number of minutes remaining on the phone plan.
+     * @param carrier                   The mobile carrier of the phone.
+     * @return The index of the new phone among the fleet's {@link IPhone}s.
+     * @throws IllegalArgumentException If the minutes or carrier are invalid.
+     */
+    public int addIPhone(final double phonePlanMinutesRemaining,
+                         final String carrier)
+    {
+        IPhone.validatePhonePlanMinutesRemaining(phonePlanMinutesRemaining);
+        IPhone.validateCarrier(carrier);
+
+        return addValidatedIPhone(phonePlanMinutesRemaining, StringDictionary.CARRIERS.encode(carrier));
+    }
+
+    /**
+     * Adds an {@link IPhone16} to the fleet, applying the same validation as its constructor.
+     *
+     * @param phonePlanMinutesRemaining The number of minutes remaining on the phone plan.
+     * @param carrier                   The mobile carrier of the phone.
+     * @param highResCamera             Whether the phone has a high-resolution camera.
+     * @param memoryGB                  The memory of the phone in gigabytes.
+     * @return The index of the new phone among the fleet's {@link IPhone16}s.
+     * @throws IllegalArgumentException If the minutes, carrier or memory are invalid.
+     */
+    public int addIPhone16(final double phonePlanMinutesRemaining,
+                           final String carrier,
+                           final boolean highResCamera,
+                           final int memoryGB)
+    {
+        IPhone.validatePhonePlanMinutesRemaining(phonePlanMinutesRemaining);
+        IPhone.validateCarrier(carrier);
+        IPhone16.validateMemoryGB(memoryGB);
+
+        return addValidatedIPhone16(phonePlanMinutesRemaining, StringDictionary.CARRIERS.encode(carrier),
+                highResCamera, memoryGB);
+    }
+
+    /**
+     * Adds an {@link IPad} to the fleet, applying the same validation as its constructor.
+     *
+     * @param iPadCase               {@code true} if the iPad has a case, {@code false} otherwise.
+     * @param operatingSystemVersion The version of the operating system running on the iPad.
+     * @return The index of the new iPad among the fleet's {@link IPad}s.
+     * @throws IllegalArgumentException If the operating system version is {@code null} or empty.
+     */
+    public int addIPad(final boolean iPadCase,
+                       final String operatingSystemVersion)
+    {
+        IPad.validateOperatingSystemVersion(operatingSystemVersion);
+
+        return addValidatedIPad(iPadCase, OperatingSystemVersion.encode(operatingSystemVersion));
+    }
+
+    /**
+     * Adds an {@link IPod} to the fleet, applying the same validation as its constructor.
+     *
+     * @param numOfStoredSongs The current number of stored songs on the iPod.
+     * @param maxVolumeDecibel The absolute max volume the iPod can go measured in decibels.
+     * @return The index of the new iPod among the fleet's {@link IPod}s.
+     * @throws IllegalArgumentException If the decibel level is not within the safe range.
+     */
+    public int addIPod(final int numOfStoredSongs,
+                       final double maxVolumeDecibel)
+    {
+        IPod.validateMaxDecibelLevel(maxVolumeDecibel);
+
+        if (iPodCount == iPodNumOfStoredSongs.length)
+        {
+            final int newCapacity = grow(iPodCount);
+            iPodNumOfStoredSongs = Arrays.copyOf(iPodNumOfStoredSongs, newCapacity);
+            iPodMaxVolumeDecibels = Arrays.copyOf(iPodMaxVolumeDecibels, newCapacity);
+        }
+        iPodNumOfStoredSongs[iPodCount] = numOfStoredSongs;
+        iPodMaxVolumeDecibels[iPodCount] = maxVolumeDecibel;
+        return iPodCount++;
+    }
+
+    /**
+     * Copies the state of an existing device into the matching columns of this fleet.
+     *
+     * @param device The device to copy.
+     * @return The index of the copy among the fleet's devices of the same type.
+     * @throws IllegalArgumentException If the device is {@code null} or of an unsupported type.
+     */
+    public int add(final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            return addIPhone16(iPhone16.getPhonePlanMinutesRemaining(), iPhone16.getCarrier(),
+                    iPhone16.hasHighResCamera(), iPhone16.getMemoryGB());
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            return addIPhone(iPhone.getPhonePlanMinutesRemaining(), iPhone.getCarrier());
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            return addIPad(iPad.hasIPadCase(), iPad.getOperatingSystemVersion());
+        } else if (device instanceof IPod)
+        {
+            final IPod iPod = (IPod) device;
+            return addIPod(iPod.getNumOfStoredSongs(), iPod.getMaxVolumeDecibel());
+        }
+        throw new IllegalArgumentException("Unsupported device: " + device);
+    }
+
+    /**
+     * Appends every device of another fleet to this one, keeping their order.
+     * Columns are copied in bulk, so this is much faster than adding the devices one by one.
+     *
+     * @param other The fleet whose devices are copied. It is not changed.
+     */
+    public void appendAll(final DeviceFleet other)
+    {
+        final int newIPhoneCount = iPhoneCount + other.iPhoneCount;
+        if (newIPhoneCount > iPhoneMinutes.length)
+        {
+            iPhoneMinutes = Arrays.copyOf(iPhoneMinutes, newIPhoneCount);
+            iPhoneCarrierCodes = Arrays.copyOf(iPhoneCarrierCodes, newIPhoneCount);
+        }
+        System.arraycopy(other.iPhoneMinutes, 0, iPhoneMinutes, iPhoneCount, other.iPhoneCount);
+        System.arraycopy(other.iPhoneCarrierCodes, 0, iPhoneCarrierCodes, iPhoneCount, other.iPhoneCount);
+        iPhoneCount = newIPhoneCount;
+
+        final int newIPhone16Count = iPhone16Count + other.iPhone16Count;
+        if (newIPhone16Count > iPhone16Minutes.length)
+        {
+            iPhone16Minutes = Arrays.copyOf(iPhone16Minutes, newIPhone16Count);
+            iPhone16CarrierCodes = Arrays.copyOf(iPhone16CarrierCodes, newIPhone16Count);
+            iPhone16HighResCameras = Arrays.copyOf(iPhone16HighResCameras, wordsFor(newIPhone16Count));
+            iPhone16MemoryGB = Arrays.copyOf(iPhone16MemoryGB, newIPhone16Count);
+        }
+        System.arraycopy(other.iPhone16Minutes, 0, iPhone16Minutes, iPhone16Count, other.iPhone16Count);
+        System.arraycopy(other.iPhone16CarrierCodes, 0, iPhone16CarrierCodes, iPhone16Count, other.iPhone16Count);
+        copyBits(other.iPhone16HighResCameras, iPhone16HighResCameras, iPhone16Count, other.iPhone16Count);
+        System.arraycopy(other.iPhone16MemoryGB, 0, iPhone16MemoryGB, iPhone16Count, other.iPhone16Count);
+        iPhone16Count = newIPhone16Count;
+
+        final int newIPadCount = iPadCount + other.iPadCount;
+        if (newIPadCount > iPadOperatingSystemVersionCodes.length)
+        {
+            iPadCases = Arrays.copyOf(iPadCases, wordsFor(newIPadCount));
+            iPadOperatingSystemVersionCodes = Arrays.copyOf(iPadOperatingSystemVersionCodes, newIPadCount);
+        }
+        copyBits(other.iPadCases, iPadCases, iPadCount, other.iPadCount);
+        System.arraycopy(other.iPadOperatingSystemVersionCodes, 0, iPadOperatingSystemVersionCodes, iPadCount,
+                other.iPadCount);
+        iPadCount = newIPadCount;
+
+        final int newIPodCount = iPodCount + other.iPodCount;
+        if (newIPodCount > iPodNumOfStoredSongs.length)
+        {
+            iPodNumOfStoredSongs = Arrays.copyOf(iPodNumOfStoredSongs, newIPodCount);
+            iPodMaxVolumeDecibels = Arrays.copyOf(iPodMaxVolumeDecibels, newIPodCount);
+        }
+        System.arraycopy(other.iPodNumOfStoredSongs, 0, iPodNumOfStoredSongs, iPodCount, other.iPodCount);
+        System.arraycopy(other.iPodMaxVolumeDecibels, 0, iPodMaxVolumeDecibels, iPodCount, other.iPodCount);
+        iPodCount = newIPodCount;
+    }
+
+    // Adds an already validated IPhone whose carrier is given as a StringDictionary.CARRIERS code.
+    int addValidatedIPhone(final double phonePlanMinutesRemaining,
+                           final int carrierCode)
+    {
+        if (iPhoneCount == iPhoneMinutes.length)
+        {
+            final int newCapacity = grow(iPhoneCount);
+            iPhoneMinutes = Arrays.copyOf(iPhoneMinutes, newCapacity);
+            iPhoneCarrierCodes = Arrays.copyOf(iPhoneCarrierCodes, newCapacity);
+        }
+        iPhoneMinutes[iPhoneCount] = phonePlanMinutesRemaining;
+        iPhoneCarrierCodes[iPhoneCount] = carrierCode;
+        return iPhoneCount++;
+    }
+
+    // Adds an already validated IPhone16 whose carrier is given as a code.
+    int addValidatedIPhone16(final double phonePlanMinutesRemaining,
+                             final int carrierCode,
+                             final boolean highResCamera,
+                             final int memoryGB)
+    {
+        if (iPhone16Count == iPhone16Minutes.length)
+        {
+            final int newCapacity = grow(iPhone16Count);
+            iPhone16Minutes = Arrays.copyOf(iPhone16Minutes, newCapacity);
+            iPhone16CarrierCodes = Arrays.copyOf(iPhone16CarrierCodes, newCapacity);
+            iPhone16HighResCameras = Arrays.copyOf(iPhone16HighResCameras, wordsFor(newCapacity));
+            iPhone16MemoryGB = Arrays.copyOf(iPhone16MemoryGB, newCapacity);
+        }
+        iPhone16Minutes[iPhone16Count] = phonePlanMinutesRemaining;
+        iPhone16CarrierCodes[iPhone16Count] = carrierCode;
+        writeBit(iPhone16HighResCameras, iPhone16Count, highResCamera);
+        iPhone16MemoryGB[iPhone16Count] = memoryGB;
+        return iPhone16Count++;
+    }
+
+    // Adds an already validated IPad whose OS version is given as a StringDictionary code.
+    int addValidatedIPad(final boolean iPadCase,
+                         final int operatingSystemVersionCode)
+    {
+        if (iPadCount == iPadOperatingSystemVersionCodes.length)
+        {
+            final int newCapacity = grow(iPadCount);
+            iPadCases = Arrays.copyOf(iPadCases, wordsFor(newCapacity));
+            iPadOperatingSystemVersionCodes = Arrays.copyOf(iPadOperatingSystemVersionCodes, newCapacity);
+        }
+        writeBit(iPadCases, iPadCount, iPadCase);
+        iPadOperatingSystemVersionCodes[iPadCount] = operatingSystemVersionCode;
+        return iPadCount++;
+    }
+
+    /**
+     * @return the number of {@link IPhone}s stored in this fleet.
+     */
+    public int iPhoneCount()
+    {
+        return iPhoneCount;
+    }
+
+    /**
+     * @return the number of {@link IPhone16}s stored in this fleet.
+     */
+    public int iPhone16Count()
+    {
+        return iPhone16Count;
+    }
+
+    /**
+     * @return the number of {@link IPad}s stored in this fleet.
+     */
+    public int iPadCount()
+    {
+        return iPadCount;
+    }
+
+    /**
+     * @return the number of {@link IPod}s stored in this fleet.
+     */
+    public int iPodCount()
+    {
+        return iPodCount;
+    }
+
+    /**
+     * Returns a view of the {@link IPhone} stored at the given index.
+     *
+     * @param index The index of the phone.
+     * @return A view that reads and writes the fleet's columns.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     */
+    public IPhoneView iPhone(final int index)
+    {
+        final IPhoneView view = new IPhoneView(this);
+        view.moveTo(index);
+        return view;
+    }
+
+    /**
+     * Returns a view of the {@link IPhone16} stored at the given index.
+     *
+     * @param index The index of the phone.
+     * @return A view that reads and writes the fleet's columns.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     */
+    public IPhone16View iPhone16(final int index)
+    {
+        final IPhone16View view = new IPhone16View(this);
+        view.moveTo(index);
+        return view;
+    }
+
+    /**
+     * Returns a view of the {@link IPad} stored at the given index.
+     *
+     * @param index The index of the iPad.
+     * @return A view that reads and writes the fleet's columns.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     */
+    public IPadView iPad(final int index)
+    {
+        final IPadView view = new IPadView(this);
+        view.moveTo(index);
+        return view;
+    }
+
+    /**
+     * Returns a view of the {@link IPod} stored at the given index.
+     *
+     * @param index The index of the iPod.
+     * @return A view that reads and writes the fleet's columns.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     */
+    public IPodView iPod(final int index)
+    {
+        final IPodView view = new IPodView(this);
+        view.moveTo(index);
+        return view;
+    }
+
+    // Checks whether a device is a flyweight view of some fleet rather than a device of its own.
+    static boolean isView(final IDevice device)
+    {
+        return device instanceof IPhoneView || device instanceof IPhone16View
+                || device instanceof IPadView || device instanceof IPodView;
+    }
+
+    /**
+     * Counts the {@link IPad}s that have a case.
+     *
+     * @return The number of iPads whose case flag is set.
+     */
+    public int countIPadsWithCase()
+    {
+        return countBits(iPadCases, iPadCount);
+    }
+
+    /**
+     * Counts the {@link IPhone16}s that have a high-resolution camera.
+     *
+     * @return The number of iPhone 16s whose camera flag is set.
+     */
+    public int countIPhone16sWithHighResCamera()
+    {
+        return countBits(iPhone16HighResCameras, iPhone16Count);
+    }
+
+    /**
+     * Selects the {@link IPad}s that have a case.
+     *
+     * @return A selection of the indexes of those iPads.
+     */
+    public Selection iPadsWithCase()
+    {
+        return new Selection(copyWords(iPadCases, iPadCount), iPadCount);
+    }
+
+    /**
+     * Selects the {@link IPhone16}s that have a high-resolution camera.
+     *
+     * @return A selection of the indexes of those iPhone 16s.
+     */
+    public Selection iPhone16sWithHighResCamera()
+    {
+        return new Selection(copyWords(iPhone16HighResCameras, iPhone16Count), iPhone16Count);
+    }
+
+    /**
+     * Selects the {@link IPad}s that meet a condition, for combining with flag selections.
+     * The condition sees each iPad through a single view that is moved along the fleet.
+     *
+     * @param condition The condition to test.
+     * @return A selection of the indexes of the iPads that meet it.
+     * @throws IllegalArgumentException If the condition is {@code null}.
+     */
+    public Selection selectIPads(final Predicate<? super IPad> condition)
+    {
+        if (condition == null)
+        {
+            throw new IllegalArgumentException("Condition cannot be null.");
+        }
+        final long[] words = new long[wordsFor(iPadCount)];
+        final IPadView view = new IPadView(this);
+        for (int i = 0; i < iPadCount; i++)
+        {
+            view.index = i;
+            if (condition.test(view))
+            {
+                words[i >>> BITS_PER_WORD_SHIFT] |= 1L << i;
+            }
+        }
+        return new Selection(words, iPadCount);
+    }
+
+    /**
+     * Selects the {@link IPhone16}s that meet a condition, for combining with flag selections.
+     * The condition sees each phone through a single view that is moved along the fleet.
+     *
+     * @param condition The condition to test.
+     * @return A selection of the indexes of the phones that meet it.
+     * @throws IllegalArgumentException If the condition is {@code null}.
+     */
+    public Selection selectIPhone16s(final Predicate<? super IPhone16> condition)
+    {
+        if (condition == null)
+        {
+            throw new IllegalArgumentException("Condition cannot be null.");
+        }
+        final long[] words = new long[wordsFor(iPhone16Count)];
+        final IPhone16View view = new IPhone16View(this);
+        for (int i = 0; i < iPhone16Count; i++)
+        {
+            view.index = i;
+            if (condition.test(view))
+            {
+                words[i >>> BITS_PER_WORD_SHIFT] |= 1L << i;
+            }
+        }
+        return new Selection(words, iPhone16Count);
+    }
+
+    /**
+     * Adds minutes to every {@link IPhone} and {@link IPhone16} in the fleet.
+     *
+     * @param minutesToAdd The number of minutes to add. Must be a positive value.
+     * @return The phones left unchanged because their balance would overflow.
+     * @throws IllegalArgumentException If {@code minutesToAdd} is negative.
+     */
+    public MinuteViolations addPhonePlanMinutes(final double minutesToAdd)
+    {
+        IPhone.validateMinutesToAdd(minutesToAdd);
+        return applyMinutes(MinuteVectors.ADD, MinuteVectors.ALL_CARRIERS, minutesToAdd);
+    }
+
+    /**
+     * Adds minutes to every phone of one carrier.
+     *
+     * @param carrier      The carrier whose phones get the minutes.
+     * @param minutesToAdd The number of minutes to add. Must be a positive value.
+     * @return The phones left unchanged because their balance would overflow.
+     * @throws IllegalArgumentException If the carrier is invalid or {@code minutesToAdd} is negative.
+     */
+    public MinuteViolations addPhonePlanMinutes(final String carrier,
+                                                final double minutesToAdd)
+    {
+        IPhone.validateCarrier(carrier);
+        IPhone.validateMinutesToAdd(minutesToAdd);
+        return applyMinutes(MinuteVectors.ADD, StringDictionary.CARRIERS.encode(carrier), minutesToAdd);
+    }
+
+    /**
+     * Removes minutes from every {@link IPhone} and {@link IPhone16} that has enough left.
+     *
+     * @param minutesToRemove The number of minutes to remove. Must be a positive value.
+     * @return The phones left unchanged because they had too few minutes.
+     * @throws IllegalArgumentException If {@code minutesToRemove} is negative.
+     */
+    public MinuteViolations removePhonePlanMinutes(final double minutesToRemove)
+    {
+        IPhone.validateMinutesToRemove(minutesToRemove);
+        return applyMinutes(MinuteVectors.SUBTRACT, MinuteVectors.ALL_CARRIERS, minutesToRemove);
+    }
+
+    /**
+     * Removes minutes from every phone of one carrier that has enough left.
+     *
+     * @param carrier         The carrier whose phones lose the minutes.
+     * @param minutesToRemove The number of minutes to remove. Must be a positive value.
+     * @return The phones left unchanged because they had too few minutes.
+     * @throws IllegalArgumentException If the carrier is invalid or {@code minutesToRemove} is negative.
+     */
+    public MinuteViolations removePhonePlanMinutes(final String carrier,
+                                                   final double minutesToRemove)
+    {
+        IPhone.validateCarrier(carrier);
+        IPhone.validateMinutesToRemove(minutesToRemove);
+        return applyMinutes(MinuteVectors.SUBTRACT, StringDictionary.CARRIERS.encode(carrier), minutesToRemove);
+    }
+
+    /**
+     * Expires minutes from every {@link IPhone} and {@link IPhone16}. Phones with fewer minutes
+     * than that are left with the phone plan minimum.
+     *
+     * @param minutesToExpire The number of minutes to expire. Must be a positive value.
+     * @return The phones whose balance was clamped at the minimum.
+     * @throws IllegalArgumentException If {@code minutesToExpire} is negative.
+     */
+    public MinuteViolations expirePhonePlanMinutes(final double minutesToExpire)
+    {
+        IPhone.validateMinutesToRemove(minutesToExpire);
+        return applyMinutes(MinuteVectors.EXPIRE, MinuteVectors.ALL_CARRIERS, minutesToExpire);
+    }
+
+    /**
+     * Expires minutes from every phone of one carrier. Phones with fewer minutes than that
+     * are left with the phone plan minimum.
+     *
+     * @param carrier         The carrier whose phones lose the minutes.
+     * @param minutesToExpire The number of minutes to expire. Must be a positive value.
+     * @return The phones whose balance was clamped at the minimum.
+     * @throws IllegalArgumentException If the carrier is invalid or {@code minutesToExpire} is negative.
+     */
+    public MinuteViolations expirePhonePlanMinutes(final String carrier,
+                                                   final double minutesToExpire)
+    {
+        IPhone.validateCarrier(carrier);
+        IPhone.validateMinutesToRemove(minutesToExpire);
+        return applyMinutes(MinuteVectors.EXPIRE, StringDictionary.CARRIERS.encode(carrier), minutesToExpire);
+    }
+
+    // Runs a MinuteVectors kernel over both phone columns, then reports every changed balance.
+    private MinuteViolations applyMinutes(final int operation,
+                                          final int carrierCode,
+                                          final double amount)
+    {
+        final long start = DeviceMetrics.start();
+        final boolean listening = DeviceListeners.isListening();
+        final double[] oldIPhoneMinutes = listening ? Arrays.copyOf(iPhoneMinutes, iPhoneCount) : null;
+        final double[] oldIPhone16Minutes = listening ? Arrays.copyOf(iPhone16Minutes, iPhone16Count) : null;
+        final Selection iPhones = new Selection(MinuteVectors.apply(operation, iPhoneMinutes, iPhoneCarrierCodes,
+                iPhoneCount, carrierCode, amount), iPhoneCount);
+        final Selection iPhone16s = new Selection(MinuteVectors.apply(operation, iPhone16Minutes,
+                iPhone16CarrierCodes, iPhone16Count, carrierCode, amount), iPhone16Count);
+        if (listening)
+        {
+            final IPhoneView iPhone = new IPhoneView(this);
+            for (int i = 0; i < iPhoneCount; i++)
+            {
+                if (oldIPhoneMinutes[i] != iPhoneMinutes[i])
+                {
+                    iPhone.moveTo(i);
+                    DeviceListeners.phonePlanMinutesChanged(iPhone, oldIPhoneMinutes[i], iPhoneMinutes[i]);
+                }
+            }
+            final IPhone16View iPhone16 = new IPhone16View(this);
+            for (int i = 0; i < iPhone16Count; i++)
+            {
+                if (oldIPhone16Minutes[i] != iPhone16Minutes[i])
+                {
+                    iPhone16.moveTo(i);
+                    DeviceListeners.phonePlanMinutesChanged(iPhone16, oldIPhone16Minutes[i], iPhone16Minutes[i]);
+                }
+            }
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.MINUTE_ARITHMETIC, start,
+                (long) iPhoneCount + iPhone16Count);
+        return new MinuteViolations(iPhones, iPhone16s);
+    }
+
+    // Grows a column by half of its current size.
+    private static int grow(final int capacity)
+    {
+        return Math.max(DEFAULT_CAPACITY, capacity + (capacity >> 1));
+    }
+
+    // Number of 64-bit words needed to hold the given number of bits.
+    private static int wordsFor(final int bits)
+    {
+        return (bits + Long.SIZE - 1) >>> BITS_PER_WORD_SHIFT;
+    }
+
+    // Copies the first count bits of one bit-packed column to another, starting at the given bit.
+    private static void copyBits(final long[] source,
+                                 final long[] target,
+                                 final int targetStart,
+                                 final int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            writeBit(target, targetStart + i, readBit(source, i));
+        }
+    }
+
+    // Counts the set bits among the first count bits of a bit-packed column.
+    private static int countBits(final long[] words,
+                                 final int count)
+    {
+        final int fullWords = count >>> BITS_PER_WORD_SHIFT;
+        int total = 0;
+        for (int i = 0; i < fullWords; i++)
+        {
+            total += Long.bitCount(words[i]);
+        }
+        if ((count & (Long.SIZE - 1)) != 0)
+        {
+            total += Long.bitCount(words[fullWords] & lowBits(count));
+        }
+        return total;
+    }
+
+    // Copies the words holding the first count bits of a bit-packed column, clearing any bits past count.
+    private static long[] copyWords(final long[] words,
+                                    final int count)
+    {
+        final long[] copy = Arrays.copyOf(words, wordsFor(count));
+        if ((count & (Long.SIZE - 1)) != 0)
+        {
+            copy[copy.length - 1] &= lowBits(count);
+        }
+        return copy;
+    }
+
+    // Mask of the bits of the last word that lie below the given bit count.
+    private static long lowBits(final int count)
+    {
+        return (1L << count) - 1;
+    }
+
+    // Reads one bit of a bit-packed boolean column.
+    private static boolean readBit(final long[] words,
+                                   final int index)
+    {
+        return (words[index >>> BITS_PER_WORD_SHIFT] & (1L << index)) != 0;
+    }
+
+    // Atomically writes one bit of a bit-packed boolean column, leaving the other bits of its word untouched.
+    private static void writeBit(final long[] words,
+                                 final int index,
+                                 final boolean value)
+    {
+        if (value)
+        {
+            WORDS.getAndBitwiseOr(words, index >>> BITS_PER_WORD_SHIFT, 1L << index);
+        } else
+        {
+            WORDS.getAndBitwiseAnd(words, index >>> BITS_PER_WORD_SHIFT, ~(1L << index));
+        }
+    }
+
+    // Atomically inverts one bit of a bit-packed boolean column and returns its previous value.
+    private static boolean flipBit(final long[] words,
+                                   final int index)
+    {
+        final long mask = 1L << index;
+        return ((long) WORDS.getAndBitwiseXor(words, index >>> BITS_PER_WORD_SHIFT, mask) & mask) != 0;
+    }
+
+    // Checks that an index refers to a stored device.
+    private static void checkIndex(final int index,
+                                   final int count)
+    {
+        if (index < 0 || index >= count)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for " + count + " devices.");
+        }
+    }
+
+    /**
+     * A flyweight {@link IPhone} backed by the columns of a {@link DeviceFleet}.
+     */
+    public static final class IPhoneView extends IPhone
+    {
+        private final DeviceFleet fleet;
+        private int index;
+
+        private IPhoneView(final DeviceFleet fleet)
+        {
+            super();
+            this.fleet = fleet;
+        }
+
+        @Override
+        Class<? extends IDevice> deviceClass()
+        {
+            return IPhone.class;
+        }
+
+        /**
+         * Points this view at another {@link IPhone} of the same fleet.
+         *
+         * @param newIndex The index of the phone to view.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public void moveTo(final int newIndex)
+        {
+            checkIndex(newIndex, fleet.iPhoneCount);
+            index = newIndex;
+        }
+
+        /**
+         * @return the index of the phone this view currently points at.
+         */
+        public int index()
+        {
+            return index;
+        }
+
+        @Override
+        public double getPhonePlanMinutesRemaining()
+        {
+            return fleet.iPhoneMinutes[index];
+        }
+
+        @Override
+        void writePhonePlanMinutesRemaining(final double newPhonePlanMinutesRemaining)
+        {
+            fleet.iPhoneMinutes[index] = newPhonePlanMinutesRemaining;
+        }
+
+        @Override
+        int carrierCode()
+        {
+            return fleet.iPhoneCarrierCodes[index];
+        }
+
+        @Override
+        void writeCarrierCode(final int newCarrierCode)
+        {
+            fleet.iPhoneCarrierCodes[index] = newCarrierCode;
+        }
+    }
+
+    /**
+     * A flyweight {@link IPhone16} backed by the columns of a {@link DeviceFleet}.
+     */
+    public static final class IPhone16View extends IPhone16
+    {
+        private final DeviceFleet fleet;
+        private int index;
+
+        private IPhone16View(final DeviceFleet fleet)
+        {
+            super();
+            this.fleet = fleet;
+        }
+
+        @Override
+        Class<? extends IDevice> deviceClass()
+        {
+            return IPhone16.class;
+        }
+
+        /**
+         * Points this view at another {@link IPhone16} of the same fleet.
+         *
+         * @param newIndex The index of the phone to view.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public void moveTo(final int newIndex)
+        {
+            checkIndex(newIndex, fleet.iPhone16Count);
+            index = newIndex;
+        }
+
+        /**
+         * @return the index of the phone this view currently points at.
+         */
+        public int index()
+        {
+            return index;
+        }
+
+        @Override
+        public double getPhonePlanMinutesRemaining()
+        {
+            return fleet.iPhone16Minutes[index];
+        }
+
+        @Override
+        void writePhonePlanMinutesRemaining(final double newPhonePlanMinutesRemaining)
+        {
+            fleet.iPhone16Minutes[index] = newPhonePlanMinutesRemaining;
+        }
+
+        @Override
+        int carrierCode()
+        {
+            return fleet.iPhone16CarrierCodes[index];
+        }
+
+        @Override
+        void writeCarrierCode(final int newCarrierCode)
+        {
+            fleet.iPhone16CarrierCodes[index] = newCarrierCode;
+        }
+
+        @Override
+        public boolean hasHighResCamera()
+        {
+            return readBit(fleet.iPhone16HighResCameras, index);
+        }
+
+        @Override
+        void writeHighResCamera(final boolean newHighResCamera)
+        {
+            writeBit(fleet.iPhone16HighResCameras, index, newHighResCamera);
+        }
+
+        @Override
+        public int getMemoryGB()
+        {
+            return fleet.iPhone16MemoryGB[index];
+        }
+
+        @Override
+        void writeMemoryGB(final int newMemoryGB)
+        {
+            fleet.iPhone16MemoryGB[index] = newMemoryGB;
+        }
+    }
+
+    /**
+     * A flyweight {@link IPad} backed by the columns of a {@link DeviceFleet}.
+     */
+    public static final class IPadView extends IPad
+    {
+        private final DeviceFleet fleet;
+        private int index;
+
+        private IPadView(final DeviceFleet fleet)
+        {
+            super();
+            this.fleet = fleet;
+        }
+
+        @Override
+        Class<? extends IDevice> deviceClass()
+        {
+            return IPad.class;
+        }
+
+        /**
+         * Points this view at another {@link IPad} of the same fleet.
+         *
+         * @param newIndex The index of the iPad to view.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public void moveTo(final int newIndex)
+        {
+            checkIndex(newIndex, fleet.iPadCount);
+            index = newIndex;
+        }
+
+        /**
+         * @return the index of the iPad this view currently points at.
+         */
+        public int index()
+        {
+            return index;
+        }
+
+        @Override
+        public boolean hasIPadCase()
+        {
+            return readBit(fleet.iPadCases, index);
+        }
+
+        @Override
+        void writeIPadCase(final boolean newIPadCase)
+        {
+            writeBit(fleet.iPadCases, index, newIPadCase);
+        }
+
+        @Override
+        boolean flipIPadCase()
+        {
+            return flipBit(fleet.iPadCases, index);
+        }
+
+        @Override
+        int operatingSystemVersionCode()
+        {
+            return fleet.iPadOperatingSystemVersionCodes[index];
+        }
+
+        @Override
+        void writeOperatingSystemVersionCode(final int newOperatingSystemVersionCode)
+        {
+            fleet.iPadOperatingSystemVersionCodes[index] = newOperatingSystemVersionCode;
+        }
+    }
+
+    /**
+     * A flyweight {@link IPod} backed by the columns of a {@link DeviceFleet}.
+     */
+    public static final class IPodView extends IPod
+    {
+        private final DeviceFleet fleet;
+        private int index;
+
+        private IPodView(final DeviceFleet fleet)
+        {
+            super();
+            this.fleet = fleet;
+        }
+
+        @Override
+        Class<? extends IDevice> deviceClass()
+        {
+            return IPod.class;
+        }
+
+        /**
+         * Points this view at another {@link IPod} of the same fleet.
+         *
+         * @param newIndex The index of the iPod to view.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public void moveTo(final int newIndex)
+        {
+            checkIndex(newIndex, fleet.iPodCount);
+            index = newIndex;
+        }
+
+        /**
+         * @return the index of the iPod this view currently points at.
+         */
+        public int index()
+        {
+            return index;
+        }
+
+        @Override
+        public int getNumOfStoredSongs()
+        {
+            return fleet.iPodNumOfStoredSongs[index];
+        }
+
+        @Override
+        void writeNumOfStoredSongs(final int newNumOfStoredSongs)
+        {
+            fleet.iPodNumOfStoredSongs[index] = newNumOfStoredSongs;
+        }
+
+        @Override
+        public double getMaxVolumeDecibel()
+        {
+            return fleet.iPodMaxVolumeDecibels[index];
+        }
+    }
+
+    /**
+     * A set of device indexes of one type, held as bit-packed words: bit {@code i} is set when the
+     * device at index {@code i} is selected. A selection is a snapshot taken when it is created and
+     * does not change with the fleet. Selections over the same devices are combined a word at a time.
+     */
+    public static final class Selection
+    {
+        private final long[] words;
+        private final int size;
+
+        private Selection(final long[] words,
+                          final int size)
+        {
+            this.words = words;
+            this.size = size;
+        }
+
+        /**
+         * @return the number of devices the selection was taken over.
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * @return the number of selected devices.
+         */
+        public int count()
+        {
+            return countBits(words, size);
+        }
+
+        /**
+         * Checks whether a device is selected.
+         *
+         * @param index The index of the device.
+         * @return {@code true} if the device is selected, {@code false} otherwise.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public boolean contains(final int index)
+        {
+            checkIndex(index, size);
+            return readBit(words, index);
+        }
+
+        /**
+         * @param other A selection over the same devices.
+         * @return the devices selected in both.
+         * @throws IllegalArgumentException If the selections are over different numbers of devices.
+         */
+        public Selection and(final Selection other)
+        {
+            checkSameSize(other);
+            final long[] result = new long[words.length];
+            for (int i = 0; i < result.length; i++)
+            {
+                result[i] = words[i] & other.words[i];
+            }
+            return new Selection(result, size);
+        }
+
+        /**
+         * @param other A selection over the same devices.
+         * @return the devices selected in either.
+         * @throws IllegalArgumentException If the selections are over different numbers of devices.
+         */
+        public Selection or(final Selection other)
+        {
+            checkSameSize(other);
+            final long[] result = new long[words.length];
+            for (int i = 0; i < result.length; i++)
+            {
+                result[i] = words[i] | other.words[i];
+            }
+            return new Selection(result, size);
+        }
+
+        /**
+         * @param other A selection over the same devices.
+         * @return the devices selected in this selection but not in the other.
+         * @throws IllegalArgumentException If the selections are over different numbers of devices.
+         */
+        public Selection andNot(final Selection other)
+        {
+            checkSameSize(other);
+            final long[] result = new long[words.length];
+            for (int i = 0; i < result.length; i++)
+            {
+                result[i] = words[i] & ~other.words[i];
+            }
+            return new Selection(result, size);
+        }
+
+        /**
+         * @return the devices not in this selection.
+         */
+        public Selection not()
+        {
+            final long[] result = new long[words.length];
+            for (int i = 0; i < result.length; i++)
+            {
+                result[i] = ~words[i];
+            }
+            if ((size & (Long.SIZE - 1)) != 0)
+            {
+                result[result.length - 1] &= lowBits(size);
+            }
+            return new Selection(result, size);
+        }
+
+        /**
+         * @return the selected indexes in ascending order.
+         */
+        public int[] indexes()
+        {
+            final int[] indexes = new int[count()];
+            int next = 0;
+            for (int i = 0; i < words.length; i++)
+            {
+                long word = words[i];
+                while (word != 0)
+                {
+                    indexes[next++] = (i << BITS_PER_WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return indexes;
+        }
+
+        // Checks that another selection was taken over the same number of devices.
+        private void checkSameSize(final Selection other)
+        {
+            if (other == null || other.size != size)
+            {
+                throw new IllegalArgumentException("Selections must be over the same devices.");
+            }
+        }
+    }
+
+    /**
+     * The phones a bulk minutes operation could not apply as asked, one {@link Selection} per phone column.
+     */
+    public static final class MinuteViolations
+    {
+        private final Selection iPhones;
+        private final Selection iPhone16s;
+
+        private MinuteViolations(final Selection iPhones,
+                                 final Selection iPhone16s)
+        {
+            this.iPhones = iPhones;
+            this.iPhone16s = iPhone16s;
+        }
+
+        /**
+         * @return the indexes of the affected {@link IPhone}s.
+         */
+        public Selection iPhones()
+        {
+            return iPhones;
+        }
+
+        /**
+         * @return the indexes of the affected {@link IPhone16}s.
+         */
+        public Selection iPhone16s()
+        {
+            return iPhone16s;
+        }
+
+        /**
+         * @return the number of affected phones of either type.
+         */
+        public int count()
+        {
+            return iPhones.count() + iPhone16s.count();
+        }
+    }
+}
@@ -0,0 +1,875 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Imports device inventories from CSV files into a {@link DeviceFleet}, parsing in parallel.
+ * <p>
+ * Each line describes one device, with its fields in the same order as the device's constructor:
+ * <pre>
+ * IPhone,&lt;minutes&gt;,&lt;carrier&gt;
+ * IPhone16,&lt;minutes&gt;,&lt;carrier&gt;,&lt;true|false&gt;,&lt;memoryGB&gt;
+ * IPad,&lt;true|false&gt;,&lt;operatingSystemVersion&gt;
+ * IPod,&lt;numOfStoredSongs&gt;,&lt;maxVolumeDecibel&gt;
+ * </pre>
+ * Fields are not quoted, so they cannot contain commas. Blank lines and lines starting with
+ * {@code #} are skipped. Numbers are plain decimals with an optional sign, and decimals may also
+ * have an exponent. Spaces, type suffixes such as {@code 5d}, hexadecimal, {@code NaN} and
+ * {@code Infinity} are rejected in every numeric column.
+ * <p>
+ * The file is split into chunks that end on line breaks, and the chunks are parsed by a
+ * {@link ForkJoinPool}. Numbers are parsed straight from the file's bytes, and carriers and
+ * operating system versions are looked up by their bytes, so a valid row creates no objects.
+ * Every row is checked against the same rules as the constructors, using the error codes of
+ * {@link DeviceBatchValidator}, so a bad row costs a comparison and a shared message rather than an
+ * exception. A row that breaks a rule is not added and is recorded in the returned {@link Report}.
+ * Every rejected row is also counted in {@link DeviceMetrics}, against the rule it breaks, or against
+ * {@link DeviceMetrics.Rule#ROW_FORMAT} if it could not be parsed.
+ * Valid devices are added to the fleet in the order they appear in the file.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class DeviceImporter
+{
+    /**
+     * The default number of bytes parsed by one task.
+     */
+    public static final int DEFAULT_CHUNK_BYTES;
+
+    // Constants
+    private static final int MAX_REPORTED_REJECTS;
+    private static final int MAX_FIELDS;
+    private static final int SCAN_BUFFER_SIZE;
+    private static final int MAX_FAST_DIGITS;
+    private static final double[] POWERS_OF_TEN;
+    private static final byte[] IPHONE;
+    private static final byte[] IPHONE16;
+    private static final byte[] IPAD;
+    private static final byte[] IPOD;
+    private static final byte[] TRUE;
+    private static final byte[] FALSE;
+    private static final int NO_CODE;
+
+    static
+    {
+        DEFAULT_CHUNK_BYTES = 8 << 20;
+        MAX_REPORTED_REJECTS = 1_000;
+        MAX_FIELDS = 5;
+        SCAN_BUFFER_SIZE = 4_096;
+        MAX_FAST_DIGITS = 15;
+        POWERS_OF_TEN = new double[23];
+        for (int i = 0; i < POWERS_OF_TEN.length; i++)
+        {
+            POWERS_OF_TEN[i] = Double.parseDouble("1e" + i);
+        }
+        IPHONE = "IPhone".getBytes(StandardCharsets.US_ASCII);
+        IPHONE16 = "IPhone16".getBytes(StandardCharsets.US_ASCII);
+        IPAD = "IPad".getBytes(StandardCharsets.US_ASCII);
+        IPOD = "IPod".getBytes(StandardCharsets.US_ASCII);
+        TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+        FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+        NO_CODE = -1;
+    }
+
+    // Instance Variables
+    private final ForkJoinPool pool;
+    private final int chunkBytes;
+
+    /**
+     * Constructs an importer that parses {@link #DEFAULT_CHUNK_BYTES} per task on the common pool.
+     */
+    public DeviceImporter()
+    {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * Constructs an importer.
+     *
+     * @param pool       The pool that parses the chunks.
+     * @param chunkBytes The approximate number of bytes parsed by one task.
+     * @throws IllegalArgumentException If the pool is {@code null} or the chunk size is not positive.
+     */
+    public DeviceImporter(final ForkJoinPool pool,
+                          final int chunkBytes)
+    {
+        if (pool == null)
+        {
+            throw new IllegalArgumentException("Pool cannot be null.");
+        }
+        if (chunkBytes <= 0)
+        {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.pool = pool;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Imports every valid device of a CSV file into a fleet.
+     *
+     * @param file  The CSV file.
+     * @param fleet The fleet to add the devices to.
+     * @return A report of the imported and rejected rows.
+     * @throws IOException If the file cannot be read.
+     */
+    public Report importCsv(final Path file,
+                            final DeviceFleet fleet) throws IOException
+    {
+        final long start = DeviceMetrics.start();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            final long[] bounds = chunkBounds(channel);
+            final Chunk[] chunks = new Chunk[bounds.length - 1];
+            try
+            {
+                pool.invoke(new ParseTask(channel, bounds, chunks, 0, chunks.length));
+            } catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
+
+            final List<Reject> rejects = new ArrayList<>();
+            long imported = 0;
+            long rejected = 0;
+            long firstLine = 1;
+            for (final Chunk chunk : chunks)
+            {
+                fleet.appendAll(chunk.fleet);
+                imported += chunk.imported;
+                rejected += chunk.rejected;
+                for (final Reject reject : chunk.rejects)
+                {
+                    if (rejects.size() < MAX_REPORTED_REJECTS)
+                    {
+                        rejects.add(new Reject(firstLine + reject.lineNumber, reject.reason, reject.line));
+                    }
+                }
+                firstLine += chunk.lines;
+            }
+            DeviceMetrics.completed(DeviceMetrics.BulkOperation.IMPORT_CSV, start, imported + rejected);
+            return new Report(imported, rejected, rejects);
+        }
+    }
+
+    /*
+     * Splits the file into ranges of about chunkBytes each. Every range but the last ends
+     * just after a line break, so no line is split between two tasks.
+     */
+    private long[] chunkBounds(final FileChannel channel) throws IOException
+    {
+        final long size = channel.size();
+        final ByteBuffer scan = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        final List<Long> bounds = new ArrayList<>();
+        long start = 0;
+
+        bounds.add(start);
+        while (start < size)
+        {
+            long end = start + chunkBytes;
+            if (end >= size)
+            {
+                end = size;
+            } else
+            {
+                end = lineEnd(channel, scan, end - 1, size);
+            }
+            bounds.add(end);
+            start = end;
+        }
+
+        final long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    // Returns the position just after the first line break at or after the given position.
+    private static long lineEnd(final FileChannel channel,
+                                final ByteBuffer scan,
+                                final long from,
+                                final long size) throws IOException
+    {
+        long position = from;
+        while (position < size)
+        {
+            scan.clear();
+            final int read = channel.read(scan, position);
+            if (read < 0)
+            {
+                break;
+            }
+            for (int i = 0; i < read; i++)
+            {
+                if (scan.get(i) == '\n')
+                {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    // Reads a range of the file into a new array.
+    private static byte[] read(final FileChannel channel,
+                               final long start,
+                               final long end) throws IOException
+    {
+        if (end - start > Integer.MAX_VALUE - 8)
+        {
+            throw new IOException("Line starting near byte " + start + " is too long.");
+        }
+        final byte[] bytes = new byte[(int) (end - start)];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, start + buffer.position()) < 0)
+            {
+                throw new EOFException("File ended while reading byte " + (start + buffer.position()));
+            }
+        }
+        return bytes;
+    }
+
+    // Checks whether a range of bytes is exactly the given ASCII text.
+    private static boolean matches(final byte[] bytes,
+                                   final int from,
+                                   final int to,
+                                   final byte[] text)
+    {
+        return to - from == text.length && Arrays.equals(bytes, from, to, text, 0, text.length);
+    }
+
+    // Checks whether a range of bytes is the given lower-case ASCII text, ignoring case.
+    private static boolean matchesIgnoreCase(final byte[] bytes,
+                                             final int from,
+                                             final int to,
+                                             final byte[] text)
+    {
+        if (to - from != text.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < text.length; i++)
+        {
+            if ((bytes[from + i] | 0x20) != text[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The outcome of an import.
+     */
+    public static final class Report
+    {
+        private final long imported;
+        private final long rejected;
+        private final List<Reject> rejects;
+
+        private Report(final long imported,
+                       final long rejected,
+                       final List<Reject> rejects)
+        {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.rejects = Collections.unmodifiableList(rejects);
+        }
+
+        /**
+         * @return the number of devices added to the fleet.
+         */
+        public long imported()
+        {
+            return imported;
+        }
+
+        /**
+         * @return the number of rows that were rejected.
+         */
+        public long rejected()
+        {
+            return rejected;
+        }
+
+        /**
+         * @return the first rejected rows, in file order. At most 1000 are kept.
+         */
+        public List<Reject> rejects()
+        {
+            return rejects;
+        }
+
+        /**
+         * Returns a summary of the import, followed by one line per kept reject.
+         *
+         * @return The report as text.
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder text = new StringBuilder();
+            text.append("Imported ").append(imported).append(" devices, rejected ").append(rejected).append(" rows.");
+            for (final Reject reject : rejects)
+            {
+                text.append(System.lineSeparator()).append(reject);
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * A row that was not imported, and why.
+     */
+    public static final class Reject
+    {
+        private final long lineNumber;
+        private final String reason;
+        private final String line;
+
+        private Reject(final long lineNumber,
+                       final String reason,
+                       final String line)
+        {
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+            this.line = line;
+        }
+
+        /**
+         * @return the line number of the row, starting from 1.
+         */
+        public long lineNumber()
+        {
+            return lineNumber;
+        }
+
+        /**
+         * @return the rule the row broke, worded like the constructor's exception message.
+         */
+        public String reason()
+        {
+            return reason;
+        }
+
+        /**
+         * @return the text of the row.
+         */
+        public String line()
+        {
+            return line;
+        }
+
+        /**
+         * @return the line number, reason and text of the row.
+         */
+        @Override
+        public String toString()
+        {
+            return "Line " + lineNumber + ": " + reason + " [" + line + "]";
+        }
+    }
+
+    /*
+     * Splits a range of chunks in half until one chunk is left, then parses it.
+     */
+    private static final class ParseTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel channel;
+        private final long[] bounds;
+        private final transient Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        private ParseTask(final FileChannel channel,
+                          final long[] bounds,
+                          final Chunk[] chunks,
+                          final int from,
+                          final int to)
+        {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > 1)
+            {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(channel, bounds, chunks, from, middle),
+                        new ParseTask(channel, bounds, chunks, middle, to));
+            } else if (to > from)
+            {
+                try
+                {
+                    final Chunk chunk = new Chunk();
+                    chunk.parse(read(channel, bounds[from], bounds[from + 1]));
+                    chunks[from] = chunk;
+                } catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /*
+     * The devices, line count and rejects of one chunk. Reject line numbers are counted
+     * from the start of the chunk until the chunks are merged.
+     */
+    private static final class Chunk
+    {
+        private final DeviceFleet fleet;
+        private final List<Reject> rejects;
+        private final CodeCache carriers;
+        private final CodeCache operatingSystemVersions;
+        private final int[] fieldStarts;
+        private final int[] fieldEnds;
+        private byte[] bytes;
+        private long lines;
+        private long imported;
+        private long rejected;
+        private boolean numberError;
+        private DeviceMetrics.Rule brokenRule;
+
+        private Chunk()
+        {
+            fleet = new DeviceFleet();
+            rejects = new ArrayList<>();
+            carriers = new CodeCache(StringDictionary.CARRIERS, false);
+            operatingSystemVersions = new CodeCache(StringDictionary.OPERATING_SYSTEM_VERSIONS, true);
+            fieldStarts = new int[MAX_FIELDS + 1];
+            fieldEnds = new int[MAX_FIELDS + 1];
+        }
+
+        // Parses every line of the chunk.
+        private void parse(final byte[] chunkBytes)
+        {
+            bytes = chunkBytes;
+            int start = 0;
+            while (start < bytes.length)
+            {
+                int end = start;
+                while (end < bytes.length && bytes[end] != '\n')
+                {
+                    end++;
+                }
+                int lineEnd = end;
+                if (lineEnd > start && bytes[lineEnd - 1] == '\r')
+                {
+                    lineEnd--;
+                }
+                if (lineEnd > start && bytes[start] != '#')
+                {
+                    brokenRule = DeviceMetrics.Rule.ROW_FORMAT;
+                    final String error = parseLine(start, lineEnd);
+                    if (error == null)
+                    {
+                        imported++;
+                    } else
+                    {
+                        reject(error, start, lineEnd);
+                    }
+                }
+                lines++;
+                start = end + 1;
+            }
+            bytes = null;
+        }
+
+        /*
+         * Adds the device of one line to the chunk's fleet.
+         * Returns null on success, or why the line was rejected. A line that breaks one of the
+         * constructors' rules also leaves that rule in brokenRule.
+         */
+        private String parseLine(final int start,
+                                 final int end)
+        {
+            final int fields = split(start, end);
+            final int typeStart = fieldStarts[0];
+            final int typeEnd = fieldEnds[0];
+
+            if (matches(bytes, typeStart, typeEnd, IPHONE))
+            {
+                if (fields != 3)
+                {
+                    return "An IPhone needs 3 fields.";
+                }
+                final double minutes = parseDouble(1);
+                if (numberError)
+                {
+                    return "Phone plan minutes remaining is not a number.";
+                }
+                final byte error = DeviceBatchValidator.checkPhonePlanMinutesRemaining(minutes);
+                if (error != DeviceBatchValidator.VALID)
+                {
+                    return broken(error);
+                }
+                fleet.addValidatedIPhone(minutes, carriers.code(bytes, fieldStarts[2], fieldEnds[2]));
+            } else if (matches(bytes, typeStart, typeEnd, IPHONE16))
+            {
+                if (fields != 5)
+                {
+                    return "An IPhone16 needs 5 fields.";
+                }
+                final double minutes = parseDouble(1);
+                if (numberError)
+                {
+                    return "Phone plan minutes remaining is not a number.";
+                }
+                byte error = DeviceBatchValidator.checkPhonePlanMinutesRemaining(minutes);
+                if (error != DeviceBatchValidator.VALID)
+                {
+                    return broken(error);
+                }
+                final boolean highResCamera = matchesIgnoreCase(bytes, fieldStarts[3], fieldEnds[3], TRUE);
+                if (!highResCamera && !matchesIgnoreCase(bytes, fieldStarts[3], fieldEnds[3], FALSE))
+                {
+                    return "High-res camera must be true or false.";
+                }
+                final int memoryGB = parseInt(4);
+                if (numberError)
+                {
+                    return "Memory is not a whole number.";
+                }
+                error = DeviceBatchValidator.checkMemoryGB(memoryGB);
+                if (error != DeviceBatchValidator.VALID)
+                {
+                    return broken(error);
+                }
+                fleet.addValidatedIPhone16(minutes, carriers.code(bytes, fieldStarts[2], fieldEnds[2]),
+                        highResCamera, memoryGB);
+            } else if (matches(bytes, typeStart, typeEnd, IPAD))
+            {
+                if (fields != 3)
+                {
+                    return "An IPad needs 3 fields.";
+                }
+                final boolean iPadCase = matchesIgnoreCase(bytes, fieldStarts[1], fieldEnds[1], TRUE);
+                if (!iPadCase && !matchesIgnoreCase(bytes, fieldStarts[1], fieldEnds[1], FALSE))
+                {
+                    return "IPad case must be true or false.";
+                }
+                final int code = operatingSystemVersions.code(bytes, fieldStarts[2], fieldEnds[2]);
+                if (code == NO_CODE)
+                {
+                    return broken(DeviceBatchValidator.OPERATING_SYSTEM_VERSION);
+                }
+                fleet.addValidatedIPad(iPadCase, code);
+            } else if (matches(bytes, typeStart, typeEnd, IPOD))
+            {
+                if (fields != 3)
+                {
+                    return "An IPod needs 3 fields.";
+                }
+                final int songs = parseInt(1);
+                if (numberError)
+                {
+                    return "Number of stored songs is not a whole number.";
+                }
+                final double decibel = parseDouble(2);
+                if (numberError)
+                {
+                    return "Max volume decibel is not a number.";
+                }
+                final byte error = DeviceBatchValidator.checkMaxDecibelLevel(decibel);
+                if (error != DeviceBatchValidator.VALID)
+                {
+                    return broken(error);
+                }
+                fleet.addIPod(songs, decibel);
+            } else
+            {
+                return "Unknown device type.";
+            }
+            return null;
+        }
+
+        // Leaves the rule of an error code in brokenRule and returns the code's message.
+        private String broken(final byte error)
+        {
+            brokenRule = DeviceBatchValidator.rule(error);
+            return DeviceBatchValidator.message(error);
+        }
+
+        // Records the start and end of each comma-separated field and returns the field count.
+        private int split(final int start,
+                          final int end)
+        {
+            int fields = 0;
+            int fieldStart = start;
+            for (int i = start; i < end && fields < MAX_FIELDS; i++)
+            {
+                if (bytes[i] == ',')
+                {
+                    fieldStarts[fields] = fieldStart;
+                    fieldEnds[fields] = i;
+                    fields++;
+                    fieldStart = i + 1;
+                }
+            }
+            fieldStarts[fields] = fieldStart;
+            fieldEnds[fields] = end;
+            return fields + 1;
+        }
+
+        /*
+         * Parses a field as a double, giving the same result as Double.parseDouble for a plain
+         * decimal with an optional exponent. Decimals with at most 15 digits are converted with one
+         * exact division; longer ones and exponents fall back to Double.parseDouble, but only once
+         * the field is known to hold nothing else, so its leniency is never exposed.
+         */
+        private double parseDouble(final int field)
+        {
+            final int from = fieldStarts[field];
+            final int to = fieldEnds[field];
+            int i = from;
+            final boolean negative = i < to && bytes[i] == '-';
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+'))
+            {
+                i++;
+            }
+            final int firstDigit = i;
+
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = 0;
+            boolean point = false;
+            for (; i < to; i++)
+            {
+                final int b = bytes[i];
+                if (b >= '0' && b <= '9')
+                {
+                    if (mantissa != 0 || b != '0')
+                    {
+                        digits++;
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (point)
+                    {
+                        fractionDigits++;
+                    }
+                    if (digits > MAX_FAST_DIGITS || fractionDigits >= POWERS_OF_TEN.length)
+                    {
+                        break;
+                    }
+                } else if (b == '.' && !point)
+                {
+                    point = true;
+                } else
+                {
+                    break;
+                }
+            }
+
+            final boolean hasDigits = to - firstDigit > (point ? 1 : 0);
+            if (i == to && hasDigits)
+            {
+                numberError = false;
+                final double value = mantissa / POWERS_OF_TEN[fractionDigits];
+                return negative ? -value : value;
+            }
+            if (!isDecimal(from, to))
+            {
+                numberError = true;
+                return 0.0;
+            }
+            try
+            {
+                numberError = false;
+                return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e)
+            {
+                numberError = true;
+                return 0.0;
+            }
+        }
+
+        // Whether a range holds only the digits, signs, point and exponent marks of a plain decimal.
+        private boolean isDecimal(final int from,
+                                  final int to)
+        {
+            for (int i = from; i < to; i++)
+            {
+                final int b = bytes[i];
+                if ((b < '0' || b > '9') && b != '.' && b != '-' && b != '+' && b != 'e' && b != 'E')
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Parses a field as an int, accepting exactly what Integer.parseInt accepts.
+        private int parseInt(final int field)
+        {
+            final int from = fieldStarts[field];
+            final int to = fieldEnds[field];
+            int i = from;
+            final boolean negative = i < to && bytes[i] == '-';
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+'))
+            {
+                i++;
+            }
+
+            numberError = i == to;
+            long value = 0;
+            for (; i < to && !numberError; i++)
+            {
+                final int b = bytes[i];
+                if (b < '0' || b > '9')
+                {
+                    numberError = true;
+                } else
+                {
+                    value = value * 10 + (b - '0');
+                    if (value > (long) Integer.MAX_VALUE + 1)
+                    {
+                        numberError = true;
+                    }
+                }
+            }
+
+            final long signed = negative ? -value : value;
+            if (signed > Integer.MAX_VALUE)
+            {
+                numberError = true;
+            }
+            return (int) signed;
+        }
+
+        // Counts a rejected line, in the report and against brokenRule, and keeps it if the report has room.
+        private void reject(final String reason,
+                            final int start,
+                            final int end)
+        {
+            DeviceMetrics.rejected(brokenRule, reason);
+            rejected++;
+            if (rejects.size() < MAX_REPORTED_REJECTS)
+            {
+                rejects.add(new Reject(lines, reason, new String(bytes, start, end - start, StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    /*
+     * Maps the bytes of a string field to its StringDictionary code, creating the string
+     * only the first time each distinct value is seen in a chunk. Values that break the
+     * operating system version rule map to NO_CODE.
+     */
+    private static final class CodeCache
+    {
+        private final StringDictionary dictionary;
+        private final boolean operatingSystemVersions;
+        private byte[][] keys;
+        private int[] codes;
+        private int size;
+
+        private CodeCache(final StringDictionary dictionary,
+                          final boolean operatingSystemVersions)
+        {
+            this.dictionary = dictionary;
+            this.operatingSystemVersions = operatingSystemVersions;
+            this.keys = new byte[16][];
+            this.codes = new int[16];
+        }
+
+        // Returns the code of the value held in a range of bytes.
+        private int code(final byte[] bytes,
+                         final int from,
+                         final int to)
+        {
+            int hash = 1;
+            for (int i = from; i < to; i++)
+            {
+                hash = 31 * hash + bytes[i];
+            }
+
+            final int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != null)
+            {
+                final byte[] key = keys[slot];
+                if (Arrays.equals(key, 0, key.length, bytes, from, to))
+                {
+                    return codes[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            final byte[] key = Arrays.copyOfRange(bytes, from, to);
+            final String value = new String(key, StandardCharsets.UTF_8);
+            final int code;
+            if (operatingSystemVersions)
+            {
+                code = DeviceBatchValidator.checkOperatingSystemVersion(value) == DeviceBatchValidator.VALID
+                        ? OperatingSystemVersion.encode(value) : NO_CODE;
+            } else
+            {
+                code = dictionary.encode(value);
+            }
+
+            keys[slot] = key;
+            codes[slot] = code;
+            size++;
+            if (2 * size > keys.length)
+            {
+                rehash();
+            }
+            return code;
+        }
+
+        // Doubles the table.
+        private void rehash()
+        {
+            final byte[][] oldKeys = keys;
+            final int[] oldCodes = codes;
+            keys = new byte[oldKeys.length * 2][];
+            codes = new int[oldKeys.length * 2];
+
+            final int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldKeys[i] != null)
+                {
+                    int hash = 1;
+                    for (final byte b : oldKeys[i])
+                    {
+                        hash = 31 * hash + b;
+                    }
+                    int slot = (hash ^ (hash >>> 16)) & mask;
+                    while (keys[slot] != null)
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    codes[slot] = oldCodes[i];
+                }
+            }
+        }
+    }
+}
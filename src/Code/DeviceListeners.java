@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * The registry of {@link DeviceMutationListener}s that are told about every device change.
+ * The listeners are kept in an array that is copied whenever a listener is added or removed,
+ * so notifying them takes no lock, and a mutator with no listeners registered only pays for
+ * reading one field.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceListeners
+{
+    private static volatile DeviceMutationListener[] listeners;
+
+    static
+    {
+        listeners = new DeviceMutationListener[0];
+    }
+
+    private DeviceListeners()
+    {
+    }
+
+    /**
+     * Registers a listener. A listener registered twice is called twice.
+     *
+     * @param listener The listener to register.
+     * @throws IllegalArgumentException If the listener is {@code null}.
+     */
+    public static synchronized void add(final DeviceMutationListener listener)
+    {
+        if (listener == null)
+        {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+        final DeviceMutationListener[] current = listeners;
+        final DeviceMutationListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Unregisters one registration of a listener.
+     *
+     * @param listener The listener to unregister.
+     * @return {@code true} if the listener was registered.
+     */
+    public static synchronized boolean remove(final DeviceMutationListener listener)
+    {
+        final DeviceMutationListener[] current = listeners;
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i] == listener)
+            {
+                final DeviceMutationListener[] updated = new DeviceMutationListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether any listener is registered, for mutators that must do extra work to describe a change.
+    static boolean isListening()
+    {
+        return listeners.length != 0;
+    }
+
+    // Tells every listener that a phone's minutes changed.
+    static void phonePlanMinutesChanged(final IPhone phone,
+                                        final double oldMinutes,
+                                        final double newMinutes)
+    {
+        for (final DeviceMutationListener listener : listeners)
+        {
+            listener.phonePlanMinutesChanged(phone, oldMinutes, newMinutes);
+        }
+    }
+
+    /*
+     * Tells every listener that a phone changed carrier. The carriers arrive as codes
+     * and are only decoded when someone is listening.
+     */
+    static void carrierChanged(final IPhone phone,
+                               final int oldCode,
+                               final int newCode)
+    {
+        final DeviceMutationListener[] current = listeners;
+        if (current.length == 0)
+        {
+            return;
+        }
+        final String oldCarrier = StringDictionary.CARRIERS.decode(oldCode);
+        final String newCarrier = StringDictionary.CARRIERS.decode(newCode);
+        for (final DeviceMutationListener listener : current)
+        {
+            listener.carrierChanged(phone, oldCarrier, newCarrier);
+        }
+    }
+
+    // Tells every listener that an iPhone 16's camera was set.
+    static void highResCameraChanged(final IPhone16 phone,
+                                     final boolean oldHighResCamera,
+                                     final boolean newHighResCamera)
+    {
+        for (final DeviceMutationListener listener : listeners)
+        {
+            listener.highResCameraChanged(phone, oldHighResCamera, newHighResCamera);
+        }
+    }
+
+    // Tells every listener that an iPhone 16's memory was set.
+    static void memoryGBChanged(final IPhone16 phone,
+                                final int oldMemoryGB,
+                                final int newMemoryGB)
+    {
+        for (final DeviceMutationListener listener : listeners)
+        {
+            listener.memoryGBChanged(phone, oldMemoryGB, newMemoryGB);
+        }
+    }
+
+    // Tells every listener that an iPad's case was toggled.
+    static void iPadCaseChanged(final IPad iPad,
+                                final boolean oldIPadCase,
+                                final boolean newIPadCase)
+    {
+        for (final DeviceMutationListener listener : listeners)
+        {
+            listener.iPadCaseChanged(iPad, oldIPadCase, newIPadCase);
+        }
+    }
+
+    // Tells every listener that an iPad's operating system version was set, decoding it only if needed.
+    static void operatingSystemVersionChanged(final IPad iPad,
+                                              final int oldCode,
+                                              final int newCode)
+    {
+        final DeviceMutationListener[] current = listeners;
+        if (current.length == 0)
+        {
+            return;
+        }
+        final String oldVersion = StringDictionary.OPERATING_SYSTEM_VERSIONS.decode(oldCode);
+        final String newVersion = StringDictionary.OPERATING_SYSTEM_VERSIONS.decode(newCode);
+        for (final DeviceMutationListener listener : current)
+        {
+            listener.operatingSystemVersionChanged(iPad, oldVersion, newVersion);
+        }
+    }
+
+    // Tells every listener that the number of songs on an iPod changed.
+    static void numOfStoredSongsChanged(final IPod iPod,
+                                        final int oldSongs,
+                                        final int newSongs)
+    {
+        for (final DeviceMutationListener listener : listeners)
+        {
+            listener.numOfStoredSongsChanged(iPod, oldSongs, newSongs);
+        }
+    }
+}
@@ -0,0 +1,581 @@
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates production-like load on the device model from a very large number of simulated users,
+ * each running on its own virtual thread.
+ * <p>
+ * Every user repeatedly picks an operation according to a weighted mix, applies it to a device
+ * picked with a hot-spot skew (80% of operations go to the first 20% of devices), and then thinks
+ * for an exponentially distributed time. Virtual threads park while thinking without holding a
+ * platform thread, so millions of users fit on a single machine.
+ * <p>
+ * The devices can be shared in several {@link Mode}s, to compare how the model behaves with no
+ * coordination, with a lock per device, and with phone minutes kept in a {@link MinuteLedger}.
+ * A run reports throughput, latency percentiles per operation and the number of operations the
+ * model rejected, such as deductions that would overdraw a phone plan.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceLoadGenerator
+{
+    // Constants
+    private static final int DEFAULT_USERS;
+    private static final long DEFAULT_SECONDS;
+    private static final int DEFAULT_DEVICES;
+    private static final double DEFAULT_THINK_MILLIS;
+    private static final int[] DEFAULT_MIX;
+    private static final int HOT_PERCENT;
+    private static final int HOT_OPERATIONS_PERCENT;
+    private static final double MAX_TOP_UP_MINUTES;
+    private static final double MAX_DEDUCTION_MINUTES;
+    private static final double INITIAL_MINUTES;
+    private static final String[] CARRIERS;
+    private static final String[] VERSIONS;
+    private static final double[] REPORTED_PERCENTILES;
+
+    static
+    {
+        DEFAULT_USERS = 100_000;
+        DEFAULT_SECONDS = 10L;
+        DEFAULT_DEVICES = 10_000;
+        DEFAULT_THINK_MILLIS = 10.0;
+        DEFAULT_MIX = new int[]{30, 20, 20, 20, 5, 5};
+        HOT_PERCENT = 20;
+        HOT_OPERATIONS_PERCENT = 80;
+        MAX_TOP_UP_MINUTES = 120.0;
+        MAX_DEDUCTION_MINUTES = 60.0;
+        INITIAL_MINUTES = 500.0;
+        CARRIERS = new String[]{"Verizon", "T-Mobile", "AT&T", "Rogers", "Bell", "Telus"};
+        VERSIONS = new String[]{"iPadOS 15", "iPadOS 16", "iPadOS 17", "iPadOS 18"};
+        REPORTED_PERCENTILES = new double[]{50.0, 90.0, 99.0, 99.9};
+    }
+
+    // Instance Variables
+    private final int users;
+    private final Duration duration;
+    private final int devicesPerType;
+    private final double thinkMillis;
+    private final int[] mix;
+    private final Mode mode;
+    private final long seed;
+
+    /**
+     * Constructs a {@link DeviceLoadGenerator}.
+     *
+     * @param users          The number of simulated users, each on its own virtual thread.
+     * @param duration       How long the load runs.
+     * @param devicesPerType The number of iPods, phones and iPads shared by the users.
+     * @param thinkMillis    The mean pause between a user's operations, in milliseconds; 0 for none.
+     * @param mix            The relative weight of each {@link Operation}, in declaration order.
+     * @param mode           How the devices are shared.
+     * @param seed           The seed of the users' random choices.
+     * @throws IllegalArgumentException If a count or the duration is not positive, the think time
+     *                                  is negative, or the mix does not have one non-negative weight
+     *                                  per operation with a positive total.
+     */
+    public DeviceLoadGenerator(final int users,
+                               final Duration duration,
+                               final int devicesPerType,
+                               final double thinkMillis,
+                               final int[] mix,
+                               final Mode mode,
+                               final long seed)
+    {
+        if (users <= 0 || devicesPerType <= 0)
+        {
+            throw new IllegalArgumentException("Users and devices must be positive.");
+        }
+        if (duration == null || duration.isNegative() || duration.isZero())
+        {
+            throw new IllegalArgumentException("Duration must be positive.");
+        }
+        if (!(thinkMillis >= 0.0) || Double.isInfinite(thinkMillis))
+        {
+            throw new IllegalArgumentException("Think time cannot be negative.");
+        }
+        if (mix == null || mix.length != Operation.values().length
+                || Arrays.stream(mix).anyMatch(weight -> weight < 0) || Arrays.stream(mix).sum() <= 0)
+        {
+            throw new IllegalArgumentException("Mix must have one non-negative weight per operation.");
+        }
+        if (mode == null)
+        {
+            throw new IllegalArgumentException("Mode cannot be null.");
+        }
+        this.users = users;
+        this.duration = duration;
+        this.devicesPerType = devicesPerType;
+        this.thinkMillis = thinkMillis;
+        this.mix = mix.clone();
+        this.mode = mode;
+        this.seed = seed;
+    }
+
+    /**
+     * Builds a generator from command line options, using the default for every option not given:
+     * <pre>
+     * --users N        simulated users (100000)
+     * --seconds N      length of the run (10)
+     * --devices N      devices of each type (10000)
+     * --think-ms X     mean pause between a user's operations (10)
+     * --mode M         plain, locked or ledger (locked)
+     * --mix a,b,c,d,e,f  weights of addSong, delSong, top-up, deduction, carrier change
+     *                  and OS upgrade (30,20,20,20,5,5)
+     * --seed N         random seed (42)
+     * </pre>
+     *
+     * @param args The options.
+     * @return The generator.
+     * @throws IllegalArgumentException If an option is unknown, has no value, or has an invalid value.
+     */
+    public static DeviceLoadGenerator parse(final String[] args)
+    {
+        int users = DEFAULT_USERS;
+        long seconds = DEFAULT_SECONDS;
+        int devices = DEFAULT_DEVICES;
+        double thinkMillis = DEFAULT_THINK_MILLIS;
+        int[] mix = DEFAULT_MIX;
+        Mode mode = Mode.LOCKED;
+        long seed = 42L;
+
+        for (int i = 0; i < args.length; i += 2)
+        {
+            if (i + 1 >= args.length)
+            {
+                throw new IllegalArgumentException("Option " + args[i] + " needs a value.");
+            }
+            final String value = args[i + 1];
+            try
+            {
+                if (args[i].equals("--users"))
+                {
+                    users = Integer.parseInt(value);
+                } else if (args[i].equals("--seconds"))
+                {
+                    seconds = Long.parseLong(value);
+                } else if (args[i].equals("--devices"))
+                {
+                    devices = Integer.parseInt(value);
+                } else if (args[i].equals("--think-ms"))
+                {
+                    thinkMillis = Double.parseDouble(value);
+                } else if (args[i].equals("--mode"))
+                {
+                    mode = Mode.valueOf(value.toUpperCase(Locale.ROOT));
+                } else if (args[i].equals("--mix"))
+                {
+                    mix = Arrays.stream(value.split(","))
+                                .mapToInt(weight -> Integer.parseInt(weight.trim()))
+                                .toArray();
+                } else if (args[i].equals("--seed"))
+                {
+                    seed = Long.parseLong(value);
+                } else
+                {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            } catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value, e);
+            }
+        }
+        return new DeviceLoadGenerator(users, Duration.ofSeconds(seconds), devices, thinkMillis, mix, mode, seed);
+    }
+
+    /**
+     * Creates the devices, runs every user until the duration has passed, and reports the results.
+     *
+     * @return The results of the run.
+     * @throws InterruptedException If the calling thread is interrupted while the users run.
+     */
+    public Report run() throws InterruptedException
+    {
+        final Target target = new Target(mode, devicesPerType);
+        final Operation[] operations = Operation.values();
+        final LatencyHistogram[] latencies = new LatencyHistogram[operations.length];
+        final LongAdder[] errors = new LongAdder[operations.length];
+        for (int i = 0; i < operations.length; i++)
+        {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+        final int[] cumulativeMix = new int[mix.length];
+        int total = 0;
+        for (int i = 0; i < mix.length; i++)
+        {
+            total += mix[i];
+            cumulativeMix[i] = total;
+        }
+
+        final long thinkNanos = (long) (thinkMillis * 1_000_000.0);
+        final long start = System.nanoTime();
+        final long deadline = start + duration.toNanos();
+        final SplittableRandom seeds = new SplittableRandom(seed);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+        {
+            for (int user = 0; user < users; user++)
+            {
+                final SplittableRandom random = seeds.split();
+                executor.execute(() -> simulateUser(target, random, cumulativeMix, thinkNanos, deadline,
+                        latencies, errors));
+                if (Thread.interrupted())
+                {
+                    executor.shutdownNow();
+                    throw new InterruptedException();
+                }
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        return new Report(mode, users, elapsed, latencies, errors);
+    }
+
+    // Runs one user's operations until the deadline.
+    private static void simulateUser(final Target target,
+                                     final SplittableRandom random,
+                                     final int[] cumulativeMix,
+                                     final long thinkNanos,
+                                     final long deadline,
+                                     final LatencyHistogram[] latencies,
+                                     final LongAdder[] errors)
+    {
+        final int total = cumulativeMix[cumulativeMix.length - 1];
+        while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted())
+        {
+            final int roll = random.nextInt(total);
+            int operation = 0;
+            while (roll >= cumulativeMix[operation])
+            {
+                operation++;
+            }
+
+            final long start = System.nanoTime();
+            try
+            {
+                target.apply(operation, random);
+            } catch (IllegalArgumentException e)
+            {
+                errors[operation].increment();
+            }
+            latencies[operation].record(System.nanoTime() - start);
+
+            if (thinkNanos > 0)
+            {
+                LockSupport.parkNanos((long) (-Math.log(1.0 - random.nextDouble()) * thinkNanos));
+            }
+        }
+    }
+
+    /**
+     * The operations a simulated user performs.
+     */
+    public enum Operation
+    {
+        /**
+         * {@link IPod#addSong()}.
+         */
+        ADD_SONG,
+
+        /**
+         * {@link IPod#delSong()}.
+         */
+        DEL_SONG,
+
+        /**
+         * {@link IPhone#addPhonePlanMinutes(double)} with up to 120 minutes.
+         */
+        TOP_UP,
+
+        /**
+         * {@link IPhone#removePhonePlanMinutes(double)} with up to 60 minutes, rejected when it
+         * would overdraw the plan.
+         */
+        DEDUCTION,
+
+        /**
+         * {@link IPhone#changeCarrier(String)}.
+         */
+        CARRIER_CHANGE,
+
+        /**
+         * {@link IPad#setOperatingSystemVersion(String)}.
+         */
+        OS_UPGRADE
+    }
+
+    /**
+     * How the simulated users share the devices.
+     */
+    public enum Mode
+    {
+        /**
+         * Mutators are called with no coordination, as the model allows, so concurrent updates
+         * of the same device may be lost.
+         */
+        PLAIN,
+
+        /**
+         * Each mutator is called while holding the device's monitor.
+         */
+        LOCKED,
+
+        /**
+         * Phone minutes are kept in a {@link MinuteLedger} and updated without locks;
+         * other mutators hold the device's monitor.
+         */
+        LEDGER
+    }
+
+    /**
+     * The results of one run.
+     */
+    public static final class Report
+    {
+        private final Mode mode;
+        private final int users;
+        private final long elapsedNanos;
+        private final long[] operations;
+        private final long[] errors;
+        private final double[] meanNanos;
+        private final long[][] percentileNanos;
+        private final long[] maxNanos;
+
+        private Report(final Mode mode,
+                       final int users,
+                       final long elapsedNanos,
+                       final LatencyHistogram[] latencies,
+                       final LongAdder[] errorCounts)
+        {
+            this.mode = mode;
+            this.users = users;
+            this.elapsedNanos = elapsedNanos;
+            operations = new long[latencies.length];
+            errors = new long[latencies.length];
+            meanNanos = new double[latencies.length];
+            percentileNanos = new long[latencies.length][REPORTED_PERCENTILES.length];
+            maxNanos = new long[latencies.length];
+            for (int i = 0; i < latencies.length; i++)
+            {
+                operations[i] = latencies[i].count();
+                errors[i] = errorCounts[i].sum();
+                meanNanos[i] = latencies[i].meanNanos();
+                for (int p = 0; p < REPORTED_PERCENTILES.length; p++)
+                {
+                    percentileNanos[i][p] = latencies[i].percentile(REPORTED_PERCENTILES[p]);
+                }
+                maxNanos[i] = latencies[i].maxNanos();
+            }
+        }
+
+        /**
+         * @return the number of operations of every kind completed, including rejected ones.
+         */
+        public long operations()
+        {
+            return Arrays.stream(operations).sum();
+        }
+
+        /**
+         * @param operation The kind of operation.
+         * @return the number of operations of that kind completed, including rejected ones.
+         */
+        public long operations(final Operation operation)
+        {
+            return operations[operation.ordinal()];
+        }
+
+        /**
+         * @return the number of operations the model rejected.
+         */
+        public long errors()
+        {
+            return Arrays.stream(errors).sum();
+        }
+
+        /**
+         * @param operation The kind of operation.
+         * @return the number of operations of that kind the model rejected.
+         */
+        public long errors(final Operation operation)
+        {
+            return errors[operation.ordinal()];
+        }
+
+        /**
+         * @return the operations completed per second over the whole run.
+         */
+        public double throughput()
+        {
+            return operations() * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        /**
+         * @param operation The kind of operation.
+         * @return the 99th percentile latency of that kind of operation, in nanoseconds.
+         */
+        public long p99Nanos(final Operation operation)
+        {
+            return percentileNanos[operation.ordinal()][2];
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT,
+                    "%s mode, %,d users, %.1f s: %,d operations, %,.0f ops/s, %,d rejected%n",
+                    mode, users, elapsedNanos / 1.0e9, operations(), throughput(), errors()));
+            report.append(String.format(Locale.ROOT, "%-15s %14s %10s %10s %10s %10s %10s %10s %12s%n",
+                    "operation", "count", "rejected", "mean ns", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "max ns"));
+            for (final Operation operation : Operation.values())
+            {
+                final int i = operation.ordinal();
+                report.append(String.format(Locale.ROOT, "%-15s %,14d %,10d %,10.0f %,10d %,10d %,10d %,10d %,12d%n",
+                        operation, operations[i], errors[i], meanNanos[i], percentileNanos[i][0],
+                        percentileNanos[i][1], percentileNanos[i][2], percentileNanos[i][3], maxNanos[i]));
+            }
+            return report.toString();
+        }
+    }
+
+    /*
+     * The devices the users share, and how each operation is applied to them in the chosen mode.
+     */
+    private static final class Target
+    {
+        private final Mode mode;
+        private final IPod[] iPods;
+        private final IPhone[] phones;
+        private final IPad[] iPads;
+        private final int hotDevices;
+
+        private Target(final Mode mode,
+                       final int devicesPerType)
+        {
+            this.mode = mode;
+            iPods = new IPod[devicesPerType];
+            phones = new IPhone[devicesPerType];
+            iPads = new IPad[devicesPerType];
+            final MinuteLedger ledger = mode == Mode.LEDGER ? new MinuteLedger(devicesPerType) : null;
+            for (int i = 0; i < devicesPerType; i++)
+            {
+                iPods[i] = new IPod(100, 80.0);
+                phones[i] = ledger == null ? new IPhone(INITIAL_MINUTES, CARRIERS[i % CARRIERS.length])
+                        : ledger.openIPhone(INITIAL_MINUTES, CARRIERS[i % CARRIERS.length]);
+                iPads[i] = new IPad(i % 2 == 0, VERSIONS[i % VERSIONS.length]);
+            }
+            hotDevices = Math.max(1, devicesPerType * HOT_PERCENT / 100);
+        }
+
+        // Applies one operation to a device picked with a hot-spot skew.
+        private void apply(final int operation,
+                           final SplittableRandom random)
+        {
+            final int index = pick(random);
+            if (operation == Operation.ADD_SONG.ordinal() || operation == Operation.DEL_SONG.ordinal())
+            {
+                final IPod iPod = iPods[index];
+                if (mode == Mode.PLAIN)
+                {
+                    songs(iPod, operation);
+                } else
+                {
+                    synchronized (iPod)
+                    {
+                        songs(iPod, operation);
+                    }
+                }
+            } else if (operation == Operation.TOP_UP.ordinal() || operation == Operation.DEDUCTION.ordinal())
+            {
+                final IPhone phone = phones[index];
+                final double minutes = 1.0 + random.nextDouble() * ((operation == Operation.TOP_UP.ordinal()
+                        ? MAX_TOP_UP_MINUTES : MAX_DEDUCTION_MINUTES) - 1.0);
+                if (mode == Mode.LOCKED)
+                {
+                    synchronized (phone)
+                    {
+                        minutes(phone, operation, minutes);
+                    }
+                } else
+                {
+                    minutes(phone, operation, minutes);
+                }
+            } else if (operation == Operation.CARRIER_CHANGE.ordinal())
+            {
+                final IPhone phone = phones[index];
+                final String carrier = CARRIERS[random.nextInt(CARRIERS.length)];
+                if (mode == Mode.PLAIN)
+                {
+                    phone.changeCarrier(carrier);
+                } else
+                {
+                    synchronized (phone)
+                    {
+                        phone.changeCarrier(carrier);
+                    }
+                }
+            } else
+            {
+                final IPad iPad = iPads[index];
+                final String version = VERSIONS[random.nextInt(VERSIONS.length)];
+                if (mode == Mode.PLAIN)
+                {
+                    iPad.setOperatingSystemVersion(version);
+                } else
+                {
+                    synchronized (iPad)
+                    {
+                        iPad.setOperatingSystemVersion(version);
+                    }
+                }
+            }
+        }
+
+        // Picks a device, sending most operations to the hot devices at the front.
+        private int pick(final SplittableRandom random)
+        {
+            if (hotDevices == iPods.length || random.nextInt(100) < HOT_OPERATIONS_PERCENT)
+            {
+                return random.nextInt(hotDevices);
+            }
+            return hotDevices + random.nextInt(iPods.length - hotDevices);
+        }
+
+        // Adds or deletes a song.
+        private static void songs(final IPod iPod,
+                                  final int operation)
+        {
+            if (operation == Operation.ADD_SONG.ordinal())
+            {
+                iPod.addSong();
+            } else
+            {
+                iPod.delSong();
+            }
+        }
+
+        // Tops up or deducts minutes.
+        private static void minutes(final IPhone phone,
+                                    final int operation,
+                                    final double minutes)
+        {
+            if (operation == Operation.TOP_UP.ordinal())
+            {
+                phone.addPhonePlanMinutes(minutes);
+            } else
+            {
+                phone.removePhonePlanMinutes(minutes);
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Built-in instrumentation of the device model: how often each validation rule rejects its input,
+ * how often each mutator is called, and how long bulk operations take.
+ * <p>
+ * Instrumentation is off unless the JVM is started with {@code -Ddevices.metrics=true}.
+ * The switch is read once into {@link #ENABLED}, a constant the JIT compiler folds into every call
+ * site, so with instrumentation off the calls compile away and cost nothing measurable.
+ * <p>
+ * When on, counts are kept in {@link LongAdder}s, which spread contended updates over several
+ * cells instead of fighting over one, and bulk operation latencies in log-linear histograms.
+ * Rejections and bulk operations are also emitted as JFR events in the {@code Devices} category,
+ * which cost nothing unless a recording enables them.
+ * {@link #writeSnapshot(Path)} writes everything collected so far as a JSON file.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceMetrics
+{
+    /**
+     * Whether instrumentation is on, set by the {@code devices.metrics} system property.
+     */
+    public static final boolean ENABLED;
+
+    // Constants
+    private static final LongAdder[] REJECTIONS;
+    private static final LongAdder[] MUTATIONS;
+    private static final LatencyHistogram[] LATENCIES;
+
+    static
+    {
+        ENABLED = Boolean.getBoolean("devices.metrics");
+
+        REJECTIONS = new LongAdder[Rule.values().length];
+        for (int i = 0; i < REJECTIONS.length; i++)
+        {
+            REJECTIONS[i] = new LongAdder();
+        }
+        MUTATIONS = new LongAdder[Mutation.values().length];
+        for (int i = 0; i < MUTATIONS.length; i++)
+        {
+            MUTATIONS[i] = new LongAdder();
+        }
+        LATENCIES = new LatencyHistogram[BulkOperation.values().length];
+        for (int i = 0; i < LATENCIES.length; i++)
+        {
+            LATENCIES[i] = new LatencyHistogram();
+        }
+    }
+
+    private DeviceMetrics()
+    {
+    }
+
+    /**
+     * Returns how often a validation rule has rejected its input.
+     *
+     * @param rule The rule.
+     * @return The number of rejections, or 0 if instrumentation is off.
+     */
+    public static long rejections(final Rule rule)
+    {
+        return REJECTIONS[rule.ordinal()].sum();
+    }
+
+    /**
+     * Returns how often a mutator has been called.
+     *
+     * @param mutation The mutator.
+     * @return The number of calls, or 0 if instrumentation is off.
+     */
+    public static long mutations(final Mutation mutation)
+    {
+        return MUTATIONS[mutation.ordinal()].sum();
+    }
+
+    /**
+     * Returns how often a bulk operation has completed.
+     *
+     * @param operation The operation.
+     * @return The number of completed operations, or 0 if instrumentation is off.
+     */
+    public static long completions(final BulkOperation operation)
+    {
+        return LATENCIES[operation.ordinal()].count();
+    }
+
+    /**
+     * Estimates a percentile of a bulk operation's latency. The estimate is the upper bound of the
+     * histogram bucket holding the percentile, so it is at most a quarter above the true value.
+     *
+     * @param operation  The operation.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency in nanoseconds, or 0 if the operation has not completed yet.
+     * @throws IllegalArgumentException If the percentile is not between 0 and 100.
+     */
+    public static long latencyNanos(final BulkOperation operation,
+                                    final double percentile)
+    {
+        return LATENCIES[operation.ordinal()].percentile(percentile);
+    }
+
+    /**
+     * Clears every count and histogram.
+     */
+    public static void reset()
+    {
+        for (final LongAdder adder : REJECTIONS)
+        {
+            adder.reset();
+        }
+        for (final LongAdder adder : MUTATIONS)
+        {
+            adder.reset();
+        }
+        for (final LatencyHistogram histogram : LATENCIES)
+        {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Writes every count and latency summary collected so far as a JSON object, replacing the
+     * file if it exists. Counters that are updated while the snapshot is written may be read
+     * just before or just after their update.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeSnapshot(final Path file) throws IOException
+    {
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"enabled\": ").append(ENABLED).append(",\n");
+        json.append("  \"timestampMillis\": ").append(System.currentTimeMillis()).append(",\n");
+
+        json.append("  \"rejections\": {");
+        final Rule[] rules = Rule.values();
+        for (int i = 0; i < rules.length; i++)
+        {
+            json.append(i == 0 ? "\n" : ",\n").append("    \"").append(rules[i].name()).append("\": ")
+                    .append(rejections(rules[i]));
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"mutations\": {");
+        final Mutation[] mutations = Mutation.values();
+        for (int i = 0; i < mutations.length; i++)
+        {
+            json.append(i == 0 ? "\n" : ",\n").append("    \"").append(mutations[i].name()).append("\": ")
+                    .append(mutations(mutations[i]));
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"bulkOperations\": {");
+        final BulkOperation[] operations = BulkOperation.values();
+        for (int i = 0; i < operations.length; i++)
+        {
+            json.append(i == 0 ? "\n" : ",\n").append("    \"").append(operations[i].name()).append("\": ");
+            LATENCIES[operations[i].ordinal()].appendJson(json);
+        }
+        json.append("\n  }\n}\n");
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+    }
+
+    // Returns the time a bulk operation started, or 0 without reading the clock if instrumentation is off.
+    static long start()
+    {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    // Counts a rejection and emits it as a JFR event.
+    static void rejected(final Rule rule,
+                         final String message)
+    {
+        if (ENABLED)
+        {
+            REJECTIONS[rule.ordinal()].increment();
+            final RejectionEvent event = new RejectionEvent();
+            if (event.isEnabled())
+            {
+                event.rule = rule.name();
+                event.message = message;
+                event.commit();
+            }
+        }
+    }
+
+    // Counts a call to a mutator.
+    static void mutated(final Mutation mutation)
+    {
+        if (ENABLED)
+        {
+            MUTATIONS[mutation.ordinal()].increment();
+        }
+    }
+
+    // Records the latency of a bulk operation that started at the given time, and emits it as a JFR event.
+    static void completed(final BulkOperation operation,
+                          final long startNanos,
+                          final long items)
+    {
+        if (ENABLED)
+        {
+            final long elapsed = System.nanoTime() - startNanos;
+            LATENCIES[operation.ordinal()].record(elapsed);
+            final BulkOperationEvent event = new BulkOperationEvent();
+            if (event.isEnabled())
+            {
+                event.operation = operation.name();
+                event.items = items;
+                event.elapsed = elapsed;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * The validation rules whose rejections are counted.
+     */
+    public enum Rule
+    {
+        /**
+         * A phone's remaining minutes were below the minimum.
+         */
+        PHONE_PLAN_MINUTES_REMAINING,
+
+        /**
+         * A number of minutes to add was negative.
+         */
+        MINUTES_TO_ADD,
+
+        /**
+         * A number of minutes to remove was negative.
+         */
+        MINUTES_TO_REMOVE,
+
+        /**
+         * More minutes were removed than a phone had left.
+         */
+        OVERDRAFT,
+
+        /**
+         * A carrier was missing.
+         */
+        CARRIER,
+
+        /**
+         * An iPhone 16's memory was below the minimum.
+         */
+        MEMORY_GB,
+
+        /**
+         * An operating system version was missing.
+         */
+        OPERATING_SYSTEM_VERSION,
+
+        /**
+         * An iPod's maximum volume was outside the safe range.
+         */
+        MAX_DECIBEL_LEVEL,
+
+        /**
+         * A row of imported input could not be parsed, such as one with a field that is not a number.
+         */
+        ROW_FORMAT
+    }
+
+    /**
+     * The mutators whose calls are counted.
+     */
+    public enum Mutation
+    {
+        /**
+         * {@link IPhone#addPhonePlanMinutes(double)}.
+         */
+        ADD_PHONE_PLAN_MINUTES,
+
+        /**
+         * {@link IPhone#removePhonePlanMinutes(double)}.
+         */
+        REMOVE_PHONE_PLAN_MINUTES,
+
+        /**
+         * {@link IPhone#changeCarrier(String)}.
+         */
+        CHANGE_CARRIER,
+
+        /**
+         * {@link IPhone16#setHighResCamera(boolean)}.
+         */
+        SET_HIGH_RES_CAMERA,
+
+        /**
+         * {@link IPhone16#setMemoryGB(int)}.
+         */
+        SET_MEMORY_GB,
+
+        /**
+         * {@link IPad#toggleHasCase()}.
+         */
+        TOGGLE_HAS_CASE,
+
+        /**
+         * {@link IPad#setOperatingSystemVersion(String)}.
+         */
+        SET_OPERATING_SYSTEM_VERSION,
+
+        /**
+         * {@link IPod#setNumOfStoredSongs(int)}.
+         */
+        SET_NUM_OF_STORED_SONGS,
+
+        /**
+         * {@link IPod#addSong()}.
+         */
+        ADD_SONG,
+
+        /**
+         * {@link IPod#delSong()}.
+         */
+        DEL_SONG
+    }
+
+    /**
+     * The bulk operations whose latencies are recorded.
+     */
+    public enum BulkOperation
+    {
+        /**
+         * {@link DeviceImporter#importCsv(Path, DeviceFleet)}.
+         */
+        IMPORT_CSV,
+
+        /**
+         * Writing a {@link DeviceSnapshot}.
+         */
+        SNAPSHOT_WRITE,
+
+        /**
+         * {@link DeviceSnapshot#loadInto(DeviceFleet)}.
+         */
+        SNAPSHOT_LOAD,
+
+        /**
+         * Any aggregation of a {@link DeviceQuery}.
+         */
+        QUERY,
+
+        /**
+         * {@link MinuteLedger#removeBatch(int[], double[])} and its overload for phones.
+         */
+        REMOVE_BATCH,
+
+        /**
+         * {@link DeviceWriteAheadLog#checkpoint()}.
+         */
+        CHECKPOINT,
+
+        /**
+         * Recovering a {@link DeviceWriteAheadLog} when it is opened.
+         */
+        RECOVERY,
+
+        /**
+         * Adding, removing or expiring minutes across a {@link DeviceFleet}'s phones in bulk.
+         */
+        MINUTE_ARITHMETIC,
+
+        /**
+         * {@link DeviceDeduplicator#finish}, from the first spilled partition to the last group.
+         */
+        DEDUPLICATION,
+
+        /**
+         * {@link CarrierAggregates#reconcile(Iterable)}.
+         */
+        RECONCILIATION,
+
+        /**
+         * {@link OperatingSystemVersionIndex#upgrade(String, String, String)}.
+         */
+        VERSION_UPGRADE,
+
+        /**
+         * Validating a batch of device input with {@link DeviceBatchValidator}.
+         */
+        BATCH_VALIDATION
+    }
+
+    /*
+     * JFR event for a rejected validation rule.
+     */
+    @Name("devices.ValidationRejected")
+    @Label("Validation Rejected")
+    @Category("Devices")
+    @Description("A device validation rule rejected its input.")
+    private static final class RejectionEvent extends Event
+    {
+        @Label("Rule")
+        private String rule;
+
+        @Label("Message")
+        private String message;
+    }
+
+    /*
+     * JFR event for a completed bulk operation.
+     */
+    @Name("devices.BulkOperation")
+    @Label("Bulk Operation")
+    @Category("Devices")
+    @Description("A bulk operation over many devices completed.")
+    private static final class BulkOperationEvent extends Event
+    {
+        @Label("Operation")
+        private String operation;
+
+        @Label("Items")
+        private long items;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        private long elapsed;
+    }
+}
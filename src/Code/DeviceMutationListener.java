@@ -0,0 +1,108 @@
+/**
+ * Receives the changes made to devices through their mutators.
+ * Listeners are registered with {@link DeviceListeners} and are called on the thread that made
+ * the change, right after it was made. Every method does nothing by default, so a listener only
+ * overrides the changes it cares about.
+ * <p>
+ * The device passed to a listener may be a flyweight view, such as one from a {@link DeviceFleet},
+ * which is reused for other devices afterwards, so a listener must not keep it.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public interface DeviceMutationListener
+{
+    /**
+     * Called after minutes were added to or removed from a phone plan.
+     * When several threads change the same phone at once, the calls may arrive in a different
+     * order than the changes, so a listener that needs the latest balance should read it again.
+     *
+     * @param phone      The phone that changed.
+     * @param oldMinutes The minutes remaining before the change.
+     * @param newMinutes The minutes remaining after the change.
+     */
+    default void phonePlanMinutesChanged(final IPhone phone,
+                                         final double oldMinutes,
+                                         final double newMinutes)
+    {
+    }
+
+    /**
+     * Called after a phone changed carrier.
+     *
+     * @param phone      The phone that changed.
+     * @param oldCarrier The carrier before the change.
+     * @param newCarrier The carrier after the change.
+     */
+    default void carrierChanged(final IPhone phone,
+                                final String oldCarrier,
+                                final String newCarrier)
+    {
+    }
+
+    /**
+     * Called after the camera of an iPhone 16 was set.
+     *
+     * @param phone            The phone that changed.
+     * @param oldHighResCamera Whether the phone had a high resolution camera before the change.
+     * @param newHighResCamera Whether the phone has a high resolution camera after the change.
+     */
+    default void highResCameraChanged(final IPhone16 phone,
+                                      final boolean oldHighResCamera,
+                                      final boolean newHighResCamera)
+    {
+    }
+
+    /**
+     * Called after the memory of an iPhone 16 was set.
+     *
+     * @param phone       The phone that changed.
+     * @param oldMemoryGB The memory in GB before the change.
+     * @param newMemoryGB The memory in GB after the change.
+     */
+    default void memoryGBChanged(final IPhone16 phone,
+                                 final int oldMemoryGB,
+                                 final int newMemoryGB)
+    {
+    }
+
+    /**
+     * Called after an iPad's case was toggled.
+     *
+     * @param iPad        The iPad that changed.
+     * @param oldIPadCase Whether the iPad had a case before the change.
+     * @param newIPadCase Whether the iPad has a case after the change.
+     */
+    default void iPadCaseChanged(final IPad iPad,
+                                 final boolean oldIPadCase,
+                                 final boolean newIPadCase)
+    {
+    }
+
+    /**
+     * Called after an iPad's operating system version was set.
+     *
+     * @param iPad       The iPad that changed.
+     * @param oldVersion The operating system version before the change.
+     * @param newVersion The operating system version after the change.
+     */
+    default void operatingSystemVersionChanged(final IPad iPad,
+                                               final String oldVersion,
+                                               final String newVersion)
+    {
+    }
+
+    /**
+     * Called after the number of songs stored on an iPod changed.
+     *
+     * @param iPod     The iPod that changed.
+     * @param oldSongs The number of stored songs before the change.
+     * @param newSongs The number of stored songs after the change.
+     */
+    default void numOfStoredSongsChanged(final IPod iPod,
+                                         final int oldSongs,
+                                         final int newSongs)
+    {
+    }
+}
@@ -0,0 +1,643 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * A parallel query over the devices of a list or a {@link DeviceFleet}.
+ * <p>
+ * A query is built from a source, narrowed with {@link #filter}, and finished with one of the
+ * aggregates: {@link #count()}, {@link #stats} for the count, sum, minimum, maximum and average of a
+ * value, {@link #groupBy} for the same statistics per group, or {@link #countBy} for a histogram.
+ * For example, the minutes per carrier of a fleet's iPhones are
+ * {@code DeviceQuery.iPhones(fleet).groupBy(DeviceQuery.BY_CARRIER, IPhone::getPhonePlanMinutesRemaining)}.
+ * <p>
+ * Aggregates split the devices into ranges that are summed on a {@link ForkJoinPool} and then
+ * merged. Values and group keys are primitive all the way through, so nothing is boxed per device.
+ * Fleet queries read the columns through one flyweight view per task and create no objects at all.
+ * Queries are immutable and can be run any number of times, but the devices must not change
+ * while a query runs.
+ *
+ * @param <T> The type of device the query runs over.
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceQuery<T extends IDevice>
+{
+    /**
+     * Groups phones by the {@link StringDictionary#CARRIERS} code of their carrier.
+     * The carrier of a group is {@code StringDictionary.CARRIERS.decode(key)}.
+     */
+    public static final ToIntFunction<IPhone> BY_CARRIER;
+
+    // Constants
+    private static final int MIN_RANGE_SIZE;
+    private static final int RANGES_PER_THREAD;
+
+    static
+    {
+        BY_CARRIER = IPhone::carrierCode;
+        MIN_RANGE_SIZE = 4_096;
+        RANGES_PER_THREAD = 4;
+    }
+
+    // Instance Variables
+    private final int size;
+    private final Source<T> source;
+    private final Predicate<? super T> filter;
+    private final ForkJoinPool pool;
+
+    private DeviceQuery(final int size,
+                        final Source<T> source,
+                        final Predicate<? super T> filter,
+                        final ForkJoinPool pool)
+    {
+        this.size = size;
+        this.source = source;
+        this.filter = filter;
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a query over the devices of a list that are instances of the given type.
+     * A query for {@link IPhone}s therefore also sees {@link IPhone16}s.
+     *
+     * @param devices The devices to query.
+     * @param type    The type of device to query.
+     * @param <T>     The type of device to query.
+     * @return The query.
+     * @throws IllegalArgumentException If the list or type is {@code null}.
+     */
+    public static <T extends IDevice> DeviceQuery<T> of(final List<? extends IDevice> devices,
+                                                         final Class<T> type)
+    {
+        if (devices == null || type == null)
+        {
+            throw new IllegalArgumentException("Devices and type cannot be null.");
+        }
+        return new DeviceQuery<>(devices.size(), () -> index ->
+        {
+            final IDevice device = devices.get(index);
+            return type.isInstance(device) ? type.cast(device) : null;
+        }, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a query over the {@link IPhone}s of a fleet. The fleet's {@link IPhone16}s are not included.
+     *
+     * @param fleet The fleet to query.
+     * @return The query.
+     */
+    public static DeviceQuery<IPhone> iPhones(final DeviceFleet fleet)
+    {
+        return new DeviceQuery<>(fleet.iPhoneCount(), () ->
+        {
+            final DeviceFleet.IPhoneView view = fleet.iPhone(0);
+            return index ->
+            {
+                view.moveTo(index);
+                return view;
+            };
+        }, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a query over the {@link IPhone16}s of a fleet.
+     *
+     * @param fleet The fleet to query.
+     * @return The query.
+     */
+    public static DeviceQuery<IPhone16> iPhone16s(final DeviceFleet fleet)
+    {
+        return new DeviceQuery<>(fleet.iPhone16Count(), () ->
+        {
+            final DeviceFleet.IPhone16View view = fleet.iPhone16(0);
+            return index ->
+            {
+                view.moveTo(index);
+                return view;
+            };
+        }, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a query over the {@link IPad}s of a fleet.
+     *
+     * @param fleet The fleet to query.
+     * @return The query.
+     */
+    public static DeviceQuery<IPad> iPads(final DeviceFleet fleet)
+    {
+        return new DeviceQuery<>(fleet.iPadCount(), () ->
+        {
+            final DeviceFleet.IPadView view = fleet.iPad(0);
+            return index ->
+            {
+                view.moveTo(index);
+                return view;
+            };
+        }, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a query over the {@link IPod}s of a fleet.
+     *
+     * @param fleet The fleet to query.
+     * @return The query.
+     */
+    public static DeviceQuery<IPod> iPods(final DeviceFleet fleet)
+    {
+        return new DeviceQuery<>(fleet.iPodCount(), () ->
+        {
+            final DeviceFleet.IPodView view = fleet.iPod(0);
+            return index ->
+            {
+                view.moveTo(index);
+                return view;
+            };
+        }, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns a query that only sees the devices matching a condition, as well as any earlier filters.
+     * Devices from a fleet are views that are reused, so the condition must not keep them.
+     *
+     * @param condition The condition devices must match.
+     * @return The narrowed query.
+     * @throws IllegalArgumentException If the condition is {@code null}.
+     */
+    public DeviceQuery<T> filter(final Predicate<? super T> condition)
+    {
+        if (condition == null)
+        {
+            throw new IllegalArgumentException("Condition cannot be null.");
+        }
+        final Predicate<? super T> combined;
+        if (filter == null)
+        {
+            combined = condition;
+        } else
+        {
+            final Predicate<? super T> previous = filter;
+            combined = (T device) -> previous.test(device) && condition.test(device);
+        }
+        return new DeviceQuery<>(size, source, combined, pool);
+    }
+
+    /**
+     * Returns the same query run on another pool.
+     *
+     * @param newPool The pool to run on.
+     * @return The query.
+     * @throws IllegalArgumentException If the pool is {@code null}.
+     */
+    public DeviceQuery<T> on(final ForkJoinPool newPool)
+    {
+        if (newPool == null)
+        {
+            throw new IllegalArgumentException("Pool cannot be null.");
+        }
+        return new DeviceQuery<>(size, source, filter, newPool);
+    }
+
+    /**
+     * @return the number of devices that pass the filters.
+     */
+    public long count()
+    {
+        return run(new Aggregator<T, DoubleStats>()
+        {
+            @Override
+            public DoubleStats create()
+            {
+                return new DoubleStats();
+            }
+
+            @Override
+            public void accept(final DoubleStats stats,
+                               final T device)
+            {
+                stats.add(0.0);
+            }
+
+            @Override
+            public void merge(final DoubleStats into,
+                              final DoubleStats from)
+            {
+                into.merge(from);
+            }
+        }).count();
+    }
+
+    /**
+     * Computes statistics of a value over the devices that pass the filters.
+     *
+     * @param value The value of a device.
+     * @return The count, sum, minimum, maximum and average of the value.
+     * @throws IllegalArgumentException If the value function is {@code null}.
+     */
+    public DoubleStats stats(final ToDoubleFunction<? super T> value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Value cannot be null.");
+        }
+        return run(new Aggregator<T, DoubleStats>()
+        {
+            @Override
+            public DoubleStats create()
+            {
+                return new DoubleStats();
+            }
+
+            @Override
+            public void accept(final DoubleStats stats,
+                               final T device)
+            {
+                stats.add(value.applyAsDouble(device));
+            }
+
+            @Override
+            public void merge(final DoubleStats into,
+                              final DoubleStats from)
+            {
+                into.merge(from);
+            }
+        });
+    }
+
+    /**
+     * Computes statistics of a value for each group of the devices that pass the filters.
+     *
+     * @param key   The group of a device.
+     * @param value The value of a device.
+     * @return The statistics of each group.
+     * @throws IllegalArgumentException If the key or value function is {@code null}.
+     */
+    public GroupedStats groupBy(final ToIntFunction<? super T> key,
+                                final ToDoubleFunction<? super T> value)
+    {
+        if (key == null || value == null)
+        {
+            throw new IllegalArgumentException("Key and value cannot be null.");
+        }
+        return run(new Aggregator<T, GroupedStats>()
+        {
+            @Override
+            public GroupedStats create()
+            {
+                return new GroupedStats();
+            }
+
+            @Override
+            public void accept(final GroupedStats groups,
+                               final T device)
+            {
+                groups.group(key.applyAsInt(device)).add(value.applyAsDouble(device));
+            }
+
+            @Override
+            public void merge(final GroupedStats into,
+                              final GroupedStats from)
+            {
+                into.merge(from);
+            }
+        });
+    }
+
+    /**
+     * Counts the devices that pass the filters in each group, such as a histogram bucket.
+     * Only the counts of the returned groups are meaningful.
+     *
+     * @param key The group of a device.
+     * @return The number of devices in each group.
+     * @throws IllegalArgumentException If the key function is {@code null}.
+     */
+    public GroupedStats countBy(final ToIntFunction<? super T> key)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException("Key cannot be null.");
+        }
+        return groupBy(key, device -> 0.0);
+    }
+
+    // Runs an aggregation over every device in parallel.
+    private <A> A run(final Aggregator<T, A> aggregator)
+    {
+        final int threads = Math.max(1, pool.getParallelism());
+        final int rangeSize = Math.max(MIN_RANGE_SIZE, size / (threads * RANGES_PER_THREAD) + 1);
+        final long start = DeviceMetrics.start();
+        final A result = pool.invoke(new RangeTask<>(this, aggregator, 0, size, rangeSize));
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.QUERY, start, size);
+        return result;
+    }
+
+    /*
+     * Creates the per-task readers of a query's devices. A reader returns the device at an
+     * index, or null if the device at that index is not part of the query.
+     */
+    private interface Source<T>
+    {
+        IntFunction<T> reader();
+    }
+
+    /*
+     * Builds one partial result per range and merges the partial results.
+     */
+    private interface Aggregator<T, A>
+    {
+        A create();
+
+        void accept(A result, T device);
+
+        void merge(A into, A from);
+    }
+
+    /*
+     * Splits a range of indexes in half until it is small enough, then aggregates it.
+     */
+    private static final class RangeTask<T extends IDevice, A> extends RecursiveTask<A>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient DeviceQuery<T> query;
+        private final transient Aggregator<T, A> aggregator;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+
+        private RangeTask(final DeviceQuery<T> query,
+                          final Aggregator<T, A> aggregator,
+                          final int from,
+                          final int to,
+                          final int rangeSize)
+        {
+            this.query = query;
+            this.aggregator = aggregator;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+        }
+
+        @Override
+        protected A compute()
+        {
+            if (to - from > rangeSize)
+            {
+                final int middle = (from + to) >>> 1;
+                final RangeTask<T, A> left = new RangeTask<>(query, aggregator, from, middle, rangeSize);
+                final RangeTask<T, A> right = new RangeTask<>(query, aggregator, middle, to, rangeSize);
+                left.fork();
+                final A result = right.compute();
+                aggregator.merge(result, left.join());
+                return result;
+            }
+
+            final A result = aggregator.create();
+            if (to > from)
+            {
+                final IntFunction<T> reader = query.source.reader();
+                final Predicate<? super T> filter = query.filter;
+                for (int i = from; i < to; i++)
+                {
+                    final T device = reader.apply(i);
+                    if (device != null && (filter == null || filter.test(device)))
+                    {
+                        aggregator.accept(result, device);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The count, sum, minimum, maximum and average of a value.
+     */
+    public static final class DoubleStats
+    {
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+
+        private DoubleStats()
+        {
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * @return the number of values.
+         */
+        public long count()
+        {
+            return count;
+        }
+
+        /**
+         * @return the sum of the values, or 0 if there are none.
+         */
+        public double sum()
+        {
+            return sum;
+        }
+
+        /**
+         * @return the smallest value, or positive infinity if there are none.
+         */
+        public double min()
+        {
+            return min;
+        }
+
+        /**
+         * @return the largest value, or negative infinity if there are none.
+         */
+        public double max()
+        {
+            return max;
+        }
+
+        /**
+         * @return the average value, or {@code NaN} if there are none.
+         */
+        public double average()
+        {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+
+        /**
+         * @return the statistics as text.
+         */
+        @Override
+        public String toString()
+        {
+            return "count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max + ", average=" + average();
+        }
+
+        // Adds one value.
+        private void add(final double value)
+        {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        // Adds every value of other statistics.
+        private void merge(final DoubleStats other)
+        {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    /**
+     * {@link DoubleStats} for each of a set of {@code int} group keys.
+     */
+    public static final class GroupedStats
+    {
+        private static final DoubleStats EMPTY;
+
+        static
+        {
+            EMPTY = new DoubleStats();
+        }
+
+        private int[] keys;
+        private DoubleStats[] groups;
+        private int size;
+
+        private GroupedStats()
+        {
+            keys = new int[16];
+            groups = new DoubleStats[16];
+        }
+
+        /**
+         * @return the number of groups.
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * @return the keys of every group, in ascending order.
+         */
+        public int[] keys()
+        {
+            final int[] result = new int[size];
+            int next = 0;
+            for (int i = 0; i < groups.length; i++)
+            {
+                if (groups[i] != null)
+                {
+                    result[next++] = keys[i];
+                }
+            }
+            Arrays.sort(result);
+            return result;
+        }
+
+        /**
+         * Returns the statistics of one group.
+         *
+         * @param key The key of the group.
+         * @return The statistics of the group, with a count of 0 if there is no such group.
+         */
+        public DoubleStats get(final int key)
+        {
+            final DoubleStats group = groups[slot(key)];
+            return group == null ? EMPTY : group;
+        }
+
+        /**
+         * @return every group as {@code key: statistics}, one per line, in key order.
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder text = new StringBuilder();
+            for (final int key : keys())
+            {
+                if (text.length() > 0)
+                {
+                    text.append(System.lineSeparator());
+                }
+                text.append(key).append(": ").append(get(key));
+            }
+            return text.toString();
+        }
+
+        // Returns the statistics of a group, creating it the first time the key is seen.
+        private DoubleStats group(final int key)
+        {
+            int slot = slot(key);
+            if (groups[slot] == null)
+            {
+                if (2 * (size + 1) > groups.length)
+                {
+                    rehash();
+                    slot = slot(key);
+                }
+                keys[slot] = key;
+                groups[slot] = new DoubleStats();
+                size++;
+            }
+            return groups[slot];
+        }
+
+        // Adds the groups of other statistics to these.
+        private void merge(final GroupedStats other)
+        {
+            for (int i = 0; i < other.groups.length; i++)
+            {
+                if (other.groups[i] != null)
+                {
+                    group(other.keys[i]).merge(other.groups[i]);
+                }
+            }
+        }
+
+        // Finds the slot of a key, or the empty slot where it would go.
+        private int slot(final int key)
+        {
+            final int mask = groups.length - 1;
+            final int hash = key * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (groups[slot] != null && keys[slot] != key)
+            {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        // Doubles the table.
+        private void rehash()
+        {
+            final int[] oldKeys = keys;
+            final DoubleStats[] oldGroups = groups;
+            keys = new int[oldKeys.length * 2];
+            groups = new DoubleStats[oldGroups.length * 2];
+            for (int i = 0; i < oldGroups.length; i++)
+            {
+                if (oldGroups[i] != null)
+                {
+                    final int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    groups[slot] = oldGroups[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.BitSet;
+
+/**
+ * Hands out registration slots to the indexes, histories and logs that hold a set of devices.
+ * Each holder takes one slot for its lifetime and keeps its state for a device in that slot of the
+ * device itself, so a {@link DeviceMutationListener} can tell whether it holds a device by reading
+ * one field of the device, without a lock or a map lookup, and can skip every device it does not hold.
+ * <p>
+ * A holder must clear its slot on every device it holds before it releases the slot, because
+ * released slots are handed out again.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+final class DeviceRegistrations
+{
+    private static final BitSet SLOTS;
+
+    static
+    {
+        SLOTS = new BitSet();
+    }
+
+    private DeviceRegistrations()
+    {
+    }
+
+    /**
+     * Takes the lowest free slot.
+     *
+     * @return The slot.
+     */
+    static synchronized int acquire()
+    {
+        final int slot = SLOTS.nextClearBit(0);
+        SLOTS.set(slot);
+        return slot;
+    }
+
+    /**
+     * Returns a slot once no device holds state in it.
+     *
+     * @param slot The slot to release.
+     */
+    static synchronized void release(final int slot)
+    {
+        SLOTS.clear(slot);
+    }
+}
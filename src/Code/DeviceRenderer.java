@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Renders device descriptions as UTF-8 bytes into a {@link ByteBuffer}.
+ * A renderer is an {@link Appendable}, so it is passed straight to {@link IDevice#writeTo(Appendable)}
+ * and no strings are built along the way. When the renderer writes to a channel, full buffers are
+ * flushed to the channel; when it wraps a caller's buffer, running out of room is an error.
+ * The {@code dump} methods write a whole fleet, one device per line, through a single buffered
+ * {@link FileChannel}, walking a {@link DeviceFleet} with one reused view per device type.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class DeviceRenderer implements Appendable
+{
+    // Constants
+    private static final int DEFAULT_BUFFER_SIZE;
+    private static final int LINE_BUFFER_SIZE;
+    private static final char REPLACEMENT;
+    private static final ThreadLocal<DeviceRenderer> LINE_RENDERER;
+
+    static
+    {
+        DEFAULT_BUFFER_SIZE = 1 << 20;
+        LINE_BUFFER_SIZE = 256;
+        REPLACEMENT = '?';
+        LINE_RENDERER = ThreadLocal.withInitial(DeviceRenderer::new);
+    }
+
+    // Instance Variables
+    private ByteBuffer buffer;
+    private final WritableByteChannel channel;
+    private final boolean growable;
+    private char pendingHighSurrogate;
+
+    /**
+     * Constructs a {@link DeviceRenderer} that writes into the given buffer.
+     * Appending more than the buffer can hold throws a {@link BufferOverflowException}.
+     *
+     * @param buffer The buffer to write into, starting at its current position.
+     */
+    public DeviceRenderer(final ByteBuffer buffer)
+    {
+        this(buffer, null, false);
+    }
+
+    /**
+     * Constructs a {@link DeviceRenderer} that writes to a channel through a direct buffer.
+     *
+     * @param channel    The channel to write to.
+     * @param bufferSize The size of the buffer in bytes.
+     * @throws IllegalArgumentException If the buffer size is smaller than four bytes.
+     */
+    public DeviceRenderer(final WritableByteChannel channel,
+                          final int bufferSize)
+    {
+        this(allocateDirect(bufferSize), channel, false);
+    }
+
+    // Constructs a renderer whose heap buffer grows to fit whatever is written.
+    private DeviceRenderer()
+    {
+        this(ByteBuffer.allocate(LINE_BUFFER_SIZE), null, true);
+    }
+
+    private DeviceRenderer(final ByteBuffer buffer,
+                           final WritableByteChannel channel,
+                           final boolean growable)
+    {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.growable = growable;
+    }
+
+    /**
+     * Writes the description of a device followed by a line break.
+     *
+     * @param device The device to render.
+     * @return This renderer.
+     * @throws IOException If the channel fails.
+     */
+    public DeviceRenderer render(final IDevice device) throws IOException
+    {
+        device.writeTo(this);
+        return append('\n');
+    }
+
+    @Override
+    public DeviceRenderer append(final CharSequence csq) throws IOException
+    {
+        final CharSequence text = csq == null ? "null" : csq;
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public DeviceRenderer append(final CharSequence csq,
+                                 final int start,
+                                 final int end) throws IOException
+    {
+        final CharSequence text = csq == null ? "null" : csq;
+        for (int i = start; i < end; i++)
+        {
+            append(text.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public DeviceRenderer append(final char c) throws IOException
+    {
+        if (pendingHighSurrogate != 0)
+        {
+            final char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c))
+            {
+                final int codePoint = Character.toCodePoint(high, c);
+                ensureRemaining(4);
+                buffer.put((byte) (0xF0 | (codePoint >>> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >>> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >>> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                return this;
+            }
+            putByte(REPLACEMENT);
+        }
+
+        if (c < 0x80)
+        {
+            putByte(c);
+        } else if (c < 0x800)
+        {
+            ensureRemaining(2);
+            buffer.put((byte) (0xC0 | (c >>> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c))
+        {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c))
+        {
+            putByte(REPLACEMENT);
+        } else
+        {
+            ensureRemaining(3);
+            buffer.put((byte) (0xE0 | (c >>> 12)));
+            buffer.put((byte) (0x80 | ((c >>> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        return this;
+    }
+
+    /**
+     * Writes everything buffered so far to the channel.
+     * Does nothing if this renderer has no channel.
+     *
+     * @throws IOException If the channel fails.
+     */
+    public void flush() throws IOException
+    {
+        if (channel == null)
+        {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Prints the description of a device as one line, taking the stream's lock only once
+     * and reusing a per-thread buffer instead of building a new string.
+     *
+     * @param device The device to print.
+     * @param out    The stream to print to.
+     */
+    public static void printLine(final IDevice device,
+                                 final PrintStream out)
+    {
+        final DeviceRenderer renderer = LINE_RENDERER.get();
+        renderer.buffer.clear();
+        try
+        {
+            device.writeTo(renderer);
+            renderer.append(System.lineSeparator());
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        final ByteBuffer bytes = renderer.buffer;
+        if (StandardCharsets.UTF_8.equals(out.charset()))
+        {
+            out.write(bytes.array(), 0, bytes.position());
+        } else
+        {
+            out.print(new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Writes every device to a file, one description per line, replacing the file if it exists.
+     *
+     * @param devices The devices to write.
+     * @param file    The file to write to.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void dump(final Iterable<? extends IDevice> devices,
+                            final Path file) throws IOException
+    {
+        try (FileChannel channel = openForDump(file))
+        {
+            final DeviceRenderer renderer = new DeviceRenderer(channel, DEFAULT_BUFFER_SIZE);
+            for (final IDevice device : devices)
+            {
+                renderer.render(device);
+            }
+            renderer.flush();
+        }
+    }
+
+    /**
+     * Writes every device of a fleet to a file, one description per line, replacing the file
+     * if it exists. Devices are written by type: iPhones, iPhone 16s, iPads and then iPods.
+     * A single view per type walks the fleet, so nothing is allocated per device.
+     *
+     * @param fleet The fleet to write.
+     * @param file  The file to write to.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void dump(final DeviceFleet fleet,
+                            final Path file) throws IOException
+    {
+        try (FileChannel channel = openForDump(file))
+        {
+            final DeviceRenderer renderer = new DeviceRenderer(channel, DEFAULT_BUFFER_SIZE);
+
+            if (fleet.iPhoneCount() > 0)
+            {
+                final DeviceFleet.IPhoneView view = fleet.iPhone(0);
+                for (int i = 0; i < fleet.iPhoneCount(); i++)
+                {
+                    view.moveTo(i);
+                    renderer.render(view);
+                }
+            }
+            if (fleet.iPhone16Count() > 0)
+            {
+                final DeviceFleet.IPhone16View view = fleet.iPhone16(0);
+                for (int i = 0; i < fleet.iPhone16Count(); i++)
+                {
+                    view.moveTo(i);
+                    renderer.render(view);
+                }
+            }
+            if (fleet.iPadCount() > 0)
+            {
+                final DeviceFleet.IPadView view = fleet.iPad(0);
+                for (int i = 0; i < fleet.iPadCount(); i++)
+                {
+                    view.moveTo(i);
+                    renderer.render(view);
+                }
+            }
+            if (fleet.iPodCount() > 0)
+            {
+                final DeviceFleet.IPodView view = fleet.iPod(0);
+                for (int i = 0; i < fleet.iPodCount(); i++)
+                {
+                    view.moveTo(i);
+                    renderer.render(view);
+                }
+            }
+            renderer.flush();
+        }
+    }
+
+    // Opens a file for a dump, replacing any previous contents.
+    private static FileChannel openForDump(final Path file) throws IOException
+    {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Allocates the direct buffer of a channel renderer.
+    private static ByteBuffer allocateDirect(final int bufferSize)
+    {
+        if (bufferSize < 4)
+        {
+            throw new IllegalArgumentException("Buffer size must be at least 4 bytes.");
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    // Writes one ASCII byte.
+    private void putByte(final char c) throws IOException
+    {
+        ensureRemaining(1);
+        buffer.put((byte) c);
+    }
+
+    // Makes room for the given number of bytes by flushing or growing the buffer.
+    private void ensureRemaining(final int bytes) throws IOException
+    {
+        if (buffer.remaining() >= bytes)
+        {
+            return;
+        }
+        if (channel != null)
+        {
+            flush();
+        } else if (growable)
+        {
+            final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        } else
+        {
+            throw new BufferOverflowException();
+        }
+    }
+}
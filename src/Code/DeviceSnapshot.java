@@ -0,0 +1,568 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary snapshot of a fleet of devices, read back through memory mapping.
+ * <p>
+ * A snapshot file has three sections:
+ * <ul>
+ *     <li>a fixed header holding a magic number, the format version, the record size,
+ *     the record count and the offset of the dictionary;</li>
+ *     <li>one fixed-width record per device: a type tag, a flags byte (camera or case),
+ *     a string or song-count field, the minutes or decibel level, and the memory size;</li>
+ *     <li>a dictionary of the carrier and operating system strings the records refer to.</li>
+ * </ul>
+ * Opening a snapshot maps the file and reads only the header and dictionary, so even a very
+ * large fleet opens almost immediately; a record is decoded only when it is asked for.
+ * The header stores the record size, so later versions can add fields to the end of a record,
+ * and the type tag leaves room for new device types. A reader refuses versions newer than its own.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class DeviceSnapshot implements Closeable
+{
+    /**
+     * Type tag of an {@link IPhone} record.
+     */
+    public static final byte TYPE_IPHONE;
+
+    /**
+     * Type tag of an {@link IPhone16} record.
+     */
+    public static final byte TYPE_IPHONE16;
+
+    /**
+     * Type tag of an {@link IPad} record.
+     */
+    public static final byte TYPE_IPAD;
+
+    /**
+     * Type tag of an {@link IPod} record.
+     */
+    public static final byte TYPE_IPOD;
+
+    /**
+     * The format version written by this class.
+     */
+    public static final int FORMAT_VERSION;
+
+    // Constants
+    private static final int MAGIC;
+    private static final int HEADER_SIZE;
+    private static final int RECORD_SIZE;
+    private static final int FLAG_SET;
+    private static final long MAX_CHUNK_BYTES;
+    private static final int WRITE_BUFFER_SIZE;
+
+    // Field offsets within a record
+    private static final int TYPE_OFFSET;
+    private static final int FLAGS_OFFSET;
+    private static final int CODE_OFFSET;
+    private static final int VALUE_OFFSET;
+    private static final int MEMORY_OFFSET;
+
+    static
+    {
+        TYPE_IPHONE = 1;
+        TYPE_IPHONE16 = 2;
+        TYPE_IPAD = 3;
+        TYPE_IPOD = 4;
+        FORMAT_VERSION = 1;
+
+        MAGIC = 0x44455653;
+        HEADER_SIZE = 64;
+        RECORD_SIZE = 24;
+        FLAG_SET = 1;
+        MAX_CHUNK_BYTES = 1L << 30;
+        WRITE_BUFFER_SIZE = 1 << 20;
+
+        TYPE_OFFSET = 0;
+        FLAGS_OFFSET = 1;
+        CODE_OFFSET = 4;
+        VALUE_OFFSET = 8;
+        MEMORY_OFFSET = 16;
+    }
+
+    // Instance Variables
+    private final FileChannel channel;
+    private final int version;
+    private final int recordSize;
+    private final long recordCount;
+    private final int recordsPerChunk;
+    private final MappedByteBuffer[] chunks;
+    private final String[] dictionary;
+
+    private DeviceSnapshot(final FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+
+        final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != MAGIC)
+        {
+            throw new IOException("Not a device snapshot.");
+        }
+        version = header.getShort(4);
+        if (version < 1 || version > FORMAT_VERSION)
+        {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        recordSize = header.getInt(8);
+        recordCount = header.getLong(16);
+        final long recordsOffset = header.getLong(24);
+        final long dictionaryOffset = header.getLong(32);
+        final int dictionarySize = header.getInt(40);
+        if (recordSize < RECORD_SIZE || recordCount < 0
+                || recordsOffset + recordCount * recordSize > dictionaryOffset
+                || dictionaryOffset > channel.size())
+        {
+            throw new IOException("Corrupt snapshot header.");
+        }
+
+        recordsPerChunk = (int) (MAX_CHUNK_BYTES / recordSize);
+        final int chunkCount = (int) ((recordCount + recordsPerChunk - 1) / recordsPerChunk);
+        chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++)
+        {
+            final long first = (long) i * recordsPerChunk;
+            final long records = Math.min(recordsPerChunk, recordCount - first);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset + first * recordSize,
+                    records * recordSize);
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        final ByteBuffer strings = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset,
+                channel.size() - dictionaryOffset).order(ByteOrder.LITTLE_ENDIAN);
+        dictionary = new String[dictionarySize];
+        for (int i = 0; i < dictionarySize; i++)
+        {
+            final byte[] bytes = new byte[strings.getInt()];
+            strings.get(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Opens a snapshot file for reading.
+     *
+     * @param file The snapshot file.
+     * @return The opened snapshot.
+     * @throws IOException If the file cannot be read or is not a supported snapshot.
+     */
+    public static DeviceSnapshot open(final Path file) throws IOException
+    {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            return new DeviceSnapshot(channel);
+        } catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given devices, replacing the file if it exists. The snapshot is
+     * forced to disk before this returns. If writing fails, the file is deleted.
+     *
+     * @param devices The devices to write, in the order they should be read back.
+     * @param file    The file to write.
+     * @throws IOException              If the file cannot be written.
+     * @throws IllegalArgumentException If a device is of an unsupported type.
+     */
+    public static void write(final Iterable<? extends IDevice> devices,
+                             final Path file) throws IOException
+    {
+        final long start = DeviceMetrics.start();
+        final long written;
+        try (Writer writer = new Writer(file))
+        {
+            for (final IDevice device : devices)
+            {
+                writer.write(device);
+            }
+            writer.finish();
+            written = writer.recordCount;
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.SNAPSHOT_WRITE, start, written);
+    }
+
+    /**
+     * Writes a snapshot of every device in a fleet, replacing the file if it exists.
+     * Devices are written by type: iPhones, iPhone 16s, iPads and then iPods.
+     * The snapshot is forced to disk before this returns. If writing fails, the file is deleted.
+     *
+     * @param fleet The fleet to write.
+     * @param file  The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(final DeviceFleet fleet,
+                             final Path file) throws IOException
+    {
+        final long start = DeviceMetrics.start();
+        final long written;
+        try (Writer writer = new Writer(file))
+        {
+            if (fleet.iPhoneCount() > 0)
+            {
+                final DeviceFleet.IPhoneView view = fleet.iPhone(0);
+                for (int i = 0; i < fleet.iPhoneCount(); i++)
+                {
+                    view.moveTo(i);
+                    writer.write(view);
+                }
+            }
+            if (fleet.iPhone16Count() > 0)
+            {
+                final DeviceFleet.IPhone16View view = fleet.iPhone16(0);
+                for (int i = 0; i < fleet.iPhone16Count(); i++)
+                {
+                    view.moveTo(i);
+                    writer.write(view);
+                }
+            }
+            if (fleet.iPadCount() > 0)
+            {
+                final DeviceFleet.IPadView view = fleet.iPad(0);
+                for (int i = 0; i < fleet.iPadCount(); i++)
+                {
+                    view.moveTo(i);
+                    writer.write(view);
+                }
+            }
+            if (fleet.iPodCount() > 0)
+            {
+                final DeviceFleet.IPodView view = fleet.iPod(0);
+                for (int i = 0; i < fleet.iPodCount(); i++)
+                {
+                    view.moveTo(i);
+                    writer.write(view);
+                }
+            }
+            writer.finish();
+            written = writer.recordCount;
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.SNAPSHOT_WRITE, start, written);
+    }
+
+    /**
+     * @return the format version of this snapshot.
+     */
+    public int version()
+    {
+        return version;
+    }
+
+    /**
+     * @return the number of devices in this snapshot.
+     */
+    public long size()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Returns the type tag of a record without decoding the rest of it.
+     *
+     * @param index The index of the record.
+     * @return One of the {@code TYPE_} constants, or a newer tag this version does not know.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     */
+    public byte typeAt(final long index)
+    {
+        return chunk(index).get(offset(index) + TYPE_OFFSET);
+    }
+
+    /**
+     * Decodes one record into a new device.
+     *
+     * @param index The index of the record.
+     * @return The decoded device.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     * @throws IllegalStateException     If the record has a type this version does not know.
+     */
+    public IDevice device(final long index)
+    {
+        final ByteBuffer chunk = chunk(index);
+        final int offset = offset(index);
+        final byte type = chunk.get(offset + TYPE_OFFSET);
+        final boolean flag = (chunk.get(offset + FLAGS_OFFSET) & FLAG_SET) != 0;
+        final int code = chunk.getInt(offset + CODE_OFFSET);
+        final double value = chunk.getDouble(offset + VALUE_OFFSET);
+
+        if (type == TYPE_IPHONE)
+        {
+            return new IPhone(value, dictionary[code]);
+        } else if (type == TYPE_IPHONE16)
+        {
+            return new IPhone16(value, dictionary[code], flag, chunk.getInt(offset + MEMORY_OFFSET));
+        } else if (type == TYPE_IPAD)
+        {
+            return new IPad(flag, dictionary[code]);
+        } else if (type == TYPE_IPOD)
+        {
+            return new IPod(code, value);
+        }
+        throw new IllegalStateException("Unknown device type " + type + " at record " + index);
+    }
+
+    /**
+     * Decodes every record into a list of devices, in order.
+     *
+     * @return The decoded devices.
+     * @throws IllegalStateException If a record has a type this version does not know,
+     *                               or there are too many records for a list.
+     */
+    public List<IDevice> devices()
+    {
+        if (recordCount > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("Snapshot is too large for a list.");
+        }
+        final List<IDevice> devices = new ArrayList<>((int) recordCount);
+        for (long i = 0; i < recordCount; i++)
+        {
+            devices.add(device(i));
+        }
+        return devices;
+    }
+
+    /**
+     * Copies every record into a fleet without creating a device object per record.
+     *
+     * @param fleet The fleet to add the devices to.
+     * @throws IllegalStateException If a record has a type this version does not know.
+     */
+    public void loadInto(final DeviceFleet fleet)
+    {
+        final long start = DeviceMetrics.start();
+        for (long i = 0; i < recordCount; i++)
+        {
+            final ByteBuffer chunk = chunk(i);
+            final int offset = offset(i);
+            final byte type = chunk.get(offset + TYPE_OFFSET);
+            final boolean flag = (chunk.get(offset + FLAGS_OFFSET) & FLAG_SET) != 0;
+            final int code = chunk.getInt(offset + CODE_OFFSET);
+            final double value = chunk.getDouble(offset + VALUE_OFFSET);
+
+            if (type == TYPE_IPHONE)
+            {
+                fleet.addIPhone(value, dictionary[code]);
+            } else if (type == TYPE_IPHONE16)
+            {
+                fleet.addIPhone16(value, dictionary[code], flag, chunk.getInt(offset + MEMORY_OFFSET));
+            } else if (type == TYPE_IPAD)
+            {
+                fleet.addIPad(flag, dictionary[code]);
+            } else if (type == TYPE_IPOD)
+            {
+                fleet.addIPod(code, value);
+            } else
+            {
+                throw new IllegalStateException("Unknown device type " + type + " at record " + i);
+            }
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.SNAPSHOT_LOAD, start, recordCount);
+    }
+
+    /**
+     * Closes the file. Records must not be read after the snapshot is closed.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    // Returns the mapped chunk holding a record.
+    private ByteBuffer chunk(final long index)
+    {
+        if (index < 0 || index >= recordCount)
+        {
+            throw new IndexOutOfBoundsException("Record " + index + " out of range for " + recordCount);
+        }
+        return chunks[(int) (index / recordsPerChunk)];
+    }
+
+    // Returns the offset of a record within its chunk.
+    private int offset(final long index)
+    {
+        return (int) (index % recordsPerChunk) * recordSize;
+    }
+
+    /*
+     * Streams records to a file through one buffer, collecting the dictionary as it goes.
+     * The header is written last, once the record count and dictionary offset are known and the
+     * rest of the file is on disk, so a file without a valid header never passes for a snapshot.
+     * Closing a writer that was not finished deletes its file.
+     */
+    private static final class Writer implements Closeable
+    {
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final Map<String, Integer> codes;
+        private final List<String> strings;
+        private long recordCount;
+        private boolean finished;
+
+        private Writer(final Path file) throws IOException
+        {
+            this.file = file;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            codes = new HashMap<>();
+            strings = new ArrayList<>();
+            channel.position(HEADER_SIZE);
+        }
+
+        // Writes the record of one device.
+        private void write(final IDevice device) throws IOException
+        {
+            if (buffer.remaining() < RECORD_SIZE)
+            {
+                drain();
+            }
+
+            final int start = buffer.position();
+            if (device instanceof IPhone16)
+            {
+                final IPhone16 iPhone16 = (IPhone16) device;
+                putRecord(TYPE_IPHONE16, iPhone16.hasHighResCamera(), code(iPhone16.getCarrier()),
+                        iPhone16.getPhonePlanMinutesRemaining(), iPhone16.getMemoryGB());
+            } else if (device instanceof IPhone)
+            {
+                final IPhone iPhone = (IPhone) device;
+                putRecord(TYPE_IPHONE, false, code(iPhone.getCarrier()),
+                        iPhone.getPhonePlanMinutesRemaining(), 0);
+            } else if (device instanceof IPad)
+            {
+                final IPad iPad = (IPad) device;
+                putRecord(TYPE_IPAD, iPad.hasIPadCase(), code(iPad.getOperatingSystemVersion()), 0.0, 0);
+            } else if (device instanceof IPod)
+            {
+                final IPod iPod = (IPod) device;
+                putRecord(TYPE_IPOD, false, iPod.getNumOfStoredSongs(), iPod.getMaxVolumeDecibel(), 0);
+            } else
+            {
+                throw new IllegalArgumentException("Unsupported device: " + device);
+            }
+            buffer.position(start + RECORD_SIZE);
+            recordCount++;
+        }
+
+        // Puts the fields of a record at the buffer's position.
+        private void putRecord(final byte type,
+                               final boolean flag,
+                               final int code,
+                               final double value,
+                               final int memoryGB)
+        {
+            final int start = buffer.position();
+            buffer.put(start + TYPE_OFFSET, type);
+            buffer.put(start + FLAGS_OFFSET, (byte) (flag ? FLAG_SET : 0));
+            buffer.putShort(start + FLAGS_OFFSET + 1, (short) 0);
+            buffer.putInt(start + CODE_OFFSET, code);
+            buffer.putDouble(start + VALUE_OFFSET, value);
+            buffer.putInt(start + MEMORY_OFFSET, memoryGB);
+            buffer.putInt(start + MEMORY_OFFSET + Integer.BYTES, 0);
+        }
+
+        // Returns the snapshot's code for a string, adding it to the dictionary if needed.
+        private int code(final String value)
+        {
+            Integer code = codes.get(value);
+            if (code == null)
+            {
+                code = strings.size();
+                codes.put(value, code);
+                strings.add(value);
+            }
+            return code;
+        }
+
+        // Writes the buffered bytes to the file.
+        private void drain() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // Writes the dictionary, forces it and the records to disk, then writes and forces the header.
+        private void finish() throws IOException
+        {
+            drain();
+            final long dictionaryOffset = channel.position();
+            for (final String value : strings)
+            {
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < Integer.BYTES + bytes.length)
+                {
+                    drain();
+                }
+                if (buffer.remaining() < Integer.BYTES + bytes.length)
+                {
+                    channel.write(ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                            .putInt(0, bytes.length));
+                    channel.write(ByteBuffer.wrap(bytes));
+                } else
+                {
+                    buffer.putInt(bytes.length).put(bytes);
+                }
+            }
+            drain();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0, MAGIC);
+            header.putShort(4, (short) FORMAT_VERSION);
+            header.putShort(6, (short) HEADER_SIZE);
+            header.putInt(8, RECORD_SIZE);
+            header.putLong(16, recordCount);
+            header.putLong(24, HEADER_SIZE);
+            header.putLong(32, dictionaryOffset);
+            header.putInt(40, strings.size());
+            channel.force(true);
+            channel.write(header, 0);
+            channel.force(true);
+            finished = true;
+        }
+
+        // Closes the file, and deletes it unless the snapshot was finished.
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                channel.close();
+            } finally
+            {
+                if (!finished)
+                {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Writes the numbers used in device descriptions straight into an {@link Appendable}.
+ * Whole numbers are written digit by digit, and decimals are written with the same digits as
+ * {@link Double#toString(double)} and {@code String.format("%f")} without creating any
+ * intermediate strings or formatter objects for the balances and volume levels devices hold.
+ * Values that need more digits than these shortcuts handle fall back to the JDK formatting.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+final class DeviceText
+{
+    // Constants
+    private static final long[] POWERS_OF_TEN;
+    private static final int MAX_SHORT_DECIMALS;
+    private static final double MIN_PLAIN_DOUBLE;
+    private static final double MAX_PLAIN_DOUBLE;
+
+    static
+    {
+        POWERS_OF_TEN = new long[19];
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+        {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+        }
+        MAX_SHORT_DECIMALS = 8;
+        MIN_PLAIN_DOUBLE = 1.0e-3;
+        MAX_PLAIN_DOUBLE = 1.0e7;
+    }
+
+    private DeviceText()
+    {
+    }
+
+    /**
+     * Writes a whole number in decimal.
+     *
+     * @param out   The destination.
+     * @param value The value to write.
+     * @throws IOException If the destination fails.
+     */
+    static void appendLong(final Appendable out,
+                           final long value) throws IOException
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            out.append("-9223372036854775808");
+            return;
+        }
+
+        long remaining = value;
+        if (remaining < 0)
+        {
+            out.append('-');
+            remaining = -remaining;
+        }
+        appendDigits(out, remaining, digitCount(remaining));
+    }
+
+    /**
+     * Writes a {@code double} exactly as {@link Double#toString(double)} would.
+     *
+     * @param out   The destination.
+     * @param value The value to write.
+     * @throws IOException If the destination fails.
+     */
+    static void appendDouble(final Appendable out,
+                             final double value) throws IOException
+    {
+        final double magnitude = Math.abs(value);
+        if (value == 0.0)
+        {
+            out.append(Double.doubleToRawLongBits(value) == 0L ? "0.0" : "-0.0");
+            return;
+        }
+        if (magnitude < MIN_PLAIN_DOUBLE || magnitude >= MAX_PLAIN_DOUBLE)
+        {
+            out.append(Double.toString(value));
+            return;
+        }
+
+        final int decimals = shortestDecimals(magnitude, MAX_SHORT_DECIMALS);
+        if (decimals < 0)
+        {
+            out.append(Double.toString(value));
+            return;
+        }
+        if (value < 0)
+        {
+            out.append('-');
+        }
+        appendScaled(out, Math.round(magnitude * POWERS_OF_TEN[decimals]), decimals, Math.max(decimals, 1));
+    }
+
+    /**
+     * Writes a {@code double} with a fixed number of decimals, exactly as
+     * {@code String.format(Locale.ROOT, "%.<decimals>f", value)} would.
+     *
+     * @param out      The destination.
+     * @param value    The value to write.
+     * @param decimals The number of digits after the decimal point, at most 8.
+     * @throws IOException If the destination fails.
+     */
+    static void appendFixed(final Appendable out,
+                            final double value,
+                            final int decimals) throws IOException
+    {
+        final double magnitude = Math.abs(value);
+        final int shortest;
+
+        shortest = magnitude < MAX_PLAIN_DOUBLE ? shortestDecimals(magnitude, decimals) : -1;
+        if (shortest < 0)
+        {
+            out.append(String.format(Locale.ROOT, "%." + decimals + "f", value));
+            return;
+        }
+        if (Double.doubleToRawLongBits(value) < 0)
+        {
+            out.append('-');
+        }
+        appendScaled(out, Math.round(magnitude * POWERS_OF_TEN[shortest]), shortest, decimals);
+    }
+
+    /*
+     * Finds the fewest decimals, up to maxDecimals, whose rounded decimal reads back as
+     * exactly the given non-negative value. Dividing two exactly representable numbers is
+     * correctly rounded, so the check agrees with Double.parseDouble. Returns -1 if none do.
+     */
+    private static int shortestDecimals(final double magnitude,
+                                        final int maxDecimals)
+    {
+        for (int decimals = 0; decimals <= maxDecimals; decimals++)
+        {
+            final long scaled = Math.round(magnitude * POWERS_OF_TEN[decimals]);
+            if ((double) scaled / POWERS_OF_TEN[decimals] == magnitude)
+            {
+                return decimals;
+            }
+        }
+        return -1;
+    }
+
+    // Writes scaled / 10^decimals padded with zeros to the given number of decimals.
+    private static void appendScaled(final Appendable out,
+                                     final long scaled,
+                                     final int decimals,
+                                     final int paddedDecimals) throws IOException
+    {
+        final long whole = scaled / POWERS_OF_TEN[decimals];
+        final long fraction = scaled % POWERS_OF_TEN[decimals];
+
+        appendDigits(out, whole, digitCount(whole));
+        if (paddedDecimals == 0)
+        {
+            return;
+        }
+        out.append('.');
+        if (decimals > 0)
+        {
+            appendDigits(out, fraction, decimals);
+        }
+        for (int i = decimals; i < paddedDecimals; i++)
+        {
+            out.append('0');
+        }
+    }
+
+    // Writes a non-negative value as exactly the given number of digits.
+    private static void appendDigits(final Appendable out,
+                                     final long value,
+                                     final int digits) throws IOException
+    {
+        for (int i = digits - 1; i >= 0; i--)
+        {
+            out.append((char) ('0' + (value / POWERS_OF_TEN[i]) % 10));
+        }
+    }
+
+    // Counts the decimal digits of a non-negative value.
+    private static int digitCount(final long value)
+    {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits])
+        {
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,652 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A multi-version store of device state, giving readers a consistent point-in-time view of every
+ * device without taking a lock, while writers keep changing them.
+ * <p>
+ * The store never hands out the objects it holds. It keeps the state of each device in pages of
+ * primitive columns, and every published version is an immutable array of pages. A writer opens a
+ * {@link Batch}, which copies a page the first time it changes a device on it, and
+ * {@link Batch#commit()} publishes the batch as a new version with a single volatile write.
+ * Unchanged pages are shared between versions, so a batch costs the pages it touches rather than
+ * the whole collection. Writers take turns; readers never wait for them.
+ * <p>
+ * {@link #read()} pins the current version in a {@link ReadView}. Every read through a view sees
+ * that version only, so an iPhone 16's memory and camera always come from the same batch.
+ * Each version counts the views pinning it. Once a version has been replaced and its last view
+ * is closed, the pages that only it and older versions used are recycled for later batches,
+ * so a steady stream of small batches allocates almost nothing.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceVersionStore
+{
+    // Constants
+    private static final int PAGE_SHIFT;
+    private static final int PAGE_SIZE;
+    private static final int PAGE_MASK;
+    private static final int SEALED;
+    private static final int MAX_POOLED_PAGES;
+
+    static
+    {
+        PAGE_SHIFT = 10;
+        PAGE_SIZE = 1 << PAGE_SHIFT;
+        PAGE_MASK = PAGE_SIZE - 1;
+        SEALED = -1;
+        MAX_POOLED_PAGES = 64;
+    }
+
+    // Instance Variables
+    private final ReentrantLock writeLock;
+    private volatile Version current;
+
+    // Reclamation state, guarded by the write lock.
+    private final List<Version> replaced;
+    private final ArrayDeque<Page> retired;
+    private final ArrayDeque<Page> free;
+
+    /**
+     * Constructs an empty {@link DeviceVersionStore}, whose first version is 0.
+     */
+    public DeviceVersionStore()
+    {
+        writeLock = new ReentrantLock();
+        current = new Version(0L, new Page[0], 0);
+        replaced = new ArrayList<>();
+        retired = new ArrayDeque<>();
+        free = new ArrayDeque<>();
+    }
+
+    /**
+     * Pins the latest version for reading. The view must be closed once it is no longer needed,
+     * so the pages it holds can be recycled.
+     *
+     * @return A view of the latest version.
+     */
+    public ReadView read()
+    {
+        while (true)
+        {
+            final Version version = current;
+            if (version.pin())
+            {
+                return new ReadView(version);
+            }
+        }
+    }
+
+    /**
+     * Starts a batch of changes, waiting for any other writer's batch to be committed or abandoned.
+     * The batch belongs to the calling thread and must be closed by it.
+     *
+     * @return A batch based on the latest version.
+     */
+    public Batch begin()
+    {
+        writeLock.lock();
+        return new Batch(current);
+    }
+
+    /**
+     * @return the number of the latest version.
+     */
+    public long version()
+    {
+        return current.number;
+    }
+
+    /**
+     * @return the number of devices in the latest version.
+     */
+    public int size()
+    {
+        return current.size;
+    }
+
+    /**
+     * Returns the number of replaced versions still pinned by an open view. Replaced versions
+     * are checked when a batch is committed and whenever this is called.
+     *
+     * @return The number of replaced versions that cannot be reclaimed yet.
+     */
+    public int retainedVersions()
+    {
+        writeLock.lock();
+        try
+        {
+            reclaim();
+            return replaced.size();
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /*
+     * Seals the replaced versions no view pins any more, then recycles the pages retired before
+     * the oldest version still pinned. A page retired by version n is only used by versions older
+     * than n, so it is safe once every pinned version is n or newer. Called with the write lock held.
+     */
+    private void reclaim()
+    {
+        long oldestPinned = current.number;
+        for (int i = replaced.size() - 1; i >= 0; i--)
+        {
+            final Version version = replaced.get(i);
+            if (version.seal())
+            {
+                replaced.remove(i);
+            } else
+            {
+                oldestPinned = Math.min(oldestPinned, version.number);
+            }
+        }
+        while (!retired.isEmpty() && retired.peekFirst().retiredBy <= oldestPinned)
+        {
+            final Page page = retired.pollFirst();
+            if (free.size() < MAX_POOLED_PAGES)
+            {
+                free.addLast(page);
+            }
+        }
+    }
+
+    // Returns a recycled page, or a new one if none is free. Called with the write lock held.
+    private Page allocate()
+    {
+        final Page page = free.pollFirst();
+        return page == null ? new Page() : page;
+    }
+
+    /**
+     * A consistent, read-only view of one version of the store. A view is meant for one reader
+     * thread; reads after it is closed throw {@link IllegalStateException}.
+     * Device types are reported with the {@code TYPE_} constants of {@link DeviceSnapshot}.
+     */
+    public static final class ReadView implements AutoCloseable
+    {
+        private final Version version;
+        private boolean closed;
+
+        private ReadView(final Version version)
+        {
+            this.version = version;
+        }
+
+        /**
+         * @return the number of the version this view reads.
+         */
+        public long version()
+        {
+            return version.number;
+        }
+
+        /**
+         * @return the number of devices in this version.
+         */
+        public int size()
+        {
+            return version.size;
+        }
+
+        /**
+         * Returns the type of a device.
+         *
+         * @param id The id of the device.
+         * @return One of the {@code TYPE_} constants of {@link DeviceSnapshot}.
+         * @throws IndexOutOfBoundsException If no device has the id in this version.
+         */
+        public byte type(final int id)
+        {
+            return page(id).types[id & PAGE_MASK];
+        }
+
+        /**
+         * Builds a new device holding a device's state in this version. The device is a copy,
+         * and changing it does not change the store.
+         *
+         * @param id The id of the device.
+         * @return A copy of the device.
+         * @throws IndexOutOfBoundsException If no device has the id in this version.
+         */
+        public IDevice device(final int id)
+        {
+            final Page page = page(id);
+            final int slot = id & PAGE_MASK;
+            final byte type = page.types[slot];
+
+            if (type == DeviceSnapshot.TYPE_IPHONE)
+            {
+                return new IPhone(page.values[slot], StringDictionary.CARRIERS.decode(page.codes[slot]));
+            } else if (type == DeviceSnapshot.TYPE_IPHONE16)
+            {
+                return new IPhone16(page.values[slot], StringDictionary.CARRIERS.decode(page.codes[slot]),
+                        page.flags[slot], page.memoryGB[slot]);
+            } else if (type == DeviceSnapshot.TYPE_IPAD)
+            {
+                return new IPad(page.flags[slot],
+                                StringDictionary.OPERATING_SYSTEM_VERSIONS.decode(page.codes[slot]));
+            }
+            return new IPod(page.codes[slot], page.values[slot]);
+        }
+
+        /**
+         * @param id The id of an iPhone or iPhone 16.
+         * @return the phone plan minutes remaining in this version.
+         * @throws IllegalArgumentException If the device is not a phone.
+         */
+        public double getPhonePlanMinutesRemaining(final int id)
+        {
+            return page(id, DeviceSnapshot.TYPE_IPHONE, DeviceSnapshot.TYPE_IPHONE16).values[id & PAGE_MASK];
+        }
+
+        /**
+         * @param id The id of an iPhone or iPhone 16.
+         * @return the carrier in this version.
+         * @throws IllegalArgumentException If the device is not a phone.
+         */
+        public String getCarrier(final int id)
+        {
+            return StringDictionary.CARRIERS.decode(
+                    page(id, DeviceSnapshot.TYPE_IPHONE, DeviceSnapshot.TYPE_IPHONE16).codes[id & PAGE_MASK]);
+        }
+
+        /**
+         * @param id The id of an iPhone 16.
+         * @return whether the phone has a high resolution camera in this version.
+         * @throws IllegalArgumentException If the device is not an iPhone 16.
+         */
+        public boolean hasHighResCamera(final int id)
+        {
+            return page(id, DeviceSnapshot.TYPE_IPHONE16, DeviceSnapshot.TYPE_IPHONE16).flags[id & PAGE_MASK];
+        }
+
+        /**
+         * @param id The id of an iPhone 16.
+         * @return the memory in GB in this version.
+         * @throws IllegalArgumentException If the device is not an iPhone 16.
+         */
+        public int getMemoryGB(final int id)
+        {
+            return page(id, DeviceSnapshot.TYPE_IPHONE16, DeviceSnapshot.TYPE_IPHONE16).memoryGB[id & PAGE_MASK];
+        }
+
+        /**
+         * @param id The id of an iPad.
+         * @return whether the iPad has a case in this version.
+         * @throws IllegalArgumentException If the device is not an iPad.
+         */
+        public boolean hasIPadCase(final int id)
+        {
+            return page(id, DeviceSnapshot.TYPE_IPAD, DeviceSnapshot.TYPE_IPAD).flags[id & PAGE_MASK];
+        }
+
+        /**
+         * @param id The id of an iPad.
+         * @return the operating system version in this version.
+         * @throws IllegalArgumentException If the device is not an iPad.
+         */
+        public String getOperatingSystemVersion(final int id)
+        {
+            return StringDictionary.OPERATING_SYSTEM_VERSIONS.decode(
+                    page(id, DeviceSnapshot.TYPE_IPAD, DeviceSnapshot.TYPE_IPAD).codes[id & PAGE_MASK]);
+        }
+
+        /**
+         * @param id The id of an iPod.
+         * @return the number of stored songs in this version.
+         * @throws IllegalArgumentException If the device is not an iPod.
+         */
+        public int getNumOfStoredSongs(final int id)
+        {
+            return page(id, DeviceSnapshot.TYPE_IPOD, DeviceSnapshot.TYPE_IPOD).codes[id & PAGE_MASK];
+        }
+
+        /**
+         * @param id The id of an iPod.
+         * @return the maximum volume in decibels in this version.
+         * @throws IllegalArgumentException If the device is not an iPod.
+         */
+        public double getMaxVolumeDecibel(final int id)
+        {
+            return page(id, DeviceSnapshot.TYPE_IPOD, DeviceSnapshot.TYPE_IPOD).values[id & PAGE_MASK];
+        }
+
+        /**
+         * Unpins the version. Closing a view twice has no effect.
+         */
+        @Override
+        public void close()
+        {
+            if (!closed)
+            {
+                closed = true;
+                version.unpin();
+            }
+        }
+
+        // Returns the page holding a device, checking the view is open and the id is in range.
+        private Page page(final int id)
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("View is closed.");
+            }
+            if (id < 0 || id >= version.size)
+            {
+                throw new IndexOutOfBoundsException("Device " + id + " out of range for " + version.size);
+            }
+            return version.pages[id >>> PAGE_SHIFT];
+        }
+
+        // Returns the page holding a device, also checking the device is of one of two types.
+        private Page page(final int id,
+                          final byte type,
+                          final byte otherType)
+        {
+            final Page page = page(id);
+            final byte actual = page.types[id & PAGE_MASK];
+            if (actual != type && actual != otherType)
+            {
+                throw new IllegalArgumentException("Device " + id + " has type " + actual);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * A set of changes published together as one version. Changes are invisible to readers until
+     * {@link #commit()}; closing a batch without committing it discards them. A batch is used by
+     * the thread that began it, and only one batch is open at a time.
+     */
+    public final class Batch implements AutoCloseable
+    {
+        private final Version base;
+        private final Page[] originals;
+        private final List<Page> copies;
+        private Page[] pages;
+        private boolean[] copied;
+        private int size;
+        private boolean done;
+
+        private Batch(final Version base)
+        {
+            this.base = base;
+            originals = base.pages;
+            pages = base.pages.clone();
+            copied = new boolean[pages.length];
+            copies = new ArrayList<>();
+            size = base.size;
+        }
+
+        /**
+         * @return the number of devices including those added by this batch.
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Adds a copy of a device's current state.
+         *
+         * @param device The device to add.
+         * @return The id of the new device.
+         * @throws IllegalArgumentException If the device is of an unsupported type.
+         * @throws IllegalStateException    If the batch was committed or closed.
+         */
+        public int add(final IDevice device)
+        {
+            checkOpen();
+            if (size == pages.length << PAGE_SHIFT)
+            {
+                pages = Arrays.copyOf(pages, Math.max(1, pages.length * 2));
+                copied = Arrays.copyOf(copied, pages.length);
+            }
+            final int pageIndex = size >>> PAGE_SHIFT;
+            if (pages[pageIndex] == null)
+            {
+                final Page page = allocate();
+                pages[pageIndex] = page;
+                copied[pageIndex] = true;
+                copies.add(page);
+            }
+
+            /*
+             * Older versions never read past their own size, so a new device can be written
+             * into a shared page without copying it.
+             */
+            final int id = size;
+            store(pages[pageIndex], id & PAGE_MASK, device);
+            size++;
+            return id;
+        }
+
+        /**
+         * Replaces a device's state with a copy of another device's current state.
+         * The device may change type.
+         *
+         * @param id     The id of the device to replace.
+         * @param device The device whose state is copied.
+         * @throws IndexOutOfBoundsException If no device has the id.
+         * @throws IllegalArgumentException  If the device is of an unsupported type.
+         * @throws IllegalStateException     If the batch was committed or closed.
+         */
+        public void put(final int id,
+                        final IDevice device)
+        {
+            checkOpen();
+            if (id < 0 || id >= size)
+            {
+                throw new IndexOutOfBoundsException("Device " + id + " out of range for " + size);
+            }
+            store(writable(id >>> PAGE_SHIFT), id & PAGE_MASK, device);
+        }
+
+        /**
+         * Publishes the batch as the new latest version and ends it.
+         *
+         * @return The number of the new version.
+         * @throws IllegalStateException If the batch was committed or closed.
+         */
+        public long commit()
+        {
+            checkOpen();
+            done = true;
+            try
+            {
+                final long number = base.number + 1;
+                for (int i = 0; i < originals.length; i++)
+                {
+                    if (copied[i] && originals[i] != null)
+                    {
+                        originals[i].retiredBy = number;
+                        retired.addLast(originals[i]);
+                    }
+                }
+                replaced.add(base);
+                current = new Version(number, pages, size);
+                reclaim();
+                return number;
+            } finally
+            {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Discards the batch if it was not committed. Closing a batch twice has no effect.
+         */
+        @Override
+        public void close()
+        {
+            if (!done)
+            {
+                done = true;
+                for (final Page page : copies)
+                {
+                    if (free.size() < MAX_POOLED_PAGES)
+                    {
+                        free.addLast(page);
+                    }
+                }
+                writeLock.unlock();
+            }
+        }
+
+        // Returns a page this batch may change, copying it the first time.
+        private Page writable(final int pageIndex)
+        {
+            if (!copied[pageIndex])
+            {
+                final Page page = allocate();
+                page.copyFrom(pages[pageIndex]);
+                pages[pageIndex] = page;
+                copied[pageIndex] = true;
+                copies.add(page);
+            }
+            return pages[pageIndex];
+        }
+
+        // Checks the batch can still be changed.
+        private void checkOpen()
+        {
+            if (done)
+            {
+                throw new IllegalStateException("Batch is finished.");
+            }
+        }
+    }
+
+    // Writes a device's current state into a slot of a page.
+    private static void store(final Page page,
+                              final int slot,
+                              final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            page.set(slot, DeviceSnapshot.TYPE_IPHONE16, iPhone16.hasHighResCamera(), iPhone16.carrierCode(),
+                    iPhone16.getPhonePlanMinutesRemaining(), iPhone16.getMemoryGB());
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            page.set(slot, DeviceSnapshot.TYPE_IPHONE, false, iPhone.carrierCode(),
+                    iPhone.getPhonePlanMinutesRemaining(), 0);
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            page.set(slot, DeviceSnapshot.TYPE_IPAD, iPad.hasIPadCase(), iPad.operatingSystemVersionCode(), 0.0, 0);
+        } else if (device instanceof IPod)
+        {
+            final IPod iPod = (IPod) device;
+            page.set(slot, DeviceSnapshot.TYPE_IPOD, false, iPod.getNumOfStoredSongs(),
+                    iPod.getMaxVolumeDecibel(), 0);
+        } else
+        {
+            throw new IllegalArgumentException("Unsupported device: " + device);
+        }
+    }
+
+    /*
+     * One published version: an array of pages and the number of devices in it, with the count
+     * of views pinning it. A replaced version with no views is sealed so it can never be pinned again.
+     */
+    private static final class Version
+    {
+        private final long number;
+        private final Page[] pages;
+        private final int size;
+        private final AtomicInteger views;
+
+        private Version(final long number,
+                        final Page[] pages,
+                        final int size)
+        {
+            this.number = number;
+            this.pages = pages;
+            this.size = size;
+            views = new AtomicInteger();
+        }
+
+        // Adds a view unless the version was sealed.
+        private boolean pin()
+        {
+            int count = views.get();
+            while (count != SEALED)
+            {
+                if (views.compareAndSet(count, count + 1))
+                {
+                    return true;
+                }
+                count = views.get();
+            }
+            return false;
+        }
+
+        // Removes a view.
+        private void unpin()
+        {
+            views.decrementAndGet();
+        }
+
+        // Seals the version if no view pins it.
+        private boolean seal()
+        {
+            return views.compareAndSet(0, SEALED);
+        }
+    }
+
+    // The state of up to PAGE_SIZE devices, one primitive column per field.
+    private static final class Page
+    {
+        private final byte[] types;
+        private final boolean[] flags;
+        private final int[] codes;
+        private final double[] values;
+        private final int[] memoryGB;
+        private long retiredBy;
+
+        private Page()
+        {
+            types = new byte[PAGE_SIZE];
+            flags = new boolean[PAGE_SIZE];
+            codes = new int[PAGE_SIZE];
+            values = new double[PAGE_SIZE];
+            memoryGB = new int[PAGE_SIZE];
+        }
+
+        // Sets every field of one slot.
+        private void set(final int slot,
+                         final byte type,
+                         final boolean flag,
+                         final int code,
+                         final double value,
+                         final int memory)
+        {
+            types[slot] = type;
+            flags[slot] = flag;
+            codes[slot] = code;
+            values[slot] = value;
+            memoryGB[slot] = memory;
+        }
+
+        // Copies every slot of another page.
+        private void copyFrom(final Page other)
+        {
+            System.arraycopy(other.types, 0, types, 0, PAGE_SIZE);
+            System.arraycopy(other.flags, 0, flags, 0, PAGE_SIZE);
+            System.arraycopy(other.codes, 0, codes, 0, PAGE_SIZE);
+            System.arraycopy(other.values, 0, values, 0, PAGE_SIZE);
+            System.arraycopy(other.memoryGB, 0, memoryGB, 0, PAGE_SIZE);
+        }
+    }
+}
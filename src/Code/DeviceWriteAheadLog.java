@@ -0,0 +1,1051 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only binary log of the changes made to a set of devices, so that they survive a crash.
+ * <p>
+ * Devices are registered with the log, which then listens for their changes through
+ * {@link DeviceListeners}. Every change is appended as a small checksummed record holding the
+ * device's id and the new value of the field that changed, read from the device when the record is
+ * appended. Because every record holds an absolute value, replaying the log in order always ends
+ * with the latest state, even when several threads change the same device at once.
+ * <p>
+ * In durable mode a mutator returns only once its record has been forced to disk. Writers share
+ * that cost through group commit: while one thread writes and forces a batch of records, the
+ * others keep appending to a second buffer, and the next thread to wait writes the whole of it
+ * with a single force. Without durability the records are written in large batches and never forced,
+ * so a crash loses the most recent changes but never leaves the log inconsistent.
+ * <p>
+ * The log is split into numbered segment files. {@link #checkpoint()} writes every registered
+ * device to a {@link DeviceSnapshot}, starts a new segment and deletes the segments and snapshots
+ * the new snapshot replaces. Opening a log recovers it by loading the latest snapshot and replaying
+ * the segments written since; a record torn by a crash at the end of the last segment is dropped.
+ * <p>
+ * Devices are held by identity, through a slot from {@link DeviceRegistrations}, so changes to
+ * devices the log does not hold are skipped without taking its lock. Flyweight views, such as
+ * those from a {@link DeviceFleet}, cannot be registered, because they stand for a different
+ * device whenever they are moved. The log is thread-safe.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceWriteAheadLog implements DeviceMutationListener, Closeable
+{
+    // Constants
+    private static final long DEFAULT_SEGMENT_BYTES;
+    private static final int BUFFER_SIZE;
+    private static final int WRITE_THRESHOLD;
+    private static final int RECORD_HEADER_SIZE;
+    private static final int MAX_BODY_SIZE;
+    private static final String SEGMENT_PREFIX;
+    private static final String SEGMENT_SUFFIX;
+    private static final String SNAPSHOT_PREFIX;
+    private static final String SNAPSHOT_SUFFIX;
+    private static final String TEMPORARY_SUFFIX;
+
+    // Record kinds
+    private static final byte KIND_CREATE;
+    private static final byte KIND_MINUTES;
+    private static final byte KIND_CARRIER;
+    private static final byte KIND_CAMERA;
+    private static final byte KIND_MEMORY;
+    private static final byte KIND_CASE;
+    private static final byte KIND_OPERATING_SYSTEM;
+    private static final byte KIND_SONGS;
+
+    static
+    {
+        DEFAULT_SEGMENT_BYTES = 64L << 20;
+        BUFFER_SIZE = 64 << 10;
+        WRITE_THRESHOLD = 32 << 10;
+        RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+        MAX_BODY_SIZE = 1 << 20;
+        SEGMENT_PREFIX = "wal-";
+        SEGMENT_SUFFIX = ".log";
+        SNAPSHOT_PREFIX = "snapshot-";
+        SNAPSHOT_SUFFIX = ".bin";
+        TEMPORARY_SUFFIX = ".tmp";
+
+        KIND_CREATE = 1;
+        KIND_MINUTES = 2;
+        KIND_CARRIER = 3;
+        KIND_CAMERA = 4;
+        KIND_MEMORY = 5;
+        KIND_CASE = 6;
+        KIND_OPERATING_SYSTEM = 7;
+        KIND_SONGS = 8;
+    }
+
+    // Instance Variables
+    private final Path directory;
+    private final boolean durable;
+    private final long segmentBytes;
+    private final List<IDevice> devices;
+    private final int registrationSlot;
+    private final CRC32C checksum;
+
+    // Group commit state, guarded by this log's monitor.
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private FileChannel segment;
+    private long segmentNumber;
+    private long appendedSequence;
+    private long writtenSequence;
+    private boolean flushing;
+    private boolean closed;
+    private IOException failure;
+
+    private DeviceWriteAheadLog(final Path directory,
+                                final boolean durable,
+                                final long segmentBytes)
+    {
+        this.directory = directory;
+        this.durable = durable;
+        this.segmentBytes = segmentBytes;
+        devices = new ArrayList<>();
+        registrationSlot = DeviceRegistrations.acquire();
+        checksum = new CRC32C();
+        pending = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        spare = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens the log in a directory with the default segment size, recovering the devices
+     * it already holds. The directory is created if it does not exist.
+     *
+     * @param directory The directory holding the segments and snapshots.
+     * @param durable   Whether a change is forced to disk before its mutator returns.
+     * @return The opened log.
+     * @throws IOException If the log cannot be read or written, or is corrupt.
+     */
+    public static DeviceWriteAheadLog open(final Path directory,
+                                           final boolean durable) throws IOException
+    {
+        return open(directory, durable, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log in a directory, recovering the devices it already holds.
+     * The directory is created if it does not exist.
+     *
+     * @param directory    The directory holding the segments and snapshots.
+     * @param durable      Whether a change is forced to disk before its mutator returns.
+     * @param segmentBytes The size after which a new segment is started.
+     * @return The opened log.
+     * @throws IOException              If the log cannot be read or written, or is corrupt.
+     * @throws IllegalArgumentException If the segment size is not positive.
+     */
+    public static DeviceWriteAheadLog open(final Path directory,
+                                           final boolean durable,
+                                           final long segmentBytes) throws IOException
+    {
+        if (segmentBytes <= 0)
+        {
+            throw new IllegalArgumentException("Segment size must be positive.");
+        }
+        Files.createDirectories(directory);
+
+        final DeviceWriteAheadLog log = new DeviceWriteAheadLog(directory, durable, segmentBytes);
+        try
+        {
+            log.recover();
+        } catch (IOException | RuntimeException e)
+        {
+            log.unregisterAll();
+            if (log.segment != null)
+            {
+                log.segment.close();
+            }
+            throw e;
+        }
+        DeviceListeners.add(log);
+        return log;
+    }
+
+    /**
+     * Registers a device, so that it and every later change to it are logged.
+     * Registering a device twice returns the id it was given the first time.
+     *
+     * @param device The device to register.
+     * @return The id of the device, which is its index in {@link #devices()}.
+     * @throws IllegalArgumentException If the device is {@code null}, of an unsupported type,
+     *                                  or a flyweight view of a {@link DeviceFleet}.
+     * @throws IllegalStateException    If the log is closed.
+     * @throws UncheckedIOException     If the record cannot be written.
+     */
+    public int register(final IDevice device)
+    {
+        if (device == null)
+        {
+            throw new IllegalArgumentException("Device cannot be null.");
+        }
+        if (DeviceFleet.isView(device))
+        {
+            throw new IllegalArgumentException("Fleet views cannot be registered.");
+        }
+        if (!(device instanceof IPhone || device instanceof IPad || device instanceof IPod))
+        {
+            throw new IllegalArgumentException("Unsupported device: " + device);
+        }
+
+        final int id;
+        final long sequence;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("Log is closed.");
+            }
+            final Object existing = device.registration(registrationSlot);
+            if (existing != null)
+            {
+                return (Integer) existing;
+            }
+            id = devices.size();
+            devices.add(device);
+            device.register(registrationSlot, id);
+            sequence = appendCreate(id, device);
+        }
+        commit(sequence);
+        return id;
+    }
+
+    /**
+     * @return the registered and recovered devices, indexed by id.
+     */
+    public synchronized List<IDevice> devices()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(devices));
+    }
+
+    /**
+     * Returns a device by its id.
+     *
+     * @param id The id of the device.
+     * @return The device.
+     * @throws IndexOutOfBoundsException If no device has the id.
+     */
+    public synchronized IDevice device(final int id)
+    {
+        return devices.get(id);
+    }
+
+    /**
+     * @return the number of registered and recovered devices.
+     */
+    public synchronized int size()
+    {
+        return devices.size();
+    }
+
+    /**
+     * Writes a snapshot of every device, starts a new segment, and deletes the segments and
+     * snapshots the new snapshot replaces. Changes made while the snapshot is written are
+     * logged to the new segment as usual.
+     *
+     * @throws IOException           If the snapshot or segment cannot be written.
+     * @throws IllegalStateException If the log is closed.
+     */
+    public void checkpoint() throws IOException
+    {
+        final long start = DeviceMetrics.start();
+        final List<IDevice> copies;
+        final long snapshotNumber;
+
+        synchronized (this)
+        {
+            awaitFlushToken();
+            try
+            {
+                if (closed)
+                {
+                    throw new IllegalStateException("Log is closed.");
+                }
+                writePending(segment, true);
+
+                /*
+                 * The devices are copied while no record can be appended, and every change made
+                 * after this point is appended to the new segment, so the snapshot plus the
+                 * segments from its number on always hold the latest state.
+                 */
+                copies = new ArrayList<>(devices.size());
+                for (final IDevice device : devices)
+                {
+                    copies.add(copyOf(device));
+                }
+                snapshotNumber = segmentNumber + 1;
+                startSegment(snapshotNumber);
+            } finally
+            {
+                releaseFlushToken();
+            }
+        }
+
+        final Path temporary = directory.resolve(snapshotName(snapshotNumber) + TEMPORARY_SUFFIX);
+        DeviceSnapshot.write(copies, temporary);
+        Files.move(temporary, directory.resolve(snapshotName(snapshotNumber)), StandardCopyOption.ATOMIC_MOVE);
+        // The rename must be on disk before the files it replaces are deleted
+        forceDirectory();
+
+        for (final long number : numbers(SEGMENT_PREFIX, SEGMENT_SUFFIX))
+        {
+            if (number < snapshotNumber)
+            {
+                Files.deleteIfExists(directory.resolve(segmentName(number)));
+            }
+        }
+        for (final long number : numbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX))
+        {
+            if (number < snapshotNumber)
+            {
+                Files.deleteIfExists(directory.resolve(snapshotName(number)));
+            }
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.CHECKPOINT, start, copies.size());
+    }
+
+    /**
+     * Writes and forces every appended record, stops listening for changes, and closes the
+     * current segment. Changes made after the log is closed are not logged.
+     *
+     * @throws IOException If the records cannot be written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        DeviceListeners.remove(this);
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            awaitFlushToken();
+            try
+            {
+                closed = true;
+                writePending(segment, true);
+            } finally
+            {
+                try
+                {
+                    segment.close();
+                } finally
+                {
+                    unregisterAll();
+                    releaseFlushToken();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void phonePlanMinutesChanged(final IPhone phone,
+                                        final double oldMinutes,
+                                        final double newMinutes)
+    {
+        if (phone.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        final long sequence;
+        synchronized (this)
+        {
+            final int id = idOf(phone);
+            if (id < 0)
+            {
+                return;
+            }
+            begin(KIND_MINUTES, id, Double.BYTES);
+            pending.putDouble(phone.getPhonePlanMinutesRemaining());
+            sequence = end();
+        }
+        commit(sequence);
+    }
+
+    @Override
+    public void carrierChanged(final IPhone phone,
+                               final String oldCarrier,
+                               final String newCarrier)
+    {
+        if (phone.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        final long sequence;
+        synchronized (this)
+        {
+            final int id = idOf(phone);
+            if (id < 0)
+            {
+                return;
+            }
+            final byte[] carrier = phone.getCarrier().getBytes(StandardCharsets.UTF_8);
+            begin(KIND_CARRIER, id, Integer.BYTES + carrier.length);
+            pending.putInt(carrier.length).put(carrier);
+            sequence = end();
+        }
+        commit(sequence);
+    }
+
+    @Override
+    public void highResCameraChanged(final IPhone16 phone,
+                                     final boolean oldHighResCamera,
+                                     final boolean newHighResCamera)
+    {
+        if (phone.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        final long sequence;
+        synchronized (this)
+        {
+            final int id = idOf(phone);
+            if (id < 0)
+            {
+                return;
+            }
+            begin(KIND_CAMERA, id, Byte.BYTES);
+            pending.put((byte) (phone.hasHighResCamera() ? 1 : 0));
+            sequence = end();
+        }
+        commit(sequence);
+    }
+
+    @Override
+    public void memoryGBChanged(final IPhone16 phone,
+                                final int oldMemoryGB,
+                                final int newMemoryGB)
+    {
+        if (phone.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        final long sequence;
+        synchronized (this)
+        {
+            final int id = idOf(phone);
+            if (id < 0)
+            {
+                return;
+            }
+            begin(KIND_MEMORY, id, Integer.BYTES);
+            pending.putInt(phone.getMemoryGB());
+            sequence = end();
+        }
+        commit(sequence);
+    }
+
+    @Override
+    public void iPadCaseChanged(final IPad iPad,
+                                final boolean oldIPadCase,
+                                final boolean newIPadCase)
+    {
+        if (iPad.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        final long sequence;
+        synchronized (this)
+        {
+            final int id = idOf(iPad);
+            if (id < 0)
+            {
+                return;
+            }
+            begin(KIND_CASE, id, Byte.BYTES);
+            pending.put((byte) (iPad.hasIPadCase() ? 1 : 0));
+            sequence = end();
+        }
+        commit(sequence);
+    }
+
+    @Override
+    public void operatingSystemVersionChanged(final IPad iPad,
+                                              final String oldVersion,
+                                              final String newVersion)
+    {
+        if (iPad.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        final long sequence;
+        synchronized (this)
+        {
+            final int id = idOf(iPad);
+            if (id < 0)
+            {
+                return;
+            }
+            final byte[] version = iPad.getOperatingSystemVersion().getBytes(StandardCharsets.UTF_8);
+            begin(KIND_OPERATING_SYSTEM, id, Integer.BYTES + version.length);
+            pending.putInt(version.length).put(version);
+            sequence = end();
+        }
+        commit(sequence);
+    }
+
+    @Override
+    public void numOfStoredSongsChanged(final IPod iPod,
+                                        final int oldSongs,
+                                        final int newSongs)
+    {
+        if (iPod.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        final long sequence;
+        synchronized (this)
+        {
+            final int id = idOf(iPod);
+            if (id < 0)
+            {
+                return;
+            }
+            begin(KIND_SONGS, id, Integer.BYTES);
+            pending.putInt(iPod.getNumOfStoredSongs());
+            sequence = end();
+        }
+        commit(sequence);
+    }
+
+    // Returns the id of a registered device, or -1 if it is not registered or the log is closed.
+    private int idOf(final IDevice device)
+    {
+        if (closed)
+        {
+            return -1;
+        }
+        final Object id = device.registration(registrationSlot);
+        return id == null ? -1 : (Integer) id;
+    }
+
+    // Clears this log's slot on every device and releases it. Called once the log is closed.
+    private void unregisterAll()
+    {
+        for (final IDevice device : devices)
+        {
+            device.unregister(registrationSlot);
+        }
+        DeviceRegistrations.release(registrationSlot);
+    }
+
+    // Appends the record that creates a device with its whole current state.
+    private long appendCreate(final int id,
+                              final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            final byte[] carrier = iPhone16.getCarrier().getBytes(StandardCharsets.UTF_8);
+            begin(KIND_CREATE, id, Byte.BYTES + Double.BYTES + Integer.BYTES + carrier.length
+                    + Byte.BYTES + Integer.BYTES);
+            pending.put(DeviceSnapshot.TYPE_IPHONE16)
+                    .putDouble(iPhone16.getPhonePlanMinutesRemaining())
+                    .putInt(carrier.length).put(carrier)
+                    .put((byte) (iPhone16.hasHighResCamera() ? 1 : 0))
+                    .putInt(iPhone16.getMemoryGB());
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            final byte[] carrier = iPhone.getCarrier().getBytes(StandardCharsets.UTF_8);
+            begin(KIND_CREATE, id, Byte.BYTES + Double.BYTES + Integer.BYTES + carrier.length);
+            pending.put(DeviceSnapshot.TYPE_IPHONE)
+                    .putDouble(iPhone.getPhonePlanMinutesRemaining())
+                    .putInt(carrier.length).put(carrier);
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            final byte[] version = iPad.getOperatingSystemVersion().getBytes(StandardCharsets.UTF_8);
+            begin(KIND_CREATE, id, Byte.BYTES + Byte.BYTES + Integer.BYTES + version.length);
+            pending.put(DeviceSnapshot.TYPE_IPAD)
+                    .put((byte) (iPad.hasIPadCase() ? 1 : 0))
+                    .putInt(version.length).put(version);
+        } else
+        {
+            final IPod iPod = (IPod) device;
+            begin(KIND_CREATE, id, Byte.BYTES + Integer.BYTES + Double.BYTES);
+            pending.put(DeviceSnapshot.TYPE_IPOD)
+                    .putInt(iPod.getNumOfStoredSongs())
+                    .putDouble(iPod.getMaxVolumeDecibel());
+        }
+        return end();
+    }
+
+    /*
+     * Starts a record in the pending buffer, leaving room for its length and checksum.
+     * The payload is put by the caller and the record is finished by end().
+     */
+    private void begin(final byte kind,
+                       final int id,
+                       final int payloadSize)
+    {
+        if (failure != null)
+        {
+            throw new UncheckedIOException("Log has failed.", failure);
+        }
+        final int recordSize = RECORD_HEADER_SIZE + Byte.BYTES + Integer.BYTES + payloadSize;
+        if (pending.remaining() < recordSize)
+        {
+            final ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                    pending.position() + recordSize)).order(ByteOrder.LITTLE_ENDIAN);
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.mark();
+        pending.position(pending.position() + RECORD_HEADER_SIZE);
+        pending.put(kind).putInt(id);
+    }
+
+    // Fills in the length and checksum of the record started by begin() and returns its sequence number.
+    private long end()
+    {
+        final int end = pending.position();
+        pending.reset();
+        final int start = pending.position();
+        final int bodyStart = start + RECORD_HEADER_SIZE;
+
+        checksum.reset();
+        checksum.update(pending.array(), bodyStart, end - bodyStart);
+        pending.putInt(start, end - bodyStart);
+        pending.putInt(start + Integer.BYTES, (int) checksum.getValue());
+        pending.position(end);
+        return ++appendedSequence;
+    }
+
+    /*
+     * Makes a record as safe as the mode promises before its mutator returns. In durable mode
+     * this waits until the record has been forced; otherwise records are only written once
+     * enough of them have been buffered.
+     */
+    private void commit(final long sequence)
+    {
+        if (durable)
+        {
+            awaitWritten(sequence);
+        } else
+        {
+            final boolean full;
+            synchronized (this)
+            {
+                full = pending.position() >= WRITE_THRESHOLD && !flushing;
+            }
+            if (full)
+            {
+                awaitWritten(sequence);
+            }
+        }
+    }
+
+    /*
+     * Group commit. The first thread to find no write in progress takes every record buffered so
+     * far, swaps in the spare buffer so others can keep appending, and writes (and in durable mode
+     * forces) the batch without holding the monitor. Threads whose records are in that batch wait
+     * for it; threads whose records arrived later wait and then lead the next batch.
+     */
+    private void awaitWritten(final long sequence)
+    {
+        while (true)
+        {
+            final ByteBuffer batch;
+            final long batchEnd;
+            final FileChannel channel;
+
+            synchronized (this)
+            {
+                while (writtenSequence < sequence && flushing && failure == null)
+                {
+                    awaitQuietly();
+                }
+                if (failure != null)
+                {
+                    throw new UncheckedIOException("Log has failed.", failure);
+                }
+                if (writtenSequence >= sequence || closed)
+                {
+                    return;
+                }
+                flushing = true;
+                batch = pending;
+                pending = spare;
+                spare = null;
+                batchEnd = appendedSequence;
+                channel = segment;
+            }
+
+            IOException error = null;
+            try
+            {
+                batch.flip();
+                while (batch.hasRemaining())
+                {
+                    channel.write(batch);
+                }
+                if (durable)
+                {
+                    channel.force(false);
+                }
+            } catch (IOException e)
+            {
+                error = e;
+            }
+
+            synchronized (this)
+            {
+                batch.clear();
+                spare = batch;
+                if (error == null)
+                {
+                    writtenSequence = batchEnd;
+                    error = rollIfFull();
+                }
+                if (error != null)
+                {
+                    failure = error;
+                }
+                releaseFlushToken();
+            }
+        }
+    }
+
+    // Starts a new segment once the current one is full. Called while holding the flush token.
+    private IOException rollIfFull()
+    {
+        try
+        {
+            if (segment.size() >= segmentBytes)
+            {
+                startSegment(segmentNumber + 1);
+            }
+            return null;
+        } catch (IOException e)
+        {
+            return e;
+        }
+    }
+
+    // Waits until no thread is writing a batch, then takes the right to write.
+    private void awaitFlushToken()
+    {
+        while (flushing)
+        {
+            awaitQuietly();
+        }
+        flushing = true;
+    }
+
+    // Forces the directory's entries, such as a renamed snapshot, to disk.
+    private void forceDirectory() throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+    }
+
+    // Gives up the right to write and wakes the threads waiting for it.
+    private void releaseFlushToken()
+    {
+        flushing = false;
+        notifyAll();
+    }
+
+    // Waits on this log's monitor, keeping the thread's interrupt status.
+    private void awaitQuietly()
+    {
+        try
+        {
+            wait();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the log.", e);
+        }
+    }
+
+    // Writes the pending buffer to a segment while holding the flush token and the monitor.
+    private void writePending(final FileChannel channel,
+                              final boolean force) throws IOException
+    {
+        if (failure != null)
+        {
+            throw failure;
+        }
+        pending.flip();
+        while (pending.hasRemaining())
+        {
+            channel.write(pending);
+        }
+        pending.clear();
+        if (force)
+        {
+            channel.force(false);
+        }
+        writtenSequence = appendedSequence;
+    }
+
+    /*
+     * Forces and closes the current segment, if any, and starts a new, empty one.
+     * Only the last segment may be torn by a crash, even when changes are not durable.
+     */
+    private void startSegment(final long number) throws IOException
+    {
+        if (segment != null)
+        {
+            segment.force(false);
+            segment.close();
+        }
+        segment = FileChannel.open(directory.resolve(segmentName(number)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentNumber = number;
+    }
+
+    /*
+     * Loads the latest snapshot, replays every segment written since, and starts a new segment.
+     * Only the last segment may end in a torn record; it is cut off there.
+     */
+    private void recover() throws IOException
+    {
+        final long start = DeviceMetrics.start();
+        final List<Long> snapshots = numbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        final long snapshotNumber = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        if (!snapshots.isEmpty())
+        {
+            try (DeviceSnapshot snapshot = DeviceSnapshot.open(directory.resolve(snapshotName(snapshotNumber))))
+            {
+                for (final IDevice device : snapshot.devices())
+                {
+                    device.register(registrationSlot, devices.size());
+                    devices.add(device);
+                }
+            }
+        }
+
+        final List<Long> segments = numbers(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        long lastNumber = snapshotNumber;
+        for (int i = 0; i < segments.size(); i++)
+        {
+            final long number = segments.get(i);
+            if (number >= snapshotNumber)
+            {
+                replay(directory.resolve(segmentName(number)), i == segments.size() - 1);
+            }
+            lastNumber = Math.max(lastNumber, number);
+        }
+        startSegment(lastNumber + 1);
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.RECOVERY, start, devices.size());
+    }
+
+    // Applies every record of one segment.
+    private void replay(final Path file,
+                        final boolean last) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Segment is too large: " + file);
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+            {
+                // Keep reading until the whole segment is in the buffer.
+            }
+            buffer.flip();
+
+            while (buffer.hasRemaining())
+            {
+                final int start = buffer.position();
+                if (!isWholeRecord(buffer))
+                {
+                    if (!last)
+                    {
+                        throw new IOException("Corrupt record at byte " + start + " of " + file);
+                    }
+                    channel.truncate(start);
+                    channel.force(true);
+                    return;
+                }
+                final int bodyLength = buffer.getInt(start);
+                buffer.position(start + RECORD_HEADER_SIZE);
+                final ByteBuffer body = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).limit(bodyLength);
+                try
+                {
+                    apply(body);
+                } catch (RuntimeException e)
+                {
+                    throw new IOException("Invalid record at byte " + start + " of " + file, e);
+                }
+                buffer.position(start + RECORD_HEADER_SIZE + bodyLength);
+            }
+        }
+    }
+
+    // Checks that a whole record with a matching checksum starts at the buffer's position.
+    private boolean isWholeRecord(final ByteBuffer buffer)
+    {
+        final int start = buffer.position();
+        if (buffer.remaining() < RECORD_HEADER_SIZE)
+        {
+            return false;
+        }
+        final int bodyLength = buffer.getInt(start);
+        if (bodyLength < Byte.BYTES + Integer.BYTES || bodyLength > MAX_BODY_SIZE
+                || bodyLength > buffer.remaining() - RECORD_HEADER_SIZE)
+        {
+            return false;
+        }
+        checksum.reset();
+        checksum.update(buffer.array(), buffer.arrayOffset() + start + RECORD_HEADER_SIZE, bodyLength);
+        return (int) checksum.getValue() == buffer.getInt(start + Integer.BYTES);
+    }
+
+    // Applies one record body to the recovered devices, through the hooks that fire no events.
+    private void apply(final ByteBuffer body)
+    {
+        final byte kind = body.get();
+        final int id = body.getInt();
+
+        if (kind == KIND_CREATE)
+        {
+            if (id != devices.size())
+            {
+                throw new IllegalStateException("Device " + id + " created out of order.");
+            }
+            final IDevice device = createFrom(body);
+            device.register(registrationSlot, id);
+            devices.add(device);
+        } else if (kind == KIND_MINUTES)
+        {
+            ((IPhone) devices.get(id)).writePhonePlanMinutesRemaining(body.getDouble());
+        } else if (kind == KIND_CARRIER)
+        {
+            ((IPhone) devices.get(id)).writeCarrierCode(StringDictionary.CARRIERS.encode(string(body)));
+        } else if (kind == KIND_CAMERA)
+        {
+            ((IPhone16) devices.get(id)).writeHighResCamera(body.get() != 0);
+        } else if (kind == KIND_MEMORY)
+        {
+            ((IPhone16) devices.get(id)).writeMemoryGB(body.getInt());
+        } else if (kind == KIND_CASE)
+        {
+            ((IPad) devices.get(id)).writeIPadCase(body.get() != 0);
+        } else if (kind == KIND_OPERATING_SYSTEM)
+        {
+            ((IPad) devices.get(id)).writeOperatingSystemVersionCode(
+                    OperatingSystemVersion.encode(string(body)));
+        } else if (kind == KIND_SONGS)
+        {
+            ((IPod) devices.get(id)).writeNumOfStoredSongs(body.getInt());
+        } else
+        {
+            throw new IllegalStateException("Unknown record kind " + kind);
+        }
+    }
+
+    // Decodes the payload of a create record into a new device.
+    private static IDevice createFrom(final ByteBuffer body)
+    {
+        final byte type = body.get();
+        if (type == DeviceSnapshot.TYPE_IPHONE)
+        {
+            final double minutes = body.getDouble();
+            return new IPhone(minutes, string(body));
+        } else if (type == DeviceSnapshot.TYPE_IPHONE16)
+        {
+            final double minutes = body.getDouble();
+            final String carrier = string(body);
+            final boolean highResCamera = body.get() != 0;
+            return new IPhone16(minutes, carrier, highResCamera, body.getInt());
+        } else if (type == DeviceSnapshot.TYPE_IPAD)
+        {
+            final boolean iPadCase = body.get() != 0;
+            return new IPad(iPadCase, string(body));
+        } else if (type == DeviceSnapshot.TYPE_IPOD)
+        {
+            final int songs = body.getInt();
+            return new IPod(songs, body.getDouble());
+        }
+        throw new IllegalStateException("Unknown device type " + type);
+    }
+
+    // Reads a length-prefixed UTF-8 string.
+    private static String string(final ByteBuffer body)
+    {
+        final byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Copies a device's current state into a new, unregistered device of the same type.
+    private static IDevice copyOf(final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            return new IPhone16(iPhone16.getPhonePlanMinutesRemaining(), iPhone16.getCarrier(),
+                    iPhone16.hasHighResCamera(), iPhone16.getMemoryGB());
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            return new IPhone(iPhone.getPhonePlanMinutesRemaining(), iPhone.getCarrier());
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            return new IPad(iPad.hasIPadCase(), iPad.getOperatingSystemVersion());
+        }
+        final IPod iPod = (IPod) device;
+        return new IPod(iPod.getNumOfStoredSongs(), iPod.getMaxVolumeDecibel());
+    }
+
+    // Returns the numbers of the files in the directory with a prefix and suffix, in order.
+    private List<Long> numbers(final String prefix,
+                               final String suffix) throws IOException
+    {
+        final List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix))
+        {
+            for (final Path file : files)
+            {
+                final String name = file.getFileName().toString();
+                try
+                {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e)
+                {
+                    // Not one of ours; leave it alone.
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    // Returns the file name of a segment.
+    private static String segmentName(final long number)
+    {
+        return String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    // Returns the file name of a snapshot.
+    private static String snapshotName(final long number)
+    {
+        return String.format("%s%016d%s", SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX);
+    }
+}
@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
 /**
  * Represents an abstract IDevice.
  * An IDevice has a specific purpose and requires subclasses to define their own details.
@@ -10,6 +14,7 @@
 public abstract class IDevice
 {
     private final String purpose;
+    private volatile Object[] registrations;
 
     /**
      * Constructs an {@link IDevice} with the specified purpose.
@@ -47,15 +52,91 @@ public abstract class IDevice
         }
     }
 
+    /*
+     * Retrieves the state kept for this device under a slot from DeviceRegistrations, or null if the
+     * holder of that slot does not hold this device. Reading it takes no lock.
+     */
+    Object registration(final int slot)
+    {
+        final Object[] current = registrations;
+        return current != null && slot < current.length ? current[slot] : null;
+    }
+
+    /*
+     * Stores the state of the holder of a slot, unless it already holds this device.
+     * The array is copied rather than written in place, so readers never need a lock.
+     */
+    synchronized boolean register(final int slot,
+                                  final Object state)
+    {
+        final Object[] current = registrations;
+        if (current != null && slot < current.length && current[slot] != null)
+        {
+            return false;
+        }
+        final Object[] updated = current == null
+                ? new Object[slot + 1]
+                : Arrays.copyOf(current, Math.max(current.length, slot + 1));
+        updated[slot] = state;
+        registrations = updated;
+        return true;
+    }
+
+    //     Clears the state of the holder of a slot and returns it, or null if there was none.
+    synchronized Object unregister(final int slot)
+    {
+        final Object[] current = registrations;
+        if (current == null || slot >= current.length || current[slot] == null)
+        {
+            return null;
+        }
+        final Object state = current[slot];
+        final Object[] updated = current.clone();
+        updated[slot] = null;
+        registrations = updated;
+        return state;
+    }
+
+    /*
+     * The class whose equality rules this device follows. Views that keep their state outside of
+     * the object return the device class they stand for, so they compare equal to a regular
+     * device with the same state.
+     */
+    Class<? extends IDevice> deviceClass()
+    {
+        return getClass();
+    }
+
+    /**
+     * Writes a description of this device, indicating its purpose, to the given destination.
+     * Subclasses extend the description with their own details. Numbers are written
+     * directly, without building intermediate strings.
+     *
+     * @param out The destination to write to.
+     * @throws IOException If the destination fails.
+     */
+    public void writeTo(final Appendable out) throws IOException
+    {
+        out.append("The purpose of this device is: ").append(getPurpose());
+    }
+
     /**
-     * Returns a string representation of this device, indicating its purpose.
+     * Returns a string representation of this device, as written by {@link #writeTo(Appendable)}.
      *
-     * @return A formatted {@code String} describing the device's purpose.
+     * @return A formatted {@code String} describing the device.
      */
     @Override
     public String toString()
     {
-        return ("The purpose of this device is: " + purpose);
+        final StringBuilder sb = new StringBuilder();
+        try
+        {
+            writeTo(sb);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
     }
 
     /**
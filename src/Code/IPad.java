@@ -1,4 +1,4 @@
-import java.util.Objects;
+import java.io.IOException;
 
 /**
  * Represents an iPad, a type of {@link IDevice} with the purpose of learning.
@@ -20,7 +20,7 @@ public class IPad extends IDevice
 
     // Instance Variables
     private boolean iPadCase;
-    private String operatingSystemVersion;
+    private int operatingSystemVersionCode;
 
     /**
      * Constructs an {@link IPad} object with information about whether it has a case
@@ -37,7 +37,16 @@ public class IPad extends IDevice
         validateOperatingSystemVersion(operatingSystemVersion);
 
         this.iPadCase = iPadCase;
-        this.operatingSystemVersion = operatingSystemVersion;
+        this.operatingSystemVersionCode = OperatingSystemVersion.encode(operatingSystemVersion);
+    }
+
+    /*
+     * Constructs an IPad without state of its own, for views that keep their state elsewhere.
+     * Nothing is validated and no version is added to StringDictionary.OPERATING_SYSTEM_VERSIONS.
+     */
+    IPad()
+    {
+        super(PURPOSE);
     }
 
     /**
@@ -47,7 +56,9 @@ public class IPad extends IDevice
      */
     public void toggleHasCase()
     {
-        iPadCase = !iPadCase;
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.TOGGLE_HAS_CASE);
+        final boolean oldIPadCase = flipIPadCase();
+        DeviceListeners.iPadCaseChanged(this, oldIPadCase, !oldIPadCase);
     }
 
     /**
@@ -67,7 +78,19 @@ public class IPad extends IDevice
      */
     public String getOperatingSystemVersion()
     {
-        return operatingSystemVersion;
+        return StringDictionary.OPERATING_SYSTEM_VERSIONS.decode(operatingSystemVersionCode());
+    }
+
+    /**
+     * Retrieves the current operating system version of the {@link IPad} as a number that sorts
+     * in version order. The version string is parsed once, when it is first set on any iPad.
+     *
+     * @return The packed version, as described by {@link OperatingSystemVersion},
+     * or {@link OperatingSystemVersion#UNKNOWN} if the string has no version number.
+     */
+    public long getOperatingSystemVersionNumber()
+    {
+        return OperatingSystemVersion.ofCode(operatingSystemVersionCode());
     }
 
     /**
@@ -79,46 +102,101 @@ public class IPad extends IDevice
      */
     public void setOperatingSystemVersion(final String newOperatingSystemVersion)
     {
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.SET_OPERATING_SYSTEM_VERSION);
         if (newOperatingSystemVersion == null || newOperatingSystemVersion.isBlank())
         {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.OPERATING_SYSTEM_VERSION,
+                    "New operating system version cannot be null or empty.");
             throw new IllegalArgumentException("New operating system version cannot be null or empty.");
         }
-        operatingSystemVersion = newOperatingSystemVersion;
+        final int oldCode = operatingSystemVersionCode();
+        final int newCode = OperatingSystemVersion.encode(newOperatingSystemVersion);
+        writeOperatingSystemVersionCode(newCode);
+        DeviceListeners.operatingSystemVersionChanged(this, oldCode, newCode);
+    }
+
+    /*
+     * Stores whether this iPad has a case. Views that keep their state
+     * outside of this object override this together with hasIPadCase().
+     */
+    void writeIPadCase(final boolean newIPadCase)
+    {
+        iPadCase = newIPadCase;
+    }
+
+    /*
+     * Inverts whether this iPad has a case and returns the previous value.
+     * Views whose flag shares storage with other devices override this to flip it in one atomic step.
+     */
+    boolean flipIPadCase()
+    {
+        final boolean oldIPadCase = hasIPadCase();
+        writeIPadCase(!oldIPadCase);
+        return oldIPadCase;
+    }
+
+    /*
+     * Retrieves the code of this iPad's operating system version in
+     * StringDictionary.OPERATING_SYSTEM_VERSIONS. Equal versions always have the same code.
+     */
+    int operatingSystemVersionCode()
+    {
+        return operatingSystemVersionCode;
+    }
+
+    /*
+     * Stores the code of a new, already validated operating system version.
+     * Views that keep their state outside of this object override this
+     * together with operatingSystemVersionCode().
+     */
+    void writeOperatingSystemVersionCode(final int newOperatingSystemVersionCode)
+    {
+        operatingSystemVersionCode = newOperatingSystemVersionCode;
     }
 
 
     //     Validates that the operating system version is not null.
-    private void validateOperatingSystemVersion(String operatingSystemVersion)
+    static void validateOperatingSystemVersion(final String operatingSystemVersion)
+    {
+        final String error = operatingSystemVersionError(operatingSystemVersion);
+        if (error != null)
+        {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.OPERATING_SYSTEM_VERSION, error);
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    //     Returns why the operating system version is invalid, or null if it is valid.
+    static String operatingSystemVersionError(final String operatingSystemVersion)
     {
         if (operatingSystemVersion == null || operatingSystemVersion.isBlank())
         {
-            throw new IllegalArgumentException("Operating system version cannot be null or empty.");
+            return "Operating system version cannot be null or empty.";
         }
+        return null;
     }
 
     /**
-     * Returns a string representation of the {@link IPad}, including if it has a case
+     * Writes a description of the {@link IPad}, including if it has a case
      * and what OS version it is on.
      *
-     * @return A formatted string containing the {@link IPad}'s details.
+     * @param out The destination to write to.
+     * @throws IOException If the destination fails.
      */
     @Override
-    public String toString()
+    public void writeTo(final Appendable out) throws IOException
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append(super.toString());
+        super.writeTo(out);
 
-        if (iPadCase)
+        if (hasIPadCase())
         {
-            sb.append(" it has a case");
+            out.append(" it has a case");
         } else
         {
-            sb.append(" it has no case");
+            out.append(" it has no case");
         }
 
-        sb.append(" and is on version ").append(operatingSystemVersion);
-
-        return sb.toString();
+        out.append(" and is on version ").append(getOperatingSystemVersion());
     }
 
     /**
@@ -127,13 +205,14 @@ public class IPad extends IDevice
     @Override
     public void printDetails()
     {
-        System.out.println(toString());
+        DeviceRenderer.printLine(this, System.out);
     }
 
     /**
      * Checks if this {@link IPad} object is equal to another object.
      * Two {@link IPad} objects are considered equal if they have the same
-     * operating system version.
+     * operating system version. A {@link DeviceFleet.IPadView} compares as the
+     * {@link IPad} it currently points at.
      *
      * @param obj The object to compare to this {@link IPad}.
      * @return {@code true} if the given object is an {@link IPad} with the same
@@ -147,14 +226,14 @@ public class IPad extends IDevice
     {
         boolean comparingIPads;
 
-        if (obj == null || getClass() != obj.getClass())
+        if (!(obj instanceof IPad) || deviceClass() != ((IPad) obj).deviceClass())
         {
             return false;
         }
         if (this == obj)
             return true;
         IPad otherIPad = (IPad) obj;
-        comparingIPads = Objects.equals(this.operatingSystemVersion, otherIPad.getOperatingSystemVersion());
+        comparingIPads = this.operatingSystemVersionCode() == otherIPad.operatingSystemVersionCode();
         return comparingIPads;
     }
 
@@ -167,6 +246,6 @@ public class IPad extends IDevice
     @Override
     public int hashCode()
     {
-        return Objects.hash(operatingSystemVersion);
+        return Integer.hashCode(operatingSystemVersionCode());
     }
 }
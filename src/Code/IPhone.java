@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.Objects;
 
 /**
@@ -13,7 +14,8 @@ public class IPhone extends IDevice
 {
 
     // Constants
-    private static final double MIN_PHONE_PLAN_MINUTES_REMAINING;
+    static final double MIN_PHONE_PLAN_MINUTES_REMAINING;
+    static final String OVERDRAFT_MESSAGE;
     private static final int MIN_PHONE_PLAN_MINUTES_TO_ADD;
     private static final int MIN_PHONE_PLAN_MINUTES_TO_REMOVE;
     private static final String PURPOSE;
@@ -21,6 +23,7 @@ public class IPhone extends IDevice
     static
     {
         MIN_PHONE_PLAN_MINUTES_REMAINING = 0.0;
+        OVERDRAFT_MESSAGE = "Cannot remove more minutes than available.";
         MIN_PHONE_PLAN_MINUTES_TO_ADD = 0;
         MIN_PHONE_PLAN_MINUTES_TO_REMOVE = 0;
         PURPOSE = "talking";
@@ -28,7 +31,7 @@ public class IPhone extends IDevice
 
     // Instance Variables
     private double phonePlanMinutesRemaining;
-    private String carrier;
+    private int carrierCode;
 
     /**
      * Constructs an {@link IPhone} object with the specified remaining minutes
@@ -48,7 +51,16 @@ public class IPhone extends IDevice
         validateCarrier(carrier);
 
         this.phonePlanMinutesRemaining = phonePlanMinutesRemaining;
-        this.carrier = carrier;
+        this.carrierCode = StringDictionary.CARRIERS.encode(carrier);
+    }
+
+    /*
+     * Constructs an IPhone without state of its own, for views that keep their state elsewhere.
+     * Nothing is validated and no carrier is added to StringDictionary.CARRIERS.
+     */
+    IPhone()
+    {
+        super(PURPOSE);
     }
 
     /**
@@ -69,11 +81,11 @@ public class IPhone extends IDevice
      */
     public void addPhonePlanMinutes(double minutesToAdd)
     {
-        if (minutesToAdd < MIN_PHONE_PLAN_MINUTES_TO_ADD)
-        {
-            throw new IllegalArgumentException("Minutes to add cannot be negative.");
-        }
-        phonePlanMinutesRemaining += minutesToAdd;
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.ADD_PHONE_PLAN_MINUTES);
+        validateMinutesToAdd(minutesToAdd);
+        final double minutesRemaining = getPhonePlanMinutesRemaining();
+        writePhonePlanMinutesRemaining(minutesRemaining + minutesToAdd);
+        DeviceListeners.phonePlanMinutesChanged(this, minutesRemaining, minutesRemaining + minutesToAdd);
     }
 
     /**
@@ -86,15 +98,16 @@ public class IPhone extends IDevice
      */
     public void removePhonePlanMinutes(double minutesToRemove)
     {
-        if (minutesToRemove < MIN_PHONE_PLAN_MINUTES_TO_REMOVE)
-        {
-            throw new IllegalArgumentException("Minutes to remove cannot be negative.");
-        }
-        if (minutesToRemove > phonePlanMinutesRemaining)
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.REMOVE_PHONE_PLAN_MINUTES);
+        validateMinutesToRemove(minutesToRemove);
+        final double minutesRemaining = getPhonePlanMinutesRemaining();
+        if (minutesToRemove > minutesRemaining)
         {
-            throw new IllegalArgumentException("Cannot remove more minutes than available.");
+            DeviceMetrics.rejected(DeviceMetrics.Rule.OVERDRAFT, OVERDRAFT_MESSAGE);
+            throw new IllegalArgumentException(OVERDRAFT_MESSAGE);
         }
-        phonePlanMinutesRemaining -= minutesToRemove;
+        writePhonePlanMinutesRemaining(minutesRemaining - minutesToRemove);
+        DeviceListeners.phonePlanMinutesChanged(this, minutesRemaining, minutesRemaining - minutesToRemove);
     }
 
 
@@ -105,7 +118,7 @@ public class IPhone extends IDevice
      */
     public String getCarrier()
     {
-        return carrier;
+        return StringDictionary.CARRIERS.decode(carrierCode());
     }
 
     /**
@@ -116,46 +129,122 @@ public class IPhone extends IDevice
      */
     public void changeCarrier(final String newCarrier)
     {
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.CHANGE_CARRIER);
         if (newCarrier == null || newCarrier.isEmpty())
         {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.CARRIER, "Carrier cannot be null or empty.");
             throw new IllegalArgumentException("Carrier cannot be null or empty.");
         }
-        carrier = newCarrier;
+        final int oldCode = carrierCode();
+        final int newCode = StringDictionary.CARRIERS.encode(newCarrier);
+        writeCarrierCode(newCode);
+        DeviceListeners.carrierChanged(this, oldCode, newCode);
+    }
+
+    /*
+     * Stores a new balance once the calling mutator has validated it.
+     * Views that keep their state outside of this object override this
+     * together with getPhonePlanMinutesRemaining().
+     */
+    void writePhonePlanMinutesRemaining(final double newPhonePlanMinutesRemaining)
+    {
+        phonePlanMinutesRemaining = newPhonePlanMinutesRemaining;
+    }
+
+    /*
+     * Retrieves the code of this phone's carrier in StringDictionary.CARRIERS.
+     * Phones with the same carrier always have the same code.
+     */
+    int carrierCode()
+    {
+        return carrierCode;
+    }
+
+    //     Stores the code of a new, already validated carrier.
+    void writeCarrierCode(final int newCarrierCode)
+    {
+        carrierCode = newCarrierCode;
     }
 
     /*
      * Validates that the remaining phone plan minutes are not below
      * the allowed minimum.
      */
-    private void validatePhonePlanMinutesRemaining(final double phonePlanMinutesRemaining)
+    static void validatePhonePlanMinutesRemaining(final double phonePlanMinutesRemaining)
+    {
+        final String error = phonePlanMinutesRemainingError(phonePlanMinutesRemaining);
+        if (error != null)
+        {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.PHONE_PLAN_MINUTES_REMAINING, error);
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    //     Returns why the remaining phone plan minutes are invalid, or null if they are valid.
+    static String phonePlanMinutesRemainingError(final double phonePlanMinutesRemaining)
     {
         if (phonePlanMinutesRemaining < MIN_PHONE_PLAN_MINUTES_REMAINING)
         {
-            throw new IllegalArgumentException("Phone plan minutes remaining cannot be less than" +
-                    MIN_PHONE_PLAN_MINUTES_REMAINING);
+            return "Phone plan minutes remaining cannot be less than" + MIN_PHONE_PLAN_MINUTES_REMAINING;
+        }
+        return null;
+    }
+
+    //     Validates that a number of minutes to add is not negative.
+    static void validateMinutesToAdd(final double minutesToAdd)
+    {
+        if (minutesToAdd < MIN_PHONE_PLAN_MINUTES_TO_ADD)
+        {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.MINUTES_TO_ADD, "Minutes to add cannot be negative.");
+            throw new IllegalArgumentException("Minutes to add cannot be negative.");
+        }
+    }
+
+    //     Validates that a number of minutes to remove is not negative.
+    static void validateMinutesToRemove(final double minutesToRemove)
+    {
+        if (minutesToRemove < MIN_PHONE_PLAN_MINUTES_TO_REMOVE)
+        {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.MINUTES_TO_REMOVE, "Minutes to remove cannot be negative.");
+            throw new IllegalArgumentException("Minutes to remove cannot be negative.");
         }
     }
 
     //     Validates that the carrier is not null.
-    private void validateCarrier(final String carrier)
+    static void validateCarrier(final String carrier)
+    {
+        final String error = carrierError(carrier);
+        if (error != null)
+        {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.CARRIER, error);
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    //     Returns why the carrier is invalid, or null if it is valid.
+    static String carrierError(final String carrier)
     {
         if (carrier == null)
         {
-            throw new IllegalArgumentException("Carrier cannot be null.");
+            return "Carrier cannot be null.";
         }
+        return null;
     }
 
     /**
-     * Returns a string representation of the {@link IPhone}, including its
+     * Writes a description of the {@link IPhone}, including its
      * remaining phone plan minutes and carrier.
      *
-     * @return A formatted string containing the {@link IPhone}'s details.
+     * @param out The destination to write to.
+     * @throws IOException If the destination fails.
      */
     @Override
-    public String toString()
+    public void writeTo(final Appendable out) throws IOException
     {
-        return (super.toString() + ", it has " + phonePlanMinutesRemaining +
-                " phone plan minutes remaining with the carrier " + carrier + ".");
+        super.writeTo(out);
+        out.append(", it has ");
+        DeviceText.appendDouble(out, getPhonePlanMinutesRemaining());
+        out.append(" phone plan minutes remaining with the carrier ").append(getCarrier()).append('.');
     }
 
     /**
@@ -164,13 +253,14 @@ public class IPhone extends IDevice
     @Override
     public void printDetails()
     {
-        System.out.println(toString());
+        DeviceRenderer.printLine(this, System.out);
     }
 
     /**
      * Checks if this IPhone object is equal to another object.
      * Two IPhone objects are considered equal if they have the same
-     * amount of remaining phone plan minutes.
+     * amount of remaining phone plan minutes. A {@link DeviceFleet.IPhoneView}
+     * compares as the IPhone it currently points at.
      *
      * @param obj The object to compare to this IPhone.
      * @return {@code true} if the given object is an IPhone with the same
@@ -181,15 +271,15 @@ public class IPhone extends IDevice
     {
         boolean comparingIPhones;
 
-        if (obj == null || getClass() != obj.getClass())
+        if (!(obj instanceof IPhone) || deviceClass() != ((IPhone) obj).deviceClass())
         {
             return false;
         }
         if (this == obj)
             return true;
         IPhone otherIPhone = (IPhone) obj;
-        comparingIPhones = this.phonePlanMinutesRemaining ==
-                otherIPhone.phonePlanMinutesRemaining;
+        comparingIPhones = this.getPhonePlanMinutesRemaining() ==
+                otherIPhone.getPhonePlanMinutesRemaining();
         return comparingIPhones;
     }
 
@@ -202,6 +292,6 @@ public class IPhone extends IDevice
     @Override
     public int hashCode()
     {
-        return Objects.hash(phonePlanMinutesRemaining);
+        return Objects.hash(getPhonePlanMinutesRemaining());
     }
 }
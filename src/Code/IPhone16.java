@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.Objects;
 
 /**
@@ -11,7 +12,7 @@ import java.util.Objects;
 public class IPhone16 extends IPhone
 {
     // Constants
-    private static final int MIN_MEMORY_GB;
+    static final int MIN_MEMORY_GB;
 
     static
     {
@@ -44,13 +45,31 @@ public class IPhone16 extends IPhone
         this.memoryGB = memoryGB;
     }
 
+    //    Constructs an IPhone16 without state of its own, for views; nothing is validated.
+    IPhone16()
+    {
+        super();
+    }
+
     //    Validates the memory size in gigabytes.
-    private void validateMemoryGB(final int memoryGB)
+    static void validateMemoryGB(final int memoryGB)
+    {
+        final String error = memoryGBError(memoryGB);
+        if (error != null)
+        {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.MEMORY_GB, error);
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    //    Returns why the memory size is invalid, or null if it is valid.
+    static String memoryGBError(final int memoryGB)
     {
         if (memoryGB < MIN_MEMORY_GB)
         {
-            throw new IllegalArgumentException("Memory cannot be less than " + MIN_MEMORY_GB);
+            return "Memory cannot be less than " + MIN_MEMORY_GB;
         }
+        return null;
     }
 
     /**
@@ -70,7 +89,10 @@ public class IPhone16 extends IPhone
      */
     public void setHighResCamera(boolean highResCamera)
     {
-        this.highResCamera = highResCamera;
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.SET_HIGH_RES_CAMERA);
+        final boolean oldHighResCamera = hasHighResCamera();
+        writeHighResCamera(highResCamera);
+        DeviceListeners.highResCameraChanged(this, oldHighResCamera, highResCamera);
     }
 
     /**
@@ -90,39 +112,55 @@ public class IPhone16 extends IPhone
      */
     public void setMemoryGB(int memoryGB)
     {
-        this.memoryGB = memoryGB;
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.SET_MEMORY_GB);
+        final int oldMemoryGB = getMemoryGB();
+        writeMemoryGB(memoryGB);
+        DeviceListeners.memoryGBChanged(this, oldMemoryGB, memoryGB);
+    }
+
+    /*
+     * Stores the camera flag. Views that keep their state outside of
+     * this object override this together with hasHighResCamera().
+     */
+    void writeHighResCamera(final boolean newHighResCamera)
+    {
+        highResCamera = newHighResCamera;
+    }
+
+    //    Stores the memory size; views override this together with getMemoryGB().
+    void writeMemoryGB(final int newMemoryGB)
+    {
+        memoryGB = newMemoryGB;
     }
 
 
     /**
-     * Returns a string representation of the {@link IPhone16} object, including details about its phone plan minutes,
+     * Writes a description of the {@link IPhone16} object, including details about its phone plan minutes,
      * carrier, high-resolution camera, and memory in GB.
      *
-     * @return A string representation of the {@link IPhone16} object.
+     * @param out The destination to write to.
+     * @throws IOException If the destination fails.
      */
     @Override
-    public String toString()
+    public void writeTo(final Appendable out) throws IOException
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append(super.toString());
-        sb.append(super.getPhonePlanMinutesRemaining());
-        sb.append(" phone plan minutes remaining with the carrier ");
-        sb.append(super.getCarrier());
-        sb.append(".");
-
-        if (highResCamera)
+        super.writeTo(out);
+        DeviceText.appendDouble(out, getPhonePlanMinutesRemaining());
+        out.append(" phone plan minutes remaining with the carrier ");
+        out.append(getCarrier());
+        out.append('.');
+
+        if (hasHighResCamera())
         {
-            sb.append(" It also has a high-res camera,");
+            out.append(" It also has a high-res camera,");
         } else
         {
-            sb.append(" It does not have a high-res camera,");
+            out.append(" It does not have a high-res camera,");
         }
 
-        sb.append(" and has ");
-        sb.append(memoryGB);
-        sb.append("GB of memory.");
-
-        return sb.toString();
+        out.append(" and has ");
+        DeviceText.appendLong(out, getMemoryGB());
+        out.append("GB of memory.");
     }
 
     /**
@@ -131,12 +169,13 @@ public class IPhone16 extends IPhone
     @Override
     public void printDetails()
     {
-        System.out.println(toString());
+        DeviceRenderer.printLine(this, System.out);
     }
 
     /**
      * Compares this {@link IPhone16} object with another object. Two {@link IPhone16} objects are considered equal if
      * they have the same number of remaining phone plan minutes and the same high-resolution camera status.
+     * A {@link DeviceFleet.IPhone16View} compares as the {@link IPhone16} it currently points at.
      *
      * @param obj The object to compare this {@link IPhone16} with.
      * @return {@code true} if the {@link IPhone16} objects are equal, {@code false} otherwise.
@@ -146,7 +185,7 @@ public class IPhone16 extends IPhone
     {
         boolean comparingIPhones;
 
-        if (obj == null || getClass() != obj.getClass())
+        if (!(obj instanceof IPhone16) || deviceClass() != ((IPhone16) obj).deviceClass())
         {
             return false;
         }
@@ -154,19 +193,20 @@ public class IPhone16 extends IPhone
             return true;
 
         IPhone16 otherIPhone = (IPhone16) obj;
-        comparingIPhones = super.getPhonePlanMinutesRemaining() == otherIPhone.getPhonePlanMinutesRemaining() &&
+        comparingIPhones = getPhonePlanMinutesRemaining() == otherIPhone.getPhonePlanMinutesRemaining() &&
                 hasHighResCamera() == otherIPhone.hasHighResCamera();
         return comparingIPhones;
     }
 
     /**
-     * Generates a hash code for the {@link IPhone16} object based on the phone plan minutes remaining.
+     * Generates a hash code for the {@link IPhone16} object based on the phone plan minutes remaining
+     * and whether it has a high-resolution camera, the same fields {@code equals} compares.
      *
      * @return The hash code of this {@link IPhone16} object.
      */
     @Override
     public int hashCode()
     {
-        return Objects.hash(getPhonePlanMinutesRemaining());
+        return Objects.hash(getPhonePlanMinutesRemaining(), hasHighResCamera());
     }
 }
@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.Objects;
 
 /**
@@ -6,7 +7,7 @@ import java.util.Objects;
  * accessor methods, and mutator methods for values:
  * (int) number of songs stored, and
  * (double) maximum volume in decibels.
- * Overrides the toString() method to return all the instance variables
+ * Overrides the writeTo() method to describe all the instance variables
  * in a single String.
  * Overrides the equals() method. IPods with the same number
  * of songs stored are considered equal.
@@ -18,8 +19,8 @@ import java.util.Objects;
  */
 public class IPod extends IDevice
 {
-    private static final double MIN_DECIBEL_LVL;
-    private static final double UNSAFE_DECIBEL_LVL;
+    static final double MIN_DECIBEL_LVL;
+    static final double UNSAFE_DECIBEL_LVL;
     private static final String PURPOSE;
 
     static
@@ -48,13 +49,20 @@ public class IPod extends IDevice
         this.maxVolumeDecibel = maxVolumeDecibel;
     }
 
+    //     Constructs an iPod without state of its own, for views; nothing is validated.
+    IPod()
+    {
+        super(PURPOSE);
+        this.maxVolumeDecibel = MIN_DECIBEL_LVL;
+    }
+
     /**
      * Prints the numOfStoredSongs and maxVolumeDecibel as a string.
      */
     @Override
     public void printDetails()
     {
-        System.out.println(toString());
+        DeviceRenderer.printLine(this, System.out);
     }
 
     /**
@@ -65,13 +73,24 @@ public class IPod extends IDevice
         return numOfStoredSongs;
     }
 
+    /**
+     * @return the absolute max volume the iPod can go, measured in decibels.
+     */
+    public double getMaxVolumeDecibel()
+    {
+        return maxVolumeDecibel;
+    }
+
     /**
      * @param numOfStoredSongs is the number of songs stored on
      *                         the iPod currently.
      */
     public void setNumOfStoredSongs(int numOfStoredSongs)
     {
-        this.numOfStoredSongs = numOfStoredSongs;
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.SET_NUM_OF_STORED_SONGS);
+        final int oldNumOfStoredSongs = getNumOfStoredSongs();
+        writeNumOfStoredSongs(numOfStoredSongs);
+        DeviceListeners.numOfStoredSongsChanged(this, oldNumOfStoredSongs, numOfStoredSongs);
     }
 
     /**
@@ -79,7 +98,10 @@ public class IPod extends IDevice
      */
     public void addSong()
     {
-        numOfStoredSongs++;
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.ADD_SONG);
+        final int oldNumOfStoredSongs = getNumOfStoredSongs();
+        writeNumOfStoredSongs(oldNumOfStoredSongs + 1);
+        DeviceListeners.numOfStoredSongsChanged(this, oldNumOfStoredSongs, oldNumOfStoredSongs + 1);
     }
 
     /**
@@ -87,7 +109,19 @@ public class IPod extends IDevice
      */
     public void delSong()
     {
-        numOfStoredSongs--;
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.DEL_SONG);
+        final int oldNumOfStoredSongs = getNumOfStoredSongs();
+        writeNumOfStoredSongs(oldNumOfStoredSongs - 1);
+        DeviceListeners.numOfStoredSongsChanged(this, oldNumOfStoredSongs, oldNumOfStoredSongs - 1);
+    }
+
+    /*
+     * Stores the number of stored songs. Views that keep their state
+     * outside of this object override this together with getNumOfStoredSongs().
+     */
+    void writeNumOfStoredSongs(final int newNumOfStoredSongs)
+    {
+        numOfStoredSongs = newNumOfStoredSongs;
     }
 
     /*
@@ -95,41 +129,53 @@ public class IPod extends IDevice
      * makes sure it's between MIN_DECIBEL_LVL db and
      * UNSAFE_DECIBEL_LVL (the level when volume become dangerous for humans).
      */
-    private void validateMaxDecibelLevel(final double maxVolumeDecibel)
+    static void validateMaxDecibelLevel(final double maxVolumeDecibel)
+    {
+        final String error = maxDecibelLevelError(maxVolumeDecibel);
+        if (error != null)
+        {
+            DeviceMetrics.rejected(DeviceMetrics.Rule.MAX_DECIBEL_LEVEL, error);
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    //     Returns why the decibel level is invalid, or null if it is within the safe range.
+    static String maxDecibelLevelError(final double maxVolumeDecibel)
     {
         if (maxVolumeDecibel < MIN_DECIBEL_LVL)
         {
-            throw new IllegalArgumentException("Max volume must be a positive number.");
+            return "Max volume must be a positive number.";
         } else if (maxVolumeDecibel > UNSAFE_DECIBEL_LVL)
         {
-            throw new IllegalArgumentException("Please input a number that is a safe decibel number.");
+            return "Please input a number that is a safe decibel number.";
         }
+        return null;
     }
 
     /**
-     * Returns a string representation of the {@link IPod}, including its
+     * Writes a description of the {@link IPod}, including its
      * {@code numOfStoredSongs} and {@code maxVolumeDecibel}.
+     * The volume is written with six decimals, like {@code %f}.
      *
-     * @return A formatted string containing the {@link IPod}'s details.
+     * @param out The destination to write to.
+     * @throws IOException If the destination fails.
      */
     @Override
-    public String toString()
+    public void writeTo(final Appendable out) throws IOException
     {
-        StringBuilder sb;
-        sb = new StringBuilder();
-
-        sb.append(String.format(
-                "Number of stored songs: %d\n", numOfStoredSongs));
-        sb.append(String.format(
-                "Max volume decibel: %f\n", maxVolumeDecibel));
-
-        return sb.toString();
+        out.append("Number of stored songs: ");
+        DeviceText.appendLong(out, getNumOfStoredSongs());
+        out.append('\n');
+        out.append("Max volume decibel: ");
+        DeviceText.appendFixed(out, getMaxVolumeDecibel(), 6);
+        out.append('\n');
     }
 
     /**
      * Checks if this IPod object is equal to another object.
      * Two IPod objects are considered equal if they have the same
-     * amount of songs stored.
+     * amount of songs stored. A {@link DeviceFleet.IPodView} compares as the
+     * IPod it currently points at.
      *
      * @param obj The object to compare to this IPod.
      * @return {@code true} if the given object is an IPod with the same
@@ -140,12 +186,12 @@ public class IPod extends IDevice
     {
         boolean comparingIPods;
 
-        if (obj == null || getClass() != obj.getClass())
+        if (!(obj instanceof IPod) || deviceClass() != ((IPod) obj).deviceClass())
             return false;
         if (this == obj)
             return true;
         IPod other = (IPod) obj;
-        comparingIPods = this.numOfStoredSongs == other.getNumOfStoredSongs();
+        comparingIPods = this.getNumOfStoredSongs() == other.getNumOfStoredSongs();
 
         return comparingIPods;
     }
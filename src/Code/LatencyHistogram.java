@@ -0,0 +1,187 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds that many threads can record into at once.
+ * <p>
+ * Latencies below 4ns are counted exactly; above that, every power of two is split into four
+ * log-linear buckets, so 252 buckets cover every positive {@code long} with an error of at most
+ * a quarter. The buckets, count, total and maximum are striped counters, so threads finishing
+ * operations at the same moment do not contend on one cache line.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+final class LatencyHistogram
+{
+    // Constants
+    private static final int SUB_BUCKET_BITS;
+    private static final int SUB_BUCKETS;
+    private static final int BUCKET_COUNT;
+    private static final double[] REPORTED_PERCENTILES;
+    private static final String[] REPORTED_PERCENTILE_NAMES;
+
+    static
+    {
+        SUB_BUCKET_BITS = 2;
+        SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+        REPORTED_PERCENTILES = new double[]{50.0, 90.0, 99.0, 99.9};
+        REPORTED_PERCENTILE_NAMES = new String[]{"p50Nanos", "p90Nanos", "p99Nanos", "p999Nanos"};
+    }
+
+    // Instance Variables
+    private final LongAdder[] buckets;
+    private final LongAdder count;
+    private final LongAdder totalNanos;
+    private final LongAccumulator maxNanos;
+
+    /**
+     * Constructs an empty {@link LatencyHistogram}.
+     */
+    LatencyHistogram()
+    {
+        buckets = new LongAdder[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            buckets[i] = new LongAdder();
+        }
+        count = new LongAdder();
+        totalNanos = new LongAdder();
+        maxNanos = new LongAccumulator(Math::max, 0L);
+    }
+
+    /**
+     * Adds one latency. Negative latencies, from a clock that went backwards, count as 0.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    void record(final long nanos)
+    {
+        final long latency = Math.max(0L, nanos);
+        buckets[bucket(latency)].increment();
+        count.increment();
+        totalNanos.add(latency);
+        maxNanos.accumulate(latency);
+    }
+
+    /**
+     * @return the number of latencies recorded.
+     */
+    long count()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean latency in nanoseconds, or 0 if none was recorded.
+     */
+    double meanNanos()
+    {
+        final long recorded = count.sum();
+        return recorded == 0 ? 0.0 : (double) totalNanos.sum() / recorded;
+    }
+
+    /**
+     * @return the largest latency recorded in nanoseconds.
+     */
+    long maxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket holding it, capped at the
+     * largest latency recorded.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency in nanoseconds, or 0 if none was recorded.
+     * @throws IllegalArgumentException If the percentile is not between 0 and 100.
+     */
+    long percentile(final double percentile)
+    {
+        if (!(percentile >= 0.0 && percentile <= 100.0))
+        {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+        }
+        final long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0)
+        {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(bucketUpperBound(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Clears the histogram.
+     */
+    void reset()
+    {
+        for (final LongAdder bucket : buckets)
+        {
+            bucket.reset();
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+
+    /**
+     * Appends the count, mean, common percentiles and maximum as a JSON object.
+     *
+     * @param json The builder to append to.
+     */
+    void appendJson(final StringBuilder json)
+    {
+        json.append("{\"count\": ").append(count())
+                .append(", \"meanNanos\": ").append(String.format(Locale.ROOT, "%.1f", meanNanos()));
+        for (int i = 0; i < REPORTED_PERCENTILES.length; i++)
+        {
+            json.append(", \"").append(REPORTED_PERCENTILE_NAMES[i]).append("\": ")
+                    .append(percentile(REPORTED_PERCENTILES[i]));
+        }
+        json.append(", \"maxNanos\": ").append(maxNanos()).append('}');
+    }
+
+    // Returns the bucket of a latency: exact below SUB_BUCKETS, then SUB_BUCKETS per power of two.
+    private static int bucket(final long nanos)
+    {
+        if (nanos < SUB_BUCKETS)
+        {
+            return (int) nanos;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        final int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Returns the largest latency that falls into a bucket.
+    private static long bucketUpperBound(final int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -1,7 +1,25 @@
 public class Main
 {
-    public static void main(final String[] args)
+    public static void main(final String[] args) throws InterruptedException
     {
+        // With options, drive the model with simulated users instead of running the demo
+        if(args.length > 0)
+        {
+            final DeviceLoadGenerator generator;
+            try
+            {
+                generator = DeviceLoadGenerator.parse(args);
+            } catch (IllegalArgumentException e)
+            {
+                System.err.println(e.getMessage());
+                System.err.println("Usage: Main [--users N] [--seconds N] [--devices N] [--think-ms X]"
+                        + " [--mode plain|locked|ledger] [--mix a,b,c,d,e,f] [--seed N]");
+                return;
+            }
+            System.out.print(generator.run());
+            return;
+        }
+
         // Create IPod objects
         final IPod ipod1;
         final IPod ipod2;
@@ -0,0 +1,711 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe ledger of phone plan balances that many billing workers can update at once.
+ * Each balance is held as a fixed-point {@code long} of millionths of a minute and is changed
+ * with compare-and-set through a {@link VarHandle}, so adding and removing minutes never takes
+ * a lock and never loses an update. Only a balance claimed by a batch makes them wait.
+ * A removal that would take a balance below zero fails as a whole and leaves the balance untouched.
+ * {@link LedgerIPhone} exposes a ledger slot as a regular {@link IPhone}.
+ * Billing runs can deduct many balances at once, all or nothing, with {@link #removeBatch}.
+ * Changes to a slot opened with {@link #openIPhone} are reported to every
+ * {@link DeviceMutationListener}, whether they are made through the phone, the slot or a batch.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class MinuteLedger
+{
+    // Constants
+    private static final double UNITS_PER_MINUTE;
+    private static final VarHandle BALANCES;
+    private static final long NO_BALANCE;
+    private static final int SPINS_BEFORE_YIELD;
+    private static final VarHandle PHONES;
+    private static final VarHandle FAILURE_WORDS;
+    private static final int PARALLEL_BATCH_SIZE;
+    private static final int STRIPES_PER_THREAD;
+    private static final int BITS_PER_WORD_SHIFT;
+    private static final int CLAIM;
+    private static final int COMMIT;
+    private static final int RELEASE;
+
+    static
+    {
+        UNITS_PER_MINUTE = 1_000_000.0;
+        BALANCES = MethodHandles.arrayElementVarHandle(long[].class);
+        NO_BALANCE = -1L;
+        SPINS_BEFORE_YIELD = 64;
+        PHONES = MethodHandles.arrayElementVarHandle(LedgerIPhone[].class);
+        FAILURE_WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+        PARALLEL_BATCH_SIZE = 16_384;
+        STRIPES_PER_THREAD = 4;
+        BITS_PER_WORD_SHIFT = 6;
+        CLAIM = 0;
+        COMMIT = 1;
+        RELEASE = 2;
+    }
+
+    // Instance Variables
+    private final long[] balances;
+    private final LedgerIPhone[] phones;
+    private final AtomicInteger slotCount;
+
+    /**
+     * Constructs an empty {@link MinuteLedger} with room for the given number of balances.
+     *
+     * @param capacity The maximum number of balances this ledger can hold.
+     * @throws IllegalArgumentException If the capacity is negative.
+     */
+    public MinuteLedger(final int capacity)
+    {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("Capacity cannot be negative.");
+        }
+        this.balances = new long[capacity];
+        this.phones = new LedgerIPhone[capacity];
+        this.slotCount = new AtomicInteger();
+    }
+
+    /**
+     * Opens a new balance in this ledger.
+     *
+     * @param phonePlanMinutesRemaining The starting number of minutes.
+     * @return The slot of the new balance.
+     * @throws IllegalArgumentException If the minutes are below the phone plan minimum.
+     * @throws IllegalStateException    If the ledger is full.
+     */
+    public int open(final double phonePlanMinutesRemaining)
+    {
+        IPhone.validatePhonePlanMinutesRemaining(phonePlanMinutesRemaining);
+
+        final int slot = slotCount.getAndIncrement();
+        if (slot >= balances.length)
+        {
+            slotCount.decrementAndGet();
+            throw new IllegalStateException("Ledger is full.");
+        }
+        BALANCES.setVolatile(balances, slot, toUnits(phonePlanMinutesRemaining));
+        return slot;
+    }
+
+    /**
+     * Opens a new balance and returns it as an {@link IPhone} with the given carrier.
+     *
+     * @param phonePlanMinutesRemaining The starting number of minutes.
+     * @param carrier                   The mobile carrier of the phone.
+     * @return A phone whose minutes live in this ledger.
+     * @throws IllegalArgumentException If the minutes or carrier are invalid.
+     * @throws IllegalStateException    If the ledger is full.
+     */
+    public LedgerIPhone openIPhone(final double phonePlanMinutesRemaining,
+                                   final String carrier)
+    {
+        final int slot = open(phonePlanMinutesRemaining);
+        final LedgerIPhone phone = new LedgerIPhone(this, slot, carrier);
+        PHONES.setVolatile(phones, slot, phone);
+        return phone;
+    }
+
+    /**
+     * @return the number of balances opened in this ledger.
+     */
+    public int size()
+    {
+        return Math.min(slotCount.get(), balances.length);
+    }
+
+    /**
+     * Retrieves the balance held in a slot.
+     *
+     * @param slot The slot of the balance.
+     * @return The remaining minutes as a {@code double}.
+     */
+    public double balance(final int slot)
+    {
+        return toMinutes(unclaimed(checkSlot(slot)));
+    }
+
+    /**
+     * Atomically adds minutes to a balance.
+     *
+     * @param slot         The slot of the balance.
+     * @param minutesToAdd The number of minutes to add. Must be a positive value.
+     * @throws IllegalArgumentException If {@code minutesToAdd} is negative or the balance would overflow.
+     */
+    public void add(final int slot,
+                    final double minutesToAdd)
+    {
+        IPhone.validateMinutesToAdd(minutesToAdd);
+        final long units = toUnits(minutesToAdd);
+        final long balance = addUnits(checkSlot(slot), units);
+        changed(slot, balance - units, balance);
+    }
+
+    /**
+     * Atomically removes minutes from a balance if enough are available.
+     *
+     * @param slot            The slot of the balance.
+     * @param minutesToRemove The number of minutes to remove. Must be a positive value.
+     * @return {@code true} if the minutes were removed, {@code false} if the balance
+     * was too small, in which case it is left unchanged.
+     * @throws IllegalArgumentException If {@code minutesToRemove} is negative.
+     */
+    public boolean tryRemove(final int slot,
+                             final double minutesToRemove)
+    {
+        IPhone.validateMinutesToRemove(minutesToRemove);
+        final long units = toUnits(minutesToRemove);
+        final long balance = tryRemoveUnits(checkSlot(slot), units);
+        if (balance == NO_BALANCE)
+        {
+            return false;
+        }
+        changed(slot, balance + units, balance);
+        return true;
+    }
+
+    /**
+     * Removes minutes from many balances as one batch: either every removal is applied or none is.
+     * <p>
+     * Every entry is validated before any balance changes. If some slots are not open or some
+     * amounts are negative, not a number or infinite, those entries are marked as failed and
+     * nothing is removed. Otherwise the entries are grouped into stripes of neighbouring slots,
+     * which are processed in parallel. Each balance of the batch is first claimed, and the
+     * removals are checked against the claimed balances. Only when none of them
+     * would overdraw are the new balances written; otherwise every claimed balance is released
+     * unchanged. While a balance is claimed, other threads reading or changing it wait for the
+     * batch, so they never see part of a batch and never fail because of one that is rolled back.
+     * Batches are applied one at a time.
+     * <p>
+     * The same slot may appear several times; its removals are checked one after another, in the
+     * order of the arrays. The arrays must not be changed until the call returns. When the batch is
+     * applied, every {@link DeviceMutationListener} is told about each change to a slot that was
+     * opened with {@link #openIPhone}.
+     *
+     * @param slots           The slots to deduct from.
+     * @param minutesToRemove The minutes to remove from the slot at the same index.
+     * @return The outcome of the batch, marking each entry that failed.
+     * @throws IllegalArgumentException If either array is {@code null} or their lengths differ.
+     */
+    public BatchResult removeBatch(final int[] slots,
+                                   final double[] minutesToRemove)
+    {
+        if (slots == null || minutesToRemove == null || slots.length != minutesToRemove.length)
+        {
+            throw new IllegalArgumentException("Slots and minutes must be arrays of the same length.");
+        }
+        final long start = DeviceMetrics.start();
+        final BatchResult result = applyBatch(slots, minutesToRemove);
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.REMOVE_BATCH, start, slots.length);
+        return result;
+    }
+
+    /**
+     * Removes minutes from many phones of this ledger as one batch, as described in
+     * {@link #removeBatch(int[], double[])}. Phones that do not belong to this ledger are marked
+     * as failed.
+     *
+     * @param phones          The phones to deduct from.
+     * @param minutesToRemove The minutes to remove from the phone at the same index.
+     * @return The outcome of the batch, marking each entry that failed.
+     * @throws IllegalArgumentException If either array is {@code null} or their lengths differ.
+     */
+    public BatchResult removeBatch(final LedgerIPhone[] phones,
+                                   final double[] minutesToRemove)
+    {
+        if (phones == null || minutesToRemove == null || phones.length != minutesToRemove.length)
+        {
+            throw new IllegalArgumentException("Phones and minutes must be arrays of the same length.");
+        }
+        final long start = DeviceMetrics.start();
+        final int[] slots = new int[phones.length];
+        for (int i = 0; i < phones.length; i++)
+        {
+            slots[i] = phones[i] != null && phones[i].ledger == this ? phones[i].slot : -1;
+        }
+        final BatchResult result = applyBatch(slots, minutesToRemove);
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.REMOVE_BATCH, start, phones.length);
+        return result;
+    }
+
+    // Validates and applies a batch of removals, then tells the listeners about every change.
+    private BatchResult applyBatch(final int[] slots,
+                                   final double[] minutesToRemove)
+    {
+        final int count = slots.length;
+        final long[] failures = new long[(count + Long.SIZE - 1) >>> BITS_PER_WORD_SHIFT];
+        final long[] units = new long[count];
+        final int opened = size();
+
+        int invalid = 0;
+        for (int i = 0; i < count; i++)
+        {
+            final double minutes = minutesToRemove[i];
+            if (slots[i] < 0 || slots[i] >= opened || !(minutes >= 0.0) || Double.isInfinite(minutes))
+            {
+                failures[i >>> BITS_PER_WORD_SHIFT] |= 1L << i;
+                invalid++;
+            } else
+            {
+                units[i] = toUnits(minutes);
+            }
+        }
+        if (invalid > 0)
+        {
+            return new BatchResult(false, count, invalid, failures);
+        }
+
+        final long[] newBalances = DeviceListeners.isListening() ? new long[count] : null;
+        final Batch batch = new Batch(this, slots, units, newBalances, failures, opened);
+        final int failed = runBatch(batch);
+        if (failed > 0)
+        {
+            return new BatchResult(false, count, failed, failures);
+        }
+
+        if (newBalances != null)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                changed(slots[i], newBalances[i] + units[i], newBalances[i]);
+            }
+        }
+        return new BatchResult(true, count, 0, failures);
+    }
+
+    // Claims and checks every balance of a batch, then commits or releases them all.
+    private synchronized int runBatch(final Batch batch)
+    {
+        final int failed = batch.run(CLAIM);
+        batch.run(failed == 0 ? COMMIT : RELEASE);
+        return failed;
+    }
+
+    // Adds fixed-point units to a slot with a compare-and-set loop and returns the new balance.
+    long addUnits(final int slot,
+                  final long units)
+    {
+        long current;
+        long updated;
+        do
+        {
+            current = unclaimed(slot);
+            updated = current + units;
+            if (updated < current)
+            {
+                throw new IllegalArgumentException("Phone plan minutes would overflow.");
+            }
+        } while (!BALANCES.weakCompareAndSet(balances, slot, current, updated));
+        return updated;
+    }
+
+    // Replaces the balance of a slot once no batch has it claimed.
+    void setUnits(final int slot,
+                  final long units)
+    {
+        long current;
+        do
+        {
+            current = unclaimed(slot);
+        } while (!BALANCES.weakCompareAndSet(balances, slot, current, units));
+    }
+
+    /*
+     * Removes fixed-point units from a slot unless that would overdraw it.
+     * Returns the new balance, or NO_BALANCE if the slot was left unchanged.
+     */
+    long tryRemoveUnits(final int slot,
+                        final long units)
+    {
+        long current;
+        do
+        {
+            current = unclaimed(slot);
+            if (units > current)
+            {
+                return NO_BALANCE;
+            }
+        } while (!BALANCES.weakCompareAndSet(balances, slot, current, current - units));
+        return current - units;
+    }
+
+    // Reads the balance of a slot, waiting while a batch has it claimed.
+    private long unclaimed(final int slot)
+    {
+        long current = (long) BALANCES.getVolatile(balances, slot);
+        for (int spins = 0; current < 0; spins++)
+        {
+            if (spins < SPINS_BEFORE_YIELD)
+            {
+                Thread.onSpinWait();
+            } else
+            {
+                Thread.yield();
+            }
+            current = (long) BALANCES.getVolatile(balances, slot);
+        }
+        return current;
+    }
+
+    // Claims the balance of a slot for a batch and returns it.
+    private long claim(final int slot)
+    {
+        long current;
+        do
+        {
+            current = unclaimed(slot);
+        } while (!BALANCES.weakCompareAndSet(balances, slot, current, ~current));
+        return current;
+    }
+
+    // Tells the listeners about a change to a slot that belongs to a LedgerIPhone.
+    private void changed(final int slot,
+                         final long oldUnits,
+                         final long newUnits)
+    {
+        if (DeviceListeners.isListening())
+        {
+            final LedgerIPhone phone = (LedgerIPhone) PHONES.getVolatile(phones, slot);
+            if (phone != null)
+            {
+                DeviceListeners.phonePlanMinutesChanged(phone, toMinutes(oldUnits), toMinutes(newUnits));
+            }
+        }
+    }
+
+    // Converts minutes into fixed-point units, rounding to the nearest unit.
+    static long toUnits(final double minutes)
+    {
+        return Math.round(minutes * UNITS_PER_MINUTE);
+    }
+
+    // Converts fixed-point units back into minutes.
+    static double toMinutes(final long units)
+    {
+        return units / UNITS_PER_MINUTE;
+    }
+
+    // Checks that a slot has been opened.
+    private int checkSlot(final int slot)
+    {
+        if (slot < 0 || slot >= size())
+        {
+            throw new IndexOutOfBoundsException("Slot " + slot + " has not been opened.");
+        }
+        return slot;
+    }
+
+    /**
+     * The outcome of {@link #removeBatch}: whether the batch was applied, and which entries failed.
+     */
+    public static final class BatchResult
+    {
+        private final boolean applied;
+        private final int size;
+        private final int failureCount;
+        private final long[] failures;
+
+        private BatchResult(final boolean applied,
+                            final int size,
+                            final int failureCount,
+                            final long[] failures)
+        {
+            this.applied = applied;
+            this.size = size;
+            this.failureCount = failureCount;
+            this.failures = failures;
+        }
+
+        /**
+         * @return {@code true} if every removal was applied, {@code false} if none was.
+         */
+        public boolean applied()
+        {
+            return applied;
+        }
+
+        /**
+         * @return the number of entries in the batch.
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * @return the number of entries that failed.
+         */
+        public int failureCount()
+        {
+            return failureCount;
+        }
+
+        /**
+         * Checks whether one entry failed, either because it was invalid or because it would
+         * have overdrawn its balance.
+         *
+         * @param index The index of the entry in the batch.
+         * @return {@code true} if the entry failed.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public boolean failed(final int index)
+        {
+            if (index < 0 || index >= size)
+            {
+                throw new IndexOutOfBoundsException("Entry " + index + " out of range for " + size);
+            }
+            return (failures[index >>> BITS_PER_WORD_SHIFT] & (1L << index)) != 0;
+        }
+
+        /**
+         * @return a copy of the failures as a bitmap, where bit {@code i % 64} of word
+         * {@code i / 64} is set if entry {@code i} failed.
+         */
+        public long[] failureBitmap()
+        {
+            return failures.clone();
+        }
+    }
+
+    /*
+     * The removals of one batch, grouped into stripes of neighbouring slots. Every removal
+     * of a slot falls in the same stripe, so each stripe is claimed, committed or released
+     * by one task without racing the other tasks of the batch.
+     * <p>
+     * A claimed slot holds the bitwise complement of its running balance, which is negative,
+     * so other threads know to wait, and the batch can keep checking further removals of the
+     * slot against it. The entry that claimed a slot keeps the complement of the balance it had
+     * then, which is never zero; every other entry keeps zero.
+     */
+    private static final class Batch
+    {
+        private final MinuteLedger ledger;
+        private final int[] slots;
+        private final long[] units;
+        private final long[] newBalances;
+        private final long[] failures;
+        private final long[] claimedBalances;
+        private final int[] order;
+        private final int[] stripeStarts;
+
+        private Batch(final MinuteLedger ledger,
+                      final int[] slots,
+                      final long[] units,
+                      final long[] newBalances,
+                      final long[] failures,
+                      final int opened)
+        {
+            this.ledger = ledger;
+            this.slots = slots;
+            this.units = units;
+            this.newBalances = newBalances;
+            this.failures = failures;
+            this.claimedBalances = new long[slots.length];
+
+            final int threads = ForkJoinPool.getCommonPoolParallelism();
+            final int stripes = slots.length < PARALLEL_BATCH_SIZE || threads <= 1 ? 1 : threads * STRIPES_PER_THREAD;
+            stripeStarts = new int[stripes + 1];
+            if (stripes == 1)
+            {
+                order = null;
+                stripeStarts[1] = slots.length;
+                return;
+            }
+
+            // Counting sort of the entries by stripe, keeping their order within a stripe.
+            for (final int slot : slots)
+            {
+                stripeStarts[stripeOf(slot, stripes, opened) + 1]++;
+            }
+            for (int stripe = 0; stripe < stripes; stripe++)
+            {
+                stripeStarts[stripe + 1] += stripeStarts[stripe];
+            }
+            final int[] next = stripeStarts.clone();
+            order = new int[slots.length];
+            for (int i = 0; i < slots.length; i++)
+            {
+                order[next[stripeOf(slots[i], stripes, opened)]++] = i;
+            }
+        }
+
+        // Runs one phase over every stripe and returns the number of removals that failed.
+        private int run(final int phase)
+        {
+            final int stripes = stripeStarts.length - 1;
+            if (stripes == 1)
+            {
+                return runStripe(0, phase);
+            }
+            return ForkJoinPool.commonPool().invoke(new StripeTask(this, 0, stripes, phase));
+        }
+
+        /*
+         * Claims the balances of a stripe and checks its removals in order, marking those that
+         * would overdraw, or writes back the new or the claimed balance of each slot.
+         */
+        private int runStripe(final int stripe,
+                              final int phase)
+        {
+            final long[] balances = ledger.balances;
+            int failed = 0;
+            for (int position = stripeStarts[stripe]; position < stripeStarts[stripe + 1]; position++)
+            {
+                final int entry = order == null ? position : order[position];
+                final int slot = slots[entry];
+                if (phase == CLAIM)
+                {
+                    // Only this task writes the slots of its stripe while they are claimed
+                    long balance = (long) BALANCES.get(balances, slot);
+                    if (balance < 0)
+                    {
+                        balance = ~balance;
+                    } else
+                    {
+                        balance = ledger.claim(slot);
+                        claimedBalances[entry] = ~balance;
+                    }
+                    if (units[entry] > balance)
+                    {
+                        FAILURE_WORDS.getAndBitwiseOr(failures, entry >>> BITS_PER_WORD_SHIFT, 1L << entry);
+                        failed++;
+                    } else
+                    {
+                        balance -= units[entry];
+                        BALANCES.set(balances, slot, ~balance);
+                        if (newBalances != null)
+                        {
+                            newBalances[entry] = balance;
+                        }
+                    }
+                } else if (claimedBalances[entry] != 0)
+                {
+                    final long balance = phase == COMMIT
+                            ? ~(long) BALANCES.get(balances, slot)
+                            : ~claimedBalances[entry];
+                    BALANCES.setVolatile(balances, slot, balance);
+                }
+            }
+            return failed;
+        }
+
+        // The stripe of a slot: slots are split into equal ranges.
+        private static int stripeOf(final int slot,
+                                    final int stripes,
+                                    final int opened)
+        {
+            return (int) ((long) slot * stripes / opened);
+        }
+    }
+
+    /*
+     * Splits a range of stripes in half until one is left, then runs a phase of the batch on it.
+     */
+    private static final class StripeTask extends RecursiveTask<Integer>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Batch batch;
+        private final int from;
+        private final int to;
+        private final int phase;
+
+        private StripeTask(final Batch batch,
+                           final int from,
+                           final int to,
+                           final int phase)
+        {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+            this.phase = phase;
+        }
+
+        @Override
+        protected Integer compute()
+        {
+            if (to - from == 1)
+            {
+                return batch.runStripe(from, phase);
+            }
+            final int middle = (from + to) >>> 1;
+            final StripeTask left = new StripeTask(batch, from, middle, phase);
+            left.fork();
+            final int right = new StripeTask(batch, middle, to, phase).compute();
+            return left.join() + right;
+        }
+    }
+
+    /**
+     * An {@link IPhone} whose phone plan minutes are kept in a {@link MinuteLedger}.
+     * Adding and removing minutes are single atomic operations, so concurrent callers
+     * never lose an update and a removal that would overdraw fails without changing anything.
+     */
+    public static final class LedgerIPhone extends IPhone
+    {
+        private final MinuteLedger ledger;
+        private final int slot;
+
+        private LedgerIPhone(final MinuteLedger ledger,
+                             final int slot,
+                             final String carrier)
+        {
+            super(ledger.balance(slot), carrier);
+            this.ledger = ledger;
+            this.slot = slot;
+        }
+
+        /**
+         * @return the ledger slot holding this phone's minutes.
+         */
+        public int slot()
+        {
+            return slot;
+        }
+
+        @Override
+        public double getPhonePlanMinutesRemaining()
+        {
+            return ledger.balance(slot);
+        }
+
+        @Override
+        public void addPhonePlanMinutes(final double minutesToAdd)
+        {
+            DeviceMetrics.mutated(DeviceMetrics.Mutation.ADD_PHONE_PLAN_MINUTES);
+            IPhone.validateMinutesToAdd(minutesToAdd);
+            final long units = toUnits(minutesToAdd);
+            final long balance = ledger.addUnits(slot, units);
+            DeviceListeners.phonePlanMinutesChanged(this, toMinutes(balance - units), toMinutes(balance));
+        }
+
+        @Override
+        public void removePhonePlanMinutes(final double minutesToRemove)
+        {
+            DeviceMetrics.mutated(DeviceMetrics.Mutation.REMOVE_PHONE_PLAN_MINUTES);
+            IPhone.validateMinutesToRemove(minutesToRemove);
+            final long units = toUnits(minutesToRemove);
+            final long balance = ledger.tryRemoveUnits(slot, units);
+            if (balance == NO_BALANCE)
+            {
+                DeviceMetrics.rejected(DeviceMetrics.Rule.OVERDRAFT, IPhone.OVERDRAFT_MESSAGE);
+                throw new IllegalArgumentException(IPhone.OVERDRAFT_MESSAGE);
+            }
+            DeviceListeners.phonePlanMinutesChanged(this, toMinutes(balance + units), toMinutes(balance));
+        }
+
+        // Replaces the ledger balance, as when a write-ahead log replays a recorded balance.
+        @Override
+        void writePhonePlanMinutesRemaining(final double newPhonePlanMinutesRemaining)
+        {
+            ledger.setUnits(slot, toUnits(newPhonePlanMinutesRemaining));
+        }
+    }
+}
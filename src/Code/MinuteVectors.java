@@ -0,0 +1,131 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels for bulk arithmetic on a column of phone plan minutes, built on the incubating
+ * Vector API, which needs {@code --add-modules jdk.incubator.vector} at compile and run time.
+ * <p>
+ * Each kernel works a whole vector of phones at a time: lanes outside the carrier segment are masked
+ * off, and lanes whose result breaks a minutes rule are reported in a bit-packed violation mask
+ * instead of throwing. A scalar version of the same kernel handles the tail of the column and is
+ * the reference the vector version is benchmarked against.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+final class MinuteVectors
+{
+    // Constants
+    static final int ADD;
+    static final int SUBTRACT;
+    static final int EXPIRE;
+    static final int ALL_CARRIERS;
+    private static final VectorSpecies<Double> DOUBLES;
+    private static final VectorSpecies<Integer> CODES;
+    private static final int BITS_PER_WORD_SHIFT;
+
+    static
+    {
+        ADD = 0;
+        SUBTRACT = 1;
+        EXPIRE = 2;
+        ALL_CARRIERS = -1;
+        DOUBLES = DoubleVector.SPECIES_PREFERRED;
+        CODES = VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+        BITS_PER_WORD_SHIFT = 6;
+    }
+
+    private MinuteVectors()
+    {
+    }
+
+    /*
+     * Applies an operation to the first count balances whose carrier code matches, or to all of them
+     * when the code is ALL_CARRIERS, and returns the violation mask as one bit per balance:
+     * ADD      adds the amount, leaving a balance unchanged if the sum overflows to infinity;
+     * SUBTRACT subtracts the amount, leaving a balance unchanged if it would drop below the minimum;
+     * EXPIRE   subtracts the amount and clamps at the minimum, reporting every balance that was clamped.
+     */
+    static long[] apply(final int operation,
+                        final double[] minutes,
+                        final int[] carrierCodes,
+                        final int count,
+                        final int carrierCode,
+                        final double amount)
+    {
+        final long[] violations = new long[(count + Long.SIZE - 1) >>> BITS_PER_WORD_SHIFT];
+        final double minimum = IPhone.MIN_PHONE_PLAN_MINUTES_REMAINING;
+        final double delta = operation == ADD ? amount : -amount;
+        final VectorMask<Integer> allCarriers = CODES.maskAll(carrierCode == ALL_CARRIERS);
+        final VectorMask<Double> rejectViolations = DOUBLES.maskAll(operation != EXPIRE);
+        final int bound = DOUBLES.loopBound(count);
+
+        // Every operation runs the same lane expression, since vectors that flow through branches
+        // or lane operators that are not constants stop the JIT from compiling to SIMD. A sum can
+        // only overflow and a difference can only drop below the minimum, so testing both is exact,
+        // and clamping only matters for lanes that are written.
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length())
+        {
+            final VectorMask<Double> selected =
+                    IntVector.fromArray(CODES, carrierCodes, i).eq(carrierCode).or(allCarriers).cast(DOUBLES);
+            final DoubleVector result = DoubleVector.fromArray(DOUBLES, minutes, i).add(delta);
+            final VectorMask<Double> violated = result.test(VectorOperators.IS_INFINITE)
+                    .or(result.compare(VectorOperators.LT, minimum)).and(selected);
+            result.max(minimum).intoArray(minutes, i, selected.andNot(violated.and(rejectViolations)));
+            violations[i >>> BITS_PER_WORD_SHIFT] |= violated.toLong() << i;
+        }
+        applyScalar(operation, minutes, carrierCodes, i, count, carrierCode, amount, violations);
+        return violations;
+    }
+
+    // The scalar version of apply, one balance at a time.
+    static long[] applyScalar(final int operation,
+                              final double[] minutes,
+                              final int[] carrierCodes,
+                              final int count,
+                              final int carrierCode,
+                              final double amount)
+    {
+        final long[] violations = new long[(count + Long.SIZE - 1) >>> BITS_PER_WORD_SHIFT];
+        applyScalar(operation, minutes, carrierCodes, 0, count, carrierCode, amount, violations);
+        return violations;
+    }
+
+    // Applies an operation to the balances from start to end, one at a time, marking violations.
+    private static void applyScalar(final int operation,
+                                    final double[] minutes,
+                                    final int[] carrierCodes,
+                                    final int start,
+                                    final int end,
+                                    final int carrierCode,
+                                    final double amount,
+                                    final long[] violations)
+    {
+        final double minimum = IPhone.MIN_PHONE_PLAN_MINUTES_REMAINING;
+        for (int i = start; i < end; i++)
+        {
+            if (carrierCode != ALL_CARRIERS && carrierCodes[i] != carrierCode)
+            {
+                continue;
+            }
+            final double result = operation == ADD ? minutes[i] + amount : minutes[i] - amount;
+            if (operation == ADD ? Double.isInfinite(result) : result < minimum)
+            {
+                violations[i >>> BITS_PER_WORD_SHIFT] |= 1L << i;
+                if (operation == EXPIRE)
+                {
+                    minutes[i] = minimum;
+                }
+            } else
+            {
+                minutes[i] = result;
+            }
+        }
+    }
+}
@@ -0,0 +1,1084 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32C;
+
+/**
+ * An opt-in history of how phones' plan balances changed over time, for auditing.
+ * <p>
+ * Phones are registered with the history, which then listens for their changes through
+ * {@link DeviceListeners} and appends the new balance and the time of every {@code addPhonePlanMinutes}
+ * and {@code removePhonePlanMinutes} to the phone's own time series. Series are compressed the way
+ * Gorilla compresses metrics: a timestamp is stored as the change from the previous gap between
+ * timestamps, which is a single bit when changes arrive at a steady rate, and a balance is stored as
+ * the meaningful bits of its XOR with the previous balance, which is a single bit when it did not change.
+ * <p>
+ * A series is written in blocks of up to 512 points. The open block of each series is kept in memory,
+ * and once it is full it is sealed: handed to the history's writer thread, which appends it to the
+ * history's file with a checksum, and replaced by an empty block. A sealed block stays readable from
+ * memory until it has been written. Each series keeps a small directory of the time range and file
+ * position of its sealed blocks, so {@link #balanceAt(int, long)} and {@link #range(int, long, long)}
+ * read and decode only the blocks that overlap the time they ask about. {@link #flush()} seals every
+ * open block, waits for the writer, and forces the file to disk. Opening a history recovers the sealed
+ * blocks already in its file, dropping a block torn by a crash at its end; the series recovered keep
+ * their ids, and phones registered afterwards get new ones.
+ * <p>
+ * Recording a change never touches the file and never throws. Each series has its own lock, and a
+ * registered phone keeps its series in this history's slot from {@link DeviceRegistrations}, so changes
+ * to different phones do not wait for each other and changes to unregistered phones are skipped after
+ * reading one field. If the writer fails, it stops writing, the blocks it has not written stay in
+ * memory, and the failure is thrown by the next {@link #flush()} or {@link #close()}.
+ * <p>
+ * Phones are held by identity. Flyweight views, such as those from a {@link DeviceFleet},
+ * cannot be registered, because they stand for a different phone whenever they are moved.
+ * The history is thread-safe.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class MinutesHistory implements DeviceMutationListener, Closeable
+{
+    // Constants
+    private static final String FILE_NAME;
+    private static final int POINTS_PER_BLOCK;
+    private static final int BLOCK_HEADER_SIZE;
+    private static final int MAX_BLOCK_WORDS;
+    private static final int DEFAULT_CAPACITY;
+
+    static
+    {
+        FILE_NAME = "minutes-history.dat";
+        POINTS_PER_BLOCK = 512;
+        BLOCK_HEADER_SIZE = 4 * Integer.BYTES + 2 * Long.BYTES;
+        // The first point takes 128 bits and every other point at most 68 for its time and 77 for its balance
+        MAX_BLOCK_WORDS = (2 * Long.SIZE + (POINTS_PER_BLOCK - 1) * 145) / Long.SIZE + 1;
+        DEFAULT_CAPACITY = 16;
+    }
+
+    // Instance Variables
+    private final FileChannel file;
+    private final LongSupplier clock;
+    private final int registrationSlot;
+    private final List<Series> series;
+    private final ArrayDeque<Block> unwritten;
+    private final Thread writer;
+    private final AtomicLong blocksRead;
+    private long fileSize;
+    private IOException failure;
+    private boolean stopping;
+    private volatile boolean closed;
+
+    private MinutesHistory(final FileChannel file,
+                           final LongSupplier clock)
+    {
+        this.file = file;
+        this.clock = clock;
+        registrationSlot = DeviceRegistrations.acquire();
+        series = new ArrayList<>();
+        unwritten = new ArrayDeque<>();
+        writer = new Thread(this::writeBlocks, "minutes-history-writer");
+        writer.setDaemon(true);
+        blocksRead = new AtomicLong();
+    }
+
+    /**
+     * Opens the history in a directory, timing changes with {@link System#currentTimeMillis()}
+     * and recovering the series it already holds. The directory is created if it does not exist.
+     *
+     * @param directory The directory holding the history's file.
+     * @return The opened history.
+     * @throws IOException If the history cannot be read or written.
+     */
+    public static MinutesHistory open(final Path directory) throws IOException
+    {
+        return open(directory, System::currentTimeMillis);
+    }
+
+    /**
+     * Opens the history in a directory, recovering the series it already holds.
+     * The directory is created if it does not exist.
+     *
+     * @param directory The directory holding the history's file.
+     * @param clock     The clock that times every change, in milliseconds.
+     * @return The opened history.
+     * @throws IOException              If the history cannot be read or written.
+     * @throws IllegalArgumentException If the clock is {@code null}.
+     */
+    public static MinutesHistory open(final Path directory,
+                                      final LongSupplier clock) throws IOException
+    {
+        if (clock == null)
+        {
+            throw new IllegalArgumentException("Clock cannot be null.");
+        }
+        Files.createDirectories(directory);
+
+        final FileChannel file = FileChannel.open(directory.resolve(FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final MinutesHistory history = new MinutesHistory(file, clock);
+        try
+        {
+            history.recover();
+        } catch (IOException | RuntimeException e)
+        {
+            DeviceRegistrations.release(history.registrationSlot);
+            file.close();
+            throw e;
+        }
+        history.writer.start();
+        DeviceListeners.add(history);
+        return history;
+    }
+
+    /**
+     * Registers a phone, starting its series with its current balance.
+     * Registering a phone twice returns the id it was given the first time.
+     *
+     * @param phone The phone to register.
+     * @return The id of the phone's series.
+     * @throws IllegalArgumentException If the phone is {@code null} or a flyweight view of a {@link DeviceFleet}.
+     * @throws IllegalStateException    If the history is closed.
+     */
+    public synchronized int register(final IPhone phone)
+    {
+        if (phone == null)
+        {
+            throw new IllegalArgumentException("Phone cannot be null.");
+        }
+        if (DeviceFleet.isView(phone))
+        {
+            throw new IllegalArgumentException("Fleet views cannot be registered.");
+        }
+        checkOpen();
+
+        final Object existing = phone.registration(registrationSlot);
+        if (existing != null)
+        {
+            return ((Series) existing).id;
+        }
+        final Series created = new Series(series.size(), phone);
+        series.add(created);
+        // Holding the new series' lock makes a change reported meanwhile wait for the first point
+        synchronized (created)
+        {
+            phone.register(registrationSlot, created);
+            append(created, phone.getPhonePlanMinutesRemaining());
+        }
+        return created.id;
+    }
+
+    /**
+     * @return the number of series in the history, including those recovered from its file.
+     */
+    public synchronized int size()
+    {
+        return series.size();
+    }
+
+    /**
+     * Retrieves the balance a series held at a point in time, which is the last balance
+     * recorded at or before it. Only the one block holding that balance is decoded.
+     *
+     * @param id   The id of the series.
+     * @param time The time, in milliseconds.
+     * @return The balance, or {@link Double#NaN} if the series has no balance recorded by then.
+     * @throws IllegalArgumentException If there is no series with the id.
+     * @throws UncheckedIOException     If a block cannot be read or is corrupt.
+     */
+    public double balanceAt(final int id,
+                            final long time)
+    {
+        final Series found = series(id);
+        final Block block;
+        synchronized (found)
+        {
+            if (found.count > 0 && found.firstTime <= time)
+            {
+                return lastBalanceBy(new BlockDecoder(found.words, found.count), time);
+            }
+            final int index = lastBlockStartingBy(found, time);
+            if (index < 0)
+            {
+                return Double.NaN;
+            }
+            block = found.blocks[index];
+        }
+        // A block that has been written is read from the file without holding the series' lock
+        return lastBalanceBy(decoder(block), time);
+    }
+
+    /**
+     * Returns the balances a series recorded from {@code from}, inclusive, to {@code to}, exclusive,
+     * oldest first. Only the blocks that overlap the range are decoded.
+     *
+     * @param id   The id of the series.
+     * @param from The inclusive start of the range, in milliseconds.
+     * @param to   The exclusive end of the range, in milliseconds.
+     * @return The recorded points.
+     * @throws IllegalArgumentException If there is no series with the id.
+     * @throws UncheckedIOException     If a block cannot be read or is corrupt.
+     */
+    public Points range(final int id,
+                        final long from,
+                        final long to)
+    {
+        final Series found = series(id);
+        final Points points = new Points();
+        if (from >= to)
+        {
+            return points;
+        }
+
+        final Block[] blocks;
+        final long[] openWords;
+        final int openCount;
+        synchronized (found)
+        {
+            final int first = firstBlockEndingFrom(found, from);
+            int last = first;
+            while (last < found.blockCount && found.blockFirstTimes[last] < to)
+            {
+                last++;
+            }
+            blocks = Arrays.copyOfRange(found.blocks, first, last);
+            final boolean overlaps = found.count > 0 && found.lastTime >= from && found.firstTime < to;
+            openWords = overlaps ? Arrays.copyOf(found.words, found.wordCount()) : null;
+            openCount = found.count;
+        }
+        for (final Block block : blocks)
+        {
+            collect(decoder(block), from, to, points);
+        }
+        if (openWords != null)
+        {
+            collect(new BlockDecoder(openWords, openCount), from, to, points);
+        }
+        return points;
+    }
+
+    /**
+     * Seals the open block of every series, waits for the writer to append every sealed block,
+     * and forces the history's file to disk.
+     *
+     * @throws IOException           If the blocks cannot be written, now or by an earlier seal.
+     * @throws IllegalStateException If the history is closed.
+     */
+    public void flush() throws IOException
+    {
+        checkOpen();
+        sealAll();
+        awaitWritten();
+        file.force(false);
+    }
+
+    /**
+     * Seals every open block, stops listening for changes, waits for the writer and closes the
+     * history's file. Changes made after the history is closed are not recorded.
+     *
+     * @throws IOException If the blocks cannot be written, now or by an earlier seal.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        DeviceListeners.remove(this);
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+        }
+        try
+        {
+            sealAll();
+            awaitWritten();
+            file.force(false);
+        } finally
+        {
+            synchronized (this)
+            {
+                stopping = true;
+                notifyAll();
+            }
+            try
+            {
+                writer.join();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            DeviceRegistrations.release(registrationSlot);
+            file.close();
+        }
+    }
+
+    /**
+     * Records the balance of a registered phone. Phones that are not registered are skipped
+     * without taking a lock, and a registered phone only takes the lock of its own series.
+     * The balance is read from the phone while holding that lock, rather than taken from the event,
+     * so that when changes race, their events cannot reach the lock out of order and leave a last
+     * point that is not the phone's balance. Racing changes may instead record the later balance twice.
+     *
+     * @param phone      The phone that changed.
+     * @param oldMinutes The minutes remaining before the change.
+     * @param newMinutes The minutes remaining after the change.
+     */
+    @Override
+    public void phonePlanMinutesChanged(final IPhone phone,
+                                        final double oldMinutes,
+                                        final double newMinutes)
+    {
+        final Object registered = phone.registration(registrationSlot);
+        if (registered == null)
+        {
+            return;
+        }
+        final Series target = (Series) registered;
+        synchronized (target)
+        {
+            if (!closed)
+            {
+                append(target, phone.getPhonePlanMinutesRemaining());
+            }
+        }
+    }
+
+    // The number of sealed blocks read from the file since the history was opened.
+    long blocksRead()
+    {
+        return blocksRead.get();
+    }
+
+    // Appends a balance at the current time, sealing the series' block once it is full. Holds the series' lock.
+    private void append(final Series target,
+                        final double balance)
+    {
+        // A clock that steps backwards must not break the order that block lookups rely on
+        final long time = target.count > 0 || target.blockCount > 0
+                          ? Math.max(clock.getAsLong(), target.lastTime) : clock.getAsLong();
+        target.append(time, balance);
+        if (target.count == POINTS_PER_BLOCK)
+        {
+            seal(target);
+        }
+    }
+
+    /*
+     * Moves the open block of a series to its directory, where it is read from memory until the
+     * writer has appended it to the file, and starts a new block. Holds the series' lock.
+     */
+    private void seal(final Series target)
+    {
+        final Block block = new Block(target.id, target.count, target.firstTime, target.lastTime,
+                Arrays.copyOf(target.words, target.wordCount()));
+        target.addBlock(block);
+        target.reset();
+        synchronized (this)
+        {
+            unwritten.add(block);
+            notifyAll();
+        }
+    }
+
+    // Seals the open block of every series, unregistering the phones once the history is closed.
+    private void sealAll()
+    {
+        final Series[] all;
+        synchronized (this)
+        {
+            all = series.toArray(new Series[0]);
+        }
+        for (final Series each : all)
+        {
+            synchronized (each)
+            {
+                if (closed && each.phone != null)
+                {
+                    each.phone.unregister(registrationSlot);
+                }
+                if (each.count > 0)
+                {
+                    seal(each);
+                }
+            }
+        }
+    }
+
+    // Waits until the writer has written every block sealed so far, throwing the failure that stopped it.
+    private synchronized void awaitWritten() throws IOException
+    {
+        while (!unwritten.isEmpty() && failure == null)
+        {
+            try
+            {
+                wait();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the history.", e);
+            }
+        }
+        if (failure != null)
+        {
+            throw new IOException("History blocks could not be written.", failure);
+        }
+    }
+
+    /*
+     * The writer thread. Appends sealed blocks to the file in the order they were sealed, without
+     * holding any lock while it writes. After a failure it writes nothing more, because a block
+     * after a torn one could never be recovered, and waits to be stopped.
+     */
+    private void writeBlocks()
+    {
+        while (true)
+        {
+            final Block block;
+            synchronized (this)
+            {
+                while (!stopping && (unwritten.isEmpty() || failure != null))
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                if (stopping)
+                {
+                    return;
+                }
+                block = unwritten.peek();
+            }
+
+            IOException error = null;
+            try
+            {
+                write(block);
+            } catch (IOException e)
+            {
+                error = e;
+            }
+            synchronized (this)
+            {
+                if (error == null)
+                {
+                    unwritten.poll();
+                } else
+                {
+                    failure = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Writes a sealed block to the end of the file. The header holds the series id, point count,
+     * first and last times and word count, followed by a CRC32C of the header and words.
+     * Only the writer thread calls this.
+     */
+    private void write(final Block block) throws IOException
+    {
+        final long[] words = block.words;
+        final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + words.length * Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(block.seriesId).putInt(block.count).putLong(block.firstTime).putLong(block.lastTime)
+                .putInt(words.length).putInt(0);
+        for (final long word : words)
+        {
+            buffer.putLong(word);
+        }
+        buffer.putInt(BLOCK_HEADER_SIZE - Integer.BYTES, checksum(buffer));
+        buffer.flip();
+
+        final long offset = fileSize;
+        long position = offset;
+        while (buffer.hasRemaining())
+        {
+            position += file.write(buffer, position);
+        }
+        fileSize = position;
+        block.offset = offset;
+        // Readers that see the words gone are guaranteed to see the offset
+        block.words = null;
+    }
+
+    // A decoder over a sealed block, from memory if it has not been written yet.
+    private BlockDecoder decoder(final Block block)
+    {
+        final long[] words = block.words;
+        return words != null ? new BlockDecoder(words, block.count) : readBlock(block);
+    }
+
+    // Reads and checks a sealed block from the file, returning a decoder over its points.
+    private BlockDecoder readBlock(final Block block)
+    {
+        try
+        {
+            final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, block.offset);
+            final int wordCount = header.getInt(Integer.BYTES * 2 + Long.BYTES * 2);
+            final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + wordCount * Long.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(header.flip());
+            readFully(buffer, block.offset + BLOCK_HEADER_SIZE);
+            if (header.getInt(0) != block.seriesId
+                || checksum(buffer) != buffer.getInt(BLOCK_HEADER_SIZE - Integer.BYTES))
+            {
+                throw new IOException("History block at byte " + block.offset + " is corrupt.");
+            }
+
+            final long[] words = new long[wordCount];
+            buffer.position(BLOCK_HEADER_SIZE);
+            buffer.asLongBuffer().get(words);
+            blocksRead.incrementAndGet();
+            return new BlockDecoder(words, block.count);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException("History block could not be read.", e);
+        }
+    }
+
+    /*
+     * Rebuilds the block directories from the file, reading only the block headers and checksums.
+     * Reading stops at the first incomplete or corrupt block, which can only be the one being
+     * written when the program stopped, and the file is cut back to the end of the last good block.
+     */
+    private void recover() throws IOException
+    {
+        final long size = file.size();
+        final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = 0L;
+        while (offset + BLOCK_HEADER_SIZE <= size)
+        {
+            header.clear();
+            readFully(header, offset);
+            final int id = header.getInt(0);
+            final int count = header.getInt(Integer.BYTES);
+            final long firstTime = header.getLong(Integer.BYTES * 2);
+            final long lastTime = header.getLong(Integer.BYTES * 2 + Long.BYTES);
+            final int wordCount = header.getInt(Integer.BYTES * 2 + Long.BYTES * 2);
+            if (id < 0 || count <= 0 || count > POINTS_PER_BLOCK || wordCount <= 0 || wordCount > MAX_BLOCK_WORDS
+                || offset + BLOCK_HEADER_SIZE + (long) wordCount * Long.BYTES > size)
+            {
+                break;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + wordCount * Long.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(header.flip());
+            readFully(buffer, offset + BLOCK_HEADER_SIZE);
+            if (checksum(buffer) != buffer.getInt(BLOCK_HEADER_SIZE - Integer.BYTES))
+            {
+                break;
+            }
+
+            while (series.size() <= id)
+            {
+                series.add(new Series(series.size(), null));
+            }
+            series.get(id).addBlock(new Block(id, count, firstTime, lastTime, offset));
+            offset += buffer.capacity();
+        }
+        if (offset < size)
+        {
+            file.truncate(offset);
+        }
+        fileSize = offset;
+    }
+
+    // The CRC32C of a block, leaving out its checksum field.
+    private static int checksum(final ByteBuffer block)
+    {
+        final CRC32C checksum = new CRC32C();
+        checksum.update(block.duplicate().position(0).limit(BLOCK_HEADER_SIZE - Integer.BYTES));
+        checksum.update(block.duplicate().position(BLOCK_HEADER_SIZE).limit(block.capacity()));
+        return (int) checksum.getValue();
+    }
+
+    // Fills the rest of a buffer from the file, starting at the given position.
+    private void readFully(final ByteBuffer buffer,
+                           final long position) throws IOException
+    {
+        long at = position;
+        while (buffer.hasRemaining())
+        {
+            final int read = file.read(buffer, at);
+            if (read < 0)
+            {
+                throw new EOFException("History ended at byte " + at);
+            }
+            at += read;
+        }
+    }
+
+    // The series with an id.
+    private synchronized Series series(final int id)
+    {
+        if (id < 0 || id >= series.size())
+        {
+            throw new IllegalArgumentException("No series with id " + id);
+        }
+        return series.get(id);
+    }
+
+    // Checks that the history has not been closed.
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("History is closed.");
+        }
+    }
+
+    // The last sealed block whose first point is not after the given time, or -1.
+    private static int lastBlockStartingBy(final Series target,
+                                           final long time)
+    {
+        int low = 0;
+        int high = target.blockCount - 1;
+        int found = -1;
+        while (low <= high)
+        {
+            final int middle = (low + high) >>> 1;
+            if (target.blockFirstTimes[middle] <= time)
+            {
+                found = middle;
+                low = middle + 1;
+            } else
+            {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    // The first sealed block whose last point is not before the given time, or the block count.
+    private static int firstBlockEndingFrom(final Series target,
+                                            final long time)
+    {
+        int low = 0;
+        int high = target.blockCount;
+        while (low < high)
+        {
+            final int middle = (low + high) >>> 1;
+            if (target.blockLastTimes[middle] < time)
+            {
+                low = middle + 1;
+            } else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // The last balance of a block recorded at or before a time, or NaN.
+    private static double lastBalanceBy(final BlockDecoder decoder,
+                                        final long time)
+    {
+        double balance = Double.NaN;
+        while (decoder.next() && decoder.time <= time)
+        {
+            balance = decoder.balance;
+        }
+        return balance;
+    }
+
+    // Adds the points of a block that fall in a range.
+    private static void collect(final BlockDecoder decoder,
+                                final long from,
+                                final long to,
+                                final Points points)
+    {
+        while (decoder.next() && decoder.time < to)
+        {
+            if (decoder.time >= from)
+            {
+                points.add(decoder.time, decoder.balance);
+            }
+        }
+    }
+
+    // A mask of the lowest bits of a long.
+    private static long lowBits(final int bits)
+    {
+        return bits == Long.SIZE ? -1L : (1L << bits) - 1;
+    }
+
+    /*
+     * One phone's series: the directory of its sealed blocks, and its open block with the state
+     * the next point is encoded against. Everything but the id and phone is guarded by the series'
+     * own lock. The phone is null for a series recovered from the file.
+     */
+    private static final class Series
+    {
+        private final int id;
+        private final IPhone phone;
+        private long[] blockFirstTimes;
+        private long[] blockLastTimes;
+        private Block[] blocks;
+        private int blockCount;
+
+        private long[] words;
+        private long bitCount;
+        private int count;
+        private long firstTime;
+        private long lastTime;
+        private long previousDelta;
+        private long previousBits;
+        private int previousLeading;
+        private int previousTrailing;
+
+        private Series(final int id,
+                       final IPhone phone)
+        {
+            this.id = id;
+            this.phone = phone;
+            blockFirstTimes = new long[DEFAULT_CAPACITY];
+            blockLastTimes = new long[DEFAULT_CAPACITY];
+            blocks = new Block[DEFAULT_CAPACITY];
+            words = new long[DEFAULT_CAPACITY];
+            previousLeading = -1;
+        }
+
+        /*
+         * Encodes a point. The first point of a block is stored whole. After it, a time is stored
+         * as its delta-of-delta: 0 as '0', then '10', '110' and '1110' with 7, 9 and 12 bits of
+         * offset value, and '1111' with all 64 bits. A balance is stored as its XOR with the previous one:
+         * '0' if they are equal, '10' and the meaningful bits if they fit in the previous window of
+         * leading and trailing zeros, or '11', 5 bits of leading zeros, 6 bits of length and the bits.
+         */
+        private void append(final long time,
+                            final double balance)
+        {
+            final long bits = Double.doubleToRawLongBits(balance);
+            if (count == 0)
+            {
+                firstTime = time;
+                writeBits(time, Long.SIZE);
+                writeBits(bits, Long.SIZE);
+            } else
+            {
+                final long delta = time - lastTime;
+                final long deltaOfDelta = delta - previousDelta;
+                previousDelta = delta;
+                if (deltaOfDelta == 0)
+                {
+                    writeBits(0b0, 1);
+                } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64)
+                {
+                    writeBits(0b10, 2);
+                    writeBits(deltaOfDelta + 63, 7);
+                } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256)
+                {
+                    writeBits(0b110, 3);
+                    writeBits(deltaOfDelta + 255, 9);
+                } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048)
+                {
+                    writeBits(0b1110, 4);
+                    writeBits(deltaOfDelta + 2047, 12);
+                } else
+                {
+                    writeBits(0b1111, 4);
+                    writeBits(deltaOfDelta, Long.SIZE);
+                }
+
+                final long xor = bits ^ previousBits;
+                if (xor == 0)
+                {
+                    writeBits(0b0, 1);
+                } else
+                {
+                    final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    final int trailing = Long.numberOfTrailingZeros(xor);
+                    if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing)
+                    {
+                        writeBits(0b10, 2);
+                        writeBits(xor >>> previousTrailing, Long.SIZE - previousLeading - previousTrailing);
+                    } else
+                    {
+                        final int length = Long.SIZE - leading - trailing;
+                        writeBits(0b11, 2);
+                        writeBits(leading, 5);
+                        writeBits(length - 1, 6);
+                        writeBits(xor >>> trailing, length);
+                        previousLeading = leading;
+                        previousTrailing = trailing;
+                    }
+                }
+            }
+            previousBits = bits;
+            lastTime = time;
+            count++;
+        }
+
+        // Appends the lowest bits of a value, most significant first.
+        private void writeBits(final long value,
+                               final int bits)
+        {
+            final int word = (int) (bitCount >>> 6);
+            if (word + 1 >= words.length)
+            {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            final long masked = value & lowBits(bits);
+            final int free = Long.SIZE - (int) (bitCount & 63);
+            if (bits <= free)
+            {
+                words[word] |= masked << (free - bits);
+            } else
+            {
+                words[word] |= masked >>> (bits - free);
+                words[word + 1] |= masked << (Long.SIZE - (bits - free));
+            }
+            bitCount += bits;
+        }
+
+        // The number of words the open block's points take up.
+        private int wordCount()
+        {
+            return (int) ((bitCount + Long.SIZE - 1) >>> 6);
+        }
+
+        // Adds a sealed block to the directory.
+        private void addBlock(final Block block)
+        {
+            if (blockCount == blocks.length)
+            {
+                blockFirstTimes = Arrays.copyOf(blockFirstTimes, blockCount * 2);
+                blockLastTimes = Arrays.copyOf(blockLastTimes, blockCount * 2);
+                blocks = Arrays.copyOf(blocks, blockCount * 2);
+            }
+            blockFirstTimes[blockCount] = block.firstTime;
+            blockLastTimes[blockCount] = block.lastTime;
+            blocks[blockCount] = block;
+            blockCount++;
+            lastTime = Math.max(lastTime, block.lastTime);
+        }
+
+        // Empties the open block, keeping its last time so later points stay in order.
+        private void reset()
+        {
+            Arrays.fill(words, 0L);
+            bitCount = 0L;
+            count = 0;
+            previousDelta = 0L;
+            previousLeading = -1;
+        }
+    }
+
+    /*
+     * A sealed block of a series. Its words are kept in memory from the moment it is sealed until
+     * the writer has appended it to the file; the writer sets the offset before it drops the words.
+     */
+    private static final class Block
+    {
+        private final int seriesId;
+        private final int count;
+        private final long firstTime;
+        private final long lastTime;
+        private volatile long[] words;
+        private long offset;
+
+        // A block that has just been sealed and is waiting for the writer.
+        private Block(final int seriesId,
+                      final int count,
+                      final long firstTime,
+                      final long lastTime,
+                      final long[] words)
+        {
+            this.seriesId = seriesId;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.words = words;
+        }
+
+        // A block recovered from the file.
+        private Block(final int seriesId,
+                      final int count,
+                      final long firstTime,
+                      final long lastTime,
+                      final long offset)
+        {
+            this.seriesId = seriesId;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.offset = offset;
+        }
+    }
+
+    /*
+     * Reads the points of a block in order. next() decodes the following point into time and balance.
+     */
+    private static final class BlockDecoder
+    {
+        private final long[] words;
+        private final int count;
+        private long position;
+        private int decoded;
+        private long time;
+        private long delta;
+        private long bits;
+        private double balance;
+        private int leading;
+        private int trailing;
+
+        private BlockDecoder(final long[] words,
+                             final int count)
+        {
+            this.words = words;
+            this.count = count;
+        }
+
+        private boolean next()
+        {
+            if (decoded == count)
+            {
+                return false;
+            }
+            if (decoded == 0)
+            {
+                time = readBits(Long.SIZE);
+                bits = readBits(Long.SIZE);
+            } else
+            {
+                final long deltaOfDelta;
+                if (readBits(1) == 0)
+                {
+                    deltaOfDelta = 0;
+                } else if (readBits(1) == 0)
+                {
+                    deltaOfDelta = readBits(7) - 63;
+                } else if (readBits(1) == 0)
+                {
+                    deltaOfDelta = readBits(9) - 255;
+                } else if (readBits(1) == 0)
+                {
+                    deltaOfDelta = readBits(12) - 2047;
+                } else
+                {
+                    deltaOfDelta = readBits(Long.SIZE);
+                }
+                delta += deltaOfDelta;
+                time += delta;
+
+                if (readBits(1) == 1)
+                {
+                    if (readBits(1) == 1)
+                    {
+                        leading = (int) readBits(5);
+                        final int length = (int) readBits(6) + 1;
+                        trailing = Long.SIZE - leading - length;
+                    }
+                    bits ^= readBits(Long.SIZE - leading - trailing) << trailing;
+                }
+            }
+            balance = Double.longBitsToDouble(bits);
+            decoded++;
+            return true;
+        }
+
+        // Reads the next bits as the lowest bits of a long.
+        private long readBits(final int bitCount)
+        {
+            final int word = (int) (position >>> 6);
+            final int free = Long.SIZE - (int) (position & 63);
+            position += bitCount;
+            if (bitCount <= free)
+            {
+                return (words[word] >>> (free - bitCount)) & lowBits(bitCount);
+            }
+            final int rest = bitCount - free;
+            return ((words[word] & lowBits(free)) << rest) | (words[word + 1] >>> (Long.SIZE - rest));
+        }
+    }
+
+    /**
+     * The balances a series recorded over a range of time, oldest first.
+     */
+    public static final class Points
+    {
+        private long[] times;
+        private double[] balances;
+        private int size;
+
+        private Points()
+        {
+            times = new long[DEFAULT_CAPACITY];
+            balances = new double[DEFAULT_CAPACITY];
+        }
+
+        /**
+         * @return the number of points.
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * @param index The index of the point.
+         * @return the time the balance was recorded, in milliseconds.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public long time(final int index)
+        {
+            return times[checkIndex(index)];
+        }
+
+        /**
+         * @param index The index of the point.
+         * @return the balance that was recorded.
+         * @throws IndexOutOfBoundsException If the index is out of range.
+         */
+        public double balance(final int index)
+        {
+            return balances[checkIndex(index)];
+        }
+
+        // Appends a point.
+        private void add(final long time,
+                         final double balance)
+        {
+            if (size == times.length)
+            {
+                times = Arrays.copyOf(times, size * 2);
+                balances = Arrays.copyOf(balances, size * 2);
+            }
+            times[size] = time;
+            balances[size] = balance;
+            size++;
+        }
+
+        // Checks that an index holds a point.
+        private int checkIndex(final int index)
+        {
+            if (index < 0 || index >= size)
+            {
+                throw new IndexOutOfBoundsException("Index " + index + " is out of range.");
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sorted index of phones by their remaining phone plan minutes, answering questions such as
+ * "which phones have fewer than 30 minutes left?" without scanning every phone.
+ * <p>
+ * The index registers itself as a {@link DeviceMutationListener}, so it stays current as
+ * {@code addPhonePlanMinutes} and {@code removePhonePlanMinutes} are called on the phones it holds.
+ * Entries are kept in a two-level structure like a shallow B+-tree: a directory of sorted blocks,
+ * each holding up to a few hundred primitive {@code long} keys and {@code int} phone ids.
+ * A range query binary searches the directory and then the first block, and reads the matching
+ * entries in order. Moving a phone only shifts entries within its blocks.
+ * <p>
+ * Phones are held by identity, and each phone records its id in this index's slot from
+ * {@link DeviceRegistrations}. A change to a phone the index does not hold is skipped after reading
+ * that one field, without taking the index's lock, so the index only slows down the phones it holds.
+ * Flyweight views, such as those from a {@link DeviceFleet}, cannot be added, because they stand for
+ * a different phone whenever they are moved.
+ * The index is thread-safe. Call {@link #close()} to stop tracking changes once it is no longer needed.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class MinutesRangeIndex implements DeviceMutationListener, AutoCloseable
+{
+    // Constants
+    private static final int BLOCK_SIZE;
+    private static final int DEFAULT_CAPACITY;
+    private static final int NO_ID;
+
+    static
+    {
+        BLOCK_SIZE = 256;
+        DEFAULT_CAPACITY = 16;
+        NO_ID = -1;
+    }
+
+    // Instance Variables
+    private final int registrationSlot;
+    private int size;
+    private boolean closed;
+    private IPhone[] phones;
+    private long[] phoneKeys;
+    private int[] freeIds;
+    private int freeIdCount;
+    private int nextId;
+
+    // Blocks of entries sorted by key then id, and the first entry of each block.
+    private long[][] blockKeys;
+    private int[][] blockIds;
+    private int[] blockSizes;
+    private long[] firstKeys;
+    private int[] firstIds;
+    private int blockCount;
+
+    /**
+     * Constructs an empty {@link MinutesRangeIndex} and starts tracking changes to phone plan minutes.
+     */
+    public MinutesRangeIndex()
+    {
+        registrationSlot = DeviceRegistrations.acquire();
+        phones = new IPhone[DEFAULT_CAPACITY];
+        phoneKeys = new long[DEFAULT_CAPACITY];
+        freeIds = new int[DEFAULT_CAPACITY];
+
+        blockKeys = new long[DEFAULT_CAPACITY][];
+        blockIds = new int[DEFAULT_CAPACITY][];
+        blockSizes = new int[DEFAULT_CAPACITY];
+        firstKeys = new long[DEFAULT_CAPACITY];
+        firstIds = new int[DEFAULT_CAPACITY];
+        blockKeys[0] = new long[BLOCK_SIZE];
+        blockIds[0] = new int[BLOCK_SIZE];
+        blockCount = 1;
+
+        DeviceListeners.add(this);
+    }
+
+    /**
+     * Adds a phone to the index.
+     *
+     * @param phone The phone to add.
+     * @return {@code true} if the phone was added, {@code false} if it was already in the index.
+     * @throws IllegalArgumentException If the phone is {@code null} or a {@link DeviceFleet} view.
+     * @throws IllegalStateException    If the index has been closed.
+     */
+    public synchronized boolean add(final IPhone phone)
+    {
+        if (phone == null || DeviceFleet.isView(phone))
+        {
+            throw new IllegalArgumentException("Phone cannot be null or a fleet view.");
+        }
+        checkOpen();
+        if (phone.registration(registrationSlot) != null)
+        {
+            return false;
+        }
+
+        final int id = allocateId(phone);
+        phone.register(registrationSlot, id);
+        phoneKeys[id] = sortableKey(phone.getPhonePlanMinutesRemaining());
+        insert(phoneKeys[id], id);
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a phone from the index.
+     *
+     * @param phone The phone to remove.
+     * @return {@code true} if the phone was in the index.
+     * @throws IllegalStateException If the index has been closed.
+     */
+    public synchronized boolean remove(final IPhone phone)
+    {
+        checkOpen();
+        final Object id = phone == null ? null : phone.unregister(registrationSlot);
+        if (id == null)
+        {
+            return false;
+        }
+        final int phoneId = (Integer) id;
+        delete(phoneKeys[phoneId], phoneId);
+        phones[phoneId] = null;
+        releaseId(phoneId);
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the number of phones in the index.
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the phones with fewer than the given number of minutes remaining, fewest first.
+     *
+     * @param minutes The exclusive upper bound on the remaining minutes.
+     * @return The matching phones.
+     */
+    public List<IPhone> below(final double minutes)
+    {
+        return between(Double.NEGATIVE_INFINITY, minutes);
+    }
+
+    /**
+     * Counts the phones with fewer than the given number of minutes remaining.
+     *
+     * @param minutes The exclusive upper bound on the remaining minutes.
+     * @return The number of matching phones.
+     */
+    public int countBelow(final double minutes)
+    {
+        return countBetween(Double.NEGATIVE_INFINITY, minutes);
+    }
+
+    /**
+     * Returns the phones whose remaining minutes are at least {@code from} and less than
+     * {@code to}, fewest first.
+     *
+     * @param from The inclusive lower bound on the remaining minutes.
+     * @param to   The exclusive upper bound on the remaining minutes.
+     * @return The matching phones.
+     */
+    public synchronized List<IPhone> between(final double from,
+                                             final double to)
+    {
+        final List<IPhone> result = new ArrayList<>();
+        final long toKey = sortableKey(to);
+        int block = findBlock(sortableKey(from), NO_ID);
+        int position = lowerBound(block, sortableKey(from), NO_ID);
+        for (; block < blockCount; block++, position = 0)
+        {
+            final long[] keys = blockKeys[block];
+            final int[] blockPhoneIds = blockIds[block];
+            for (; position < blockSizes[block]; position++)
+            {
+                if (keys[position] >= toKey)
+                {
+                    return result;
+                }
+                result.add(phones[blockPhoneIds[position]]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the phones whose remaining minutes are at least {@code from} and less than {@code to}.
+     *
+     * @param from The inclusive lower bound on the remaining minutes.
+     * @param to   The exclusive upper bound on the remaining minutes.
+     * @return The number of matching phones.
+     */
+    public synchronized int countBetween(final double from,
+                                         final double to)
+    {
+        final long fromKey = sortableKey(from);
+        final long toKey = sortableKey(to);
+        if (fromKey >= toKey)
+        {
+            return 0;
+        }
+        final int firstBlock = findBlock(fromKey, NO_ID);
+        final int lastBlock = findBlock(toKey, NO_ID);
+        final int start = lowerBound(firstBlock, fromKey, NO_ID);
+        final int end = lowerBound(lastBlock, toKey, NO_ID);
+        if (firstBlock == lastBlock)
+        {
+            return end - start;
+        }
+        int count = blockSizes[firstBlock] - start + end;
+        for (int block = firstBlock + 1; block < lastBlock; block++)
+        {
+            count += blockSizes[block];
+        }
+        return count;
+    }
+
+    /**
+     * Moves a phone held by this index to the position of its current balance.
+     * The balance is read again rather than taken from the arguments, so changes that
+     * are reported out of order still leave the phone in the right place.
+     * Phones the index does not hold are skipped without taking its lock.
+     *
+     * @param phone      The phone that changed.
+     * @param oldMinutes The minutes remaining before the change.
+     * @param newMinutes The minutes remaining after the change.
+     */
+    @Override
+    public void phonePlanMinutesChanged(final IPhone phone,
+                                        final double oldMinutes,
+                                        final double newMinutes)
+    {
+        if (phone.registration(registrationSlot) == null)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            // Read again under the lock, in case the phone was removed in the meantime
+            final Object id = closed ? null : phone.registration(registrationSlot);
+            if (id == null)
+            {
+                return;
+            }
+            final int phoneId = (Integer) id;
+            final long key = sortableKey(phone.getPhonePlanMinutesRemaining());
+            if (key != phoneKeys[phoneId])
+            {
+                delete(phoneKeys[phoneId], phoneId);
+                phoneKeys[phoneId] = key;
+                insert(key, phoneId);
+            }
+        }
+    }
+
+    /**
+     * Stops tracking changes to phone plan minutes. The index can still be queried,
+     * but no longer follows the phones' balances, and phones can no longer be added or removed.
+     */
+    @Override
+    public void close()
+    {
+        DeviceListeners.remove(this);
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            for (int id = 0; id < nextId; id++)
+            {
+                if (phones[id] != null)
+                {
+                    phones[id].unregister(registrationSlot);
+                }
+            }
+        }
+        DeviceRegistrations.release(registrationSlot);
+    }
+
+    // Checks that the index has not been closed.
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Index is closed.");
+        }
+    }
+
+    /*
+     * Maps minutes to a long that sorts in the same order as the minutes.
+     * Negative values have their magnitude bits flipped, -0.0 is folded into 0.0,
+     * and NaN sorts after positive infinity.
+     */
+    private static long sortableKey(final double minutes)
+    {
+        final long bits = Double.doubleToLongBits(minutes == 0.0 ? 0.0 : minutes);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    // Compares two entries by key and then by id.
+    private static int compare(final long key,
+                               final int id,
+                               final long otherKey,
+                               final int otherId)
+    {
+        final int byKey = Long.compare(key, otherKey);
+        return byKey != 0 ? byKey : Integer.compare(id, otherId);
+    }
+
+    // Finds the last block whose first entry is not after the given entry, or block 0.
+    private int findBlock(final long key,
+                          final int id)
+    {
+        int low = 1;
+        int high = blockCount - 1;
+        int found = 0;
+        while (low <= high)
+        {
+            final int middle = (low + high) >>> 1;
+            if (compare(firstKeys[middle], firstIds[middle], key, id) <= 0)
+            {
+                found = middle;
+                low = middle + 1;
+            } else
+            {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    // Finds the position of the first entry in a block that is not before the given entry.
+    private int lowerBound(final int block,
+                           final long key,
+                           final int id)
+    {
+        final long[] keys = blockKeys[block];
+        final int[] entryIds = blockIds[block];
+        int low = 0;
+        int high = blockSizes[block];
+        while (low < high)
+        {
+            final int middle = (low + high) >>> 1;
+            if (compare(keys[middle], entryIds[middle], key, id) < 0)
+            {
+                low = middle + 1;
+            } else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Inserts an entry, splitting its block in half if it is full.
+    private void insert(final long key,
+                        final int id)
+    {
+        int block = findBlock(key, id);
+        if (blockSizes[block] == BLOCK_SIZE)
+        {
+            split(block);
+            if (compare(key, id, firstKeys[block + 1], firstIds[block + 1]) >= 0)
+            {
+                block++;
+            }
+        }
+
+        final int position = lowerBound(block, key, id);
+        final int size = blockSizes[block];
+        System.arraycopy(blockKeys[block], position, blockKeys[block], position + 1, size - position);
+        System.arraycopy(blockIds[block], position, blockIds[block], position + 1, size - position);
+        blockKeys[block][position] = key;
+        blockIds[block][position] = id;
+        blockSizes[block] = size + 1;
+        if (position == 0)
+        {
+            firstKeys[block] = key;
+            firstIds[block] = id;
+        }
+    }
+
+    // Removes an entry, dropping its block if it becomes empty.
+    private void delete(final long key,
+                        final int id)
+    {
+        final int block = findBlock(key, id);
+        final int position = lowerBound(block, key, id);
+        final int size = blockSizes[block] - 1;
+        System.arraycopy(blockKeys[block], position + 1, blockKeys[block], position, size - position);
+        System.arraycopy(blockIds[block], position + 1, blockIds[block], position, size - position);
+        blockSizes[block] = size;
+
+        if (size == 0 && blockCount > 1)
+        {
+            removeBlock(block);
+        } else if (position == 0 && size > 0)
+        {
+            firstKeys[block] = blockKeys[block][0];
+            firstIds[block] = blockIds[block][0];
+        }
+    }
+
+    // Moves the upper half of a full block into a new block after it.
+    private void split(final int block)
+    {
+        if (blockCount == blockSizes.length)
+        {
+            final int newCapacity = blockCount * 2;
+            blockKeys = Arrays.copyOf(blockKeys, newCapacity);
+            blockIds = Arrays.copyOf(blockIds, newCapacity);
+            blockSizes = Arrays.copyOf(blockSizes, newCapacity);
+            firstKeys = Arrays.copyOf(firstKeys, newCapacity);
+            firstIds = Arrays.copyOf(firstIds, newCapacity);
+        }
+        final int moved = blockCount - block - 1;
+        System.arraycopy(blockKeys, block + 1, blockKeys, block + 2, moved);
+        System.arraycopy(blockIds, block + 1, blockIds, block + 2, moved);
+        System.arraycopy(blockSizes, block + 1, blockSizes, block + 2, moved);
+        System.arraycopy(firstKeys, block + 1, firstKeys, block + 2, moved);
+        System.arraycopy(firstIds, block + 1, firstIds, block + 2, moved);
+        blockCount++;
+
+        final int half = BLOCK_SIZE / 2;
+        final int next = block + 1;
+        blockKeys[next] = new long[BLOCK_SIZE];
+        blockIds[next] = new int[BLOCK_SIZE];
+        System.arraycopy(blockKeys[block], half, blockKeys[next], 0, BLOCK_SIZE - half);
+        System.arraycopy(blockIds[block], half, blockIds[next], 0, BLOCK_SIZE - half);
+        blockSizes[next] = BLOCK_SIZE - half;
+        blockSizes[block] = half;
+        firstKeys[next] = blockKeys[next][0];
+        firstIds[next] = blockIds[next][0];
+    }
+
+    // Removes an empty block from the directory.
+    private void removeBlock(final int block)
+    {
+        final int moved = blockCount - block - 1;
+        System.arraycopy(blockKeys, block + 1, blockKeys, block, moved);
+        System.arraycopy(blockIds, block + 1, blockIds, block, moved);
+        System.arraycopy(blockSizes, block + 1, blockSizes, block, moved);
+        System.arraycopy(firstKeys, block + 1, firstKeys, block, moved);
+        System.arraycopy(firstIds, block + 1, firstIds, block, moved);
+        blockCount--;
+        blockKeys[blockCount] = null;
+        blockIds[blockCount] = null;
+    }
+
+    // Takes a free id, or a new one, and stores the phone under it.
+    private int allocateId(final IPhone phone)
+    {
+        final int id;
+        if (freeIdCount > 0)
+        {
+            id = freeIds[--freeIdCount];
+        } else
+        {
+            if (nextId == phones.length)
+            {
+                phones = Arrays.copyOf(phones, nextId * 2);
+                phoneKeys = Arrays.copyOf(phoneKeys, nextId * 2);
+            }
+            id = nextId++;
+        }
+        phones[id] = phone;
+        return id;
+    }
+
+    // Returns an id to the free list.
+    private void releaseId(final int id)
+    {
+        if (freeIdCount == freeIds.length)
+        {
+            freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+        }
+        freeIds[freeIdCount++] = id;
+    }
+}
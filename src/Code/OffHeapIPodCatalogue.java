@@ -0,0 +1,281 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * A catalogue of iPod records stored outside the Java heap, for large fleets that live for a long time.
+ * <p>
+ * Each record is a fixed-width struct of the number of stored songs and the maximum volume, laid out
+ * back to back in one {@link MemorySegment} allocated from a shared {@link Arena}. The garbage collector
+ * never scans or copies the records, so heap usage and GC pauses do not grow with the number of iPods.
+ * The memory is released all at once by {@link #close()}; any use of the catalogue after that throws
+ * {@link IllegalStateException}.
+ * <p>
+ * Records are addressed by slot and follow the same rules as {@link IPod}: the maximum volume must be
+ * a safe decibel level, and songs are added and deleted one at a time. {@link #iPod(int)} returns a
+ * short-lived {@link CatalogueIPod} view of a slot for code that works with {@link IPod}s. Changes made
+ * through a slot are counted by {@link DeviceMetrics} and reported to {@link DeviceListeners} exactly
+ * like changes made through a view.
+ * <p>
+ * Records can be added and read from any thread: {@link #add} publishes the new size only after the
+ * record is written, so every thread that sees a slot also sees its record. Like {@link IPod}, a single
+ * record is not safe to change from several threads at once without locking.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class OffHeapIPodCatalogue implements AutoCloseable
+{
+    // Constants
+    private static final StructLayout RECORD;
+    private static final long SONGS_OFFSET;
+    private static final long VOLUME_OFFSET;
+
+    static
+    {
+        RECORD = MemoryLayout.structLayout(
+                ValueLayout.JAVA_INT.withName("numOfStoredSongs"),
+                MemoryLayout.paddingLayout(4),
+                ValueLayout.JAVA_DOUBLE.withName("maxVolumeDecibel"));
+        SONGS_OFFSET = RECORD.byteOffset(MemoryLayout.PathElement.groupElement("numOfStoredSongs"));
+        VOLUME_OFFSET = RECORD.byteOffset(MemoryLayout.PathElement.groupElement("maxVolumeDecibel"));
+    }
+
+    // Instance Variables
+    private final Arena arena;
+    private final MemorySegment records;
+    private final int capacity;
+    private volatile int size;
+
+    /**
+     * Constructs an empty {@link OffHeapIPodCatalogue}, allocating room for the given number of records.
+     *
+     * @param capacity The maximum number of iPods this catalogue can hold.
+     * @throws IllegalArgumentException If the capacity is negative.
+     */
+    public OffHeapIPodCatalogue(final int capacity)
+    {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("Capacity cannot be negative.");
+        }
+        this.arena = Arena.ofShared();
+        this.records = arena.allocate(RECORD.byteSize() * capacity, RECORD.byteAlignment());
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds an iPod record to the catalogue.
+     *
+     * @param numOfStoredSongs The current number of stored songs.
+     * @param maxVolumeDecibel The absolute max volume the iPod can go, measured in decibels.
+     * @return The slot of the new record.
+     * @throws IllegalArgumentException If the volume is not a safe decibel level.
+     * @throws IllegalStateException    If the catalogue is full or closed.
+     */
+    public synchronized int add(final int numOfStoredSongs,
+                                final double maxVolumeDecibel)
+    {
+        IPod.validateMaxDecibelLevel(maxVolumeDecibel);
+        if (size == capacity)
+        {
+            throw new IllegalStateException("Catalogue is full.");
+        }
+        final int slot = size;
+        final long base = RECORD.byteSize() * slot;
+        records.set(ValueLayout.JAVA_INT, base + SONGS_OFFSET, numOfStoredSongs);
+        records.set(ValueLayout.JAVA_DOUBLE, base + VOLUME_OFFSET, maxVolumeDecibel);
+        size = slot + 1;
+        return slot;
+    }
+
+    /**
+     * @return the number of records in this catalogue.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the maximum number of records this catalogue can hold.
+     */
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes of native memory held by this catalogue.
+     */
+    public long byteSize()
+    {
+        return records.byteSize();
+    }
+
+    /**
+     * Retrieves the number of songs stored on an iPod.
+     *
+     * @param slot The slot of the record.
+     * @return The number of stored songs.
+     */
+    public int getNumOfStoredSongs(final int slot)
+    {
+        return records.get(ValueLayout.JAVA_INT, offset(slot) + SONGS_OFFSET);
+    }
+
+    /**
+     * Retrieves the absolute max volume of an iPod.
+     *
+     * @param slot The slot of the record.
+     * @return The max volume, measured in decibels.
+     */
+    public double getMaxVolumeDecibel(final int slot)
+    {
+        return records.get(ValueLayout.JAVA_DOUBLE, offset(slot) + VOLUME_OFFSET);
+    }
+
+    /**
+     * Sets the number of songs stored on an iPod.
+     *
+     * @param slot             The slot of the record.
+     * @param numOfStoredSongs The number of songs stored on the iPod currently.
+     */
+    public void setNumOfStoredSongs(final int slot,
+                                    final int numOfStoredSongs)
+    {
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.SET_NUM_OF_STORED_SONGS);
+        final int oldNumOfStoredSongs = getNumOfStoredSongs(slot);
+        writeNumOfStoredSongs(slot, numOfStoredSongs);
+        changed(slot, oldNumOfStoredSongs, numOfStoredSongs);
+    }
+
+    /**
+     * Adds 1 to the count of songs stored on an iPod.
+     *
+     * @param slot The slot of the record.
+     */
+    public void addSong(final int slot)
+    {
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.ADD_SONG);
+        final int oldNumOfStoredSongs = getNumOfStoredSongs(slot);
+        writeNumOfStoredSongs(slot, oldNumOfStoredSongs + 1);
+        changed(slot, oldNumOfStoredSongs, oldNumOfStoredSongs + 1);
+    }
+
+    /**
+     * Lowers the number of songs stored on an iPod by 1.
+     *
+     * @param slot The slot of the record.
+     */
+    public void delSong(final int slot)
+    {
+        DeviceMetrics.mutated(DeviceMetrics.Mutation.DEL_SONG);
+        final int oldNumOfStoredSongs = getNumOfStoredSongs(slot);
+        writeNumOfStoredSongs(slot, oldNumOfStoredSongs - 1);
+        changed(slot, oldNumOfStoredSongs, oldNumOfStoredSongs - 1);
+    }
+
+    /**
+     * Returns a view of a record as an {@link IPod}. The view keeps no state of its own:
+     * reads and writes, including those through {@link IPod#addSong()} and {@link IPod#delSong()},
+     * go to the record, and mutations are reported to {@link DeviceListeners} like any other iPod's.
+     *
+     * @param slot The slot of the record.
+     * @return A view of the record.
+     */
+    public CatalogueIPod iPod(final int slot)
+    {
+        return new CatalogueIPod(this, checkSlot(slot));
+    }
+
+    /**
+     * Releases the catalogue's native memory. Views of its records must not be used afterwards.
+     */
+    @Override
+    public void close()
+    {
+        arena.close();
+    }
+
+    // Stores the number of songs of a record once the calling mutator has counted the change.
+    private void writeNumOfStoredSongs(final int slot,
+                                       final int numOfStoredSongs)
+    {
+        records.set(ValueLayout.JAVA_INT, offset(slot) + SONGS_OFFSET, numOfStoredSongs);
+    }
+
+    // Tells the listeners about a change made through a slot, through a view of its record.
+    private void changed(final int slot,
+                         final int oldNumOfStoredSongs,
+                         final int newNumOfStoredSongs)
+    {
+        if (DeviceListeners.isListening())
+        {
+            DeviceListeners.numOfStoredSongsChanged(new CatalogueIPod(this, slot), oldNumOfStoredSongs,
+                    newNumOfStoredSongs);
+        }
+    }
+
+    // Byte offset of a record, after checking that the slot holds one.
+    private long offset(final int slot)
+    {
+        return RECORD.byteSize() * checkSlot(slot);
+    }
+
+    // Checks that a slot holds a record.
+    private int checkSlot(final int slot)
+    {
+        if (slot < 0 || slot >= size)
+        {
+            throw new IndexOutOfBoundsException("Slot " + slot + " has not been added.");
+        }
+        return slot;
+    }
+
+    /**
+     * An {@link IPod} whose state lives in an {@link OffHeapIPodCatalogue} record.
+     */
+    public static final class CatalogueIPod extends IPod
+    {
+        private final OffHeapIPodCatalogue catalogue;
+        private final int slot;
+
+        private CatalogueIPod(final OffHeapIPodCatalogue catalogue,
+                              final int slot)
+        {
+            super();
+            this.catalogue = catalogue;
+            this.slot = slot;
+        }
+
+        /**
+         * @return the catalogue slot holding this iPod's record.
+         */
+        public int slot()
+        {
+            return slot;
+        }
+
+        @Override
+        public int getNumOfStoredSongs()
+        {
+            return catalogue.getNumOfStoredSongs(slot);
+        }
+
+        @Override
+        public double getMaxVolumeDecibel()
+        {
+            return catalogue.getMaxVolumeDecibel(slot);
+        }
+
+        @Override
+        void writeNumOfStoredSongs(final int newNumOfStoredSongs)
+        {
+            catalogue.writeNumOfStoredSongs(slot, newNumOfStoredSongs);
+        }
+    }
+}
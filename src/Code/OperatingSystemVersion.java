@@ -0,0 +1,231 @@
+import java.util.Arrays;
+
+/**
+ * Parses {@link IPad} operating system versions such as {@code "iPadOS 16.2"} into numbers that
+ * sort in version order.
+ * <p>
+ * A version is packed into one {@code long} as 21 bits each of major, minor and patch number, so
+ * {@code "iPadOS 16.2"} is 16.2.0 and compares below 16.10.0, unlike its string. The first run of
+ * digits in the string is the major number, and up to two more runs that follow it after a dot are the
+ * minor and patch numbers. A string with no number, or one too large to pack, is {@link #UNKNOWN},
+ * which sorts below every known version.
+ * <p>
+ * Every string is parsed once, when it is first given a code in
+ * {@link StringDictionary#OPERATING_SYSTEM_VERSIONS}, and the result is kept in a table indexed by
+ * that code, so reading the number of any iPad's version is an array lookup.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class OperatingSystemVersion
+{
+    /**
+     * The number of a version that has no major number or cannot be packed.
+     */
+    public static final long UNKNOWN;
+
+    private static final int MAJOR_SHIFT;
+    private static final int MINOR_SHIFT;
+    private static final long COMPONENT_MASK;
+    private static final long NOT_PARSED;
+    private static final int DEFAULT_CAPACITY;
+    private static volatile long[] numbers;
+
+    static
+    {
+        UNKNOWN = -1L;
+        MAJOR_SHIFT = 42;
+        MINOR_SHIFT = 21;
+        COMPONENT_MASK = (1L << MINOR_SHIFT) - 1;
+        NOT_PARSED = Long.MIN_VALUE;
+        DEFAULT_CAPACITY = 16;
+        numbers = new long[DEFAULT_CAPACITY];
+        Arrays.fill(numbers, NOT_PARSED);
+    }
+
+    private OperatingSystemVersion()
+    {
+    }
+
+    /**
+     * Packs a version number.
+     *
+     * @param major The major number.
+     * @param minor The minor number.
+     * @param patch The patch number.
+     * @return The packed version.
+     * @throws IllegalArgumentException If a number is negative or does not fit in 21 bits.
+     */
+    public static long of(final int major,
+                          final int minor,
+                          final int patch)
+    {
+        if (major < 0 || major > COMPONENT_MASK || minor < 0 || minor > COMPONENT_MASK
+            || patch < 0 || patch > COMPONENT_MASK)
+        {
+            throw new IllegalArgumentException("Version numbers must be between 0 and " + COMPONENT_MASK + ".");
+        }
+        return ((long) major << MAJOR_SHIFT) | ((long) minor << MINOR_SHIFT) | patch;
+    }
+
+    /**
+     * Parses a version string without recording it.
+     *
+     * @param version The version, such as {@code "iPadOS 16.2"} or {@code "16.2.1"}.
+     * @return The packed version, or {@link #UNKNOWN} if the string has no version number.
+     * @throws IllegalArgumentException If the version is {@code null}.
+     */
+    public static long parse(final String version)
+    {
+        if (version == null)
+        {
+            throw new IllegalArgumentException("Version cannot be null.");
+        }
+
+        int position = 0;
+        while (position < version.length() && !isDigit(version.charAt(position)))
+        {
+            position++;
+        }
+        if (position == version.length())
+        {
+            return UNKNOWN;
+        }
+
+        long packed = 0L;
+        for (int component = 0; component < 3; component++)
+        {
+            long value = 0L;
+            final int start = position;
+            while (position < version.length() && isDigit(version.charAt(position)))
+            {
+                value = value * 10 + (version.charAt(position) - '0');
+                if (value > COMPONENT_MASK)
+                {
+                    return UNKNOWN;
+                }
+                position++;
+            }
+            if (position == start)
+            {
+                break;
+            }
+            packed |= value << (MAJOR_SHIFT - component * MINOR_SHIFT);
+            if (position + 1 >= version.length() || version.charAt(position) != '.'
+                || !isDigit(version.charAt(position + 1)))
+            {
+                break;
+            }
+            position++;
+        }
+        return packed;
+    }
+
+    /**
+     * Parses a version string that must contain a version number, such as a query bound.
+     *
+     * @param version The version.
+     * @return The packed version.
+     * @throws IllegalArgumentException If the version is {@code null} or has no version number.
+     */
+    public static long parseKnown(final String version)
+    {
+        final long packed = parse(version);
+        if (packed == UNKNOWN)
+        {
+            throw new IllegalArgumentException("Version has no version number: " + version);
+        }
+        return packed;
+    }
+
+    /**
+     * @param version A packed version.
+     * @return The major number.
+     */
+    public static int major(final long version)
+    {
+        return (int) ((version >>> MAJOR_SHIFT) & COMPONENT_MASK);
+    }
+
+    /**
+     * @param version A packed version.
+     * @return The minor number.
+     */
+    public static int minor(final long version)
+    {
+        return (int) ((version >>> MINOR_SHIFT) & COMPONENT_MASK);
+    }
+
+    /**
+     * @param version A packed version.
+     * @return The patch number.
+     */
+    public static int patch(final long version)
+    {
+        return (int) (version & COMPONENT_MASK);
+    }
+
+    /**
+     * Formats a packed version as {@code major.minor.patch}.
+     *
+     * @param version A packed version.
+     * @return The formatted version, or {@code "unknown"}.
+     */
+    public static String format(final long version)
+    {
+        if (version == UNKNOWN)
+        {
+            return "unknown";
+        }
+        return major(version) + "." + minor(version) + "." + patch(version);
+    }
+
+    // Encodes a version string and parses it the first time it is seen.
+    static int encode(final String version)
+    {
+        final int code = StringDictionary.OPERATING_SYSTEM_VERSIONS.encode(version);
+        ofCode(code);
+        return code;
+    }
+
+    // The packed version of a code in StringDictionary.OPERATING_SYSTEM_VERSIONS.
+    static long ofCode(final int code)
+    {
+        final long[] current = numbers;
+        if (code < current.length && current[code] != NOT_PARSED)
+        {
+            return current[code];
+        }
+        return record(code);
+    }
+
+    /*
+     * Parses the string of a code and stores its number. The table is copied rather than written
+     * in place when it grows, so a reader that took the old table never sees a half-copied one.
+     */
+    private static synchronized long record(final int code)
+    {
+        long[] current = numbers;
+        if (code < current.length && current[code] != NOT_PARSED)
+        {
+            return current[code];
+        }
+        if (code >= current.length)
+        {
+            final int oldLength = current.length;
+            current = Arrays.copyOf(current, Math.max(oldLength * 2, code + 1));
+            Arrays.fill(current, oldLength, current.length, NOT_PARSED);
+        }
+        final long packed = parse(StringDictionary.OPERATING_SYSTEM_VERSIONS.decode(code));
+        current[code] = packed;
+        numbers = current;
+        return packed;
+    }
+
+    // Whether a character is an ASCII digit.
+    private static boolean isDigit(final char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+}
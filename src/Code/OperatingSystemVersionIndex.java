@@ -0,0 +1,301 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An ordered index of iPads by their operating system version, for upgrade campaigns that ask
+ * "which iPads are below 16.2?" without parsing every iPad's version string.
+ * <p>
+ * iPads are grouped by the packed number of their version, as parsed by {@link OperatingSystemVersion},
+ * in a {@link TreeMap} from version to the iPads on it. A range query finds its first version in
+ * logarithmic time and then reads the iPads of each version in the range in order, and a count only
+ * adds up the sizes of those groups. Versions without a number sort below every known version and
+ * are left out of every range.
+ * <p>
+ * The index registers itself as a {@link DeviceMutationListener}, so it stays current as
+ * {@code setOperatingSystemVersion} is called on the iPads it holds. {@link #upgrade(String, String, String)}
+ * moves a whole range of versions to a new one in a single pass.
+ * <p>
+ * iPads are held by identity. Flyweight views, such as those from a {@link DeviceFleet},
+ * should not be added, because they stand for a different iPad whenever they are moved.
+ * The index is thread-safe. Call {@link #close()} to stop tracking changes once it is no longer needed.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class OperatingSystemVersionIndex implements DeviceMutationListener, AutoCloseable
+{
+    // Instance Variables
+    private final IdentityHashMap<IPad, Long> versions;
+    private final TreeMap<Long, Set<IPad>> iPadsByVersion;
+
+    /**
+     * Constructs an empty {@link OperatingSystemVersionIndex} and starts tracking version changes.
+     */
+    public OperatingSystemVersionIndex()
+    {
+        versions = new IdentityHashMap<>();
+        iPadsByVersion = new TreeMap<>();
+        DeviceListeners.add(this);
+    }
+
+    /**
+     * Adds an iPad to the index.
+     *
+     * @param iPad The iPad to add.
+     * @return {@code true} if the iPad was added, {@code false} if it was already in the index.
+     * @throws IllegalArgumentException If the iPad is {@code null}.
+     */
+    public synchronized boolean add(final IPad iPad)
+    {
+        if (iPad == null)
+        {
+            throw new IllegalArgumentException("iPad cannot be null.");
+        }
+        if (versions.containsKey(iPad))
+        {
+            return false;
+        }
+        final long version = iPad.getOperatingSystemVersionNumber();
+        versions.put(iPad, version);
+        group(version).add(iPad);
+        return true;
+    }
+
+    /**
+     * Removes an iPad from the index.
+     *
+     * @param iPad The iPad to remove.
+     * @return {@code true} if the iPad was in the index.
+     */
+    public synchronized boolean remove(final IPad iPad)
+    {
+        final Long version = versions.remove(iPad);
+        if (version == null)
+        {
+            return false;
+        }
+        ungroup(version, iPad);
+        return true;
+    }
+
+    /**
+     * @return the number of iPads in the index.
+     */
+    public synchronized int size()
+    {
+        return versions.size();
+    }
+
+    /**
+     * Returns the iPads on a version older than the given one, oldest first.
+     *
+     * @param version The exclusive upper bound, such as {@code "16.2"}.
+     * @return The matching iPads.
+     * @throws IllegalArgumentException If the version has no version number.
+     */
+    public List<IPad> olderThan(final String version)
+    {
+        return collect(0L, OperatingSystemVersion.parseKnown(version));
+    }
+
+    /**
+     * Counts the iPads on a version older than the given one.
+     *
+     * @param version The exclusive upper bound, such as {@code "16.2"}.
+     * @return The number of matching iPads.
+     * @throws IllegalArgumentException If the version has no version number.
+     */
+    public int countOlderThan(final String version)
+    {
+        return count(0L, OperatingSystemVersion.parseKnown(version));
+    }
+
+    /**
+     * Returns the iPads whose version is at least {@code from} and older than {@code to}, oldest first.
+     *
+     * @param from The inclusive lower bound, such as {@code "15"}.
+     * @param to   The exclusive upper bound, such as {@code "16.2"}.
+     * @return The matching iPads.
+     * @throws IllegalArgumentException If either version has no version number.
+     */
+    public List<IPad> between(final String from,
+                              final String to)
+    {
+        return collect(OperatingSystemVersion.parseKnown(from), OperatingSystemVersion.parseKnown(to));
+    }
+
+    /**
+     * Counts the iPads whose version is at least {@code from} and older than {@code to}.
+     *
+     * @param from The inclusive lower bound, such as {@code "15"}.
+     * @param to   The exclusive upper bound, such as {@code "16.2"}.
+     * @return The number of matching iPads.
+     * @throws IllegalArgumentException If either version has no version number.
+     */
+    public int countBetween(final String from,
+                            final String to)
+    {
+        return count(OperatingSystemVersion.parseKnown(from), OperatingSystemVersion.parseKnown(to));
+    }
+
+    /**
+     * Sets every iPad whose version is at least {@code from} and older than {@code to} to a new version.
+     * The groups in the range are taken out of the index at once, and each iPad is rewritten and joined
+     * to the new version's group, so the whole range is moved in one pass. Other listeners are told
+     * about every iPad that changed, as if its version had been set on its own.
+     *
+     * @param from       The inclusive lower bound, such as {@code "15"}.
+     * @param to         The exclusive upper bound, such as {@code "16.2"}.
+     * @param newVersion The version to move the iPads to.
+     * @return The number of iPads that were upgraded.
+     * @throws IllegalArgumentException If either bound has no version number,
+     *                                  or the new version is {@code null} or empty.
+     */
+    public int upgrade(final String from,
+                       final String to,
+                       final String newVersion)
+    {
+        final long fromVersion = OperatingSystemVersion.parseKnown(from);
+        final long toVersion = OperatingSystemVersion.parseKnown(to);
+        IPad.validateOperatingSystemVersion(newVersion);
+        if (fromVersion >= toVersion)
+        {
+            return 0;
+        }
+
+        final long start = DeviceMetrics.start();
+        final int newCode = OperatingSystemVersion.encode(newVersion);
+        final long newNumber = OperatingSystemVersion.ofCode(newCode);
+        final List<IPad> upgraded = new ArrayList<>();
+        final int[] oldCodes;
+        synchronized (this)
+        {
+            final NavigableMap<Long, Set<IPad>> range = range(fromVersion, toVersion);
+            for (final Set<IPad> iPads : range.values())
+            {
+                upgraded.addAll(iPads);
+            }
+            range.clear();
+
+            oldCodes = new int[upgraded.size()];
+            final Set<IPad> target = group(newNumber);
+            for (int i = 0; i < oldCodes.length; i++)
+            {
+                final IPad iPad = upgraded.get(i);
+                oldCodes[i] = iPad.operatingSystemVersionCode();
+                iPad.writeOperatingSystemVersionCode(newCode);
+                versions.put(iPad, newNumber);
+                target.add(iPad);
+            }
+            if (target.isEmpty())
+            {
+                iPadsByVersion.remove(newNumber);
+            }
+        }
+
+        // Listeners are told outside the lock, so one that reads this index cannot deadlock with it
+        for (int i = 0; i < oldCodes.length; i++)
+        {
+            DeviceListeners.operatingSystemVersionChanged(upgraded.get(i), oldCodes[i], newCode);
+        }
+        DeviceMetrics.completed(DeviceMetrics.BulkOperation.VERSION_UPGRADE, start, oldCodes.length);
+        return oldCodes.length;
+    }
+
+    /**
+     * Moves an iPad held by this index to the group of its current version.
+     * The version is read again rather than taken from the arguments, so changes that
+     * are reported out of order still leave the iPad in the right place.
+     *
+     * @param iPad       The iPad that changed.
+     * @param oldVersion The operating system version before the change.
+     * @param newVersion The operating system version after the change.
+     */
+    @Override
+    public synchronized void operatingSystemVersionChanged(final IPad iPad,
+                                                           final String oldVersion,
+                                                           final String newVersion)
+    {
+        final Long indexed = versions.get(iPad);
+        if (indexed == null)
+        {
+            return;
+        }
+        final long version = iPad.getOperatingSystemVersionNumber();
+        if (version != indexed)
+        {
+            ungroup(indexed, iPad);
+            versions.put(iPad, version);
+            group(version).add(iPad);
+        }
+    }
+
+    /**
+     * Stops tracking version changes. The index can still be queried,
+     * but no longer follows the iPads' versions.
+     */
+    @Override
+    public void close()
+    {
+        DeviceListeners.remove(this);
+    }
+
+    // The groups of versions from the inclusive lower bound to the exclusive upper bound.
+    private NavigableMap<Long, Set<IPad>> range(final long from,
+                                                final long to)
+    {
+        if (from >= to)
+        {
+            return Collections.emptyNavigableMap();
+        }
+        return iPadsByVersion.subMap(from, true, to, false);
+    }
+
+    // Copies the iPads of the versions from the inclusive lower bound to the exclusive upper bound, oldest first.
+    private synchronized List<IPad> collect(final long from,
+                                            final long to)
+    {
+        final List<IPad> result = new ArrayList<>();
+        for (final Set<IPad> iPads : range(from, to).values())
+        {
+            result.addAll(iPads);
+        }
+        return result;
+    }
+
+    // Counts the iPads of the versions from the inclusive lower bound to the exclusive upper bound.
+    private synchronized int count(final long from,
+                                   final long to)
+    {
+        int count = 0;
+        for (final Set<IPad> iPads : range(from, to).values())
+        {
+            count += iPads.size();
+        }
+        return count;
+    }
+
+    // The group of a version, creating it if it is empty.
+    private Set<IPad> group(final long version)
+    {
+        return iPadsByVersion.computeIfAbsent(version, key -> Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    // Takes an iPad out of the group of a version, dropping the group once it is empty.
+    private void ungroup(final long version,
+                         final IPad iPad)
+    {
+        final Set<IPad> iPads = iPadsByVersion.get(version);
+        iPads.remove(iPad);
+        if (iPads.isEmpty())
+        {
+            iPadsByVersion.remove(version);
+        }
+    }
+}
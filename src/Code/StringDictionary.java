@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A global, thread-safe dictionary that maps repeated strings to small {@code int} codes.
+ * Devices store only the code of values such as their carrier or operating system version,
+ * which are shared by millions of devices but only take a handful of distinct values.
+ * Codes are assigned in order starting from zero and never change for the lifetime of
+ * the program, so two values are equal exactly when their codes are equal.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public class StringDictionary
+{
+    /**
+     * The dictionary of {@link IPhone} carriers.
+     */
+    public static final StringDictionary CARRIERS;
+
+    /**
+     * The dictionary of {@link IPad} operating system versions.
+     */
+    public static final StringDictionary OPERATING_SYSTEM_VERSIONS;
+
+    private static final int DEFAULT_CAPACITY;
+
+    static
+    {
+        DEFAULT_CAPACITY = 16;
+        CARRIERS = new StringDictionary();
+        OPERATING_SYSTEM_VERSIONS = new StringDictionary();
+    }
+
+    // Instance Variables
+    private final ConcurrentHashMap<String, Integer> codes;
+    private volatile String[] values;
+    private int size;
+
+    /**
+     * Constructs an empty {@link StringDictionary}.
+     */
+    public StringDictionary()
+    {
+        this.codes = new ConcurrentHashMap<>();
+        this.values = new String[DEFAULT_CAPACITY];
+    }
+
+    /**
+     * Returns the code of a value, assigning a new code the first time the value is seen.
+     *
+     * @param value The value to encode.
+     * @return The code of the value.
+     * @throws IllegalArgumentException If the value is {@code null}.
+     */
+    public int encode(final String value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Value cannot be null.");
+        }
+
+        final Integer code = codes.get(value);
+        if (code != null)
+        {
+            return code;
+        }
+        return assign(value);
+    }
+
+    /**
+     * Returns the value that was assigned the given code.
+     *
+     * @param code The code to decode.
+     * @return The value of the code.
+     * @throws IndexOutOfBoundsException If no value has been assigned the code.
+     */
+    public String decode(final int code)
+    {
+        final String[] current = values;
+        if (code < 0 || code >= current.length || current[code] == null)
+        {
+            throw new IndexOutOfBoundsException("Unknown code " + code);
+        }
+        return current[code];
+    }
+
+    /**
+     * @return the number of distinct values in this dictionary.
+     */
+    public int size()
+    {
+        return codes.size();
+    }
+
+    /*
+     * Assigns the next code to a value that was not found without locking.
+     * The value is published in the array before the map, so any thread that
+     * reads a code from the map can also decode it.
+     */
+    private synchronized int assign(final String value)
+    {
+        final Integer existing = codes.get(value);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        final int code = size;
+        String[] current = values;
+        if (code == current.length)
+        {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[code] = value;
+        values = current;
+        size++;
+
+        codes.put(value, code);
+        return code;
+    }
+}
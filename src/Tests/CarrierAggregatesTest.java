@@ -0,0 +1,265 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that {@link CarrierAggregates} count each phone under its carrier with its balance as phones
+ * are added, changed and removed, that they refuse views and stop following phones once closed, that
+ * {@link CarrierAggregates#reconcile(Iterable)} finds totals that do not match the phones, and that
+ * threads changing the balances and carriers of the same phones at once, while others add and remove
+ * phones, leave every carrier's totals equal to a recount of the phones.
+ * Run with {@code java CarrierAggregatesTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class CarrierAggregatesTest
+{
+    private static final String[] CARRIERS;
+    private static final int PHONES;
+    private static final int CHURNED;
+    private static final int ROUNDS;
+
+    static
+    {
+        CARRIERS = new String[] {"Bell", "Rogers", "Telus"};
+        PHONES = 64;
+        CHURNED = 8;
+        ROUNDS = 200_000;
+    }
+
+    private CarrierAggregatesTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        followsChanges();
+        refusesViewsAndClosedChanges();
+        reconcileFindsMismatches();
+        concurrentChangesMatchRecount();
+        System.out.println("CarrierAggregatesTest passed");
+    }
+
+    // Adding, changing and removing phones one at a time moves their counts and minutes between carriers.
+    private static void followsChanges()
+    {
+        try (CarrierAggregates aggregates = new CarrierAggregates())
+        {
+            final IPhone first = new IPhone(10.0, "Bell");
+            final IPhone second = new IPhone(30.0, "Bell");
+            final IPhone16 third = new IPhone16(5.0, "Rogers", true, 256);
+            check(aggregates.add(first) && aggregates.add(second) && aggregates.add(third), "a phone was not added");
+            check(!aggregates.add(first), "a phone was added twice");
+            check(aggregates.size() == 3, "size " + aggregates.size());
+            checkCarrier(aggregates, "Bell", 2L, 40.0);
+            checkCarrier(aggregates, "Rogers", 1L, 5.0);
+            check(aggregates.averageMinutes("Bell") == 20.0, "average " + aggregates.averageMinutes("Bell"));
+            check(aggregates.averageMinutes("Unknown") == 0.0 && aggregates.phoneCount(null) == 0L,
+                  "a carrier without phones has totals");
+
+            first.addPhonePlanMinutes(5.0);
+            third.removePhonePlanMinutes(5.0);
+            second.changeCarrier("Rogers");
+            second.changeCarrier("Rogers");
+            checkCarrier(aggregates, "Bell", 1L, 15.0);
+            checkCarrier(aggregates, "Rogers", 2L, 30.0);
+
+            check(aggregates.remove(second), "a counted phone was not removed");
+            check(!aggregates.remove(second) && !aggregates.remove(null), "a phone was removed twice");
+            second.addPhonePlanMinutes(100.0);
+            checkCarrier(aggregates, "Rogers", 1L, 0.0);
+            check(aggregates.size() == 2, "size " + aggregates.size());
+            check(aggregates.reconcile(List.of(first, third)).isConsistent(), "totals do not match the phones");
+        }
+    }
+
+    // Views cannot be counted, and closed aggregates keep their totals but refuse and ignore changes.
+    private static void refusesViewsAndClosedChanges()
+    {
+        final DeviceFleet fleet = new DeviceFleet();
+        fleet.addIPhone(1.0, "Bell");
+        final IPhone phone = new IPhone(2.0, "Telus");
+        final CarrierAggregates aggregates = new CarrierAggregates();
+        try
+        {
+            aggregates.add(fleet.iPhone(0));
+            throw new AssertionError("a fleet view was added");
+        } catch (final IllegalArgumentException e)
+        {
+            // Expected: views keep their state in the fleet
+        }
+        aggregates.add(phone);
+        aggregates.close();
+        aggregates.close();
+        phone.addPhonePlanMinutes(3.0);
+        phone.changeCarrier("Bell");
+        checkCarrier(aggregates, "Telus", 1L, 2.0);
+        try
+        {
+            aggregates.add(new IPhone(1.0, "Bell"));
+            throw new AssertionError("closed aggregates added a phone");
+        } catch (final IllegalStateException e)
+        {
+            // Expected: the aggregates are closed
+        }
+    }
+
+    // A scan that finds other phones, or other balances, than the aggregates reports each carrier that differs.
+    private static void reconcileFindsMismatches()
+    {
+        try (CarrierAggregates aggregates = new CarrierAggregates())
+        {
+            final IPhone counted = new IPhone(10.0, "Bell");
+            final IPhone uncounted = new IPhone(20.0, "Rogers");
+            aggregates.add(counted);
+            final CarrierAggregates.Reconciliation result = aggregates.reconcile(List.of(counted, uncounted));
+            check(!result.isConsistent() && result.phonesScanned() == 2L, "an uncounted phone was not found");
+            check(result.mismatches().size() == 1, "mismatches " + result.mismatches());
+            final CarrierAggregates.Mismatch mismatch = result.mismatches().get(0);
+            check(mismatch.carrier().equals("Rogers") && mismatch.expectedPhones() == 1L
+                  && mismatch.actualPhones() == 0L && mismatch.expectedMinutes() == 20.0,
+                  "mismatch " + mismatch);
+        }
+    }
+
+    /*
+     * Each phone's balance is changed by one thread while two others move the same phones between
+     * carriers, and another keeps taking some of them out and adding them back. A carrier change
+     * and a balance change that race must not leave the balance counted under the old carrier.
+     * The balances stay whole numbers, so the totals must match the recount exactly.
+     */
+    private static void concurrentChangesMatchRecount() throws InterruptedException
+    {
+        final List<IPhone> phones = new ArrayList<>();
+        for (int i = 0; i < PHONES; i++)
+        {
+            phones.add(new IPhone(i, CARRIERS[i % CARRIERS.length]));
+        }
+        try (CarrierAggregates aggregates = new CarrierAggregates())
+        {
+            for (final IPhone phone : phones)
+            {
+                aggregates.add(phone);
+            }
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            join(failure,
+                 start(() -> changeMinutes(phones.subList(0, PHONES / 2), new Random(1)), failure),
+                 start(() -> changeMinutes(phones.subList(PHONES / 2, PHONES), new Random(2)), failure),
+                 start(() -> changeCarriers(phones, new Random(3)), failure),
+                 start(() -> changeCarriers(phones, new Random(4)), failure),
+                 start(() -> churn(aggregates, phones.subList(0, CHURNED)), failure));
+
+            check(aggregates.size() == PHONES, "size " + aggregates.size());
+            for (final String carrier : CARRIERS)
+            {
+                long count = 0L;
+                double minutes = 0.0;
+                for (final IPhone phone : phones)
+                {
+                    if (phone.getCarrier().equals(carrier))
+                    {
+                        count++;
+                        minutes += phone.getPhonePlanMinutesRemaining();
+                    }
+                }
+                checkCarrier(aggregates, carrier, count, minutes);
+            }
+            check(aggregates.reconcile(phones).isConsistent(), "totals do not match the phones");
+        }
+    }
+
+    // Adds and removes whole minutes on phones that only this thread changes the balance of.
+    private static void changeMinutes(final List<IPhone> phones,
+                                      final Random random)
+    {
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            final IPhone phone = phones.get(random.nextInt(phones.size()));
+            if (random.nextBoolean() && phone.getPhonePlanMinutesRemaining() >= 1.0)
+            {
+                phone.removePhonePlanMinutes(1.0);
+            } else
+            {
+                phone.addPhonePlanMinutes(1.0);
+            }
+        }
+    }
+
+    // Moves random phones to random carriers.
+    private static void changeCarriers(final List<IPhone> phones,
+                                       final Random random)
+    {
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            phones.get(random.nextInt(phones.size())).changeCarrier(CARRIERS[random.nextInt(CARRIERS.length)]);
+        }
+    }
+
+    // Keeps taking phones out of the aggregates and adding them back, ending with all of them counted.
+    private static void churn(final CarrierAggregates aggregates,
+                              final List<IPhone> phones)
+    {
+        for (int i = 0; i < ROUNDS / phones.size(); i++)
+        {
+            for (final IPhone phone : phones)
+            {
+                check(aggregates.remove(phone), "a counted phone was not removed");
+                check(aggregates.add(phone), "a removed phone was not added back");
+            }
+        }
+    }
+
+    // Checks the number of phones and total minutes of a carrier.
+    private static void checkCarrier(final CarrierAggregates aggregates,
+                                     final String carrier,
+                                     final long phones,
+                                     final double minutes)
+    {
+        check(aggregates.phoneCount(carrier) == phones && aggregates.totalMinutes(carrier) == minutes,
+              carrier + " has " + aggregates.phoneCount(carrier) + " phones and " + aggregates.totalMinutes(carrier)
+              + " minutes, expected " + phones + " and " + minutes);
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
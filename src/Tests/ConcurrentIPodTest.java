@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that a {@link ConcurrentIPod} loses no updates when threads share it.
+ * Run with {@code java ConcurrentIPodTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class ConcurrentIPodTest
+{
+    private static final int THREADS;
+    private static final int ROUNDS;
+
+    static
+    {
+        THREADS = 4;
+        ROUNDS = 200_000;
+    }
+
+    private ConcurrentIPodTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        addsAreNotLost();
+        setsDoNotStack();
+        addsAreNotLostAcrossSets();
+        System.out.println("ConcurrentIPodTest passed");
+    }
+
+    // Threads adding and deleting on one iPod end at the sum of their changes.
+    private static void addsAreNotLost() throws InterruptedException
+    {
+        final ConcurrentIPod iPod = new ConcurrentIPod(10, 80.0, THREADS);
+        run(() ->
+        {
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                iPod.addSong();
+                iPod.addSong();
+                iPod.delSong();
+            }
+        });
+        check(iPod.getNumOfStoredSongs() == 10 + THREADS * ROUNDS, "adds were lost: " + iPod.getNumOfStoredSongs());
+    }
+
+    // Threads setting the same count on one iPod leave that count, not a multiple of the difference.
+    private static void setsDoNotStack() throws InterruptedException
+    {
+        for (int round = 0; round < 2_000; round++)
+        {
+            final ConcurrentIPod iPod = new ConcurrentIPod(10, 80.0, THREADS);
+            run(() -> iPod.setNumOfStoredSongs(5));
+            check(iPod.getNumOfStoredSongs() == 5, "sets stacked: " + iPod.getNumOfStoredSongs());
+        }
+    }
+
+    /*
+     * One thread keeps setting the count to 0 while the others add. Whatever order they ran in,
+     * the count can never be negative or above the number of adds, and the adds after the last
+     * set are all counted.
+     */
+    private static void addsAreNotLostAcrossSets() throws InterruptedException
+    {
+        final ConcurrentIPod iPod = new ConcurrentIPod(0, 80.0, THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread setter = start(() ->
+        {
+            for (int i = 0; i < 1_000; i++)
+            {
+                iPod.setNumOfStoredSongs(0);
+                final int count = iPod.getNumOfStoredSongs();
+                check(count >= 0 && count <= THREADS * ROUNDS, "count out of range: " + count);
+            }
+        }, failure);
+        run(() ->
+        {
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                iPod.addSong();
+            }
+        });
+        join(failure, setter);
+        iPod.setNumOfStoredSongs(5);
+        run(iPod::addSong);
+        check(iPod.getNumOfStoredSongs() == 5 + THREADS,
+              "adds after the last set were lost: " + iPod.getNumOfStoredSongs());
+    }
+
+    // Runs a task on several threads at once, waits for all of them, and rethrows the first failure.
+    private static void run(final Runnable task) throws InterruptedException
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            threads[i] = start(task, failure);
+        }
+        join(failure, threads);
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Checks that {@link DeviceBatchValidator} passes exactly the rows each device's constructor accepts,
+ * with the constructor's message for the rows it refuses, that the devices it builds and adds to a fleet
+ * are the ones the constructors build, and that a column shorter than the batch is refused before any
+ * device is built or added.
+ * Run with {@code java DeviceBatchValidatorTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceBatchValidatorTest
+{
+    private static final int ROWS;
+    private static final double[] MINUTES;
+    private static final String[] CARRIERS;
+    private static final int[] MEMORY_GB;
+    private static final String[] OPERATING_SYSTEM_VERSIONS;
+    private static final double[] DECIBELS;
+
+    static
+    {
+        ROWS = 10_000;
+        MINUTES = new double[] {-1.0, -Double.MIN_VALUE, -0.0, 0.0, Double.MIN_VALUE, 1.5, 1e300,
+                                Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        CARRIERS = new String[] {null, "", " ", "Bell", "Télé-Québec"};
+        MEMORY_GB = new int[] {Integer.MIN_VALUE, -1, 0, 1, 2, 512, Integer.MAX_VALUE};
+        OPERATING_SYSTEM_VERSIONS = new String[] {null, "", " \t", "iPadOS 17", " iPadOS 16 "};
+        DECIBELS = new double[] {-1.0, -0.0, 0.0, Math.nextDown(85.0), 85.0, Math.nextUp(85.0), 120.0,
+                                 Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+    }
+
+    private DeviceBatchValidatorTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     */
+    public static void main(final String[] args)
+    {
+        final Random random = new Random(7);
+        iPhonesMatchConstructor(random);
+        iPhone16sMatchConstructor(random);
+        iPadsMatchConstructor(random);
+        iPodsMatchConstructor(random);
+        shortColumnsAreRefused();
+        check(DeviceBatchValidator.message(DeviceBatchValidator.VALID) == null, "a valid code has a message");
+        expectRefused(() -> DeviceBatchValidator.message(-1), "an unknown code");
+        System.out.println("DeviceBatchValidatorTest passed");
+    }
+
+    // Every IPhone row gets the verdict of the constructor, and is built and added as the constructor builds it.
+    private static void iPhonesMatchConstructor(final Random random)
+    {
+        final double[] minutes = new double[ROWS];
+        final String[] carriers = new String[ROWS];
+        for (int i = 0; i < ROWS; i++)
+        {
+            minutes[i] = MINUTES[random.nextInt(MINUTES.length)];
+            carriers[i] = CARRIERS[random.nextInt(CARRIERS.length)];
+        }
+        final byte[] errors = DeviceBatchValidator.validateIPhones(minutes, carriers, ROWS);
+        final IPhone[] built = DeviceBatchValidator.buildIPhones(minutes, carriers, errors);
+        final DeviceFleet fleet = new DeviceFleet();
+        final int added = DeviceBatchValidator.addIPhones(fleet, minutes, carriers, errors);
+        check(added == DeviceBatchValidator.countValid(errors) && fleet.iPhoneCount() == added, "added " + added);
+
+        int next = 0;
+        for (int i = 0; i < ROWS; i++)
+        {
+            final int row = i;
+            final IDevice expected = checkVerdict(errors[i], () -> new IPhone(minutes[row], carriers[row]), built[i]);
+            if (expected != null)
+            {
+                check(state(fleet.iPhone(next++)).equals(state(expected)), "added iPhone of row " + i);
+            }
+        }
+    }
+
+    // Every IPhone16 row gets the verdict of the constructor, and is built and added as the constructor builds it.
+    private static void iPhone16sMatchConstructor(final Random random)
+    {
+        final double[] minutes = new double[ROWS];
+        final String[] carriers = new String[ROWS];
+        final boolean[] cameras = new boolean[ROWS];
+        final int[] memoryGB = new int[ROWS];
+        for (int i = 0; i < ROWS; i++)
+        {
+            minutes[i] = MINUTES[random.nextInt(MINUTES.length)];
+            carriers[i] = CARRIERS[random.nextInt(CARRIERS.length)];
+            cameras[i] = random.nextBoolean();
+            memoryGB[i] = MEMORY_GB[random.nextInt(MEMORY_GB.length)];
+        }
+        final byte[] errors = DeviceBatchValidator.validateIPhone16s(minutes, carriers, memoryGB, ROWS);
+        final IPhone16[] built = DeviceBatchValidator.buildIPhone16s(minutes, carriers, cameras, memoryGB, errors);
+        final DeviceFleet fleet = new DeviceFleet();
+        final int added = DeviceBatchValidator.addIPhone16s(fleet, minutes, carriers, cameras, memoryGB, errors);
+        check(added == DeviceBatchValidator.countValid(errors) && fleet.iPhone16Count() == added, "added " + added);
+
+        int next = 0;
+        for (int i = 0; i < ROWS; i++)
+        {
+            final int row = i;
+            final IDevice expected = checkVerdict(errors[i],
+                    () -> new IPhone16(minutes[row], carriers[row], cameras[row], memoryGB[row]), built[i]);
+            if (expected != null)
+            {
+                check(state(fleet.iPhone16(next++)).equals(state(expected)), "added iPhone 16 of row " + i);
+            }
+        }
+    }
+
+    // Every IPad row gets the verdict of the constructor, and is built and added as the constructor builds it.
+    private static void iPadsMatchConstructor(final Random random)
+    {
+        final boolean[] cases = new boolean[ROWS];
+        final String[] versions = new String[ROWS];
+        for (int i = 0; i < ROWS; i++)
+        {
+            cases[i] = random.nextBoolean();
+            versions[i] = OPERATING_SYSTEM_VERSIONS[random.nextInt(OPERATING_SYSTEM_VERSIONS.length)];
+        }
+        final byte[] errors = DeviceBatchValidator.validateIPads(versions, ROWS);
+        final IPad[] built = DeviceBatchValidator.buildIPads(cases, versions, errors);
+        final DeviceFleet fleet = new DeviceFleet();
+        final int added = DeviceBatchValidator.addIPads(fleet, cases, versions, errors);
+        check(added == DeviceBatchValidator.countValid(errors) && fleet.iPadCount() == added, "added " + added);
+
+        int next = 0;
+        for (int i = 0; i < ROWS; i++)
+        {
+            final int row = i;
+            final IDevice expected = checkVerdict(errors[i], () -> new IPad(cases[row], versions[row]), built[i]);
+            if (expected != null)
+            {
+                check(state(fleet.iPad(next++)).equals(state(expected)), "added iPad of row " + i);
+            }
+        }
+    }
+
+    // Every IPod row gets the verdict of the constructor, and is built and added as the constructor builds it.
+    private static void iPodsMatchConstructor(final Random random)
+    {
+        final int[] songs = new int[ROWS];
+        final double[] decibels = new double[ROWS];
+        for (int i = 0; i < ROWS; i++)
+        {
+            songs[i] = random.nextInt();
+            decibels[i] = random.nextBoolean() ? DECIBELS[random.nextInt(DECIBELS.length)]
+                                               : random.nextDouble() * 100.0;
+        }
+        final byte[] errors = DeviceBatchValidator.validateIPods(decibels, ROWS);
+        final IPod[] built = DeviceBatchValidator.buildIPods(songs, decibels, errors);
+        final DeviceFleet fleet = new DeviceFleet();
+        final int added = DeviceBatchValidator.addIPods(fleet, songs, decibels, errors);
+        check(added == DeviceBatchValidator.countValid(errors) && fleet.iPodCount() == added, "added " + added);
+
+        int next = 0;
+        for (int i = 0; i < ROWS; i++)
+        {
+            final int row = i;
+            final IDevice expected = checkVerdict(errors[i], () -> new IPod(songs[row], decibels[row]), built[i]);
+            if (expected != null)
+            {
+                check(state(fleet.iPod(next++)).equals(state(expected)), "added iPod of row " + i);
+            }
+        }
+    }
+
+    // Columns shorter than the batch are refused up front, leaving the fleet untouched.
+    private static void shortColumnsAreRefused()
+    {
+        final double[] minutes = {1.0, 2.0, 3.0};
+        final String[] carriers = {"Bell", "Bell", "Bell"};
+        final boolean[] flags = {true, false, true};
+        final int[] memoryGB = {128, 128, 128};
+        final byte[] errors = DeviceBatchValidator.validateIPhones(minutes, carriers, 3);
+        final String[] shortCarriers = {"Bell", "Bell"};
+        final boolean[] shortFlags = {true, false};
+        final DeviceFleet fleet = new DeviceFleet();
+
+        expectRefused(() -> DeviceBatchValidator.validateIPhones(minutes, shortCarriers, 3), "validate");
+        expectRefused(() -> DeviceBatchValidator.validateIPhones(minutes, carriers, -1), "a negative count");
+        expectRefused(() -> DeviceBatchValidator.buildIPhones(minutes, shortCarriers, errors), "buildIPhones");
+        expectRefused(() -> DeviceBatchValidator.buildIPhones(minutes, carriers, null), "null codes");
+        expectRefused(() -> DeviceBatchValidator.buildIPhone16s(minutes, carriers, shortFlags, memoryGB, errors),
+                      "buildIPhone16s");
+        expectRefused(() -> DeviceBatchValidator.buildIPads(shortFlags, carriers, errors), "buildIPads");
+        expectRefused(() -> DeviceBatchValidator.buildIPods(new int[2], minutes, errors), "buildIPods");
+        expectRefused(() -> DeviceBatchValidator.addIPhones(fleet, minutes, shortCarriers, errors), "addIPhones");
+        expectRefused(() -> DeviceBatchValidator.addIPhones(null, minutes, carriers, errors), "a null fleet");
+        expectRefused(() -> DeviceBatchValidator.addIPhone16s(fleet, minutes, carriers, flags, new int[2], errors),
+                      "addIPhone16s");
+        expectRefused(() -> DeviceBatchValidator.addIPads(fleet, flags, shortCarriers, errors), "addIPads");
+        expectRefused(() -> DeviceBatchValidator.addIPods(fleet, new int[3], null, errors), "addIPods");
+        check(fleet.iPhoneCount() + fleet.iPhone16Count() + fleet.iPadCount() + fleet.iPodCount() == 0,
+              "a refused batch added devices");
+    }
+
+    /*
+     * Checks a row's error code against its constructor: a valid row is built, with the same fields,
+     * and any other row is refused with the code's message and not built. Returns the constructed
+     * device of a valid row, or null.
+     */
+    private static IDevice checkVerdict(final byte error,
+                                        final Supplier<IDevice> constructor,
+                                        final IDevice built)
+    {
+        IDevice expected = null;
+        String message = null;
+        try
+        {
+            expected = constructor.get();
+        } catch (final IllegalArgumentException e)
+        {
+            message = e.getMessage();
+        }
+        if (expected != null)
+        {
+            check(error == DeviceBatchValidator.VALID, "a row the constructor accepts got code " + error);
+            check(built != null && state(built).equals(state(expected)), "built " + built);
+        } else
+        {
+            check(error != DeviceBatchValidator.VALID, "a row the constructor refuses passed: " + message);
+            check(message.equals(DeviceBatchValidator.message(error)),
+                  "code " + error + " has message " + DeviceBatchValidator.message(error) + ", not " + message);
+            check(built == null, "a refused row was built");
+        }
+        return expected;
+    }
+
+    // Fails unless the call throws an IllegalArgumentException.
+    private static void expectRefused(final Runnable call,
+                                      final String what)
+    {
+        try
+        {
+            call.run();
+            throw new AssertionError(what + " was not refused");
+        } catch (final IllegalArgumentException e)
+        {
+            // Expected: the input is refused
+        }
+    }
+
+    // Every field of a device, with doubles as their raw bits, and its class as a view stands for it.
+    private static String state(final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            return "IPhone16 " + Double.doubleToRawLongBits(iPhone16.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone16.getCarrier() + " " + iPhone16.hasHighResCamera() + " " + iPhone16.getMemoryGB();
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            return "IPhone " + Double.doubleToRawLongBits(iPhone.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone.getCarrier();
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            return "IPad " + iPad.hasIPadCase() + " " + iPad.getOperatingSystemVersion();
+        }
+        final IPod iPod = (IPod) device;
+        return "IPod " + iPod.getNumOfStoredSongs() + " " + Double.doubleToRawLongBits(iPod.getMaxVolumeDecibel());
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks that a {@link DeviceChangeFeed} delivers every change to a {@link DeviceChangeFeed.Policy#BLOCK}
+ * subscriber in order, even from many threads through a small ring, that a
+ * {@link DeviceChangeFeed.Policy#COALESCE} subscriber sees each device's changes merged from the oldest
+ * value to the latest, that changes a blocking subscriber makes itself are recorded or counted as
+ * dropped, that a failing subscriber is unsubscribed, and that the dispatcher waits without waking once
+ * no one is subscribed.
+ * Run with {@code java DeviceChangeFeedTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceChangeFeedTest
+{
+    private static final int THREADS;
+    private static final int CHANGES;
+    private static final int SMALL_RING;
+    private static final long TIMEOUT_NANOS;
+
+    static
+    {
+        THREADS = 4;
+        CHANGES = 20_000;
+        SMALL_RING = 64;
+        TIMEOUT_NANOS = 30_000_000_000L;
+    }
+
+    private DeviceChangeFeedTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        blockingSubscriberSeesEveryChangeInOrder();
+        coalescingSubscriberSeesMergedChanges();
+        changesFromABlockingSubscriberAreNotLost();
+        failingSubscriberIsUnsubscribed();
+        idleDispatcherWaitsWithoutWaking();
+        System.out.println("DeviceChangeFeedTest passed");
+    }
+
+    /*
+     * Threads changing their own iPods through a ring much smaller than their changes, so they keep
+     * waiting for room, deliver every change once, in sequence order, and each iPod's changes chain
+     * from one value to the next. A view changed first is not recorded, or it would be counted.
+     */
+    private static void blockingSubscriberSeesEveryChangeInOrder() throws InterruptedException
+    {
+        final List<DeviceChangeFeed.ChangeEvent> received = new ArrayList<>();
+        final AtomicInteger count = new AtomicInteger();
+        final DeviceFleet fleet = new DeviceFleet();
+        fleet.addIPod(0, 60.0);
+        try (DeviceChangeFeed feed = new DeviceChangeFeed(SMALL_RING))
+        {
+            feed.subscribe(events ->
+            {
+                received.addAll(events);
+                count.addAndGet(events.size());
+            }, DeviceChangeFeed.Policy.BLOCK);
+
+            fleet.iPod(0).addSong();
+            final List<IPod> iPods = new ArrayList<>();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread[] workers = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++)
+            {
+                final IPod iPod = new IPod(0, 60.0);
+                iPods.add(iPod);
+                workers[i] = start(() ->
+                {
+                    for (int j = 0; j < CHANGES; j++)
+                    {
+                        iPod.addSong();
+                    }
+                }, failure);
+            }
+            join(failure, workers);
+            awaitTrue(() -> count.get() >= THREADS * CHANGES, "the blocking subscriber missed changes");
+            check(count.get() == THREADS * CHANGES, "delivered " + count.get() + " changes");
+            check(feed.dropped() == 0L, "changes were dropped");
+
+            final Map<IDevice, Integer> last = new IdentityHashMap<>();
+            for (int i = 0; i < received.size(); i++)
+            {
+                final DeviceChangeFeed.ChangeEvent event = received.get(i);
+                check(event.sequence() == i, "event " + i + " has sequence " + event.sequence());
+                check(event.field() == DeviceChangeFeed.Field.NUM_OF_STORED_SONGS, "field " + event.field());
+                final int before = last.getOrDefault(event.device(), 0);
+                check(event.oldValue().equals(before) && event.newValue().equals(before + 1), "event " + event);
+                last.put(event.device(), before + 1);
+            }
+            for (final IPod iPod : iPods)
+            {
+                check(last.get(iPod) == CHANGES, "an iPod's changes ended at " + last.get(iPod));
+            }
+        }
+    }
+
+    /*
+     * A coalescing subscriber that is slow to handle its first batch gets the changes made meanwhile
+     * merged, one event per device and field, and every device's events chain from its first value
+     * to its last.
+     */
+    private static void coalescingSubscriberSeesMergedChanges()
+    {
+        final IPhone phone = new IPhone(0.0, "Bell");
+        final IPad iPad = new IPad(false, "iPadOS 16");
+        final List<DeviceChangeFeed.ChangeEvent> received = new ArrayList<>();
+        final AtomicInteger batches = new AtomicInteger();
+        try (DeviceChangeFeed feed = new DeviceChangeFeed())
+        {
+            feed.subscribe(events ->
+            {
+                synchronized (received)
+                {
+                    received.addAll(events);
+                }
+                if (batches.getAndIncrement() == 0)
+                {
+                    sleep(100L);
+                }
+            }, DeviceChangeFeed.Policy.COALESCE);
+
+            phone.addPhonePlanMinutes(1.0);
+            for (int i = 0; i < 1_000; i++)
+            {
+                phone.addPhonePlanMinutes(1.0);
+                phone.changeCarrier(i % 2 == 0 ? "Rogers" : "Telus");
+                iPad.toggleHasCase();
+            }
+            iPad.setOperatingSystemVersion("iPadOS 17");
+            awaitTrue(() -> latest(received, phone, DeviceChangeFeed.Field.PHONE_PLAN_MINUTES, 1_001.0)
+                            && latest(received, iPad, DeviceChangeFeed.Field.OPERATING_SYSTEM_VERSION, "iPadOS 17"),
+                      "the coalescing subscriber did not get the latest values");
+        }
+
+        synchronized (received)
+        {
+            check(received.size() < 3_002, "changes were not merged: " + received.size() + " events");
+            checkChain(received, phone, DeviceChangeFeed.Field.PHONE_PLAN_MINUTES, 0.0, 1_001.0);
+            checkChain(received, phone, DeviceChangeFeed.Field.CARRIER, "Bell", "Telus");
+            checkChain(received, iPad, DeviceChangeFeed.Field.IPAD_CASE, false, false);
+            checkChain(received, iPad, DeviceChangeFeed.Field.OPERATING_SYSTEM_VERSION, "iPadOS 16", "iPadOS 17");
+        }
+    }
+
+    /*
+     * A blocking subscriber that changes devices itself, through a ring too small for its changes,
+     * has each of them either delivered or counted as dropped, and the dispatcher does not deadlock.
+     */
+    private static void changesFromABlockingSubscriberAreNotLost()
+    {
+        final IPod trigger = new IPod(0, 60.0);
+        final IPod inner = new IPod(0, 60.0);
+        final AtomicInteger innerEvents = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        try (DeviceChangeFeed feed = new DeviceChangeFeed(4))
+        {
+            feed.subscribe(events ->
+            {
+                for (final DeviceChangeFeed.ChangeEvent event : events)
+                {
+                    if (event.device() == inner)
+                    {
+                        innerEvents.incrementAndGet();
+                    }
+                }
+                if (batches.getAndIncrement() == 0)
+                {
+                    for (int i = 0; i < 10; i++)
+                    {
+                        inner.addSong();
+                    }
+                }
+            }, DeviceChangeFeed.Policy.BLOCK);
+
+            trigger.addSong();
+            awaitTrue(() -> innerEvents.get() + feed.dropped() == 10L,
+                      "changes made by the subscriber were lost: " + innerEvents.get() + " delivered, "
+                      + feed.dropped() + " dropped");
+            check(feed.dropped() > 0L, "a full ring did not drop the subscriber's changes");
+        }
+        check(inner.getNumOfStoredSongs() == 10, "the subscriber's changes were not made");
+    }
+
+    // A subscriber that throws is unsubscribed with its exception, and the feed keeps working for the others.
+    private static void failingSubscriberIsUnsubscribed()
+    {
+        final IPod iPod = new IPod(0, 60.0);
+        final AtomicInteger delivered = new AtomicInteger();
+        try (DeviceChangeFeed feed = new DeviceChangeFeed())
+        {
+            final DeviceChangeFeed.Subscription failing = feed.subscribe(events ->
+            {
+                throw new IllegalStateException("subscriber failed");
+            }, DeviceChangeFeed.Policy.BLOCK);
+            feed.subscribe(events -> delivered.addAndGet(events.size()), DeviceChangeFeed.Policy.BLOCK);
+
+            iPod.addSong();
+            awaitTrue(() -> !failing.isOpen() && delivered.get() == 1, "the failing subscriber was not removed");
+            check(failing.failure() instanceof IllegalStateException, "failure " + failing.failure());
+            check(feed.subscribers() == 1, "subscribers " + feed.subscribers());
+            iPod.addSong();
+            awaitTrue(() -> delivered.get() == 2, "the other subscriber stopped getting changes");
+        }
+    }
+
+    /*
+     * Once the last subscriber has left, the dispatcher waits without a timeout instead of waking
+     * to poll the ring, and a closed feed stops it and refuses new subscribers.
+     */
+    private static void idleDispatcherWaitsWithoutWaking()
+    {
+        final IPod iPod = new IPod(0, 60.0);
+        final DeviceChangeFeed feed = new DeviceChangeFeed();
+        final AtomicInteger delivered = new AtomicInteger();
+        final DeviceChangeFeed.Subscription subscription =
+                feed.subscribe(events -> delivered.addAndGet(events.size()), DeviceChangeFeed.Policy.BLOCK);
+        iPod.addSong();
+        awaitTrue(() -> delivered.get() == 1, "the change was not delivered");
+        subscription.close();
+        subscription.close();
+        iPod.addSong();
+        check(feed.subscribers() == 0, "subscribers " + feed.subscribers());
+
+        final Thread dispatcher = dispatcher();
+        awaitTrue(() -> dispatcher.getState() == Thread.State.WAITING,
+                  "the idle dispatcher is " + dispatcher.getState() + ", not waiting without a timeout");
+        feed.close();
+        check(!dispatcher.isAlive(), "a closed feed's dispatcher is still running");
+        check(delivered.get() == 1, "a change was delivered after unsubscribing");
+        try
+        {
+            feed.subscribe(events -> { }, DeviceChangeFeed.Policy.BLOCK);
+            throw new AssertionError("a closed feed took a subscriber");
+        } catch (final IllegalStateException e)
+        {
+            // Expected: the feed is closed
+        }
+    }
+
+    // Whether the last event for a device and field has the given new value.
+    private static boolean latest(final List<DeviceChangeFeed.ChangeEvent> received,
+                                  final IDevice device,
+                                  final DeviceChangeFeed.Field field,
+                                  final Object value)
+    {
+        synchronized (received)
+        {
+            for (int i = received.size() - 1; i >= 0; i--)
+            {
+                final DeviceChangeFeed.ChangeEvent event = received.get(i);
+                if (event.device() == device && event.field() == field)
+                {
+                    return event.newValue().equals(value);
+                }
+            }
+            return false;
+        }
+    }
+
+    // Checks that a device's events for a field go from the first value to the last, each starting where one ended.
+    private static void checkChain(final List<DeviceChangeFeed.ChangeEvent> received,
+                                   final IDevice device,
+                                   final DeviceChangeFeed.Field field,
+                                   final Object first,
+                                   final Object last)
+    {
+        Object value = first;
+        long sequence = -1L;
+        for (final DeviceChangeFeed.ChangeEvent event : received)
+        {
+            if (event.device() == device && event.field() == field)
+            {
+                check(event.oldValue().equals(value), field + " event " + event + " does not start at " + value);
+                check(event.sequence() > sequence, field + " event " + event + " is out of order");
+                value = event.newValue();
+                sequence = event.sequence();
+            }
+        }
+        check(value.equals(last), field + " ended at " + value + ", not " + last);
+    }
+
+    // The feed's dispatcher thread; only one feed with a dispatcher is alive at a time in this test.
+    private static Thread dispatcher()
+    {
+        for (final Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().equals("device-change-feed") && thread.isAlive())
+            {
+                return thread;
+            }
+        }
+        throw new AssertionError("no dispatcher thread");
+    }
+
+    // Waits until a condition holds, failing with the message if it does not within the timeout.
+    private static void awaitTrue(final BooleanSupplier condition,
+                                  final String message)
+    {
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (!condition.getAsBoolean())
+        {
+            check(System.nanoTime() - deadline < 0L, message);
+            sleep(1L);
+        }
+    }
+
+    // Sleeps, keeping the interrupt for the caller.
+    private static void sleep(final long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a {@link DeviceDeduplicator} finds the same groups as comparing every pair of devices
+ * with {@code equals}, whether it keeps its records in memory, spills them, or splits its spill files,
+ * and that it leaves no spill files behind.
+ * Run with {@code java DeviceDeduplicatorTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceDeduplicatorTest
+{
+    private static final long LARGE_BUDGET;
+    private static final long SMALL_BUDGET;
+
+    static
+    {
+        LARGE_BUDGET = 64L << 20;
+        SMALL_BUDGET = 1L;
+    }
+
+    private DeviceDeduplicatorTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws IOException If the spill directory cannot be used.
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        final Path directory = Files.createTempDirectory("dedup-test");
+        try
+        {
+            groupsMatchEquals(directory, LARGE_BUDGET, 2_000, false);
+            groupsMatchEquals(directory, SMALL_BUDGET, 5_000, true);
+            splitsMatchEquals(directory);
+            viewsGroupWithDevices(directory);
+            failureLeavesNoFiles(directory);
+        } finally
+        {
+            deleteTree(directory);
+        }
+        System.out.println("DeviceDeduplicatorTest passed");
+    }
+
+    // Groups random devices and compares the groups with a pairwise equals.
+    private static void groupsMatchEquals(final Path directory,
+                                          final long budget,
+                                          final int count,
+                                          final boolean spills) throws IOException
+    {
+        final List<IDevice> devices = randomDevices(count, new Random(count));
+        final List<long[]> groups = new ArrayList<>();
+        try (DeviceDeduplicator deduplicator = new DeviceDeduplicator(budget, directory))
+        {
+            for (int i = 0; i < devices.size(); i++)
+            {
+                deduplicator.add(i, devices.get(i));
+            }
+            deduplicator.finish(groups::add);
+            check((deduplicator.spilledRecords() > 0) == spills,
+                  "unexpected spilling: " + deduplicator.spilledRecords());
+        }
+        check(sorted(groups).equals(sorted(expectedGroups(devices))), "groups differ from equals");
+        checkEmpty(directory);
+    }
+
+    /*
+     * With the smallest budget, 1024 records fit in memory, so 200,000 records overflow every one of
+     * the 64 spill files and each has to be split at least once.
+     */
+    private static void splitsMatchEquals(final Path directory) throws IOException
+    {
+        final int count = 200_000;
+        final long[] songs = new long[count];
+        final Random random = new Random(42);
+        long spilled;
+        final List<long[]> groups = new ArrayList<>();
+        try (DeviceDeduplicator deduplicator = new DeviceDeduplicator(SMALL_BUDGET, directory))
+        {
+            for (int i = 0; i < count; i++)
+            {
+                songs[i] = random.nextInt(150_000);
+                deduplicator.add(i, new IPod((int) songs[i], 80.0));
+            }
+            deduplicator.finish(groups::add);
+            spilled = deduplicator.spilledRecords();
+        }
+        check(spilled > count, "partitions were not split: " + spilled);
+
+        long grouped = 0L;
+        for (final long[] group : groups)
+        {
+            for (int i = 1; i < group.length; i++)
+            {
+                check(group[i - 1] < group[i], "ids not ascending");
+                check(songs[(int) group[i]] == songs[(int) group[0]], "unequal iPods grouped");
+            }
+            grouped += group.length;
+        }
+        final long[] sortedSongs = songs.clone();
+        Arrays.sort(sortedSongs);
+        long expected = 0L;
+        int start = 0;
+        while (start < count)
+        {
+            int end = start + 1;
+            while (end < count && sortedSongs[end] == sortedSongs[start])
+            {
+                end++;
+            }
+            expected += end - start > 1 ? end - start : 0;
+            start = end;
+        }
+        check(grouped == expected, "grouped " + grouped + " iPods, expected " + expected);
+        checkEmpty(directory);
+    }
+
+    // Fleet views group with the regular devices they are equal to, and 0.0 and -0.0 minutes match.
+    private static void viewsGroupWithDevices(final Path directory) throws IOException
+    {
+        final DeviceFleet fleet = new DeviceFleet();
+        fleet.addIPhone16(-0.0, "Rogers", true, 256);
+        fleet.addIPod(7, 80.0);
+        final List<long[]> groups = new ArrayList<>();
+        try (DeviceDeduplicator deduplicator = new DeviceDeduplicator(LARGE_BUDGET, directory))
+        {
+            deduplicator.add(1, new IPhone16(0.0, "Bell", true, 128));
+            deduplicator.add(2, fleet.iPhone16(0));
+            deduplicator.add(3, new IPod(7, 60.0));
+            deduplicator.add(4, fleet.iPod(0));
+            deduplicator.add(5, new IPhone(0.0, "Bell"));
+            check(!deduplicator.add(6, new IPhone(Double.NaN, "Bell")), "a NaN phone was added");
+            deduplicator.finish(groups::add);
+        }
+        check(sorted(groups).equals(List.of("[1, 2]", "[3, 4]")), "view groups: " + sorted(groups));
+    }
+
+    // A consumer that fails part way through leaves spill files that close deletes.
+    private static void failureLeavesNoFiles(final Path directory) throws IOException
+    {
+        final List<IDevice> devices = randomDevices(200_000, new Random(7));
+        final DeviceDeduplicator deduplicator = new DeviceDeduplicator(SMALL_BUDGET, directory);
+        try
+        {
+            for (int i = 0; i < devices.size(); i++)
+            {
+                deduplicator.add(i, devices.get(i));
+            }
+            final int[] seen = new int[1];
+            deduplicator.finish(group ->
+            {
+                if (++seen[0] == 10)
+                {
+                    throw new IllegalStateException("consumer failed");
+                }
+            });
+            throw new AssertionError("finish did not fail");
+        } catch (final IllegalStateException e)
+        {
+            check(hasFiles(directory), "no partitions were left to clean up");
+        } finally
+        {
+            deduplicator.close();
+        }
+        checkEmpty(directory);
+    }
+
+    // Devices drawn from small value ranges, so many of them are equal.
+    private static List<IDevice> randomDevices(final int count,
+                                               final Random random)
+    {
+        final List<IDevice> devices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            final int kind = random.nextInt(4);
+            if (kind == 0)
+            {
+                devices.add(new IPhone(random.nextInt(count / 4), "Bell"));
+            } else if (kind == 1)
+            {
+                devices.add(new IPhone16(random.nextInt(count / 8), "Telus", random.nextBoolean(), 128));
+            } else if (kind == 2)
+            {
+                devices.add(new IPad(random.nextBoolean(), "iPadOS " + random.nextInt(count / 8)));
+            } else
+            {
+                devices.add(new IPod(random.nextInt(count / 4), 80.0));
+            }
+        }
+        return devices;
+    }
+
+    // The groups of two or more equal devices, found by comparing every device with the first of each group.
+    private static List<long[]> expectedGroups(final List<IDevice> devices)
+    {
+        final List<List<Integer>> all = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++)
+        {
+            List<Integer> match = null;
+            for (final List<Integer> group : all)
+            {
+                if (devices.get(group.get(0)).equals(devices.get(i)))
+                {
+                    match = group;
+                    break;
+                }
+            }
+            if (match == null)
+            {
+                match = new ArrayList<>();
+                all.add(match);
+            }
+            match.add(i);
+        }
+        final List<long[]> groups = new ArrayList<>();
+        for (final List<Integer> group : all)
+        {
+            if (group.size() > 1)
+            {
+                groups.add(group.stream().mapToLong(Integer::longValue).toArray());
+            }
+        }
+        return groups;
+    }
+
+    // The groups as sorted strings, so two lists of groups in any order can be compared.
+    private static List<String> sorted(final List<long[]> groups)
+    {
+        final List<String> strings = new ArrayList<>();
+        for (final long[] group : groups)
+        {
+            strings.add(Arrays.toString(group));
+        }
+        strings.sort(Comparator.naturalOrder());
+        return strings;
+    }
+
+    // Whether a directory holds any files.
+    private static boolean hasFiles(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.findAny().isPresent();
+        }
+    }
+
+    // Fails if a directory holds any files.
+    private static void checkEmpty(final Path directory) throws IOException
+    {
+        check(!hasFiles(directory), "spill files were left in " + directory);
+    }
+
+    // Deletes a directory and everything in it.
+    private static void deleteTree(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
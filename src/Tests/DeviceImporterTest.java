@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Checks that a {@link DeviceImporter} imports exactly the rows the device constructors accept, parsed
+ * as {@link Double#parseDouble(String)} and {@link Integer#parseInt(String)} parse them, in file order,
+ * and rejects every other row with its line number, whatever the chunk size and however many imports
+ * run at once.
+ * Run with {@code java DeviceImporterTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceImporterTest
+{
+    private static final int LINES;
+    private static final int MAX_REPORTED_REJECTS;
+    private static final String[] DOUBLES;
+    private static final String[] INTS;
+    private static final String[] BOOLEANS;
+    private static final String[] STRINGS;
+    private static final String[] TYPES;
+
+    static
+    {
+        LINES = 20_000;
+        MAX_REPORTED_REJECTS = 1_000;
+        DOUBLES = new String[] {"0", "1", "-1", "-0", "+5", "12.5", ".5", "5.", "1e3", "1E-2", "-1.5e+2", "84.9",
+                                "85", "85.0000001", "0.1234567890123456789", "123456789012345678", "1e400",
+                                "4.35", "0.000001", "NaN", "Infinity", "5d", "0x10", " 5", "", ".", "1e", "--1",
+                                "1.2.3", "+-1", "e5"};
+        INTS = new String[] {"0", "1", "-1", "+7", "128", "2147483647", "2147483648", "-2147483648", "-2147483649",
+                             "", "+", "-", "1.0", "0x1", " 1", "99999999999", "007"};
+        BOOLEANS = new String[] {"true", "false", "TRUE", "False", "yes", "", "tru", "falsey"};
+        STRINGS = new String[] {"Bell", "Rogers", "", " ", "Télé-Québec", "iPadOS 17.4", " \t"};
+        TYPES = new String[] {"IPhone", "IPhone16", "IPad", "IPod", "iphone", "IPhone17", "", "#IPhone"};
+    }
+
+    private DeviceImporterTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws IOException          If the test files cannot be written or read.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException
+    {
+        final Path file = Files.createTempFile("import-test", ".csv");
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            final List<String> lines = randomLines(new Random(13));
+            Files.writeString(file, String.join("\n", lines), StandardCharsets.UTF_8);
+            final Expected expected = expected(lines);
+            check(expected.rejectedLines.size() > MAX_REPORTED_REJECTS && expected.imported > LINES / 10,
+                  "the lines do not cover both outcomes");
+
+            for (final int chunkBytes : new int[] {1, 37, 4_096, DeviceImporter.DEFAULT_CHUNK_BYTES})
+            {
+                checkImport(new DeviceImporter(pool, chunkBytes), file, expected);
+            }
+
+            // Imports running at once share the string dictionaries and the pool
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread[] importers = new Thread[4];
+            for (int i = 0; i < importers.length; i++)
+            {
+                final int chunkBytes = 64 << i;
+                importers[i] = start(() ->
+                {
+                    try
+                    {
+                        checkImport(new DeviceImporter(pool, chunkBytes), file, expected);
+                    } catch (IOException e)
+                    {
+                        throw new AssertionError(e);
+                    }
+                }, failure);
+            }
+            join(failure, importers);
+
+            Files.writeString(file, "# only a comment\r\n\r\nIPod,3,60\r\n", StandardCharsets.UTF_8);
+            final DeviceFleet fleet = new DeviceFleet();
+            final DeviceImporter.Report report = new DeviceImporter(pool, 1).importCsv(file, fleet);
+            check(report.imported() == 1L && report.rejected() == 0L && fleet.iPodCount() == 1
+                  && fleet.iPod(0).getMaxVolumeDecibel() == 60.0, "CRLF lines: " + report);
+        } finally
+        {
+            pool.shutdown();
+            Files.delete(file);
+        }
+        System.out.println("DeviceImporterTest passed");
+    }
+
+    // Imports the file into a new fleet and compares the fleet and the report with the expected outcome.
+    private static void checkImport(final DeviceImporter importer,
+                                    final Path file,
+                                    final Expected expected) throws IOException
+    {
+        final DeviceFleet fleet = new DeviceFleet();
+        final DeviceImporter.Report report = importer.importCsv(file, fleet);
+        check(report.imported() == expected.imported && report.rejected() == expected.rejectedLines.size(),
+              "imported " + report.imported() + " and rejected " + report.rejected() + ", expected "
+              + expected.imported + " and " + expected.rejectedLines.size());
+
+        checkDevices(expected.iPhones, fleet.iPhoneCount(), fleet::iPhone, "iPhone");
+        checkDevices(expected.iPhone16s, fleet.iPhone16Count(), fleet::iPhone16, "iPhone 16");
+        checkDevices(expected.iPads, fleet.iPadCount(), fleet::iPad, "iPad");
+        checkDevices(expected.iPods, fleet.iPodCount(), fleet::iPod, "iPod");
+
+        final List<DeviceImporter.Reject> rejects = report.rejects();
+        check(rejects.size() == MAX_REPORTED_REJECTS, "kept " + rejects.size() + " rejects");
+        for (int i = 0; i < rejects.size(); i++)
+        {
+            final DeviceImporter.Reject reject = rejects.get(i);
+            final int line = expected.rejectedLines.get(i);
+            final String text = withoutCarriageReturn(expected.lines.get(line));
+            check(reject.lineNumber() == line + 1 && reject.line().equals(text),
+                  "reject " + i + " is " + reject + ", expected line " + (line + 1) + " [" + text + "]");
+            final String reason = expected.reasons.get(i);
+            check(reason == null || reason.equals(reject.reason()), reject + " should say " + reason);
+        }
+    }
+
+    // Checks that the devices of one type in a fleet are the expected ones, in order.
+    private static void checkDevices(final List<IDevice> expected,
+                                     final int count,
+                                     final IntFunction<? extends IDevice> device,
+                                     final String type)
+    {
+        check(count == expected.size(), count + " " + type + "s, expected " + expected.size());
+        for (int i = 0; i < count; i++)
+        {
+            check(state(device.apply(i)).equals(state(expected.get(i))),
+                  type + " " + i + ": " + state(device.apply(i)) + " != " + state(expected.get(i)));
+        }
+    }
+
+    // Lines built from valid and invalid fields, with comments, blank lines and Windows line endings.
+    private static List<String> randomLines(final Random random)
+    {
+        final List<String> lines = new ArrayList<>();
+        for (int i = 0; i < LINES; i++)
+        {
+            final String type = TYPES[random.nextInt(TYPES.length)];
+            final int fields = type.equals("IPhone16") ? 4 : 2;
+            final StringBuilder line = new StringBuilder(type);
+            final int written = random.nextInt(10) == 0 ? random.nextInt(6) : fields;
+            for (int field = 0; field < written; field++)
+            {
+                line.append(',').append(randomField(random, type, field));
+            }
+            if (random.nextInt(20) == 0)
+            {
+                line.append('\r');
+            }
+            lines.add(random.nextInt(50) == 0 ? "" : line.toString());
+        }
+        return lines;
+    }
+
+    // A field for a position of a device type, usually of the kind that belongs there.
+    private static String randomField(final Random random,
+                                      final String type,
+                                      final int field)
+    {
+        final String[] pool;
+        if (random.nextInt(20) == 0)
+        {
+            pool = STRINGS;
+        } else if (type.equals("IPad"))
+        {
+            pool = field == 0 ? BOOLEANS : STRINGS;
+        } else if (type.equals("IPod"))
+        {
+            pool = field == 0 ? INTS : DOUBLES;
+        } else if (field == 1)
+        {
+            pool = STRINGS;
+        } else if (field == 2)
+        {
+            pool = BOOLEANS;
+        } else if (field == 3)
+        {
+            pool = INTS;
+        } else if (random.nextBoolean())
+        {
+            return Double.toString(random.nextInt(1_000_000) / 100.0);
+        } else
+        {
+            pool = DOUBLES;
+        }
+        return pool[random.nextInt(pool.length)];
+    }
+
+    /*
+     * Works out the outcome of importing the lines by parsing each one with the JDK and building
+     * its device with the constructor, checking the rules in the constructors' order.
+     */
+    private static Expected expected(final List<String> lines)
+    {
+        final Expected expected = new Expected(lines);
+        for (int i = 0; i < lines.size(); i++)
+        {
+            final String line = withoutCarriageReturn(lines.get(i));
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            final String[] fields = line.split(",", -1);
+            final String ruleBroken = expectedDevice(fields, expected);
+            if (ruleBroken != null)
+            {
+                expected.rejectedLines.add(i);
+                expected.reasons.add(ruleBroken.isEmpty() ? null : ruleBroken);
+            } else
+            {
+                expected.imported++;
+            }
+        }
+        return expected;
+    }
+
+    /*
+     * Adds the device of a row to the expected devices. Returns null if it was added, the
+     * constructor's message if it breaks a rule, or an empty string if it cannot be parsed.
+     */
+    private static String expectedDevice(final String[] fields,
+                                         final Expected expected)
+    {
+        final String type = fields[0];
+        if (type.equals("IPhone") && fields.length == 3)
+        {
+            final Double minutes = parseDouble(fields[1]);
+            if (minutes == null)
+            {
+                return "";
+            }
+            return construct(() -> new IPhone(minutes, fields[2]), expected.iPhones);
+        } else if (type.equals("IPhone16") && fields.length == 5)
+        {
+            final Double minutes = parseDouble(fields[1]);
+            if (minutes == null)
+            {
+                return "";
+            }
+            final String minutesError = IPhone.phonePlanMinutesRemainingError(minutes);
+            if (minutesError != null)
+            {
+                return minutesError;
+            }
+            final Boolean camera = parseBoolean(fields[3]);
+            final Integer memoryGB = parseInt(fields[4]);
+            if (camera == null || memoryGB == null)
+            {
+                return "";
+            }
+            return construct(() -> new IPhone16(minutes, fields[2], camera, memoryGB), expected.iPhone16s);
+        } else if (type.equals("IPad") && fields.length == 3)
+        {
+            final Boolean iPadCase = parseBoolean(fields[1]);
+            if (iPadCase == null)
+            {
+                return "";
+            }
+            return construct(() -> new IPad(iPadCase, fields[2]), expected.iPads);
+        } else if (type.equals("IPod") && fields.length == 3)
+        {
+            final Integer songs = parseInt(fields[1]);
+            final Double decibels = parseDouble(fields[2]);
+            if (songs == null || decibels == null)
+            {
+                return "";
+            }
+            return construct(() -> new IPod(songs, decibels), expected.iPods);
+        }
+        return "";
+    }
+
+    // Constructs a device and adds it to a list, or returns the constructor's message.
+    private static String construct(final Supplier<IDevice> constructor,
+                                    final List<IDevice> devices)
+    {
+        try
+        {
+            devices.add(constructor.get());
+            return null;
+        } catch (final IllegalArgumentException e)
+        {
+            return e.getMessage();
+        }
+    }
+
+    // A line without the carriage return of a Windows line ending.
+    private static String withoutCarriageReturn(final String line)
+    {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    // A plain decimal, with an optional sign and exponent, as Double.parseDouble reads it, or null.
+    private static Double parseDouble(final String field)
+    {
+        if (!field.matches("[0-9.eE+-]+"))
+        {
+            return null;
+        }
+        try
+        {
+            return Double.parseDouble(field);
+        } catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    // An int as Integer.parseInt reads it, or null.
+    private static Integer parseInt(final String field)
+    {
+        try
+        {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    // true or false in any case, or null.
+    private static Boolean parseBoolean(final String field)
+    {
+        if (field.equalsIgnoreCase("true"))
+        {
+            return Boolean.TRUE;
+        }
+        return field.equalsIgnoreCase("false") ? Boolean.FALSE : null;
+    }
+
+    // Every field of a device, with doubles as their raw bits, and its class as a view stands for it.
+    private static String state(final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            return "IPhone16 " + Double.doubleToRawLongBits(iPhone16.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone16.getCarrier() + " " + iPhone16.hasHighResCamera() + " " + iPhone16.getMemoryGB();
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            return "IPhone " + Double.doubleToRawLongBits(iPhone.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone.getCarrier();
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            return "IPad " + iPad.hasIPadCase() + " " + iPad.getOperatingSystemVersion();
+        }
+        final IPod iPod = (IPod) device;
+        return "IPod " + iPod.getNumOfStoredSongs() + " " + Double.doubleToRawLongBits(iPod.getMaxVolumeDecibel());
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+
+    /*
+     * The outcome of importing a file: the devices of each type in order, the number imported, and
+     * the index of every rejected line with the constructor's message, or null if it could not be parsed.
+     */
+    private static final class Expected
+    {
+        private final List<String> lines;
+        private final List<IDevice> iPhones;
+        private final List<IDevice> iPhone16s;
+        private final List<IDevice> iPads;
+        private final List<IDevice> iPods;
+        private final List<Integer> rejectedLines;
+        private final List<String> reasons;
+        private long imported;
+
+        private Expected(final List<String> lines)
+        {
+            this.lines = lines;
+            iPhones = new ArrayList<>();
+            iPhone16s = new ArrayList<>();
+            iPads = new ArrayList<>();
+            iPods = new ArrayList<>();
+            rejectedLines = new ArrayList<>();
+            reasons = new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Checks that a {@link DeviceQuery} over a list or a {@link DeviceFleet} gives the same counts,
+ * statistics and groups as a plain loop, for every size around the range size it splits at, on pools
+ * of every parallelism, and when threads run the same query at once.
+ * The values are whole numbers of quarters, so sums are exact in any order and compared exactly.
+ * Run with {@code java DeviceQueryTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceQueryTest
+{
+    private static final int[] SIZES;
+    private static final String[] CARRIERS;
+    private static final int THREADS;
+
+    static
+    {
+        SIZES = new int[] {0, 1, 4_095, 4_096, 4_097, 8_193, 100_000};
+        CARRIERS = new String[] {"Bell", "Rogers", "Telus", "Verizon", "Télé-Québec"};
+        THREADS = 4;
+    }
+
+    private DeviceQueryTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        final ForkJoinPool single = new ForkJoinPool(1);
+        final ForkJoinPool wide = new ForkJoinPool(8);
+        try
+        {
+            final Random random = new Random(17);
+            for (final int size : SIZES)
+            {
+                final List<IDevice> devices = randomDevices(random, size);
+                final DeviceFleet fleet = new DeviceFleet();
+                for (final IDevice device : devices)
+                {
+                    fleet.add(device);
+                }
+                for (final ForkJoinPool pool : new ForkJoinPool[] {ForkJoinPool.commonPool(), single, wide})
+                {
+                    checkQueries(devices, fleet, pool);
+                }
+            }
+            emptyResults();
+            manyGroups(wide);
+            concurrentRuns(wide);
+        } finally
+        {
+            single.shutdown();
+            wide.shutdown();
+        }
+        System.out.println("DeviceQueryTest passed");
+    }
+
+    // Every kind of aggregate over the list and the fleet matches a loop over the list.
+    private static void checkQueries(final List<IDevice> devices,
+                                     final DeviceFleet fleet,
+                                     final ForkJoinPool pool)
+    {
+        final Predicate<IPhone> over100 = phone -> phone.getPhonePlanMinutesRemaining() > 100.0;
+        final Predicate<IPhone> notBell = phone -> !phone.getCarrier().equals("Bell");
+        final ToDoubleFunction<IPhone> minutes = IPhone::getPhonePlanMinutesRemaining;
+
+        // A list query for IPhone also sees the IPhone16s, while a fleet's iPhones do not include them
+        final List<IPhone> allPhones = new ArrayList<>();
+        final List<IPhone> plainPhones = new ArrayList<>();
+        final List<IPod> iPods = new ArrayList<>();
+        for (final IDevice device : devices)
+        {
+            if (device instanceof IPhone)
+            {
+                allPhones.add((IPhone) device);
+                if (!(device instanceof IPhone16))
+                {
+                    plainPhones.add((IPhone) device);
+                }
+            } else if (device instanceof IPod)
+            {
+                iPods.add((IPod) device);
+            }
+        }
+
+        final DeviceQuery<IPhone> listPhones = DeviceQuery.of(devices, IPhone.class).on(pool);
+        final DeviceQuery<IPhone> fleetPhones = DeviceQuery.iPhones(fleet).on(pool);
+        check(listPhones.count() == allPhones.size(), "list count " + listPhones.count());
+        check(fleetPhones.count() == plainPhones.size(), "fleet count " + fleetPhones.count());
+        check(DeviceQuery.iPhone16s(fleet).on(pool).count() == allPhones.size() - plainPhones.size(),
+              "fleet iPhone 16 count");
+        check(DeviceQuery.iPads(fleet).on(pool).count() == fleet.iPadCount(), "fleet iPad count");
+
+        checkStats(listPhones.filter(over100).filter(notBell).stats(minutes),
+                   allPhones, over100.and(notBell), minutes, "filtered list stats");
+        checkStats(fleetPhones.filter(over100).filter(notBell).stats(minutes),
+                   plainPhones, over100.and(notBell), minutes, "filtered fleet stats");
+        checkStats(DeviceQuery.iPods(fleet).on(pool).stats(IPod::getMaxVolumeDecibel),
+                   iPods, iPod -> true, IPod::getMaxVolumeDecibel, "iPod stats");
+
+        checkGroups(listPhones.groupBy(DeviceQuery.BY_CARRIER, minutes), allPhones, DeviceQuery.BY_CARRIER,
+                    minutes, "list groups");
+        checkGroups(fleetPhones.filter(over100).groupBy(DeviceQuery.BY_CARRIER, minutes),
+                    filtered(plainPhones, over100), DeviceQuery.BY_CARRIER, minutes, "filtered fleet groups");
+        final ToIntFunction<IPod> songBucket = iPod -> iPod.getNumOfStoredSongs() / 100;
+        checkGroups(DeviceQuery.iPods(fleet).on(pool).countBy(songBucket), iPods, songBucket, iPod -> 0.0,
+                    "song histogram");
+    }
+
+    // An empty query has a count of zero, a sum of zero, infinite bounds and no average or groups.
+    private static void emptyResults()
+    {
+        final DeviceQuery<IPad> none = DeviceQuery.iPads(new DeviceFleet());
+        final DeviceQuery.DoubleStats stats = none.stats(iPad -> 1.0);
+        check(none.count() == 0L && stats.count() == 0L && stats.sum() == 0.0, "empty stats " + stats);
+        check(stats.min() == Double.POSITIVE_INFINITY && stats.max() == Double.NEGATIVE_INFINITY
+              && Double.isNaN(stats.average()), "empty bounds " + stats);
+        final DeviceQuery.GroupedStats groups = none.countBy(iPad -> 1);
+        check(groups.size() == 0 && groups.keys().length == 0 && groups.get(1).count() == 0L, "empty groups");
+    }
+
+    // Thousands of keys, negative ones included, grow the group table and come back in ascending order.
+    private static void manyGroups(final ForkJoinPool pool)
+    {
+        final List<IDevice> iPods = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++)
+        {
+            iPods.add(new IPod(i, 60.0));
+        }
+        final ToIntFunction<IPod> key = iPod -> (iPod.getNumOfStoredSongs() % 5_000) - 2_500;
+        final DeviceQuery.GroupedStats groups = DeviceQuery.of(iPods, IPod.class).on(pool).countBy(key);
+        final int[] keys = groups.keys();
+        check(groups.size() == 5_000 && keys.length == 5_000, "groups " + groups.size());
+        for (int i = 0; i < keys.length; i++)
+        {
+            check(keys[i] == i - 2_500, "key " + i + " is " + keys[i]);
+            check(groups.get(keys[i]).count() == 10L, "group " + keys[i] + " has " + groups.get(keys[i]).count());
+        }
+        check(groups.get(2_500).count() == 0L, "a missing key has a group");
+    }
+
+    // Threads running one query at once all get the same results as a loop.
+    private static void concurrentRuns(final ForkJoinPool pool) throws InterruptedException
+    {
+        final List<IDevice> devices = randomDevices(new Random(19), 100_000);
+        final DeviceFleet fleet = new DeviceFleet();
+        for (final IDevice device : devices)
+        {
+            fleet.add(device);
+        }
+        final List<IPhone> phones = new ArrayList<>();
+        for (final IDevice device : devices)
+        {
+            if (device instanceof IPhone && !(device instanceof IPhone16))
+            {
+                phones.add((IPhone) device);
+            }
+        }
+        final DeviceQuery<IPhone> query = DeviceQuery.iPhones(fleet).on(pool);
+        final ToDoubleFunction<IPhone> minutes = IPhone::getPhonePlanMinutesRemaining;
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            threads[i] = start(() ->
+            {
+                for (int round = 0; round < 20; round++)
+                {
+                    checkGroups(query.groupBy(DeviceQuery.BY_CARRIER, minutes), phones, DeviceQuery.BY_CARRIER,
+                                minutes, "concurrent groups");
+                }
+            }, failure);
+        }
+        join(failure, threads);
+    }
+
+    // Checks statistics against a loop over the devices that match a condition.
+    private static <T> void checkStats(final DeviceQuery.DoubleStats stats,
+                                       final List<T> devices,
+                                       final Predicate<? super T> condition,
+                                       final ToDoubleFunction<? super T> value,
+                                       final String what)
+    {
+        long count = 0L;
+        double sum = 0.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (final T device : devices)
+        {
+            if (condition.test(device))
+            {
+                final double v = value.applyAsDouble(device);
+                count++;
+                sum += v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+        check(stats.count() == count && stats.sum() == sum && stats.min() == min && stats.max() == max,
+              what + ": " + stats + ", expected count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max);
+        check(count == 0L ? Double.isNaN(stats.average()) : stats.average() == sum / count, what + " average");
+    }
+
+    // Checks grouped statistics against a loop that groups the devices itself.
+    private static <T> void checkGroups(final DeviceQuery.GroupedStats groups,
+                                        final List<T> devices,
+                                        final ToIntFunction<? super T> key,
+                                        final ToDoubleFunction<? super T> value,
+                                        final String what)
+    {
+        final Map<Integer, List<T>> expected = new HashMap<>();
+        for (final T device : devices)
+        {
+            expected.computeIfAbsent(key.applyAsInt(device), k -> new ArrayList<>()).add(device);
+        }
+        final int[] keys = expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        check(Arrays.equals(groups.keys(), keys), what + ": keys " + Arrays.toString(groups.keys()));
+        for (final int k : keys)
+        {
+            checkStats(groups.get(k), expected.get(k), device -> true, value, what + " " + k);
+        }
+    }
+
+    // The devices that match a condition.
+    private static <T> List<T> filtered(final List<T> devices,
+                                        final Predicate<? super T> condition)
+    {
+        final List<T> matching = new ArrayList<>();
+        for (final T device : devices)
+        {
+            if (condition.test(device))
+            {
+                matching.add(device);
+            }
+        }
+        return matching;
+    }
+
+    // Devices of every type whose balances and volumes are whole numbers of quarters.
+    private static List<IDevice> randomDevices(final Random random,
+                                               final int size)
+    {
+        final List<IDevice> devices = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+        {
+            final int kind = random.nextInt(4);
+            if (kind == 0)
+            {
+                devices.add(new IPhone(random.nextInt(4_000) / 4.0, CARRIERS[random.nextInt(CARRIERS.length)]));
+            } else if (kind == 1)
+            {
+                devices.add(new IPhone16(random.nextInt(4_000) / 4.0, CARRIERS[random.nextInt(CARRIERS.length)],
+                                         random.nextBoolean(), 128 << random.nextInt(3)));
+            } else if (kind == 2)
+            {
+                devices.add(new IPad(random.nextBoolean(), "iPadOS " + random.nextInt(18)));
+            } else
+            {
+                devices.add(new IPod(random.nextInt(10_000), random.nextInt(341) / 4.0));
+            }
+        }
+        return devices;
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
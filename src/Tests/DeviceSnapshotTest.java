@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a {@link DeviceSnapshot} reads back exactly the devices it was written with, from a list
+ * and from a {@link DeviceFleet}, that it refuses files that are not snapshots or are too new, and
+ * that a write that fails part way through leaves no file behind.
+ * Run with {@code java DeviceSnapshotTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceSnapshotTest
+{
+    private static final int DEVICES;
+
+    static
+    {
+        DEVICES = 10_000;
+    }
+
+    private DeviceSnapshotTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws IOException If the snapshot files cannot be written or read.
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        final Path directory = Files.createTempDirectory("snapshot-test");
+        try
+        {
+            listRoundTrip(directory.resolve("list.snap"));
+            fleetRoundTrip(directory.resolve("fleet.snap"));
+            emptyRoundTrip(directory.resolve("empty.snap"));
+            refusesBadHeaders(directory.resolve("bad.snap"));
+            failedWriteLeavesNoFile(directory.resolve("failed.snap"));
+        } finally
+        {
+            deleteTree(directory);
+        }
+        System.out.println("DeviceSnapshotTest passed");
+    }
+
+    // Every field of every device, including the edge values, survives a write and a read.
+    private static void listRoundTrip(final Path file) throws IOException
+    {
+        final List<IDevice> devices = randomDevices(new Random(3));
+        devices.add(new IPhone(-0.0, "Bell"));
+        devices.add(new IPhone(Double.MAX_VALUE, "Télé-Québec"));
+        devices.add(new IPhone16(Double.MIN_VALUE, "Rogers", true, Integer.MAX_VALUE));
+        devices.add(new IPad(true, "iPadOS 17.4.1 ☃"));
+        devices.add(new IPod(Integer.MIN_VALUE, 85.0));
+        DeviceSnapshot.write(devices, file);
+
+        try (DeviceSnapshot snapshot = DeviceSnapshot.open(file))
+        {
+            check(snapshot.version() == DeviceSnapshot.FORMAT_VERSION, "version " + snapshot.version());
+            check(snapshot.size() == devices.size(), "size " + snapshot.size());
+            final List<IDevice> read = snapshot.devices();
+            for (int i = 0; i < devices.size(); i++)
+            {
+                check(state(read.get(i)).equals(state(devices.get(i))),
+                      "device " + i + ": " + state(read.get(i)) + " != " + state(devices.get(i)));
+                check(snapshot.typeAt(i) == type(devices.get(i)), "type of device " + i);
+            }
+        }
+    }
+
+    // A fleet written through its views loads into another fleet with the same devices in each column.
+    private static void fleetRoundTrip(final Path file) throws IOException
+    {
+        final DeviceFleet fleet = new DeviceFleet();
+        for (final IDevice device : randomDevices(new Random(4)))
+        {
+            fleet.add(device);
+        }
+        DeviceSnapshot.write(fleet, file);
+
+        final DeviceFleet loaded = new DeviceFleet();
+        try (DeviceSnapshot snapshot = DeviceSnapshot.open(file))
+        {
+            snapshot.loadInto(loaded);
+        }
+        check(loaded.iPhoneCount() == fleet.iPhoneCount() && loaded.iPhone16Count() == fleet.iPhone16Count()
+              && loaded.iPadCount() == fleet.iPadCount() && loaded.iPodCount() == fleet.iPodCount(),
+              "fleet sizes differ");
+        for (int i = 0; i < fleet.iPhoneCount(); i++)
+        {
+            check(state(loaded.iPhone(i)).equals(state(fleet.iPhone(i))), "iPhone " + i);
+        }
+        for (int i = 0; i < fleet.iPhone16Count(); i++)
+        {
+            check(state(loaded.iPhone16(i)).equals(state(fleet.iPhone16(i))), "iPhone 16 " + i);
+        }
+        for (int i = 0; i < fleet.iPadCount(); i++)
+        {
+            check(state(loaded.iPad(i)).equals(state(fleet.iPad(i))), "iPad " + i);
+        }
+        for (int i = 0; i < fleet.iPodCount(); i++)
+        {
+            check(state(loaded.iPod(i)).equals(state(fleet.iPod(i))), "iPod " + i);
+        }
+    }
+
+    // A snapshot of no devices opens and is empty.
+    private static void emptyRoundTrip(final Path file) throws IOException
+    {
+        DeviceSnapshot.write(new ArrayList<IDevice>(), file);
+        try (DeviceSnapshot snapshot = DeviceSnapshot.open(file))
+        {
+            check(snapshot.size() == 0 && snapshot.devices().isEmpty(), "empty snapshot has devices");
+        }
+    }
+
+    // A file with the wrong magic number, or a format version newer than the reader's, is refused.
+    private static void refusesBadHeaders(final Path file) throws IOException
+    {
+        DeviceSnapshot.write(List.of(new IPod(1, 80.0)), file);
+        overwrite(file, 4, (short) (DeviceSnapshot.FORMAT_VERSION + 1));
+        check(!opens(file), "a newer version was opened");
+
+        DeviceSnapshot.write(List.of(new IPod(1, 80.0)), file);
+        overwrite(file, 0, (short) 0);
+        check(!opens(file), "a file with the wrong magic number was opened");
+    }
+
+    // A write whose devices fail part way through deletes the file instead of leaving a short snapshot.
+    private static void failedWriteLeavesNoFile(final Path file) throws IOException
+    {
+        DeviceSnapshot.write(List.of(new IPod(1, 80.0)), file);
+        final List<IDevice> devices = randomDevices(new Random(5));
+        final Iterable<IDevice> failing = () -> devices.stream().map(device ->
+        {
+            if (device == devices.get(DEVICES / 2))
+            {
+                throw new IllegalStateException("source failed");
+            }
+            return device;
+        }).iterator();
+        try
+        {
+            DeviceSnapshot.write(failing, file);
+            throw new AssertionError("the write did not fail");
+        } catch (final IllegalStateException e)
+        {
+            check(!Files.exists(file), "a failed write left a file behind");
+        }
+    }
+
+    // Devices of every type with random fields.
+    private static List<IDevice> randomDevices(final Random random)
+    {
+        final String[] carriers = {"Bell", "Rogers", "Telus", "Verizon"};
+        final List<IDevice> devices = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++)
+        {
+            final int kind = random.nextInt(4);
+            if (kind == 0)
+            {
+                devices.add(new IPhone(random.nextDouble() * 1_000.0, carriers[random.nextInt(carriers.length)]));
+            } else if (kind == 1)
+            {
+                devices.add(new IPhone16(random.nextDouble() * 1_000.0, carriers[random.nextInt(carriers.length)],
+                                         random.nextBoolean(), 128 << random.nextInt(3)));
+            } else if (kind == 2)
+            {
+                devices.add(new IPad(random.nextBoolean(), "iPadOS " + random.nextInt(18) + "." + random.nextInt(5)));
+            } else
+            {
+                devices.add(new IPod(random.nextInt(10_000), 40.0 + random.nextInt(45)));
+            }
+        }
+        return devices;
+    }
+
+    // Every field of a device, with doubles as their raw bits, and its class as a view stands for it.
+    private static String state(final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            return "IPhone16 " + Double.doubleToRawLongBits(iPhone16.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone16.getCarrier() + " " + iPhone16.hasHighResCamera() + " " + iPhone16.getMemoryGB();
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            return "IPhone " + Double.doubleToRawLongBits(iPhone.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone.getCarrier();
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            return "IPad " + iPad.hasIPadCase() + " " + iPad.getOperatingSystemVersion();
+        }
+        final IPod iPod = (IPod) device;
+        return "IPod " + iPod.getNumOfStoredSongs() + " " + Double.doubleToRawLongBits(iPod.getMaxVolumeDecibel());
+    }
+
+    // The type tag a device is written with.
+    private static byte type(final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            return DeviceSnapshot.TYPE_IPHONE16;
+        } else if (device instanceof IPhone)
+        {
+            return DeviceSnapshot.TYPE_IPHONE;
+        } else if (device instanceof IPad)
+        {
+            return DeviceSnapshot.TYPE_IPAD;
+        }
+        return DeviceSnapshot.TYPE_IPOD;
+    }
+
+    // Writes a little-endian short over the bytes of a file at a position.
+    private static void overwrite(final Path file,
+                                  final long position,
+                                  final short value) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+        {
+            channel.write(ByteBuffer.allocate(Short.BYTES).order(ByteOrder.LITTLE_ENDIAN).putShort(0, value),
+                          position);
+        }
+    }
+
+    // Whether a snapshot file opens.
+    private static boolean opens(final Path file)
+    {
+        try (DeviceSnapshot snapshot = DeviceSnapshot.open(file))
+        {
+            return snapshot.size() >= 0;
+        } catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    // Deletes a directory and everything in it.
+    private static void deleteTree(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
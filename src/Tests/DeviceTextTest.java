@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that {@link DeviceText} writes every {@code double} exactly as {@link Double#toString(double)}
+ * does, and with a fixed number of decimals exactly as {@code String.format} does, over the special
+ * values, subnormals, the edges of the range it writes without the JDK, and random bit patterns, and
+ * that it writes every {@code long} as {@link Long#toString(long)} does.
+ * Run with {@code java DeviceTextTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceTextTest
+{
+    private static final int RANDOM_VALUES;
+    private static final double[] EDGES;
+
+    static
+    {
+        RANDOM_VALUES = 1_000_000;
+        EDGES = new double[] {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                              Double.MIN_VALUE, Double.MIN_NORMAL, Math.nextDown(Double.MIN_NORMAL),
+                              Double.MAX_VALUE, 1.0, 0.1, 0.5, 1.5, 0.3, 2.0 / 3.0, 9_999_999.999_999_998,
+                              1.0e7, Math.nextDown(1.0e7), Math.nextUp(1.0e7),
+                              1.0e-3, Math.nextDown(1.0e-3), Math.nextUp(1.0e-3),
+                              1.0e-4, 0.001_25, 123_456.789, 4.35, 100.0, 1.0e-2, 9.999_999_999_999_999e-4};
+    }
+
+    private DeviceTextTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws IOException Never, since everything is written to a {@link StringBuilder}.
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        final Random random = new Random(11);
+        for (final double edge : EDGES)
+        {
+            checkDouble(edge);
+            checkDouble(-edge);
+        }
+        for (int i = 0; i < RANDOM_VALUES; i++)
+        {
+            // Random bits cover every exponent; random values in the plain range cover the fast path
+            checkDouble(Double.longBitsToDouble(random.nextLong()));
+            checkDouble(Math.scalb(random.nextDouble(), random.nextInt(35) - 11));
+            checkDouble(random.nextInt(10_000_000) / 100.0);
+            checkDouble(random.nextInt(1_000_000_000) / Math.pow(10.0, 1 + random.nextInt(9)));
+        }
+        for (int i = 0; i < RANDOM_VALUES / 10; i++)
+        {
+            final int decimals = random.nextInt(9);
+            checkFixed(random.nextInt(100_000) / 100.0, decimals);
+            checkFixed(Math.scalb(random.nextDouble(), random.nextInt(35) - 11), decimals);
+            checkFixed(-random.nextInt(1_000) / 8.0, decimals);
+        }
+        for (final double edge : EDGES)
+        {
+            checkFixed(edge, 2);
+            checkFixed(-edge, 8);
+        }
+        final long[] longs = {0L, 1L, -1L, 9L, 10L, 99L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (final long value : longs)
+        {
+            checkLong(value);
+        }
+        for (int i = 0; i < RANDOM_VALUES; i++)
+        {
+            checkLong(random.nextLong() >> random.nextInt(64));
+        }
+        System.out.println("DeviceTextTest passed");
+    }
+
+    // Checks that a double is written as Double.toString writes it.
+    private static void checkDouble(final double value) throws IOException
+    {
+        final StringBuilder out = new StringBuilder();
+        DeviceText.appendDouble(out, value);
+        check(out.toString().equals(Double.toString(value)), "appendDouble(" + Double.toString(value) + ") wrote "
+              + out + " (bits " + Long.toHexString(Double.doubleToRawLongBits(value)) + ")");
+    }
+
+    // Checks that a double is written with a fixed number of decimals as String.format writes it.
+    private static void checkFixed(final double value,
+                                   final int decimals) throws IOException
+    {
+        final StringBuilder out = new StringBuilder();
+        DeviceText.appendFixed(out, value, decimals);
+        final String expected = String.format(Locale.ROOT, "%." + decimals + "f", value);
+        check(out.toString().equals(expected),
+              "appendFixed(" + value + ", " + decimals + ") wrote " + out + ", not " + expected);
+    }
+
+    // Checks that a long is written as Long.toString writes it.
+    private static void checkLong(final long value) throws IOException
+    {
+        final StringBuilder out = new StringBuilder();
+        DeviceText.appendLong(out, value);
+        check(out.toString().equals(Long.toString(value)), "appendLong(" + value + ") wrote " + out);
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
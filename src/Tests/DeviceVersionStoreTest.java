@@ -0,0 +1,375 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the versions of a {@link DeviceVersionStore}: a view keeps reading the version it pinned
+ * while batches are committed and their pages recycled, a view never sees part of a batch, an
+ * abandoned batch changes nothing, writers take turns, and every replaced version is released once
+ * its views are closed.
+ * Run with {@code java DeviceVersionStoreTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceVersionStoreTest
+{
+    private static final int DEVICES;
+    private static final int COMMITS;
+    private static final int READERS;
+    private static final int WRITERS;
+    private static final int MEMORY_BASE;
+    private static final String[] CARRIERS;
+
+    static
+    {
+        DEVICES = 5_000;
+        COMMITS = 3_000;
+        READERS = 3;
+        WRITERS = 4;
+        MEMORY_BASE = 1 << 20;
+        CARRIERS = new String[] {"Bell", "Rogers", "Telus", "Verizon"};
+    }
+
+    private DeviceVersionStoreTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        readsAndErrors();
+        pinnedViewsKeepTheirVersion();
+        writersTakeTurns();
+        readersSeeWholeBatches();
+        System.out.println("DeviceVersionStoreTest passed");
+    }
+
+    // Devices of every type read back as they were stored, and misuse fails with the documented exceptions.
+    private static void readsAndErrors()
+    {
+        final DeviceVersionStore store = new DeviceVersionStore();
+        check(store.version() == 0L && store.size() == 0, "a new store is not empty");
+
+        final IPod iPod = new IPod(42, 84.5);
+        try (DeviceVersionStore.Batch batch = store.begin())
+        {
+            batch.add(new IPhone(12.5, "Bell"));
+            batch.add(new IPhone16(30.0, "Rogers", true, MEMORY_BASE));
+            batch.add(new IPad(true, "iPadOS 17"));
+            batch.add(iPod);
+            check(batch.commit() == 1L, "first commit is not version 1");
+            expectThrows(IllegalStateException.class, () -> batch.add(iPod), "adding to a committed batch");
+        }
+        final DeviceVersionStore.ReadView view = store.read();
+        check(view.version() == 1L && view.size() == 4, "view of version " + view.version());
+        check(view.type(0) == DeviceSnapshot.TYPE_IPHONE && view.getPhonePlanMinutesRemaining(0) == 12.5
+              && view.getCarrier(0).equals("Bell"), "iPhone read back wrong");
+        check(view.type(1) == DeviceSnapshot.TYPE_IPHONE16 && view.getPhonePlanMinutesRemaining(1) == 30.0
+              && view.getCarrier(1).equals("Rogers") && view.hasHighResCamera(1)
+              && view.getMemoryGB(1) == MEMORY_BASE, "iPhone 16 read back wrong");
+        check(view.type(2) == DeviceSnapshot.TYPE_IPAD && view.hasIPadCase(2)
+              && view.getOperatingSystemVersion(2).equals("iPadOS 17"), "iPad read back wrong");
+        check(view.type(3) == DeviceSnapshot.TYPE_IPOD && view.getNumOfStoredSongs(3) == 42
+              && view.getMaxVolumeDecibel(3) == 84.5, "iPod read back wrong");
+
+        // A copy is a new device, and changing it leaves the store alone
+        final IPod copy = (IPod) view.device(3);
+        check(copy != iPod && copy.getNumOfStoredSongs() == 42, "device copy " + copy);
+        copy.setNumOfStoredSongs(7);
+        check(view.getNumOfStoredSongs(3) == 42, "changing a copy changed the store");
+
+        expectThrows(IllegalArgumentException.class, () -> view.getMemoryGB(0), "memory of an iPhone");
+        expectThrows(IllegalArgumentException.class, () -> view.getCarrier(2), "carrier of an iPad");
+        expectThrows(IllegalArgumentException.class, () -> view.getNumOfStoredSongs(1), "songs of a phone");
+        expectThrows(IndexOutOfBoundsException.class, () -> view.type(4), "reading past the end");
+        expectThrows(IndexOutOfBoundsException.class, () -> view.type(-1), "reading a negative id");
+        // Closing twice has no effect, and a closed view refuses reads
+        view.close();
+        view.close();
+        expectThrows(IllegalStateException.class, () -> view.type(0), "reading a closed view");
+
+        // An abandoned batch changes nothing, and an unsupported device is refused
+        try (DeviceVersionStore.Batch batch = store.begin())
+        {
+            batch.put(0, new IPod(1, 1.0));
+            batch.add(new IPod(2, 2.0));
+            expectThrows(IndexOutOfBoundsException.class, () -> batch.put(6, iPod), "putting past the end");
+            expectThrows(IllegalArgumentException.class, () -> batch.add(null), "adding null");
+        }
+        try (DeviceVersionStore.ReadView latest = store.read())
+        {
+            check(latest.version() == 1L && latest.size() == 4 && latest.type(0) == DeviceSnapshot.TYPE_IPHONE,
+                  "an abandoned batch was published");
+        }
+        check(store.retainedVersions() == 0, "closed views still retain versions");
+    }
+
+    // A view pinned early reads its own version unchanged while later batches rewrite every page.
+    private static void pinnedViewsKeepTheirVersion()
+    {
+        final DeviceVersionStore store = new DeviceVersionStore();
+        try (DeviceVersionStore.Batch batch = store.begin())
+        {
+            for (int id = 0; id < DEVICES; id++)
+            {
+                batch.add(phone(1L, id));
+            }
+            batch.commit();
+        }
+
+        final List<DeviceVersionStore.ReadView> views = new ArrayList<>();
+        for (long version = 2L; version <= 40L; version++)
+        {
+            views.add(store.read());
+            try (DeviceVersionStore.Batch batch = store.begin())
+            {
+                for (int id = 0; id < DEVICES; id++)
+                {
+                    batch.put(id, phone(version, id));
+                }
+                check(batch.commit() == version, "commit is not version " + version);
+            }
+            if (version % 3L == 0L)
+            {
+                // Closing some views lets their pages be recycled into the next batches
+                views.remove(views.size() / 2).close();
+            }
+        }
+        check(store.retainedVersions() == views.size(), "retained " + store.retainedVersions() + " versions, "
+              + views.size() + " views are open");
+        for (final DeviceVersionStore.ReadView view : views)
+        {
+            check(checkWholeVersion(view) == view.version(), "view " + view.version() + " reads a later batch");
+            for (int id = 0; id < DEVICES; id++)
+            {
+                check(stamp(view, id) == view.version(), "device " + id + " is not from version " + view.version());
+            }
+            view.close();
+        }
+        check(store.retainedVersions() == 0, "closed views still retain versions");
+    }
+
+    // Writers that read, change and commit one counter never lose an update, and abandoned batches add nothing.
+    private static void writersTakeTurns() throws InterruptedException
+    {
+        final DeviceVersionStore store = new DeviceVersionStore();
+        try (DeviceVersionStore.Batch batch = store.begin())
+        {
+            batch.add(new IPod(0, 60.0));
+            batch.commit();
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[WRITERS];
+        for (int i = 0; i < WRITERS; i++)
+        {
+            threads[i] = start(() ->
+            {
+                for (int round = 0; round < COMMITS / WRITERS; round++)
+                {
+                    for (final boolean commit : new boolean[] {true, false})
+                    {
+                        try (DeviceVersionStore.Batch batch = store.begin())
+                        {
+                            final int songs;
+                            try (DeviceVersionStore.ReadView view = store.read())
+                            {
+                                songs = view.getNumOfStoredSongs(0);
+                            }
+                            batch.put(0, new IPod(songs + 1, 60.0));
+                            if (commit)
+                            {
+                                batch.commit();
+                            }
+                        }
+                    }
+                }
+            }, failure);
+        }
+        join(failure, threads);
+
+        final int commits = WRITERS * (COMMITS / WRITERS);
+        try (DeviceVersionStore.ReadView view = store.read())
+        {
+            check(view.getNumOfStoredSongs(0) == commits, "counter is " + view.getNumOfStoredSongs(0)
+                  + " after " + commits + " commits");
+            check(view.version() == commits + 1L, "version " + view.version() + " after " + commits + " commits");
+        }
+    }
+
+    // Readers always see whole batches of the version they pinned while a writer keeps committing.
+    private static void readersSeeWholeBatches() throws InterruptedException
+    {
+        final DeviceVersionStore store = new DeviceVersionStore();
+        try (DeviceVersionStore.Batch batch = store.begin())
+        {
+            for (int id = 0; id < DEVICES; id++)
+            {
+                batch.add(phone(1L, id));
+            }
+            batch.commit();
+        }
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[READERS + 1];
+        threads[0] = start(() ->
+        {
+            final Random random = new Random(23);
+            try
+            {
+                for (long version = 2L; version <= COMMITS; version++)
+                {
+                    // Every batch writes its version into device 0 and a few devices on random pages
+                    try (DeviceVersionStore.Batch batch = store.begin())
+                    {
+                        batch.put(0, phone(version, 0));
+                        for (int i = 0; i < 8; i++)
+                        {
+                            final int id = random.nextInt(DEVICES);
+                            batch.put(id, phone(version, id));
+                        }
+                        if (version % 7L == 0L)
+                        {
+                            continue;
+                        }
+                        check(batch.commit() == version - (version / 7L), "commit numbering");
+                    }
+                }
+            } finally
+            {
+                writing.set(false);
+            }
+        }, failure);
+        for (int i = 1; i <= READERS; i++)
+        {
+            threads[i] = start(() ->
+            {
+                final List<DeviceVersionStore.ReadView> held = new ArrayList<>();
+                while (writing.get())
+                {
+                    held.add(store.read());
+                    if (held.size() == 4)
+                    {
+                        // Older views are read after the writer has moved on and recycled pages
+                        for (final DeviceVersionStore.ReadView view : held)
+                        {
+                            // Every seventh stamp is abandoned, so the stamps skip those version numbers
+                            final long newest = checkWholeVersion(view);
+                            check(newest % 7L != 0L && view.version() == newest - newest / 7L,
+                                  "view " + view.version() + " reads stamp " + newest);
+                            view.close();
+                        }
+                        held.clear();
+                    }
+                }
+                for (final DeviceVersionStore.ReadView view : held)
+                {
+                    view.close();
+                }
+            }, failure);
+        }
+        join(failure, threads);
+        check(store.retainedVersions() == 0, "closed views still retain " + store.retainedVersions() + " versions");
+    }
+
+    /*
+     * Checks that every device of a view holds one batch's values, none newer than device 0, which
+     * every batch writes, and that a second pass reads the same values. Returns device 0's stamp.
+     */
+    private static long checkWholeVersion(final DeviceVersionStore.ReadView view)
+    {
+        final long newest = stamp(view, 0);
+        final long[] stamps = new long[view.size()];
+        for (int id = 0; id < stamps.length; id++)
+        {
+            stamps[id] = stamp(view, id);
+            check(stamps[id] <= newest, "device " + id + " holds stamp " + stamps[id] + " past " + newest);
+        }
+        for (int id = 0; id < stamps.length; id++)
+        {
+            check(stamp(view, id) == stamps[id], "device " + id + " changed under view " + view.version());
+        }
+        return newest;
+    }
+
+    // Returns the stamp of the batch that last wrote a device, checking every field holds the same one.
+    private static long stamp(final DeviceVersionStore.ReadView view,
+                              final int id)
+    {
+        final long stamp = view.getMemoryGB(id) - MEMORY_BASE;
+        check(view.getPhonePlanMinutesRemaining(id) == stamp + id
+              && view.getCarrier(id).equals(CARRIERS[(int) (stamp % CARRIERS.length)])
+              && view.hasHighResCamera(id) == (stamp % 2L == 1L),
+              "device " + id + " of version " + view.version() + " mixes batches: memory stamp " + stamp
+              + ", minutes " + view.getPhonePlanMinutesRemaining(id) + ", carrier " + view.getCarrier(id));
+        return stamp;
+    }
+
+    // An iPhone 16 whose every field records the batch that wrote it.
+    private static IPhone16 phone(final long stamp,
+                                  final int id)
+    {
+        return new IPhone16(stamp + id, CARRIERS[(int) (stamp % CARRIERS.length)], stamp % 2L == 1L,
+                            MEMORY_BASE + (int) stamp);
+    }
+
+    // Checks that an action throws an exception of the given type.
+    private static void expectThrows(final Class<? extends RuntimeException> type,
+                                     final Runnable action,
+                                     final String what)
+    {
+        try
+        {
+            action.run();
+        } catch (final RuntimeException e)
+        {
+            check(type.isInstance(e), what + " threw " + e);
+            return;
+        }
+        throw new AssertionError(what + " did not throw " + type.getSimpleName());
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a {@link DeviceWriteAheadLog} recovers the latest state of every device it logged,
+ * across segments and checkpoints, that a record torn at the end of the last segment is dropped
+ * while a damaged earlier segment is refused, and that threads logging at once in durable mode
+ * lose no changes.
+ * Run with {@code java DeviceWriteAheadLogTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class DeviceWriteAheadLogTest
+{
+    private static final long SMALL_SEGMENT;
+    private static final int THREADS;
+    private static final int CHANGES;
+
+    static
+    {
+        SMALL_SEGMENT = 4_096L;
+        THREADS = 4;
+        CHANGES = 2_000;
+    }
+
+    private DeviceWriteAheadLogTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws IOException          If the log's directory cannot be used.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException
+    {
+        final Path directory = Files.createTempDirectory("wal-test");
+        try
+        {
+            roundTrip(directory.resolve("round-trip"));
+            checkpoint(directory.resolve("checkpoint"));
+            tornTail(directory.resolve("torn-tail"));
+            damagedSegment(directory.resolve("damaged"));
+            concurrentDurable(directory.resolve("concurrent"));
+        } finally
+        {
+            deleteTree(directory);
+        }
+        System.out.println("DeviceWriteAheadLogTest passed");
+    }
+
+    /*
+     * Changes every field of every device type over many small segments, and checks that reopening
+     * gives back the same devices, and that the recovered devices keep logging their changes.
+     */
+    private static void roundTrip(final Path directory) throws IOException
+    {
+        final List<IDevice> devices = new ArrayList<>();
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false, SMALL_SEGMENT))
+        {
+            final IPhone phone = new IPhone(10.0, "Bell");
+            final IPhone16 phone16 = new IPhone16(-0.0, "Rogers", false, 128);
+            final IPad iPad = new IPad(false, "iPadOS 16");
+            final IPod iPod = new IPod(3, 60.0);
+            devices.add(phone);
+            devices.add(phone16);
+            devices.add(iPad);
+            devices.add(iPod);
+            for (final IDevice device : devices)
+            {
+                log.register(device);
+            }
+            check(log.register(phone) == 0, "a device registered twice got a new id");
+            for (int i = 0; i < 5_000; i++)
+            {
+                phone.addPhonePlanMinutes(0.25);
+                phone16.removePhonePlanMinutes(0.0);
+                phone16.addPhonePlanMinutes(1.5);
+                iPod.addSong();
+            }
+            phone.changeCarrier("Télé-Québec");
+            phone16.setHighResCamera(true);
+            phone16.setMemoryGB(512);
+            iPad.toggleHasCase();
+            iPad.setOperatingSystemVersion("iPadOS 17.4 ☃");
+            iPod.delSong();
+        }
+        check(segments(directory) > 2, "the log did not roll over its segments");
+
+        final IDevice recoveredPhone;
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false, SMALL_SEGMENT))
+        {
+            checkDevices(log, devices);
+            recoveredPhone = log.device(0);
+            ((IPhone) recoveredPhone).removePhonePlanMinutes(100.0);
+        }
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false, SMALL_SEGMENT))
+        {
+            check(state(log.device(0)).equals(state(recoveredPhone)), "a recovered device's change was lost");
+        }
+    }
+
+    // A checkpoint replaces the segments before it, and changes after it are replayed over the snapshot.
+    private static void checkpoint(final Path directory) throws IOException
+    {
+        final List<IDevice> devices = new ArrayList<>();
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, true, SMALL_SEGMENT))
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                final IPod iPod = new IPod(i, 80.0);
+                devices.add(iPod);
+                log.register(iPod);
+                iPod.addSong();
+            }
+            log.checkpoint();
+            check(segments(directory) == 1 && snapshots(directory) == 1, "old files were kept: "
+                  + segments(directory) + " segments, " + snapshots(directory) + " snapshots");
+            for (final IDevice device : devices)
+            {
+                ((IPod) device).addSong();
+            }
+            final IPhone phone = new IPhone(1.0, "Bell");
+            devices.add(phone);
+            log.register(phone);
+        }
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, true, SMALL_SEGMENT))
+        {
+            checkDevices(log, devices);
+        }
+    }
+
+    /*
+     * Cuts the last record of the last segment in half, as a crash part way through writing it
+     * would, and checks that reopening drops only that change and cuts the segment back to it.
+     */
+    private static void tornTail(final Path directory) throws IOException
+    {
+        final IPhone phone = new IPhone(0.0, "Bell");
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false))
+        {
+            log.register(phone);
+            for (int i = 0; i < 100; i++)
+            {
+                phone.addPhonePlanMinutes(1.0);
+            }
+        }
+        final Path segment = lastSegment(directory);
+        final long full = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE))
+        {
+            channel.truncate(full - 3);
+        }
+
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false))
+        {
+            final IPhone recovered = (IPhone) log.device(0);
+            check(recovered.getPhonePlanMinutesRemaining() == 99.0,
+                  "torn change was not dropped: " + recovered.getPhonePlanMinutesRemaining());
+            check(Files.size(segment) < full - 3, "torn record was not cut off");
+            recovered.addPhonePlanMinutes(5.0);
+        }
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false))
+        {
+            check(((IPhone) log.device(0)).getPhonePlanMinutesRemaining() == 104.0, "append after the tear");
+        }
+    }
+
+    // A damaged record in a segment that is not the last is corruption, not a crash, and is refused.
+    private static void damagedSegment(final Path directory) throws IOException
+    {
+        final IPhone phone = new IPhone(0.0, "Bell");
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false))
+        {
+            log.register(phone);
+            phone.addPhonePlanMinutes(1.0);
+        }
+        final Path segment = lastSegment(directory);
+        // Reopening starts a new, empty segment, so the one holding the records is no longer the last.
+        DeviceWriteAheadLog.open(directory, false).close();
+        check(!lastSegment(directory).equals(segment), "reopening did not start a new segment");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE))
+        {
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xFF}), Files.size(segment) - 1);
+        }
+
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, false))
+        {
+            throw new AssertionError("a damaged segment was opened with " + log.size() + " devices");
+        } catch (IOException e)
+        {
+            // Expected: the damaged record is refused
+        }
+    }
+
+    /*
+     * Threads changing their own phones and iPods, and one thread-safe iPod they share, in durable
+     * mode lose no changes, and changes to a device the log does not hold are not logged.
+     */
+    private static void concurrentDurable(final Path directory) throws IOException, InterruptedException
+    {
+        final ConcurrentIPod shared = new ConcurrentIPod(0, 80.0, THREADS);
+        final IPhone unregistered = new IPhone(0.0, "Bell");
+        final List<IDevice> devices = new ArrayList<>();
+        devices.add(shared);
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, true))
+        {
+            log.register(shared);
+            final Thread[] workers = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++)
+            {
+                final IPhone phone = new IPhone(0.0, "Bell");
+                final IPod iPod = new IPod(0, 80.0);
+                devices.add(phone);
+                devices.add(iPod);
+                log.register(phone);
+                log.register(iPod);
+                workers[i] = new Thread(() ->
+                {
+                    for (int j = 0; j < CHANGES; j++)
+                    {
+                        phone.addPhonePlanMinutes(1.0);
+                        iPod.addSong();
+                        shared.addSong();
+                        unregistered.changeCarrier(j % 2 == 0 ? "Rogers" : "Bell");
+                    }
+                });
+            }
+            for (final Thread worker : workers)
+            {
+                worker.start();
+            }
+            for (final Thread worker : workers)
+            {
+                worker.join();
+            }
+        }
+        check(shared.getNumOfStoredSongs() == THREADS * CHANGES, "the shared iPod lost changes");
+        try (DeviceWriteAheadLog log = DeviceWriteAheadLog.open(directory, true))
+        {
+            checkDevices(log, devices);
+        }
+    }
+
+    // Checks that a log holds devices with the same class and fields, in the same order.
+    private static void checkDevices(final DeviceWriteAheadLog log,
+                                     final List<IDevice> devices)
+    {
+        check(log.size() == devices.size(), "recovered " + log.size() + " devices, expected " + devices.size());
+        for (int i = 0; i < devices.size(); i++)
+        {
+            check(state(log.device(i)).equals(state(devices.get(i))),
+                  "device " + i + ": " + state(log.device(i)) + " != " + state(devices.get(i)));
+        }
+    }
+
+    // Every field of a device, with doubles as their raw bits, and its class.
+    private static String state(final IDevice device)
+    {
+        if (device instanceof IPhone16)
+        {
+            final IPhone16 iPhone16 = (IPhone16) device;
+            return "IPhone16 " + Double.doubleToRawLongBits(iPhone16.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone16.getCarrier() + " " + iPhone16.hasHighResCamera() + " " + iPhone16.getMemoryGB();
+        } else if (device instanceof IPhone)
+        {
+            final IPhone iPhone = (IPhone) device;
+            return "IPhone " + Double.doubleToRawLongBits(iPhone.getPhonePlanMinutesRemaining()) + " "
+                   + iPhone.getCarrier();
+        } else if (device instanceof IPad)
+        {
+            final IPad iPad = (IPad) device;
+            return "IPad " + iPad.hasIPadCase() + " " + iPad.getOperatingSystemVersion();
+        }
+        final IPod iPod = (IPod) device;
+        return "IPod " + iPod.getNumOfStoredSongs() + " " + Double.doubleToRawLongBits(iPod.getMaxVolumeDecibel());
+    }
+
+    // The segment with the highest number.
+    private static Path lastSegment(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.filter(file -> file.getFileName().toString().startsWith("wal-"))
+                        .max(Comparator.naturalOrder())
+                        .orElseThrow();
+        }
+    }
+
+    // The number of segments in a directory.
+    private static long segments(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.filter(file -> file.getFileName().toString().startsWith("wal-")).count();
+        }
+    }
+
+    // The number of snapshots in a directory.
+    private static long snapshots(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.filter(file -> file.getFileName().toString().startsWith("snapshot-")).count();
+        }
+    }
+
+    // Deletes a directory and everything in it.
+    private static void deleteTree(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
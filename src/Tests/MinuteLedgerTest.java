@@ -0,0 +1,415 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Checks that a {@link MinuteLedger} loses no update and never overdraws a balance when threads
+ * share it, through its slots and through its {@link MinuteLedger.LedgerIPhone}s, that the
+ * changes it reports to listeners add up to the changes made, and that a batch is applied whole
+ * or not at all, without other threads seeing or failing on a batch that is rolled back.
+ * Run with {@code java MinuteLedgerTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class MinuteLedgerTest
+{
+    private static final int THREADS;
+    private static final int ROUNDS;
+    private static final int LARGE_BATCH;
+
+    static
+    {
+        THREADS = 4;
+        ROUNDS = 100_000;
+        LARGE_BATCH = 50_000;
+    }
+
+    private MinuteLedgerTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        addsAreNotLost();
+        removalsNeverOverdraw();
+        phoneRemovalsNeverOverdraw();
+        listenersSeeEveryChange();
+        batchesAreAllOrNothing();
+        largeBatchesAreAllOrNothing();
+        rolledBackBatchesAreInvisible();
+        batchesAndRemovalsAddUp();
+        phoneBatchesAreReported();
+        System.out.println("MinuteLedgerTest passed");
+    }
+
+    // Threads adding and removing on one balance, through the slot and the phone, end at the sum of their changes.
+    private static void addsAreNotLost() throws InterruptedException
+    {
+        final MinuteLedger ledger = new MinuteLedger(1);
+        final MinuteLedger.LedgerIPhone phone = ledger.openIPhone(10.0, "Bell");
+        run(() ->
+        {
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                ledger.add(phone.slot(), 1.0);
+                phone.addPhonePlanMinutes(0.5);
+                check(ledger.tryRemove(phone.slot(), 0.25), "a covered removal failed");
+                phone.removePhonePlanMinutes(0.25);
+            }
+        });
+        check(phone.getPhonePlanMinutesRemaining() == 10.0 + THREADS * ROUNDS,
+              "updates were lost: " + phone.getPhonePlanMinutesRemaining());
+    }
+
+    // Threads removing from one balance until it runs out remove exactly the balance, and no more.
+    private static void removalsNeverOverdraw() throws InterruptedException
+    {
+        final int minutes = THREADS * ROUNDS / 2;
+        final MinuteLedger ledger = new MinuteLedger(1);
+        final int slot = ledger.open(minutes);
+        final AtomicLong removed = new AtomicLong();
+        run(() ->
+        {
+            while (ledger.tryRemove(slot, 1.0))
+            {
+                removed.incrementAndGet();
+            }
+            check(!ledger.tryRemove(slot, 1.0), "a removal succeeded after the balance ran out");
+        });
+        check(removed.get() == minutes, "removed " + removed.get() + " of " + minutes + " minutes");
+        check(ledger.balance(slot) == 0.0, "balance left: " + ledger.balance(slot));
+    }
+
+    // A phone refuses a removal that would overdraw it and leaves its balance unchanged.
+    private static void phoneRemovalsNeverOverdraw() throws InterruptedException
+    {
+        final int minutes = THREADS * ROUNDS / 2;
+        final MinuteLedger ledger = new MinuteLedger(1);
+        final MinuteLedger.LedgerIPhone phone = ledger.openIPhone(minutes, "Bell");
+        final AtomicLong removed = new AtomicLong();
+        final AtomicLong refused = new AtomicLong();
+        run(() ->
+        {
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                try
+                {
+                    phone.removePhonePlanMinutes(1.0);
+                    removed.incrementAndGet();
+                } catch (IllegalArgumentException e)
+                {
+                    refused.incrementAndGet();
+                }
+            }
+        });
+        check(removed.get() == minutes && refused.get() == THREADS * ROUNDS - minutes,
+              "removed " + removed.get() + ", refused " + refused.get());
+        check(phone.getPhonePlanMinutesRemaining() == 0.0, "balance left: " + phone.getPhonePlanMinutesRemaining());
+    }
+
+    /*
+     * Every change to a phone is reported with the balance before and after it, so the differences
+     * the listener sees add up to the change in the balance, however the threads interleave.
+     */
+    private static void listenersSeeEveryChange() throws InterruptedException
+    {
+        final MinuteLedger ledger = new MinuteLedger(1);
+        final MinuteLedger.LedgerIPhone phone = ledger.openIPhone(100.0, "Bell");
+        final DoubleAdder reported = new DoubleAdder();
+        final AtomicLong events = new AtomicLong();
+        final DeviceMutationListener listener = new DeviceMutationListener()
+        {
+            @Override
+            public void phonePlanMinutesChanged(final IPhone changed,
+                                                final double oldMinutes,
+                                                final double newMinutes)
+            {
+                if (changed == phone)
+                {
+                    check(newMinutes >= 0.0, "a negative balance was reported");
+                    reported.add(newMinutes - oldMinutes);
+                    events.incrementAndGet();
+                }
+            }
+        };
+        DeviceListeners.add(listener);
+        try
+        {
+            run(() ->
+            {
+                for (int i = 0; i < ROUNDS; i++)
+                {
+                    phone.addPhonePlanMinutes(2.0);
+                    ledger.tryRemove(phone.slot(), 3.0);
+                }
+            });
+        } finally
+        {
+            DeviceListeners.remove(listener);
+        }
+        check(events.get() >= THREADS * ROUNDS, "changes were not reported: " + events.get());
+        check(100.0 + reported.sum() == phone.getPhonePlanMinutesRemaining(), "reported changes add up to "
+              + reported.sum() + ", balance is " + phone.getPhonePlanMinutesRemaining());
+    }
+
+    // A batch with an invalid entry or an overdraft marks only those entries and changes no balance.
+    private static void batchesAreAllOrNothing()
+    {
+        final MinuteLedger ledger = new MinuteLedger(4);
+        final int[] slots = {ledger.open(10.0), ledger.open(5.0), ledger.open(1.0)};
+
+        MinuteLedger.BatchResult result = ledger.removeBatch(new int[] {slots[0], 3, slots[1], slots[2]},
+                                                             new double[] {1.0, 1.0, Double.NaN, -1.0});
+        check(!result.applied() && result.size() == 4 && result.failureCount() == 3, "invalid batch");
+        check(!result.failed(0) && result.failed(1) && result.failed(2) && result.failed(3), "invalid entries");
+        checkBalances(ledger, 10.0, 5.0, 1.0);
+
+        // The repeated slot overdraws only on its second removal, which is the one marked.
+        result = ledger.removeBatch(new int[] {slots[0], slots[2], slots[1], slots[2]},
+                                    new double[] {4.0, 0.75, 5.0, 0.5});
+        check(!result.applied() && result.failureCount() == 1 && result.failed(3),
+              "overdrawn batch: " + Arrays.toString(result.failureBitmap()));
+        checkBalances(ledger, 10.0, 5.0, 1.0);
+
+        result = ledger.removeBatch(new int[] {slots[0], slots[2], slots[1], slots[2]},
+                                    new double[] {4.0, 0.75, 5.0, 0.25});
+        check(result.applied() && result.failureCount() == 0, "covered batch was not applied");
+        checkBalances(ledger, 6.0, 0.0, 0.0);
+    }
+
+    // A batch large enough to be applied in parallel stripes is still applied whole or not at all.
+    private static void largeBatchesAreAllOrNothing()
+    {
+        final MinuteLedger ledger = new MinuteLedger(LARGE_BATCH);
+        final int[] slots = new int[LARGE_BATCH];
+        final double[] minutes = new double[LARGE_BATCH];
+        for (int i = 0; i < LARGE_BATCH; i++)
+        {
+            // Reversed, so the slots of each stripe are scattered through the batch
+            slots[LARGE_BATCH - 1 - i] = ledger.open(i == LARGE_BATCH / 2 ? 0.5 : 2.0);
+            minutes[i] = 1.0;
+        }
+        MinuteLedger.BatchResult result = ledger.removeBatch(slots, minutes);
+        check(!result.applied() && result.failureCount() == 1 && result.failed(LARGE_BATCH - 1 - LARGE_BATCH / 2),
+              "large overdrawn batch");
+        for (int i = 0; i < LARGE_BATCH; i++)
+        {
+            check(ledger.balance(i) == (i == LARGE_BATCH / 2 ? 0.5 : 2.0), "slot " + i + " changed");
+        }
+
+        minutes[LARGE_BATCH - 1 - LARGE_BATCH / 2] = 0.5;
+        result = ledger.removeBatch(slots, minutes);
+        check(result.applied(), "large covered batch was not applied");
+        for (int i = 0; i < LARGE_BATCH; i++)
+        {
+            check(ledger.balance(i) == (i == LARGE_BATCH / 2 ? 0.0 : 1.0), "slot " + i + " was not deducted");
+        }
+    }
+
+    /*
+     * While long batches that overdraw their last slot keep being rolled back, the other slots of
+     * the batch always read as unchanged, and a removal that one of them covers always succeeds.
+     */
+    private static void rolledBackBatchesAreInvisible() throws InterruptedException
+    {
+        final int count = 4_096;
+        final MinuteLedger ledger = new MinuteLedger(count);
+        final int[] slots = new int[count];
+        final double[] minutes = new double[count];
+        for (int i = 0; i < count; i++)
+        {
+            // The first two slots hold just enough for the batch, and the last slot is empty
+            slots[i] = ledger.open(i < 2 ? 1.0 : i == count - 1 ? 0.0 : ROUNDS);
+            minutes[i] = 1.0;
+        }
+        final int watched = slots[0];
+        final int covered = slots[1];
+        final AtomicBoolean batching = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread batches = start(() ->
+        {
+            while (batching.get())
+            {
+                check(!ledger.removeBatch(slots, minutes).applied(), "an overdrawn batch was applied");
+            }
+        }, failure);
+        final AtomicInteger threads = new AtomicInteger();
+        try
+        {
+            run(() ->
+            {
+                final boolean removing = threads.getAndIncrement() == 0;
+                for (int i = 0; i < ROUNDS; i++)
+                {
+                    if (removing)
+                    {
+                        check(ledger.tryRemove(covered, 1.0), "a covered removal failed because of a batch");
+                        ledger.add(covered, 1.0);
+                    } else
+                    {
+                        check(ledger.balance(watched) == 1.0, "a rolled back batch was seen");
+                    }
+                }
+            });
+        } finally
+        {
+            batching.set(false);
+            join(failure, batches);
+        }
+        checkBalances(ledger, 1.0, 1.0, ROUNDS);
+        check(ledger.balance(count - 1) == 0.0, "the empty slot changed");
+    }
+
+    /*
+     * Threads deducting batches from every slot race threads removing from single slots until the
+     * slots run out. Every balance ends at its start less the applied batches and its own removals.
+     */
+    private static void batchesAndRemovalsAddUp() throws InterruptedException
+    {
+        final int count = 64;
+        final double start = 2_000.0;
+        final MinuteLedger ledger = new MinuteLedger(count);
+        final int[] slots = new int[count];
+        final double[] minutes = new double[count];
+        for (int i = 0; i < count; i++)
+        {
+            slots[i] = ledger.open(start);
+            minutes[i] = 1.0;
+        }
+        final AtomicLong applied = new AtomicLong();
+        final AtomicLongArray removed = new AtomicLongArray(count);
+        final AtomicInteger threads = new AtomicInteger();
+        run(() ->
+        {
+            final int thread = threads.getAndIncrement();
+            final boolean batching = thread % 2 == 0;
+            for (int i = 0; i < ROUNDS / 10; i++)
+            {
+                if (batching)
+                {
+                    if (ledger.removeBatch(slots, minutes).applied())
+                    {
+                        applied.incrementAndGet();
+                    }
+                } else
+                {
+                    final int slot = (i * 31 + thread) % count;
+                    if (ledger.tryRemove(slot, 1.0))
+                    {
+                        removed.incrementAndGet(slot);
+                    }
+                }
+            }
+        });
+        check(applied.get() > 0, "no batch was applied");
+        for (int i = 0; i < count; i++)
+        {
+            final double expected = start - applied.get() - removed.get(i);
+            check(expected >= 0.0 && ledger.balance(i) == expected,
+                  "slot " + i + " holds " + ledger.balance(i) + ", expected " + expected);
+        }
+    }
+
+    // Each change a phone batch makes is reported once it is applied, and foreign phones fail the batch.
+    private static void phoneBatchesAreReported()
+    {
+        final MinuteLedger ledger = new MinuteLedger(3);
+        final MinuteLedger.LedgerIPhone[] phones = {ledger.openIPhone(5.0, "Bell"), ledger.openIPhone(5.0, "Bell")};
+        final MinuteLedger.LedgerIPhone foreign = new MinuteLedger(1).openIPhone(5.0, "Bell");
+        final AtomicLong events = new AtomicLong();
+        final DeviceMutationListener listener = new DeviceMutationListener()
+        {
+            @Override
+            public void phonePlanMinutesChanged(final IPhone changed,
+                                                final double oldMinutes,
+                                                final double newMinutes)
+            {
+                check(changed.getPhonePlanMinutesRemaining() == newMinutes, "reported before it was applied");
+                events.incrementAndGet();
+            }
+        };
+        DeviceListeners.add(listener);
+        try
+        {
+            MinuteLedger.BatchResult result = ledger.removeBatch(
+                    new MinuteLedger.LedgerIPhone[] {phones[0], foreign}, new double[] {1.0, 1.0});
+            check(!result.applied() && result.failed(1) && events.get() == 0, "a foreign phone was deducted");
+
+            result = ledger.removeBatch(phones, new double[] {2.0, 3.0});
+            check(result.applied() && events.get() == 2, "phone batch changes reported: " + events.get());
+            check(phones[0].getPhonePlanMinutesRemaining() == 3.0 && phones[1].getPhonePlanMinutesRemaining() == 2.0,
+                  "phone batch was not applied");
+        } finally
+        {
+            DeviceListeners.remove(listener);
+        }
+    }
+
+    // Fails unless the ledger holds exactly these balances.
+    private static void checkBalances(final MinuteLedger ledger,
+                                      final double... expected)
+    {
+        for (int i = 0; i < expected.length; i++)
+        {
+            check(ledger.balance(i) == expected[i], "slot " + i + " holds " + ledger.balance(i));
+        }
+    }
+
+    // Runs a task on several threads at once, waits for all of them, and rethrows the first failure.
+    private static void run(final Runnable task) throws InterruptedException
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            threads[i] = start(task, failure);
+        }
+        join(failure, threads);
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a {@link MinutesHistory} gives back every balance it recorded, before and after it is
+ * reopened, that reopening it after a crash tore its last block keeps every block before that one,
+ * that threads recording different phones at once lose no points, and that threads changing one
+ * phone at once leave its balance as the last point.
+ * Run with {@code java MinutesHistoryTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class MinutesHistoryTest
+{
+    private static final String FILE_NAME;
+    private static final int POINTS_PER_BLOCK;
+    private static final long STEP;
+
+    static
+    {
+        FILE_NAME = "minutes-history.dat";
+        POINTS_PER_BLOCK = 512;
+        STEP = 1_000L;
+    }
+
+    private MinutesHistoryTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws IOException          If the history's directory cannot be used.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException
+    {
+        final Path directory = Files.createTempDirectory("history-test");
+        try
+        {
+            roundTrip(directory.resolve("round-trip"));
+            tornTail(directory.resolve("torn-tail"));
+            concurrentPhones(directory.resolve("concurrent"));
+            sharedPhone(directory.resolve("shared"));
+        } finally
+        {
+            deleteTree(directory);
+        }
+        System.out.println("MinutesHistoryTest passed");
+    }
+
+    /*
+     * Records a random walk of balances, some of them repeated, over several blocks and an open one,
+     * and reads every point back while open, after a flush and after reopening.
+     */
+    private static void roundTrip(final Path directory) throws IOException
+    {
+        final int points = POINTS_PER_BLOCK * 5 + 100;
+        final double[] balances = new double[points];
+        final long[] times = new long[points];
+        final AtomicLong now = new AtomicLong();
+        final Random random = new Random(1);
+        final IPhone phone = new IPhone(100.0, "Bell");
+        final int id;
+        try (MinutesHistory history = MinutesHistory.open(directory, now::get))
+        {
+            now.set(5_000L);
+            id = history.register(phone);
+            times[0] = now.get();
+            balances[0] = 100.0;
+            for (int i = 1; i < points; i++)
+            {
+                // Irregular gaps exercise every delta-of-delta width, including the 64-bit one
+                now.addAndGet(random.nextInt(10) == 0 ? 1 + random.nextInt(1_000_000) : STEP);
+                times[i] = now.get();
+                if (random.nextInt(4) == 0)
+                {
+                    phone.addPhonePlanMinutes(0.0);
+                } else if (random.nextBoolean() || phone.getPhonePlanMinutesRemaining() < 50.0)
+                {
+                    phone.addPhonePlanMinutes(random.nextInt(1_000) / 8.0);
+                } else
+                {
+                    phone.removePhonePlanMinutes(random.nextInt(50) / 4.0);
+                }
+                balances[i] = phone.getPhonePlanMinutesRemaining();
+            }
+            checkPoints(history, id, times, balances);
+            history.flush();
+            checkPoints(history, id, times, balances);
+        }
+
+        try (MinutesHistory history = MinutesHistory.open(directory, now::get))
+        {
+            check(history.size() == 1, "series not recovered: " + history.size());
+            checkPoints(history, id, times, balances);
+            check(history.blocksRead() > 0, "recovered blocks were not read from the file");
+            check(history.register(new IPhone(1.0, "Bell")) == id + 1, "new phone reused a recovered id");
+        }
+    }
+
+    /*
+     * Tears the last of three blocks, as a crash part way through writing it would, and checks that
+     * reopening keeps the first two, cuts the file back to them, and can append after them.
+     */
+    private static void tornTail(final Path directory) throws IOException
+    {
+        final AtomicLong now = new AtomicLong();
+        final IPhone phone = new IPhone(0.0, "Bell");
+        final int id;
+        final long twoBlocks;
+        try (MinutesHistory history = MinutesHistory.open(directory, now::get))
+        {
+            id = history.register(phone);
+            for (int i = 1; i < POINTS_PER_BLOCK * 2; i++)
+            {
+                now.addAndGet(STEP);
+                phone.addPhonePlanMinutes(1.0);
+            }
+            history.flush();
+            twoBlocks = Files.size(directory.resolve(FILE_NAME));
+            for (int i = 0; i < POINTS_PER_BLOCK; i++)
+            {
+                now.addAndGet(STEP);
+                phone.addPhonePlanMinutes(1.0);
+            }
+        }
+        final Path file = directory.resolve(FILE_NAME);
+        final long full = Files.size(file);
+        check(full > twoBlocks, "third block was not written");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+        {
+            channel.truncate(twoBlocks + (full - twoBlocks) / 2);
+        }
+
+        try (MinutesHistory history = MinutesHistory.open(directory, now::get))
+        {
+            check(Files.size(file) == twoBlocks, "torn block was not cut off: " + Files.size(file));
+            final MinutesHistory.Points points = history.range(id, 0L, Long.MAX_VALUE);
+            check(points.size() == POINTS_PER_BLOCK * 2, "points after the tear: " + points.size());
+            for (int i = 0; i < points.size(); i++)
+            {
+                check(points.time(i) == i * STEP && points.balance(i) == i, "point " + i + " changed");
+            }
+            check(Double.isNaN(history.balanceAt(id, -1L)), "balance before the first point");
+            check(history.balanceAt(id, Long.MAX_VALUE) == POINTS_PER_BLOCK * 2 - 1, "last balance");
+
+            final IPhone next = new IPhone(7.0, "Bell");
+            final int nextId = history.register(next);
+            history.flush();
+            check(history.balanceAt(nextId, now.get()) == 7.0, "append after the tear");
+        }
+    }
+
+    // Threads recording their own phones at once keep every point of every phone.
+    private static void concurrentPhones(final Path directory) throws IOException, InterruptedException
+    {
+        final int threads = 4;
+        final int changes = POINTS_PER_BLOCK * 20;
+        final IPhone[] phones = new IPhone[threads];
+        final int[] ids = new int[threads];
+        try (MinutesHistory history = MinutesHistory.open(directory, () -> 0L))
+        {
+            for (int i = 0; i < threads; i++)
+            {
+                phones[i] = new IPhone(0.0, "Bell");
+                ids[i] = history.register(phones[i]);
+            }
+            final Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++)
+            {
+                final IPhone phone = phones[i];
+                workers[i] = new Thread(() ->
+                {
+                    for (int j = 0; j < changes; j++)
+                    {
+                        phone.addPhonePlanMinutes(1.0);
+                    }
+                });
+                workers[i].start();
+            }
+            for (final Thread worker : workers)
+            {
+                worker.join();
+            }
+            history.flush();
+            for (int i = 0; i < threads; i++)
+            {
+                final MinutesHistory.Points points = history.range(ids[i], 0L, 1L);
+                check(points.size() == changes + 1, "points lost for phone " + i + ": " + points.size());
+                for (int j = 0; j < points.size(); j++)
+                {
+                    check(points.balance(j) == j, "phone " + i + " point " + j + " changed");
+                }
+            }
+        }
+    }
+
+    /*
+     * Threads add to one thread-safe phone at once, so their events can reach the history in
+     * a different order from their changes. After every round the last point is the balance.
+     */
+    private static void sharedPhone(final Path directory) throws IOException, InterruptedException
+    {
+        final int threads = 4;
+        final MinuteLedger ledger = new MinuteLedger(1);
+        final MinuteLedger.LedgerIPhone phone = ledger.openIPhone(0.0, "Bell");
+        try (MinutesHistory history = MinutesHistory.open(directory, () -> 0L))
+        {
+            final int id = history.register(phone);
+            for (int round = 0; round < 200; round++)
+            {
+                final Thread[] workers = new Thread[threads];
+                for (int i = 0; i < threads; i++)
+                {
+                    workers[i] = new Thread(() ->
+                    {
+                        for (int j = 0; j < 100; j++)
+                        {
+                            phone.addPhonePlanMinutes(1.0);
+                        }
+                    });
+                    workers[i].start();
+                }
+                for (final Thread worker : workers)
+                {
+                    worker.join();
+                }
+                final double last = history.balanceAt(id, 0L);
+                check(last == phone.getPhonePlanMinutesRemaining(),
+                      "last point " + last + " is not the balance " + phone.getPhonePlanMinutesRemaining());
+            }
+        }
+    }
+
+    // Checks every recorded point through both range and balanceAt.
+    private static void checkPoints(final MinutesHistory history,
+                                    final int id,
+                                    final long[] times,
+                                    final double[] balances)
+    {
+        final MinutesHistory.Points points = history.range(id, times[0], times[times.length - 1] + 1);
+        check(points.size() == times.length, "range returned " + points.size() + " points");
+        for (int i = 0; i < times.length; i++)
+        {
+            check(points.time(i) == times[i], "time " + i + " changed");
+            check(Double.doubleToRawLongBits(points.balance(i)) == Double.doubleToRawLongBits(balances[i]),
+                  "balance " + i + " changed");
+            check(history.balanceAt(id, times[i]) == balances[i], "balanceAt " + i + " changed");
+        }
+        final MinutesHistory.Points middle = history.range(id, times[700], times[1_300]);
+        check(middle.size() == 600 && middle.time(0) == times[700], "middle range");
+    }
+
+    // Deletes a directory and everything in it.
+    private static void deleteTree(final Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that {@link OperatingSystemVersion} parses version strings as a regular expression reads
+ * them, and that an {@link OperatingSystemVersionIndex} answers every range query as a scan of the
+ * iPads' own versions does: after adds and removes, while it follows {@code setOperatingSystemVersion},
+ * after {@link OperatingSystemVersionIndex#upgrade(String, String, String)}, and once threads setting
+ * versions, upgrading and querying at once are done.
+ * Run with {@code java OperatingSystemVersionIndexTest}; a failed check throws an {@link AssertionError}.
+ *
+ * @author justin
+ * @author grace
+ * @version 1.0
+ */
+public final class OperatingSystemVersionIndexTest
+{
+    private static final Pattern VERSION;
+    private static final BigInteger MAX_COMPONENT;
+    private static final String[] PREFIXES;
+    private static final int IPADS;
+    private static final int THREADS;
+
+    static
+    {
+        VERSION = Pattern.compile("(\\d+)(?:\\.(\\d+)(?:\\.(\\d+))?)?");
+        MAX_COMPONENT = BigInteger.valueOf((1L << 21) - 1);
+        PREFIXES = new String[] {"", "iPadOS ", "iOS-", "v"};
+        IPADS = 3_000;
+        THREADS = 4;
+    }
+
+    private OperatingSystemVersionIndexTest()
+    {
+    }
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(final String[] args) throws InterruptedException
+    {
+        final Random random = new Random(29);
+        parsing(random);
+        queriesMatchScans(random);
+        followsChangesAndUpgrades(random);
+        concurrentChangesMatchScans();
+        System.out.println("OperatingSystemVersionIndexTest passed");
+    }
+
+    // Parsing matches the reference, packed numbers sort in version order, and bad input is refused.
+    private static void parsing(final Random random)
+    {
+        final String[] fixed = {"iPadOS 16.2", "16.10", "16.2.1", "16.2.3.4", "16.", "16..2", ".5", "iPadOS",
+                                "", "beta", "2097151.2097151.2097151", "2097152", "1.2097152", "007.08",
+                                "iPadOS 17 beta 3", "17.a.1", "1.2.", "x1y2"};
+        for (final String version : fixed)
+        {
+            checkParse(version);
+        }
+        final String alphabet = "0123456789..ab ";
+        for (int i = 0; i < 200_000; i++)
+        {
+            final StringBuilder version = new StringBuilder();
+            final int length = random.nextInt(14);
+            for (int j = 0; j < length; j++)
+            {
+                version.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            checkParse(version.toString());
+        }
+
+        check(OperatingSystemVersion.parse("iPadOS 16.2") < OperatingSystemVersion.parse("16.10"),
+              "16.2 does not sort below 16.10");
+        check(OperatingSystemVersion.parse("16.2") == OperatingSystemVersion.of(16, 2, 0)
+              && OperatingSystemVersion.format(OperatingSystemVersion.of(16, 2, 1)).equals("16.2.1")
+              && OperatingSystemVersion.format(OperatingSystemVersion.UNKNOWN).equals("unknown"),
+              "packing or formatting");
+        check(OperatingSystemVersion.UNKNOWN < OperatingSystemVersion.of(0, 0, 0), "unknown sorts above 0.0.0");
+        for (int i = 0; i < 10_000; i++)
+        {
+            final long a = randomVersion(random);
+            final long b = randomVersion(random);
+            check(Long.compare(a, b) == compareComponents(a, b), "order of " + OperatingSystemVersion.format(a)
+                  + " and " + OperatingSystemVersion.format(b));
+            check(OperatingSystemVersion.parse(OperatingSystemVersion.format(a)) == a,
+                  "format does not parse back: " + OperatingSystemVersion.format(a));
+        }
+
+        expectThrows(() -> OperatingSystemVersion.parse(null), "parsing null");
+        expectThrows(() -> OperatingSystemVersion.parseKnown("beta"), "a bound without a number");
+        expectThrows(() -> OperatingSystemVersion.of(-1, 0, 0), "a negative major number");
+        expectThrows(() -> OperatingSystemVersion.of(0, 1 << 21, 0), "a minor number past 21 bits");
+    }
+
+    // Range queries and counts match scans over the iPads, and adding or removing twice has no effect.
+    private static void queriesMatchScans(final Random random)
+    {
+        final List<IPad> iPads = randomIPads(random, IPADS);
+        try (OperatingSystemVersionIndex index = new OperatingSystemVersionIndex())
+        {
+            for (final IPad iPad : iPads)
+            {
+                check(index.add(iPad), "a new iPad was not added");
+            }
+            check(!index.add(iPads.get(0)) && index.size() == IPADS, "an iPad was added twice");
+            checkQueries(index, iPads, random);
+
+            for (int i = 0; i < IPADS / 3; i++)
+            {
+                final IPad removed = iPads.remove(random.nextInt(iPads.size()));
+                check(index.remove(removed) && !index.remove(removed), "remove of an indexed iPad");
+            }
+            check(index.size() == iPads.size(), "size " + index.size() + " after removes");
+            checkQueries(index, iPads, random);
+
+            expectThrows(() -> index.add(null), "adding null");
+            expectThrows(() -> index.olderThan("beta"), "a bound without a number");
+            expectThrows(() -> index.countBetween("15", null), "a null bound");
+        }
+    }
+
+    // The index follows versions set on its iPads and upgrades, tells other listeners, and stops once closed.
+    private static void followsChangesAndUpgrades(final Random random)
+    {
+        final List<IPad> iPads = randomIPads(random, IPADS);
+        final AtomicInteger told = new AtomicInteger();
+        final DeviceMutationListener counter = new DeviceMutationListener()
+        {
+            @Override
+            public void operatingSystemVersionChanged(final IPad iPad,
+                                                      final String oldVersion,
+                                                      final String newVersion)
+            {
+                told.incrementAndGet();
+            }
+        };
+        final OperatingSystemVersionIndex index = new OperatingSystemVersionIndex();
+        DeviceListeners.add(counter);
+        try
+        {
+            for (final IPad iPad : iPads)
+            {
+                index.add(iPad);
+            }
+            for (int i = 0; i < IPADS; i++)
+            {
+                iPads.get(random.nextInt(IPADS)).setOperatingSystemVersion(randomVersionString(random));
+            }
+            checkQueries(index, iPads, random);
+
+            for (int i = 0; i < 50; i++)
+            {
+                final String from = randomVersionString(random);
+                final String to = randomVersionString(random);
+                final String newVersion = randomVersionString(random);
+                final List<IPad> expected = scan(iPads, OperatingSystemVersion.parse(from),
+                                                 OperatingSystemVersion.parse(to));
+                told.set(0);
+                final int upgraded = index.upgrade(from, to, newVersion);
+                check(upgraded == expected.size() && told.get() == upgraded, "upgrade from " + from + " to " + to
+                      + " moved " + upgraded + " and told " + told.get() + ", expected " + expected.size());
+                for (final IPad iPad : expected)
+                {
+                    check(iPad.getOperatingSystemVersion().equals(newVersion), "an upgraded iPad kept its version");
+                }
+                checkQueries(index, iPads, random);
+            }
+            expectThrows(() -> index.upgrade("15", "16", " "), "upgrading to a blank version");
+        } finally
+        {
+            DeviceListeners.remove(counter);
+            index.close();
+        }
+
+        // A closed index no longer follows its iPads
+        final IPad iPad = scan(iPads, 0L, OperatingSystemVersion.parse("100")).get(0);
+        final String from = OperatingSystemVersion.format(iPad.getOperatingSystemVersionNumber());
+        final String to = OperatingSystemVersion.format(iPad.getOperatingSystemVersionNumber() + 1);
+        iPad.setOperatingSystemVersion("beta");
+        check(index.countBetween(from, to) > 0, "a closed index followed a change");
+    }
+
+    // Threads setting versions of their own iPads, upgrading and querying leave the index matching a scan.
+    private static void concurrentChangesMatchScans() throws InterruptedException
+    {
+        final List<IPad> iPads = randomIPads(new Random(31), IPADS);
+        try (OperatingSystemVersionIndex index = new OperatingSystemVersionIndex())
+        {
+            for (final IPad iPad : iPads)
+            {
+                index.add(iPad);
+            }
+
+            final AtomicBoolean setting = new AtomicBoolean(true);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread[] setters = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++)
+            {
+                final int first = t;
+                setters[t] = start(() ->
+                {
+                    final Random random = new Random(first);
+                    for (int i = 0; i < 20_000; i++)
+                    {
+                        final int id = first + THREADS * random.nextInt(IPADS / THREADS);
+                        iPads.get(id).setOperatingSystemVersion(randomVersionString(random));
+                    }
+                }, failure);
+            }
+            final Thread upgrader = start(() ->
+            {
+                final Random random = new Random(37);
+                while (setting.get())
+                {
+                    index.upgrade(randomVersionString(random), randomVersionString(random),
+                                  randomVersionString(random));
+                    final List<IPad> older = index.olderThan(randomVersionString(random));
+                    final Set<IPad> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+                    distinct.addAll(older);
+                    check(distinct.size() == older.size(), "a query returned an iPad twice");
+                }
+            }, failure);
+            join(failure, setters);
+            setting.set(false);
+            join(failure, upgrader);
+            check(index.size() == IPADS, "size " + index.size() + " after concurrent changes");
+            checkQueries(index, iPads, new Random(41));
+        }
+    }
+
+    // Checks random ranges, the whole range and olderThan against scans of the iPads.
+    private static void checkQueries(final OperatingSystemVersionIndex index,
+                                     final List<IPad> iPads,
+                                     final Random random)
+    {
+        for (int i = 0; i < 200; i++)
+        {
+            final String from = randomVersionString(random);
+            final String to = randomVersionString(random);
+            final long fromVersion = OperatingSystemVersion.parse(from);
+            final long toVersion = OperatingSystemVersion.parse(to);
+            checkRange(index.between(from, to), index.countBetween(from, to), scan(iPads, fromVersion, toVersion),
+                       from + " to " + to);
+            checkRange(index.olderThan(to), index.countOlderThan(to), scan(iPads, 0L, toVersion), "below " + to);
+        }
+        final String last = "2097151.2097151.2097151";
+        checkRange(index.between("0", last), index.countBetween("0", last),
+                   scan(iPads, 0L, OperatingSystemVersion.parse(last)), "every known version");
+    }
+
+    // Checks a query holds exactly the expected iPads, oldest first, and its count agrees.
+    private static void checkRange(final List<IPad> actual,
+                                   final int count,
+                                   final List<IPad> expected,
+                                   final String what)
+    {
+        check(actual.size() == expected.size() && count == expected.size(), what + ": " + actual.size()
+              + " iPads, count " + count + ", expected " + expected.size());
+        final Set<IPad> expectedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        expectedSet.addAll(expected);
+        long previous = Long.MIN_VALUE;
+        for (final IPad iPad : actual)
+        {
+            check(expectedSet.remove(iPad), what + ": an iPad out of range or listed twice, on "
+                  + iPad.getOperatingSystemVersion());
+            final long version = iPad.getOperatingSystemVersionNumber();
+            check(version >= previous, what + ": " + OperatingSystemVersion.format(version) + " listed after "
+                  + OperatingSystemVersion.format(previous));
+            previous = version;
+        }
+    }
+
+    // The iPads whose version is known, at least the lower bound and below the upper bound.
+    private static List<IPad> scan(final List<IPad> iPads,
+                                   final long from,
+                                   final long to)
+    {
+        final List<IPad> matching = new ArrayList<>();
+        for (final IPad iPad : iPads)
+        {
+            final long version = iPad.getOperatingSystemVersionNumber();
+            if (version != OperatingSystemVersion.UNKNOWN && version >= from && version < to)
+            {
+                matching.add(iPad);
+            }
+        }
+        return matching;
+    }
+
+    // Checks a string parses as the reference expression reads its first run of dotted numbers.
+    private static void checkParse(final String version)
+    {
+        final Matcher matcher = VERSION.matcher(version);
+        long expected = OperatingSystemVersion.UNKNOWN;
+        if (matcher.find())
+        {
+            final int[] parts = new int[3];
+            boolean fits = true;
+            for (int group = 1; group <= 3 && matcher.group(group) != null; group++)
+            {
+                final BigInteger value = new BigInteger(matcher.group(group));
+                fits &= value.compareTo(MAX_COMPONENT) <= 0;
+                parts[group - 1] = fits ? value.intValue() : 0;
+            }
+            if (fits)
+            {
+                expected = OperatingSystemVersion.of(parts[0], parts[1], parts[2]);
+            }
+        }
+        final long actual = OperatingSystemVersion.parse(version);
+        check(actual == expected, "\"" + version + "\" parsed as " + OperatingSystemVersion.format(actual)
+              + ", expected " + OperatingSystemVersion.format(expected));
+    }
+
+    // Compares two packed versions by their major, minor and patch numbers in turn.
+    private static int compareComponents(final long a,
+                                         final long b)
+    {
+        int order = Integer.compare(OperatingSystemVersion.major(a), OperatingSystemVersion.major(b));
+        if (order == 0)
+        {
+            order = Integer.compare(OperatingSystemVersion.minor(a), OperatingSystemVersion.minor(b));
+        }
+        if (order == 0)
+        {
+            order = Integer.compare(OperatingSystemVersion.patch(a), OperatingSystemVersion.patch(b));
+        }
+        return order;
+    }
+
+    // A packed version with small numbers, so that many versions are equal or close.
+    private static long randomVersion(final Random random)
+    {
+        return OperatingSystemVersion.of(12 + random.nextInt(7), random.nextInt(13), random.nextInt(4));
+    }
+
+    // A version string in one of several spellings, sometimes without a minor or patch number.
+    private static String randomVersionString(final Random random)
+    {
+        final StringBuilder version = new StringBuilder(PREFIXES[random.nextInt(PREFIXES.length)]);
+        version.append(12 + random.nextInt(7));
+        if (random.nextInt(4) != 0)
+        {
+            version.append('.').append(random.nextInt(13));
+            if (random.nextBoolean())
+            {
+                version.append('.').append(random.nextInt(4));
+            }
+        }
+        return version.toString();
+    }
+
+    // iPads on random versions, a few of them without a version number.
+    private static List<IPad> randomIPads(final Random random,
+                                          final int count)
+    {
+        final List<IPad> iPads = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            final String version = random.nextInt(20) == 0 ? "beta" : randomVersionString(random);
+            iPads.add(new IPad(random.nextBoolean(), version));
+        }
+        return iPads;
+    }
+
+    // Checks that an action throws an IllegalArgumentException.
+    private static void expectThrows(final Runnable action,
+                                     final String what)
+    {
+        try
+        {
+            action.run();
+        } catch (final IllegalArgumentException e)
+        {
+            return;
+        }
+        throw new AssertionError(what + " did not throw an IllegalArgumentException");
+    }
+
+    // Starts a thread that keeps its failure, if it is the first one, in the given reference.
+    private static Thread start(final Runnable task,
+                                final AtomicReference<Throwable> failure)
+    {
+        final Thread thread = new Thread(task);
+        thread.setUncaughtExceptionHandler((failed, e) -> failure.compareAndSet(null, e));
+        thread.start();
+        return thread;
+    }
+
+    // Waits for threads and rethrows the first failure of any of them.
+    private static void join(final AtomicReference<Throwable> failure,
+                             final Thread... threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError("A thread failed: " + failure.get().getMessage(), failure.get());
+        }
+    }
+
+    // Fails with the message if the condition does not hold.
+    private static void check(final boolean condition,
+                              final String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}